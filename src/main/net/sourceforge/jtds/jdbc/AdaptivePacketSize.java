@@ -0,0 +1,227 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Chooses the network packet size requested at login from the sizes of the
+ * requests and responses previously exchanged with the same server.
+ * <p>
+ * The packet size of a session is negotiated by the login request and cannot
+ * be changed afterwards. Connections using <code>adaptivePacketSize</code>
+ * therefore record the size of all their requests and responses, and each new
+ * connection to the same server requests the smallest packet size that would
+ * have sent at most {@link #TOLERANCE} more packets than the largest packet
+ * size. As pooled connections are replaced over time, the packet size of the
+ * pool follows the workload: OLTP calls keep small packets (and small packet
+ * buffers) while large result sets get the largest packets possible.
+ * </p>
+ * Sizes are counted in a histogram of power of two buckets, that is halved
+ * every {@link #DECAY_INTERVAL} samples so that old samples lose weight.
+ */
+public final class AdaptivePacketSize
+{
+
+   /**
+    * smallest packet size requested
+    */
+   static final int                                              MIN_SIZE       = TdsCore.DEFAULT_MIN_PKT_SIZE_TDS70;
+
+   /**
+    * largest packet size requested
+    */
+   static final int                                              MAX_SIZE       = TdsCore.MAX_PKT_SIZE;
+
+   /**
+    * number of samples required before a packet size is recommended
+    */
+   static final int                                              MIN_SAMPLES    = 100;
+
+   /**
+    * number of samples after which the histogram is halved
+    */
+   static final int                                              DECAY_INTERVAL = 10000;
+
+   /**
+    * additional packets accepted in exchange for a smaller packet size
+    */
+   static final double                                           TOLERANCE      = 0.1;
+
+   /**
+    * number of histogram buckets, the last one counts all messages of 16 MB
+    * and more
+    */
+   private static final int                                      BUCKETS        = 26;
+
+   /**
+    * instances by server
+    */
+   private static final ConcurrentMap<String,AdaptivePacketSize> _Servers       = new ConcurrentHashMap<String,AdaptivePacketSize>();
+
+   /**
+    * descriptive name, usually the server and port
+    */
+   private final String                                          _Name;
+
+   /**
+    * number of messages per bucket, bucket <i>n</i> counts the messages of
+    * 2<sup>n-1</sup> to 2<sup>n</sup>-1 bytes
+    */
+   private final AtomicLongArray                                 _Counts        = new AtomicLongArray( BUCKETS );
+
+   /**
+    * total bytes of the messages per bucket
+    */
+   private final AtomicLongArray                                 _Bytes         = new AtomicLongArray( BUCKETS );
+
+   /**
+    * number of samples recorded, not affected by the decay
+    */
+   private final AtomicLong                                      _Samples       = new AtomicLong();
+
+   /**
+    * Retrieves the instance for a server, creating it if necessary.
+    *
+    * @param name
+    *    the server, e.g. <code>host:port</code>
+    */
+   static AdaptivePacketSize getInstance( String name )
+   {
+      AdaptivePacketSize sizer = _Servers.get( name );
+
+      if( sizer == null )
+      {
+         sizer = new AdaptivePacketSize( name );
+         AdaptivePacketSize existing = _Servers.putIfAbsent( name, sizer );
+         sizer = existing != null ? existing : sizer;
+      }
+
+      return sizer;
+   }
+
+   /**
+    * Creates a new instance.
+    *
+    * @param name
+    *    descriptive name, usually the server and port
+    */
+   AdaptivePacketSize( String name )
+   {
+      _Name = name;
+   }
+
+   /**
+    * Retrieves the name of this instance.
+    */
+   public String getName()
+   {
+      return _Name;
+   }
+
+   /**
+    * Retrieves the number of requests and responses recorded.
+    */
+   public long getSampleCount()
+   {
+      return _Samples.get();
+   }
+
+   /**
+    * Records the size of a request or response.
+    *
+    * @param bytes
+    *    the size of the message in bytes, without packet headers
+    */
+   void sample( int bytes )
+   {
+      int bucket = Math.min( BUCKETS - 1, 32 - Integer.numberOfLeadingZeros( bytes ) );
+
+      _Counts.incrementAndGet( bucket );
+      _Bytes.addAndGet( bucket, bytes );
+
+      if( _Samples.incrementAndGet() % DECAY_INTERVAL == 0 )
+      {
+         for( int i = 0; i < BUCKETS; i ++ )
+         {
+            _Counts.addAndGet( i, - _Counts.get( i ) / 2 );
+            _Bytes.addAndGet( i, - _Bytes.get( i ) / 2 );
+         }
+      }
+   }
+
+   /**
+    * Retrieves the packet size to request for a new connection.
+    *
+    * @return
+    *    a packet size between {@link #MIN_SIZE} and {@link #MAX_SIZE} or 0 if
+    *    not enough samples have been recorded yet
+    */
+   public int getPacketSize()
+   {
+      if( _Samples.get() < MIN_SAMPLES )
+      {
+         return 0;
+      }
+
+      double limit = packets( MAX_SIZE ) * ( 1 + TOLERANCE );
+      int    size  = MIN_SIZE;
+
+      while( size < MAX_SIZE && packets( size ) > limit )
+      {
+         size = Math.min( MAX_SIZE, size * 2 );
+      }
+
+      return size;
+   }
+
+   /**
+    * Estimates the number of packets of the recorded messages.
+    *
+    * @param size
+    *    the packet size
+    */
+   private double packets( int size )
+   {
+      int    payload = size - TdsCore.PKT_HDR_LEN;
+      double packets = 0;
+
+      for( int i = 0; i < BUCKETS; i ++ )
+      {
+         long count = _Counts.get( i );
+
+         if( count > 0 )
+         {
+            // all messages of a bucket are assumed to be of average size
+            double average = (double) _Bytes.get( i ) / count;
+            packets += count * Math.max( 1, Math.ceil( average / payload ) );
+         }
+      }
+
+      return packets;
+   }
+
+   public String toString()
+   {
+      return "AdaptivePacketSize[" + _Name + ", samples=" + _Samples.get() + ", packetSize=" + getPacketSize() + "]";
+   }
+
+}
@@ -0,0 +1,334 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory budget for server response packets that are buffered because
+ * another statement on the same connection is still reading its results.
+ * <p>
+ * Budgets form a hierarchy: the global budget of the JVM, optional group
+ * budgets (one per {@link javax.sql.DataSource} or per <code>bufferGroup</code>
+ * name) and one budget per connection. Buffered packets are accounted on all
+ * levels, a connection starts buffering to disk as soon as the limit of any
+ * level would be exceeded. This keeps a single connection or group from
+ * pushing unrelated connections onto disk, as long as their own limits are
+ * set appropriately.
+ * </p>
+ * Besides the current and peak memory usage each budget counts how often
+ * statements had to start buffering to disk and how many bytes have been
+ * written to disk.
+ */
+public final class BufferBudget
+{
+
+   /**
+    * limit value for budgets that are only bounded by their parents
+    */
+   public static final long                                UNLIMITED = -1;
+
+   /**
+    * the JVM-wide budget, its limit is controlled by <code>bufferMaxMemory</code>
+    */
+   private static final BufferBudget                       _Global   = new BufferBudget( "global", null, 100000 );
+
+   /**
+    * group budgets, by name
+    */
+   private static final ConcurrentMap<String,BufferBudget> _Groups   = new ConcurrentHashMap<String,BufferBudget>();
+
+   /**
+    * descriptive name of this budget
+    */
+   private final String                                    _Name;
+
+   /**
+    * the parent budget, <code>null</code> for the global budget
+    */
+   private final BufferBudget                              _Parent;
+
+   /**
+    * limit in bytes or {@link #UNLIMITED}
+    */
+   private volatile long                                   _Limit;
+
+   /**
+    * bytes currently buffered in memory
+    */
+   private final AtomicLong                                _Usage    = new AtomicLong();
+
+   /**
+    * maximum of {@link #_Usage}
+    */
+   private final AtomicLong                                _Peak     = new AtomicLong();
+
+   /**
+    * number of times a statement started buffering to disk
+    */
+   private final AtomicLong                                _Spills   = new AtomicLong();
+
+   /**
+    * bytes buffered to disk
+    */
+   private final AtomicLong                                _Spilled  = new AtomicLong();
+
+   /**
+    * Retrieves the JVM-wide budget shared by all connections.
+    */
+   public static BufferBudget getGlobal()
+   {
+      return _Global;
+   }
+
+   /**
+    * Retrieves the budget of a connection group.
+    *
+    * @param name
+    *    the name of the group
+    *
+    * @return
+    *    the group budget or <code>null</code> if no connection of the group
+    *    has been created so far
+    */
+   public static BufferBudget getGroup( String name )
+   {
+      return _Groups.get( name );
+   }
+
+   /**
+    * Retrieves the budget of a connection group, creating it if necessary,
+    * and updates its limit.
+    *
+    * @param name
+    *    the name of the group
+    *
+    * @param limit
+    *    the limit of the group in bytes or {@link #UNLIMITED}
+    *
+    * @return
+    *    the group budget
+    */
+   static BufferBudget getGroup( String name, long limit )
+   {
+      BufferBudget group = _Groups.get( name );
+
+      if( group == null )
+      {
+         group = new BufferBudget( name, _Global, limit );
+         BufferBudget existing = _Groups.putIfAbsent( name, group );
+         group = existing != null ? existing : group;
+      }
+
+      group.setLimit( limit );
+      return group;
+   }
+
+   /**
+    * Creates a group budget that is not registered by name, e.g. the budget
+    * shared by the connections of a single {@link javax.sql.DataSource}. Its
+    * limit is set by the connections of the group.
+    *
+    * @param name
+    *    descriptive name of the group
+    *
+    * @return
+    *    the new group budget
+    */
+   public static BufferBudget createGroup( String name )
+   {
+      return new BufferBudget( name, _Global, UNLIMITED );
+   }
+
+   /**
+    * Creates a new budget.
+    *
+    * @param name
+    *    descriptive name of the budget
+    *
+    * @param parent
+    *    the parent budget, <code>null</code> for the global budget only
+    *
+    * @param limit
+    *    the limit in bytes or {@link #UNLIMITED}
+    */
+   BufferBudget( String name, BufferBudget parent, long limit )
+   {
+      _Name   = name;
+      _Parent = parent;
+      _Limit  = limit;
+   }
+
+   /**
+    * Retrieves the name of this budget.
+    */
+   public String getName()
+   {
+      return _Name;
+   }
+
+   /**
+    * Retrieves the parent budget, <code>null</code> for the global budget.
+    */
+   public BufferBudget getParent()
+   {
+      return _Parent;
+   }
+
+   /**
+    * Retrieves the limit of this budget in bytes, {@link #UNLIMITED} if only
+    * the limits of the parent budgets apply.
+    */
+   public long getLimit()
+   {
+      return _Limit;
+   }
+
+   /**
+    * Sets the limit of this budget.
+    *
+    * @param limit
+    *    the limit in bytes or {@link #UNLIMITED}
+    */
+   void setLimit( long limit )
+   {
+      _Limit = limit;
+   }
+
+   /**
+    * Retrieves the number of bytes currently buffered in memory.
+    */
+   public long getUsage()
+   {
+      return _Usage.get();
+   }
+
+   /**
+    * Retrieves the maximum number of bytes buffered in memory at any time.
+    */
+   public long getPeakUsage()
+   {
+      return _Peak.get();
+   }
+
+   /**
+    * Retrieves how often statements had to start buffering to disk.
+    */
+   public long getSpillCount()
+   {
+      return _Spills.get();
+   }
+
+   /**
+    * Retrieves the total number of bytes buffered to disk.
+    */
+   public long getSpilledBytes()
+   {
+      return _Spilled.get();
+   }
+
+   /**
+    * Checks whether buffering the given amount of memory would exceed the
+    * limit of this budget or of any of its parents.
+    *
+    * @param bytes
+    *    the number of bytes to buffer
+    */
+   boolean exceeds( long bytes )
+   {
+      for( BufferBudget budget = this; budget != null; budget = budget._Parent )
+      {
+         long limit = budget._Limit;
+
+         if( limit != UNLIMITED && budget._Usage.get() + bytes > limit )
+         {
+            return true;
+         }
+      }
+
+      return false;
+   }
+
+   /**
+    * Accounts memory used for buffering on this budget and all its parents.
+    *
+    * @param bytes
+    *    the number of bytes buffered
+    */
+   void allocate( long bytes )
+   {
+      for( BufferBudget budget = this; budget != null; budget = budget._Parent )
+      {
+         long usage = budget._Usage.addAndGet( bytes );
+         long peak;
+
+         while( usage > ( peak = budget._Peak.get() ) && ! budget._Peak.compareAndSet( peak, usage ) )
+         {
+            // retry
+         }
+      }
+   }
+
+   /**
+    * Releases memory no longer used for buffering on this budget and all its
+    * parents.
+    *
+    * @param bytes
+    *    the number of bytes released
+    */
+   void release( long bytes )
+   {
+      for( BufferBudget budget = this; budget != null; budget = budget._Parent )
+      {
+         budget._Usage.addAndGet( - bytes );
+      }
+   }
+
+   /**
+    * Records that a statement started buffering to disk.
+    */
+   void recordSpill()
+   {
+      for( BufferBudget budget = this; budget != null; budget = budget._Parent )
+      {
+         budget._Spills.incrementAndGet();
+      }
+   }
+
+   /**
+    * Records data buffered to disk.
+    *
+    * @param bytes
+    *    the number of bytes written to disk
+    */
+   void recordSpilled( long bytes )
+   {
+      for( BufferBudget budget = this; budget != null; budget = budget._Parent )
+      {
+         budget._Spilled.addAndGet( bytes );
+      }
+   }
+
+   public String toString()
+   {
+      return "BufferBudget[" + _Name + ", limit=" + _Limit + ", usage=" + _Usage.get() + ", peak=" + _Peak.get() + ", spills=" + _Spills.get() + ", spilled=" + _Spilled.get() + "]";
+   }
+
+}
@@ -122,6 +122,12 @@ public class ColInfo implements Cloneable
     */
    int         bufferSize;
 
+   /**
+    * Column data is sent as partially length-prefixed (PLP) chunks, TDS 7.2+
+    * max, xml and CLR types
+    */
+   boolean     isPlp;
+
    /**
     * Column decimal precision
     */
@@ -180,6 +186,7 @@ public class ColInfo implements Cloneable
           && isIdentity      == o.isIdentity
           && isKey           == o.isKey
           && isHidden        == o.isHidden
+          && isPlp           == o.isPlp
 
           // compare non-primitive fields
           && compare( realName   , o.realName    )
@@ -65,6 +65,14 @@ public final class DefaultProperties {
     public static final String BUFFER_MAX_MEMORY = "1024";
     /** Default <code>bufferMinPackets</code> property. */
     public static final String BUFFER_MIN_PACKETS = "8";
+    /** Default <code>bufferConnectionMaxMemory</code> property. */
+    public static final String BUFFER_CONNECTION_MAX_MEMORY = "0";
+    /** Default <code>bufferGroup</code> property. */
+    public static final String BUFFER_GROUP = "";
+    /** Default <code>bufferGroupMaxMemory</code> property. */
+    public static final String BUFFER_GROUP_MAX_MEMORY = "0";
+    /** Default <code>bufferMappedFile</code> property. */
+    public static final String BUFFER_MAPPED_FILE = "false";
     /** Default <code>cacheMetaData</code> property. */
     public static final String CACHEMETA = "false";
     /** Default <code>charset</code> property. */
@@ -97,6 +105,8 @@ public final class DefaultProperties {
     public static final String PACKET_SIZE_50 = "0";
     /** Default <code>packetSize</code> property for TDS 7.0 and TDS 8.0. */
     public static final String PACKET_SIZE_70_80 = "0"; // server sets packet size
+    /** Default <code>adaptivePacketSize</code> property. */
+    public static final String ADAPTIVE_PACKET_SIZE = "false";
     /** Default <code>password</code> property. */
     public static final String PASSWORD = "";
     /** Default <code>portNumber</code> property for SQL Server. */
@@ -119,12 +129,34 @@ public final class DefaultProperties {
     public static final String USE_UNICODE = "true";
     /** Default <code>useCursors</code> property. */
     public static final String USECURSORS = "false";
+    /** Default <code>cursorPrefetch</code> property. */
+    public static final String CURSOR_PREFETCH = "false";
+    /** Default <code>adaptiveFetch</code> property. */
+    public static final String ADAPTIVE_FETCH = "false";
+    /** Default <code>usePrepExec</code> property. */
+    public static final String USE_PREPEXEC = "false";
+    /** Default <code>deferCleanup</code> property. */
+    public static final String DEFER_CLEANUP = "false";
+    /** Default <code>maxStatementMemory</code> property. */
+    public static final String MAX_STATEMENT_MEMORY = "8388608";
+    /** Default <code>parserCacheSize</code> property. */
+    public static final String PARSER_CACHE_SIZE = "1000";
     /** Default <code>useJCIFS</code> property. */
     public static final String USEJCIFS = "false";
     /** Default <code>useLOBs</code> property. */
     public static final String USELOBS = "true";
+    /** Default <code>streamLOBs</code> property. */
+    public static final String STREAM_LOBS = "false";
+    /** Default <code>lazyRows</code> property. */
+    public static final String LAZY_ROWS = "false";
+    /** Default <code>useMARS</code> property. */
+    public static final String USE_MARS = "false";
     /** Default <code>useNTLMv2</code> property. */
     public static final String USENTLMV2 = "false";
+    /** Default <code>useNIO</code> property. */
+    public static final String USENIO = "false";
+    /** Default <code>sharedPacketPool</code> property. */
+    public static final String SHARED_PACKET_POOL = "false";
     /** Default <code>useKerberos</code> property. */
     public static final String USEKERBEROS = "false";
     /** Default <code>user</code> property. */
@@ -157,6 +189,10 @@ public final class DefaultProperties {
     public static final String TDS_VERSION_80 = "8.0";
     /** Default <code>tds</code> property for TDS 9.0. */
     public static final String TDS_VERSION_90 = "9.0";
+    /** Default <code>tds</code> property for TDS 7.3. */
+    public static final String TDS_VERSION_73 = "7.3";
+    /** Default <code>tds</code> property for TDS 7.4. */
+    public static final String TDS_VERSION_74 = "7.4";
 
     /** Default <code>ssl</code> property. */
     public static final String SSL = Ssl.SSL_OFF;
@@ -187,6 +223,8 @@ public final class DefaultProperties {
         packetSizeDefaults.put(TDS_VERSION_70, PACKET_SIZE_70_80);
         packetSizeDefaults.put(TDS_VERSION_80, PACKET_SIZE_70_80);
         packetSizeDefaults.put(TDS_VERSION_90, PACKET_SIZE_70_80);
+        packetSizeDefaults.put(TDS_VERSION_73, PACKET_SIZE_70_80);
+        packetSizeDefaults.put(TDS_VERSION_74, PACKET_SIZE_70_80);
 
         batchSizeDefaults = new HashMap(2);
         batchSizeDefaults.put(String.valueOf(Driver.SQLSERVER),
@@ -258,6 +296,22 @@ public final class DefaultProperties {
         addDefaultPropertyIfNotSet(props, Driver.BINDADDRESS, BIND_ADDRESS);
         addDefaultPropertyIfNotSet(props, Driver.USEJCIFS, USEJCIFS);
         addDefaultPropertyIfNotSet(props, Driver.BUFFERDIR, BUFFER_DIR);
+        addDefaultPropertyIfNotSet(props, Driver.PARSERCACHE, PARSER_CACHE_SIZE);
+        addDefaultPropertyIfNotSet(props, Driver.MAXSTMTMEMORY, MAX_STATEMENT_MEMORY);
+        addDefaultPropertyIfNotSet(props, Driver.DEFERCLEANUP, DEFER_CLEANUP);
+        addDefaultPropertyIfNotSet(props, Driver.USEPREPEXEC, USE_PREPEXEC);
+        addDefaultPropertyIfNotSet(props, Driver.ADAPTIVEFETCH, ADAPTIVE_FETCH);
+        addDefaultPropertyIfNotSet(props, Driver.CURSORPREFETCH, CURSOR_PREFETCH);
+        addDefaultPropertyIfNotSet(props, Driver.LAZYROWS, LAZY_ROWS);
+        addDefaultPropertyIfNotSet(props, Driver.STREAMLOBS, STREAM_LOBS);
+        addDefaultPropertyIfNotSet(props, Driver.ADAPTIVEPACKETSIZE, ADAPTIVE_PACKET_SIZE);
+        addDefaultPropertyIfNotSet(props, Driver.USEMARS, USE_MARS);
+        addDefaultPropertyIfNotSet(props, Driver.BUFFERCONNECTIONMAXMEMORY, BUFFER_CONNECTION_MAX_MEMORY);
+        addDefaultPropertyIfNotSet(props, Driver.BUFFERGROUPMAXMEMORY, BUFFER_GROUP_MAX_MEMORY);
+        addDefaultPropertyIfNotSet(props, Driver.BUFFERGROUP, BUFFER_GROUP);
+        addDefaultPropertyIfNotSet(props, Driver.BUFFERMAPPEDFILE, BUFFER_MAPPED_FILE);
+        addDefaultPropertyIfNotSet(props, Driver.SHAREDPACKETPOOL, SHARED_PACKET_POOL);
+        addDefaultPropertyIfNotSet(props, Driver.USENIO, USENIO);
 
         return props;
     }
@@ -394,8 +448,12 @@ public final class DefaultProperties {
             return new Integer(Driver.TDS70);
         } else if (DefaultProperties.TDS_VERSION_80.equals(tdsVersion)) {
             return new Integer(Driver.TDS80);
-//        } else if (DefaultProperties.TDS_VERSION_90.equals(tdsVersion)) {
-//            return new Integer(Driver.TDS90);
+        } else if (DefaultProperties.TDS_VERSION_90.equals(tdsVersion)) {
+            return new Integer(Driver.TDS90);
+        } else if (DefaultProperties.TDS_VERSION_73.equals(tdsVersion)) {
+            return new Integer(Driver.TDS73);
+        } else if (DefaultProperties.TDS_VERSION_74.equals(tdsVersion)) {
+            return new Integer(Driver.TDS74);
         }
         return null;
     }
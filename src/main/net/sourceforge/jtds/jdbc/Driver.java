@@ -18,6 +18,7 @@
 package net.sourceforge.jtds.jdbc;
 
 import java.sql.Connection;
+import java.sql.DriverAction;
 import java.sql.DriverManager;
 import java.sql.DriverPropertyInfo;
 import java.sql.SQLException;
@@ -69,6 +70,10 @@ public class Driver implements java.sql.Driver {
     public static final int TDS81 = 5;
     /** TDS 9.0 protocol (SQL Server 2005 and later) */
     public static final int TDS90 = 6;
+    /** TDS 7.3 protocol (SQL Server 2008 and later) */
+    public static final int TDS73 = 7;
+    /** TDS 7.4 protocol (SQL Server 2012 and later) */
+    public static final int TDS74 = 8;
     /** Microsoft SQL Server. */
     public static final int SQLSERVER = 1;
     /** Sybase ASE. */
@@ -82,8 +87,12 @@ public class Driver implements java.sql.Driver {
     public static final String BATCHSIZE     = "prop.batchsize";
     public static final String BINDADDRESS   = "prop.bindaddress";
     public static final String BUFFERDIR     = "prop.bufferdir";
+    public static final String BUFFERCONNECTIONMAXMEMORY = "prop.bufferconnectionmaxmemory";
+    public static final String BUFFERGROUP   = "prop.buffergroup";
+    public static final String BUFFERGROUPMAXMEMORY = "prop.buffergroupmaxmemory";
     public static final String BUFFERMAXMEMORY = "prop.buffermaxmemory";
     public static final String BUFFERMINPACKETS = "prop.bufferminpackets";
+    public static final String BUFFERMAPPEDFILE = "prop.buffermappedfile";
     public static final String CACHEMETA     = "prop.cachemetadata";
     public static final String CHARSET       = "prop.charset";
     public static final String DATABASENAME  = "prop.databasename";
@@ -98,9 +107,14 @@ public class Driver implements java.sql.Driver {
     public static final String MAXSTATEMENTS = "prop.maxstatements";
     public static final String NAMEDPIPE     = "prop.namedpipe";
     public static final String PACKETSIZE    = "prop.packetsize";
+    public static final String ADAPTIVEPACKETSIZE = "prop.adaptivepacketsize";
     public static final String PASSWORD      = "prop.password";
     public static final String PORTNUMBER    = "prop.portnumber";
     public static final String PREPARESQL    = "prop.preparesql";
+    public static final String USEPREPEXEC   = "prop.useprepexec";
+    public static final String DEFERCLEANUP  = "prop.defercleanup";
+    public static final String MAXSTMTMEMORY = "prop.maxstatementmemory";
+    public static final String PARSERCACHE   = "prop.parsercachesize";
     public static final String PROGNAME      = "prop.progname";
     public static final String SERVERNAME    = "prop.servername";
     public static final String SERVERTYPE    = "prop.servertype";
@@ -111,10 +125,17 @@ public class Driver implements java.sql.Driver {
     public static final String TCPNODELAY    = "prop.tcpnodelay";
     public static final String TDS           = "prop.tds";
     public static final String USECURSORS    = "prop.usecursors";
+    public static final String CURSORPREFETCH = "prop.cursorprefetch";
+    public static final String ADAPTIVEFETCH = "prop.adaptivefetch";
     public static final String USEJCIFS      = "prop.usejcifs";
     public static final String USENTLMV2     = "prop.usentlmv2";
+    public static final String USENIO        = "prop.usenio";
+    public static final String SHAREDPACKETPOOL = "prop.sharedpacketpool";
     public static final String USEKERBEROS   = "prop.usekerberos";
     public static final String USELOBS       = "prop.uselobs";
+    public static final String STREAMLOBS    = "prop.streamlobs";
+    public static final String LAZYROWS      = "prop.lazyrows";
+    public static final String USEMARS       = "prop.usemars";
     public static final String USER          = "prop.user";
     public static final String SENDSTRINGPARAMETERSASUNICODE = "prop.useunicode";
     public static final String WSID          = "prop.wsid";
@@ -122,8 +143,13 @@ public class Driver implements java.sql.Driver {
 
     static {
         try {
-            // Register this with the DriverManager
-            DriverManager.registerDriver(new Driver());
+            // Register this with the DriverManager, unregistering the
+            // network statistics MBean once the driver is deregistered
+            DriverManager.registerDriver(new Driver(), new DriverAction() {
+                public void deregister() {
+                    NetworkStatistics.unregister();
+                }
+            });
         } catch (SQLException e) {
         }
     }
@@ -182,7 +208,33 @@ public class Driver implements java.sql.Driver {
 
         Properties props = setupConnectProperties(url, info);
 
-        return new JtdsConnection(url, props);
+        return new JtdsConnection(url, props, null);
+    }
+
+    /**
+     * Attempts to make a database connection to the given URL, as part of a
+     * buffer memory group that is not identified by a
+     * <code>bufferGroup</code> name, e.g. the connections of a DataSource.
+     *
+     * @param url         the URL of the database to which to connect
+     * @param info        a list of arbitrary string tag/value pairs as
+     *                    connection arguments
+     * @param bufferGroup the group budget of the connection, used if no
+     *                    <code>bufferGroup</code> is configured
+     * @return a <code>Connection</code> object that represents a connection
+     *         to the URL or <code>null</code> if the URL is not a jTDS URL
+     * @throws SQLException if a database access error occurs
+     * @see #connect(String, Properties)
+     */
+    public Connection connect(String url, Properties info, BufferBudget bufferGroup)
+        throws SQLException  {
+        if (url == null || !url.toLowerCase( Locale.ENGLISH ).startsWith(driverPrefix)) {
+            return null;
+        }
+
+        Properties props = setupConnectProperties(url, info);
+
+        return new JtdsConnection(url, props, bufferGroup);
     }
 
     public DriverPropertyInfo[] getPropertyInfo(final String url, final Properties props)
@@ -276,6 +328,17 @@ public class Driver implements java.sql.Driver {
         choicesMap.put(Messages.get(Driver.USECURSORS), booleanChoices);
         choicesMap.put(Messages.get(Driver.USELOBS), booleanChoices);
         choicesMap.put(Messages.get(Driver.XAEMULATION), booleanChoices);
+        choicesMap.put(Messages.get(Driver.DEFERCLEANUP), booleanChoices);
+        choicesMap.put(Messages.get(Driver.USEPREPEXEC), booleanChoices);
+        choicesMap.put(Messages.get(Driver.ADAPTIVEFETCH), booleanChoices);
+        choicesMap.put(Messages.get(Driver.CURSORPREFETCH), booleanChoices);
+        choicesMap.put(Messages.get(Driver.LAZYROWS), booleanChoices);
+        choicesMap.put(Messages.get(Driver.STREAMLOBS), booleanChoices);
+        choicesMap.put(Messages.get(Driver.ADAPTIVEPACKETSIZE), booleanChoices);
+        choicesMap.put(Messages.get(Driver.USEMARS), booleanChoices);
+        choicesMap.put(Messages.get(Driver.BUFFERMAPPEDFILE), booleanChoices);
+        choicesMap.put(Messages.get(Driver.USENIO), booleanChoices);
+        choicesMap.put(Messages.get(Driver.SHAREDPACKETPOOL), booleanChoices);
 
         final String[] prepareSqlChoices = new String[]{
             String.valueOf(TdsCore.UNPREPARED),
@@ -0,0 +1,698 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Loads rows into a SQL Server or Sybase ASE table using the bulk load
+ * protocol also used by the <code>bcp</code> utility, which is considerably
+ * faster than executing batches of <code>INSERT</code> statements.
+ * <p>
+ * The rows are read from a <code>ResultSet</code>, an <code>Iterator</code>
+ * of <code>Object[]</code> or a CSV stream. The values of each row are
+ * assigned to the columns of the destination table in ordinal order, leaving
+ * out identity and timestamp columns, and are converted to the column types
+ * the way <code>PreparedStatement.setObject()</code> would. Columns of the
+ * types text, ntext, image, xml, sql_variant and of CLR types cannot be
+ * loaded.
+ * </p>
+ * With Sybase the rows are sent in the format the server stores them in, so
+ * only columns of the types int, smallint, tinyint, bigint, bit, real,
+ * float, money, smallmoney, datetime, smalldatetime, decimal, numeric, char,
+ * varchar, binary and varbinary can be loaded. Sybase does not apply column
+ * defaults to <code>NULL</code> values and ignores {@link #setTableLock}.
+ * <pre>
+ * JtdsBulkCopy copy = new JtdsBulkCopy( connection );
+ * copy.setDestinationTableName( "dbo.Orders" );
+ * copy.setBatchSize( 10000 );
+ * copy.setTableLock( true );
+ * copy.writeToServer( source.executeQuery( "SELECT * FROM Orders" ) );
+ * </pre>
+ * Each batch of rows is sent as a request of its own and committed by the
+ * server unless a transaction is active. If a row cannot be read or
+ * converted the rows of the current batch preceding it are loaded before the
+ * exception is thrown, {@link #getRowsCopied()} tells how many rows have been
+ * loaded in total.
+ * <p>
+ * The rows are read while the connection is busy sending them, so they
+ * cannot be read through the same connection: a <code>ResultSet</code> of a
+ * server side cursor fetching its next block or an <code>Iterator</code>
+ * executing statements fails with an <code>SQLException</code>. Read such
+ * rows through another connection.
+ */
+public class JtdsBulkCopy
+{
+
+   /**
+    * Source of the rows of a bulk load, see
+    * {@link TdsCore#bulkLoad(String, ColInfo[], RowSource, int)}.
+    */
+   interface RowSource
+   {
+
+      /**
+       * Retrieves the next row.
+       *
+       * @return
+       *    the values of the next row or <code>null</code> if there are no
+       *    more rows
+       */
+      Object[] nextRow()
+         throws SQLException;
+
+   }
+
+   /**
+    * the connection to load the rows through
+    */
+   private final JtdsConnection _Connection;
+
+   /**
+    * whether the connection is to Sybase, using the TDS 5.0 row format
+    */
+   private final boolean        _Sybase;
+
+   /**
+    * name of the destination table
+    */
+   private String               _Table;
+
+   /**
+    * number of rows per batch, 0 to send all rows in a single batch
+    */
+   private int                  _BatchSize;
+
+   /**
+    * whether to hold a table lock for the duration of each batch
+    */
+   private boolean              _TableLock;
+
+   /**
+    * number of rows loaded so far
+    */
+   private long                 _RowsCopied;
+
+   /**
+    * Creates a bulk copy object loading rows through a connection.
+    *
+    * @param connection
+    *    a jTDS connection to a SQL Server or Sybase ASE
+    *
+    * @throws SQLException
+    *    if the connection is not a jTDS connection to SQL Server 7.0 or later
+    *    or to Sybase using TDS 5.0
+    */
+   public JtdsBulkCopy( Connection connection )
+      throws SQLException
+   {
+      if( ! ( connection instanceof JtdsConnection ) )
+      {
+         throw new SQLException( Messages.get( "error.bulkcopy.noconnection" ), "HY000" );
+      }
+
+      _Connection = (JtdsConnection) connection;
+
+      _Sybase = _Connection.getServerType() == Driver.SYBASE;
+
+      if( _Sybase ? _Connection.getTdsVersion() != Driver.TDS50 : _Connection.getTdsVersion() < Driver.TDS70 )
+      {
+         throw new SQLException( Messages.get( "error.bulkcopy.notsupported" ), "HYC00" );
+      }
+   }
+
+   /**
+    * Sets the name of the table to load the rows into, e.g.
+    * <code>dbo.[Order Details]</code>. The name is used as is, so it must be
+    * quoted if necessary.
+    */
+   public void setDestinationTableName( String table )
+   {
+      _Table = table;
+   }
+
+   /**
+    * Retrieves the name of the table to load the rows into.
+    */
+   public String getDestinationTableName()
+   {
+      return _Table;
+   }
+
+   /**
+    * Sets the number of rows sent in each batch, 0 (the default) to send all
+    * rows in a single batch.
+    */
+   public void setBatchSize( int rows )
+   {
+      if( rows < 0 )
+      {
+         throw new IllegalArgumentException( "batch size " + rows );
+      }
+
+      _BatchSize = rows;
+   }
+
+   /**
+    * Retrieves the number of rows sent in each batch, 0 if all rows are sent
+    * in a single batch.
+    */
+   public int getBatchSize()
+   {
+      return _BatchSize;
+   }
+
+   /**
+    * Sets whether to hold a bulk update table lock for the duration of each
+    * batch instead of locking rows, default <code>false</code>.
+    */
+   public void setTableLock( boolean lock )
+   {
+      _TableLock = lock;
+   }
+
+   /**
+    * Retrieves whether a bulk update table lock is held for the duration of
+    * each batch.
+    */
+   public boolean isTableLock()
+   {
+      return _TableLock;
+   }
+
+   /**
+    * Retrieves the number of rows loaded by this object so far.
+    */
+   public long getRowsCopied()
+   {
+      return _RowsCopied;
+   }
+
+   /**
+    * Loads all remaining rows of a result set, the result set is not closed.
+    *
+    * @return
+    *    the number of rows loaded
+    */
+   public long writeToServer( final ResultSet rs )
+      throws SQLException
+   {
+      final int count = rs.getMetaData().getColumnCount();
+
+      return writeToServer( new RowSource()
+      {
+         public Object[] nextRow()
+            throws SQLException
+         {
+            if( ! rs.next() )
+            {
+               return null;
+            }
+
+            Object[] row = new Object[count];
+
+            for( int i = 0; i < count; i ++ )
+            {
+               row[i] = rs.getObject( i + 1 );
+            }
+
+            return row;
+         }
+      } );
+   }
+
+   /**
+    * Loads all remaining rows of an iterator. A <code>RuntimeException</code>
+    * thrown by the iterator is rethrown as an <code>SQLException</code>, or
+    * as its cause if that is an <code>SQLException</code>.
+    *
+    * @return
+    *    the number of rows loaded
+    */
+   public long writeToServer( final Iterator<Object[]> rows )
+      throws SQLException
+   {
+      return writeToServer( new RowSource()
+      {
+         public Object[] nextRow()
+            throws SQLException
+         {
+            try
+            {
+               return rows.hasNext() ? rows.next() : null;
+            }
+            catch( RuntimeException e )
+            {
+               if( e.getCause() instanceof SQLException )
+               {
+                  throw (SQLException) e.getCause();
+               }
+
+               throw Support.linkException( new SQLException( Messages.get( "error.bulkcopy.iterator", e.toString() ), "HY000" ), e );
+            }
+         }
+      } );
+   }
+
+   /**
+    * Loads the rows of a CSV (RFC 4180) stream, one record per line without
+    * a header line. Fields may be enclosed in double quotes, doubling quotes
+    * within them. An empty field is loaded as <code>NULL</code> unless it is
+    * quoted, the values are converted from strings to the column types. The
+    * reader is not closed.
+    *
+    * @return
+    *    the number of rows loaded
+    */
+   public long writeToServer( Reader csv )
+      throws SQLException
+   {
+      return writeToServer( new CsvSource( csv ) );
+   }
+
+   /**
+    * Loads all rows of a row source in batches of {@link #_BatchSize} rows.
+    */
+   private long writeToServer( RowSource source )
+      throws SQLException
+   {
+      if( _Table == null || _Table.length() == 0 )
+      {
+         throw new SQLException( Messages.get( "error.bulkcopy.notable" ), "HY000" );
+      }
+
+      JtdsStatement statement = (JtdsStatement) _Connection.createStatement();
+
+      try
+      {
+         ColInfo[]  columns = getColumns( statement );
+         String     sql     = getInsertBulk( columns );
+         Batch      batch   = new Batch( source, columns );
+         long       total   = 0;
+
+         while( batch.hasNext() )
+         {
+            batch.start();
+
+            try
+            {
+               int count = statement.getTds().bulkLoad( sql, columns, batch, _BatchSize );
+               total += count;
+               _RowsCopied += count;
+            }
+            catch( SQLException e )
+            {
+               if( e == batch._Error )
+               {
+                  // the rows preceding the failed one have been loaded
+                  _RowsCopied += batch._Rows;
+               }
+
+               throw e;
+            }
+         }
+
+         return total;
+      }
+      finally
+      {
+         statement.close();
+      }
+   }
+
+   /**
+    * Retrieves the destination columns values are sent for, all columns of
+    * the table for Sybase.
+    */
+   private ColInfo[] getColumns( JtdsStatement statement )
+      throws SQLException
+   {
+      JtdsResultSet rs = (JtdsResultSet) statement.executeQuery( _Sybase ? "SELECT * FROM " + _Table + " WHERE 1 = 0" : "SELECT TOP 0 * FROM " + _Table );
+
+      try
+      {
+         List<ColInfo> columns = new ArrayList<ColInfo>();
+
+         for( ColInfo column : rs.getColumns() )
+         {
+            if( _Sybase )
+            {
+               TdsData.checkTds5BulkColumn( column );
+               columns.add( column );
+            }
+            else if( TdsData.isBulkColumn( column ) )
+            {
+               columns.add( column );
+            }
+         }
+
+         return columns.toArray( new ColInfo[columns.size()] );
+      }
+      finally
+      {
+         rs.close();
+      }
+   }
+
+   /**
+    * Builds the <code>INSERT BULK</code> statement announcing the bulk load.
+    */
+   private String getInsertBulk( ColInfo[] columns )
+      throws SQLException
+   {
+      if( _Sybase )
+      {
+         return "insert bulk " + _Table;
+      }
+
+      StringBuilder sql = new StringBuilder( 64 + columns.length * 32 );
+      sql.append( "INSERT BULK " ).append( _Table ).append( " (" );
+
+      for( int i = 0; i < columns.length; i ++ )
+      {
+         if( i > 0 )
+         {
+            sql.append( ", " );
+         }
+
+         sql.append( '[' ).append( columns[i].name.replace( "]", "]]" ) ).append( "] " );
+         sql.append( TdsData.getBulkColumnType( columns[i] ) );
+      }
+
+      sql.append( ')' );
+
+      if( _TableLock )
+      {
+         sql.append( " WITH (TABLOCK)" );
+      }
+
+      return sql.toString();
+   }
+
+   /**
+    * Feeds the rows of a row source to {@link TdsCore#bulkLoad}, converting
+    * the values to the column types and counting the rows of the current
+    * batch.
+    */
+   private class Batch implements RowSource
+   {
+
+      private final RowSource _Source;
+
+      private final ColInfo[] _Columns;
+
+      /**
+       * indexes of the columns values are read for, leaving out identity and
+       * timestamp columns of Sybase tables
+       */
+      private final int[]     _Targets;
+
+      /**
+       * the row read ahead by {@link #hasNext()}
+       */
+      private Object[]        _Next;
+
+      /**
+       * whether the row source is exhausted
+       */
+      private boolean         _End;
+
+      /**
+       * number of rows returned in the current batch
+       */
+      int                     _Rows;
+
+      /**
+       * the exception thrown reading or converting a row
+       */
+      SQLException            _Error;
+
+      Batch( RowSource source, ColInfo[] columns )
+      {
+         _Source  = source;
+         _Columns = columns;
+
+         int count = 0;
+         int[] targets = new int[columns.length];
+
+         for( int i = 0; i < columns.length; i ++ )
+         {
+            if( TdsData.isBulkColumn( columns[i] ) )
+            {
+               targets[count ++] = i;
+            }
+         }
+
+         _Targets = Arrays.copyOf( targets, count );
+      }
+
+      /**
+       * Starts a new batch.
+       */
+      void start()
+      {
+         _Rows = 0;
+      }
+
+      /**
+       * Determines whether there are any rows left.
+       */
+      boolean hasNext()
+         throws SQLException
+      {
+         if( _Next == null && ! _End )
+         {
+            _Next = _Source.nextRow();
+            _End  = _Next == null;
+         }
+
+         return _Next != null;
+      }
+
+      public Object[] nextRow()
+         throws SQLException
+      {
+         try
+         {
+            if( ! hasNext() )
+            {
+               return null;
+            }
+
+            Object[] row = _Next;
+            _Next = null;
+
+            if( row.length != _Targets.length )
+            {
+               throw new SQLException( Messages.get( "error.bulkcopy.colcount", String.valueOf( row.length ), String.valueOf( _Targets.length ) ), "21S01" );
+            }
+
+            Object[] values = new Object[_Columns.length];
+
+            for( int i = 0; i < row.length; i ++ )
+            {
+               ColInfo column = _Columns[_Targets[i]];
+
+               if( _Sybase && row[i] == null && column.nullable == 0 )
+               {
+                  throw new SQLException( Messages.get( "error.bulkcopy.null", column.name ), "23000" );
+               }
+
+               values[_Targets[i]] = TdsData.getBulkValue( _Connection, column, row[i] );
+            }
+
+            _Rows ++;
+            return values;
+         }
+         catch( SQLException e )
+         {
+            _Error = e;
+            _End   = true;
+            throw e;
+         }
+      }
+
+   }
+
+   /**
+    * Reads the records of a CSV stream.
+    */
+   private static class CsvSource implements RowSource
+   {
+
+      private final Reader       _Reader;
+
+      private final char[]       _Buffer = new char[8192];
+
+      private int                _Pos;
+
+      private int                _Length;
+
+      /**
+       * line number of the current record, for error messages
+       */
+      private int                _Line;
+
+      private final List<Object> _Fields = new ArrayList<Object>();
+
+      private final StringBuilder _Field = new StringBuilder();
+
+      CsvSource( Reader reader )
+      {
+         _Reader = reader;
+      }
+
+      public Object[] nextRow()
+         throws SQLException
+      {
+         try
+         {
+            int c = read();
+
+            // skip empty lines
+            while( c == '\r' || c == '\n' )
+            {
+               _Line += c == '\n' ? 1 : 0;
+               c = read();
+            }
+
+            if( c < 0 )
+            {
+               return null;
+            }
+
+            _Line ++;
+            _Fields.clear();
+
+            while( true )
+            {
+               _Field.setLength( 0 );
+               boolean quoted = c == '"';
+
+               if( quoted )
+               {
+                  while( true )
+                  {
+                     c = read();
+
+                     if( c < 0 )
+                     {
+                        throw new SQLException( Messages.get( "error.bulkcopy.csv", String.valueOf( _Line ) ), "22018" );
+                     }
+                     else if( c == '"' )
+                     {
+                        c = read();
+
+                        if( c != '"' )
+                        {
+                           break;
+                        }
+                     }
+                     else if( c == '\n' )
+                     {
+                        _Line ++;
+                     }
+
+                     _Field.append( (char) c );
+                  }
+               }
+               else
+               {
+                  while( c >= 0 && c != ',' && c != '\r' && c != '\n' )
+                  {
+                     _Field.append( (char) c );
+                     c = read();
+                  }
+               }
+
+               _Fields.add( quoted || _Field.length() > 0 ? _Field.toString() : null );
+
+               if( c == ',' )
+               {
+                  c = read();
+               }
+               else if( c < 0 || c == '\n' )
+               {
+                  break;
+               }
+               else if( c == '\r' )
+               {
+                  if( peek() == '\n' )
+                  {
+                     read();
+                  }
+
+                  break;
+               }
+               else
+               {
+                  // text following a closing quote
+                  throw new SQLException( Messages.get( "error.bulkcopy.csv", String.valueOf( _Line ) ), "22018" );
+               }
+            }
+
+            return _Fields.toArray();
+         }
+         catch( IOException e )
+         {
+            throw Support.linkException( new SQLException( Messages.get( "error.generic.ioerror", e.getMessage() ), "HY000" ), e );
+         }
+      }
+
+      private int read()
+         throws IOException
+      {
+         int c = peek();
+
+         if( c >= 0 )
+         {
+            _Pos ++;
+         }
+
+         return c;
+      }
+
+      private int peek()
+         throws IOException
+      {
+         if( _Pos == _Length )
+         {
+            _Length = _Reader.read( _Buffer );
+            _Pos    = 0;
+
+            if( _Length <= 0 )
+            {
+               _Length = 0;
+               return -1;
+            }
+         }
+
+         return _Buffer[_Pos];
+      }
+
+   }
+
+}
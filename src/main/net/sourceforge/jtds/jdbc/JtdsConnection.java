@@ -31,9 +31,12 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.HashSet;
 import java.util.Random;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 import net.sourceforge.jtds.jdbc.cache.*;
+import net.sourceforge.jtds.ssl.Ssl;
 import net.sourceforge.jtds.util.*;
 
 /**
@@ -94,6 +97,12 @@ public class JtdsConnection implements java.sql.Connection {
      */
     public static final int TRANSACTION_SNAPSHOT = 4096;
 
+    /**
+     * The maximum number of deferred cleanup calls, further calls are sent
+     * by a request of their own.
+     */
+    private static final int MAX_CLEANUP_CALLS = 32;
+
     /*
      * Conection attributes
      */
@@ -140,8 +149,12 @@ public class JtdsConnection implements java.sql.Connection {
     private int netPacketSize = TdsCore.MIN_PKT_SIZE;
     /** User requested packet size. */
     private int packetSize;
+    /** Choose the packet size from the traffic of previous connections. */
+    private boolean adaptivePacketSize;
     /** SQL Server 2000 collation. */
     private byte collation[];
+    /** The TDS 7.2 descriptor of the current transaction, zero if none. */
+    private volatile byte transactionDescriptor[] = new byte[8];
     /** True if user specifies an explicit charset. */
     private boolean charsetSpecified;
     /** The database product name eg SQL SERVER. */
@@ -180,12 +193,26 @@ public class JtdsConnection implements java.sql.Connection {
     private CharsetInfo charsetInfo;
     /** Method for preparing SQL used in Prepared Statements. */
     private int prepareSql;
+    /** Prepare statements along with their first execution. */
+    private boolean usePrepExec;
+    /** Defer the release of server side statement and cursor handles. */
+    private boolean deferCleanup;
+    /** Cleanup calls deferred to the next request, see {@link #deferCleanup(String, Object)}. */
+    private final List<CleanupCall> cleanupCalls = new ArrayList<CleanupCall>();
     /** The amount of LOB data to buffer in memory. */
     private long lobBuffer;
+    /** Stream max type values of forward-only result sets from the network. */
+    private boolean streamLOBs;
+    /** Decode the columns of forward-only result sets on access. */
+    private boolean lazyRows;
     /** The maximum number of statements to keep open. */
     private int maxStatements;
+    /** The estimated amount of memory the statement cache may use. */
+    private long maxStatementMemory;
+    /** The number of parsed SQL statements to cache. */
+    private int parserCacheSize;
     /** Statement cache.*/
-    private StatementCache statementCache;
+    private ProcedureCache statementCache;
     /** Send parameters as unicode. */
     private boolean useUnicode = true;
     /** Use named pipe IPC instead of TCP/IP sockets. */
@@ -208,6 +235,14 @@ public class JtdsConnection implements java.sql.Connection {
     private boolean xaEmulation = true;
     /** Mutual exclusion lock to control access to connection. */
     private final Semaphore mutex = new Semaphore(1);
+    /** The thread reading the rows of a bulk load while holding the mutex. */
+    private volatile Thread bulkLoadThread;
+    /**
+     * Lock serializing connection level operations. Used instead of the
+     * connection's monitor so that threads waiting for the server, including
+     * virtual threads, do not block a carrier thread.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
     /** Socket timeout value in seconds or 0. */
     private int socketTimeout;
     /** True to enable socket keep alive. */
@@ -222,20 +257,40 @@ public class JtdsConnection implements java.sql.Connection {
     private boolean useMetadataCache;
     /** Use fast forward cursors for forward only result sets. */
     private boolean useCursors;
+    /** Fetch the next block of read-only cursors ahead. */
+    private boolean cursorPrefetch;
+    /** Adapt the cursor block size to the way the result set is read. */
+    private boolean adaptiveFetch;
     /** The directory to buffer data to */
     private File bufferDir;
     /** The global buffer memory limit for all connections (in kilobytes). */
     private int bufferMaxMemory;
     /** The minimum number of packets per statement to buffer to memory. */
     private int bufferMinPackets;
+    /** The maximum buffer memory for this connection in KB, 0 for no limit. */
+    private int bufferConnectionMaxMemory;
+    /** Name of the group sharing a buffer memory budget, empty for none. */
+    private String bufferGroup;
+    /** The maximum buffer memory for the connection group in KB, 0 for no limit. */
+    private int bufferGroupMaxMemory;
+    /** Group budget used if no <code>bufferGroup</code> is configured. */
+    private final BufferBudget bufferGroupBudget;
+    /** Spill buffered packets to a memory-mapped file. */
+    private boolean bufferMappedFile;
     /** Map large types (IMAGE and TEXT/NTEXT) to LOBs by default. */
     private boolean useLOBs;
     /** A cached <code>TdsCore</code> instance to reuse on new statements. */
-    private AtomicReference<TdsCore> cachedTds;
+    private final AtomicReference<TdsCore> cachedTds = new AtomicReference<TdsCore>();
     /** The local address to bind to when connecting to a database via TCP/IP. */
     private String bindAddress;
     /** Force use of jCIFS library on Windows when connecting via named pipes. */
     private boolean useJCIFS;
+    /** Use the NIO socket channel transport instead of socket streams. */
+    private boolean useNIO;
+    /** Request Multiple Active Result Sets (MARS) from the server. */
+    private boolean useMARS;
+    /** Use the driver-wide packet buffer pools instead of a pool per connection. */
+    private boolean sharedPacketPool;
     /** When doing NTLM authentication, send NTLMv2 response rather than regular response */
     private boolean useNTLMv2 = false;
     /** Force Kerberos authentication */
@@ -263,6 +318,7 @@ public class JtdsConnection implements java.sql.Connection {
         socket = null;
         baseTds = null;
         messages = null;
+        bufferGroupBudget = null;
     }
 
     /**
@@ -270,14 +326,18 @@ public class JtdsConnection implements java.sql.Connection {
      *
      * @param url The connection URL starting jdbc:jtds:.
      * @param info The additional connection properties.
+     * @param bufferGroupBudget The buffer budget of the connection's group
+     *                          if no <code>bufferGroup</code> is configured,
+     *                          may be <code>null</code>.
      * @throws SQLException
      */
-    JtdsConnection(String url, Properties info)
+    JtdsConnection(String url, Properties info, BufferBudget bufferGroupBudget)
             throws SQLException {
         synchronized( connections ) {
             connections[0] ++;
         }
         this.url = url;
+        this.bufferGroupBudget = bufferGroupBudget;
         //
         // Extract properties into instance variables
         //
@@ -306,8 +366,7 @@ public class JtdsConnection implements java.sql.Connection {
             }
         }
 
-        SharedSocket.setMemoryBudget(bufferMaxMemory * 1024);
-        SharedSocket.setMinMemPkts(bufferMinPackets);
+        BufferBudget.getGlobal().setLimit(bufferMaxMemory * 1024L);
         SQLWarning warn;
 
         Object timer = null;
@@ -328,11 +387,34 @@ public class JtdsConnection implements java.sql.Connection {
             if (namedPipe) {
                 // Use named pipe
                 socket = createNamedPipe(this);
+            } else if (useNIO && Ssl.SSL_OFF.equalsIgnoreCase(ssl)) {
+                // Use non-blocking TCP/IP socket channel
+                socket = new SharedSocketChannel(this);
             } else {
+                if (useNIO && Logger.isActive()) {
+                    Logger.println("NIO transport cannot be used with SSL, falling back to TCP/IP socket");
+                }
                 // Use plain TCP/IP socket
                 socket = new SharedSocket(this);
             }
 
+            socket.setBufferPool(createBufferPool(netPacketSize));
+            socket.getNetworkStatistics().setPacketSize(netPacketSize);
+            socket.setBufferMappedFile(bufferMappedFile);
+            socket.setMinMemPkts(bufferMinPackets);
+            socket.setBufferBudget(createBufferBudget());
+
+            int loginPacketSize = packetSize;
+            if (adaptivePacketSize) {
+                AdaptivePacketSize sizer =
+                        AdaptivePacketSize.getInstance(serverName + ':' + portNumber);
+                socket.setPacketSizer(sizer);
+                if (packetSize == 0) {
+                    // 0 still lets the server decide until enough samples exist
+                    loginPacketSize = sizer.getPacketSize();
+                }
+            }
+
             if( macAddress.equals( DefaultProperties.MAC_ADDRESS ) )
             {
                String mac = socket.getMAC();
@@ -364,7 +446,7 @@ public class JtdsConnection implements java.sql.Connection {
             // Negotiate SSL connection if required
             //
             if (tdsVersion >= Driver.TDS80 && !namedPipe) {
-                baseTds.negotiateSSL(instanceName, ssl);
+                baseTds.negotiateSSL(instanceName, ssl, useMARS);
             }
 
             //
@@ -381,7 +463,7 @@ public class JtdsConnection implements java.sql.Connection {
                           wsid,
                           language,
                           macAddress,
-                          packetSize);
+                          loginPacketSize);
 
             //
             // Save any login warnings so that they will not be overwritten by
@@ -587,7 +669,7 @@ public class JtdsConnection implements java.sql.Connection {
      * <li>The leading '#jtds' indicates this is a temporary procedure and
      * the '#' is removed by the lower level TDS5 routines.
      * </ol>
-     * Not synchronized because it's only called from the synchronized
+     * Not locked because it's only called from the locked
      * {@link #prepareSQL} method.
      *
      * @return the next temporary SP name as a <code>String</code>
@@ -603,18 +685,23 @@ public class JtdsConnection implements java.sql.Connection {
      *
      * @return the next cursor name as a <code>String</code>
      */
-    synchronized String getCursorName() {
-        String seq = "000000" + Integer.toHexString(cursorSequenceNo++).toUpperCase( Locale.ENGLISH );
+    String getCursorName() {
+        lock.lock();
+        try {
+            String seq = "000000" + Integer.toHexString(cursorSequenceNo++).toUpperCase( Locale.ENGLISH );
 
-        return "_jtds" + seq.substring(seq.length() - 6, seq.length());
+            return "_jtds" + seq.substring(seq.length() - 6, seq.length());
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
      * Try to convert the SQL statement into a statement prepare.
      * <p>
-     * Synchronized because it accesses the procedure cache and the
-     * <code>baseTds</code>, but the method call also needs to made in a
-     * <code>synchronized (connection)</code> block together with the execution
+     * Locked because it accesses the procedure cache and the
+     * <code>baseTds</code>, but the method call also needs to made holding
+     * the {@link #getLock() connection lock} together with the execution
      * (if the prepared statement is actually executed) to ensure the
      * transaction isn't rolled back between this method call and the actual
      * execution.
@@ -628,142 +715,197 @@ public class JtdsConnection implements java.sql.Connection {
      * @return the SQL procedure name as a <code>String</code> or null if the
      *         SQL cannot be prepared
      */
-    synchronized String prepareSQL(JtdsPreparedStatement pstmt,
-                                   String sql,
-                                   ParamInfo[] params,
-                                   boolean returnKeys,
-                                   boolean cursorNeeded)
+    String prepareSQL(JtdsPreparedStatement pstmt,
+                      String sql,
+                      ParamInfo[] params,
+                      boolean returnKeys,
+                      boolean cursorNeeded)
             throws SQLException {
-        if (prepareSql == TdsCore.UNPREPARED
-                || prepareSql == TdsCore.EXECUTE_SQL) {
-            return null; // User selected not to use procs
-        }
+        return prepareSQL(pstmt, sql, params, returnKeys, cursorNeeded, false);
+    }
 
-        if (serverType == Driver.SYBASE) {
-            if (tdsVersion != Driver.TDS50) {
-                return null; // No longer support stored procs with 4.2
+    /**
+     * Try to convert the SQL statement into a statement prepare, see
+     * {@link #prepareSQL(JtdsPreparedStatement, String, ParamInfo[], boolean, boolean)}.
+     * <p>
+     * If the statement is executed straight away and <code>usePrepExec</code>
+     * is set, a statement not prepared yet is prepared along with the
+     * execution. <code>null</code> is returned in that case and the cache
+     * entry is handed to the statement's <code>TdsCore</code>, which sends
+     * <code>sp_prepexec</code> or <code>sp_cursorprepexec</code> instead of
+     * executing the SQL unprepared.
+     *
+     * @param pstmt        the target prepared statement
+     * @param sql          the SQL statement to prepare
+     * @param params       the parameters
+     * @param returnKeys   indicates whether the statement will return
+     *                     generated keys
+     * @param cursorNeeded indicates whether a cursor prepare is needed
+     * @param execute      indicates whether the statement is executed next
+     * @return the SQL procedure name as a <code>String</code> or null if the
+     *         SQL cannot be prepared or is prepared on execution
+     */
+    String prepareSQL(JtdsPreparedStatement pstmt,
+                      String sql,
+                      ParamInfo[] params,
+                      boolean returnKeys,
+                      boolean cursorNeeded,
+                      boolean execute)
+            throws SQLException {
+        lock.lock();
+        try {
+            if (prepareSql == TdsCore.UNPREPARED
+                    || prepareSql == TdsCore.EXECUTE_SQL) {
+                return null; // User selected not to use procs
             }
 
-            if (returnKeys) {
-                return null; // Sybase cannot use @@IDENTITY in proc
-            }
+            if (serverType == Driver.SYBASE) {
+                if (tdsVersion != Driver.TDS50) {
+                    return null; // No longer support stored procs with 4.2
+                }
 
-            if (cursorNeeded) {
-                //
-                // We are going to use the CachedResultSet so there is
-                // no point in preparing the SQL as it will be discarded
-                // in favour of a version with "FOR BROWSE" appended.
-                //
-                return null;
-            }
-        }
+                if (returnKeys) {
+                    return null; // Sybase cannot use @@IDENTITY in proc
+                }
 
-        //
-        // Check parameters set and obtain native types
-        //
-        for (int i = 0; i < params.length; i++) {
-            if (!params[i].isSet) {
-                throw new SQLException(Messages.get("error.prepare.paramnotset",
-                                                    Integer.toString(i+1)),
-                                       "07000");
+                if (cursorNeeded) {
+                    //
+                    // We are going to use the CachedResultSet so there is
+                    // no point in preparing the SQL as it will be discarded
+                    // in favour of a version with "FOR BROWSE" appended.
+                    //
+                    return null;
+                }
             }
 
-            TdsData.getNativeType(this, params[i]);
+            //
+            // Check parameters set and obtain native types
+            //
+            for (int i = 0; i < params.length; i++) {
+                if (!params[i].isSet) {
+                    throw new SQLException(Messages.get("error.prepare.paramnotset",
+                                                        Integer.toString(i+1)),
+                                           "07000");
+                }
+
+                TdsData.getNativeType(this, params[i]);
 
-            if (serverType == Driver.SYBASE) {
-                if ("text".equals(params[i].sqlType)
-                    || "image".equals(params[i].sqlType)) {
-                    return null; // Sybase does not support text/image params
+                if (serverType == Driver.SYBASE) {
+                    if ("text".equals(params[i].sqlType)
+                        || "image".equals(params[i].sqlType)) {
+                        return null; // Sybase does not support text/image params
+                    }
                 }
             }
-        }
 
-        String key = Support.getStatementKey(sql, params, serverType,
-                getCatalog(), autoCommit, cursorNeeded);
+            // Reuse the key of the statement's last execution if it applies
+            String catalog = getCatalog();
+            StatementKey key = pstmt.statementKey;
 
-        //
-        // See if we have already built this one
-        //
-        ProcEntry proc = (ProcEntry) statementCache.get(key);
+            if (key == null || !key.matches(sql, params, serverType,
+                    catalog, autoCommit, cursorNeeded)) {
+                key = new StatementKey(sql, params, serverType, catalog,
+                        autoCommit, cursorNeeded);
+                pstmt.statementKey = key;
+            }
 
-        if (proc != null) {
             //
-            // Yes found in cache OK
+            // See if we have already built this one
             //
+            ProcEntry proc = (ProcEntry) statementCache.get(key);
 
-            // If already used by the statement, decrement use count
-            if (pstmt.handles != null && pstmt.handles.contains(proc)) {
-                proc.release();
-            }
+            if (proc != null) {
+                //
+                // Yes found in cache OK
+                //
 
-            pstmt.setColMetaData(proc.getColMetaData());
-            if (serverType == Driver.SYBASE) {
-                pstmt.setParamMetaData(proc.getParamMetaData());
-            }
-        } else {
-            //
-            // No, so create the stored procedure now
-            //
-            proc = new ProcEntry();
-
-            if (serverType == Driver.SQLSERVER) {
-                proc.setName(
-                        baseTds.microsoftPrepare(
-                                sql, params, cursorNeeded,
-                                pstmt.getResultSetType(),
-                                pstmt.getResultSetConcurrency()));
-
-                if (proc.toString() == null) {
-                    proc.setType(ProcEntry.PREP_FAILED);
-                } else if (prepareSql == TdsCore.TEMPORARY_STORED_PROCEDURES) {
-                    proc.setType(ProcEntry.PROCEDURE);
-                } else {
-                    proc.setType((cursorNeeded) ? ProcEntry.CURSOR : ProcEntry.PREPARE);
-                    // Meta data may be returned by sp_prepare
-                    proc.setColMetaData(baseTds.getColumns());
-                    pstmt.setColMetaData(proc.getColMetaData());
+                // If already used by the statement, decrement use count
+                if (pstmt.handles != null && pstmt.handles.contains(proc)) {
+                    proc.release();
+                }
+
+                pstmt.setColMetaData(proc.getColMetaData());
+                if (serverType == Driver.SYBASE) {
+                    pstmt.setParamMetaData(proc.getParamMetaData());
+                }
+
+                // A prepare on execution that was never sent is retried
+                if (execute && proc.isPrepExecPending()) {
+                    pstmt.getTds().setPrepExec(proc);
                 }
-                // TODO Find some way of getting parameter meta data for MS
             } else {
-                proc.setName(baseTds.sybasePrepare(sql, params));
+                //
+                // No, so create the stored procedure now
+                //
+                proc = new ProcEntry();
 
-                if (proc.toString() == null) {
-                    proc.setType(ProcEntry.PREP_FAILED);
+                if (serverType == Driver.SQLSERVER && execute && usePrepExec
+                        && prepareSql == TdsCore.PREPARE) {
+                    // Prepare along with the execution, the handle will be
+                    // set by TdsCore once it has been returned
+                    proc.setType((cursorNeeded) ? ProcEntry.CURSOR : ProcEntry.PREPARE);
+                    proc.setPrepExec();
+                    pstmt.getTds().setPrepExec(proc);
+                } else if (serverType == Driver.SQLSERVER) {
+                    proc.setName(
+                            baseTds.microsoftPrepare(
+                                    sql, params, cursorNeeded,
+                                    pstmt.getResultSetType(),
+                                    pstmt.getResultSetConcurrency()));
+
+                    if (proc.toString() == null) {
+                        proc.setType(ProcEntry.PREP_FAILED);
+                    } else if (prepareSql == TdsCore.TEMPORARY_STORED_PROCEDURES) {
+                        proc.setType(ProcEntry.PROCEDURE);
+                    } else {
+                        proc.setType((cursorNeeded) ? ProcEntry.CURSOR : ProcEntry.PREPARE);
+                        // Meta data may be returned by sp_prepare
+                        proc.setColMetaData(baseTds.getColumns());
+                        pstmt.setColMetaData(proc.getColMetaData());
+                    }
+                    // TODO Find some way of getting parameter meta data for MS
                 } else {
-                    proc.setType(ProcEntry.PROCEDURE);
+                    proc.setName(baseTds.sybasePrepare(sql, params));
+
+                    if (proc.toString() == null) {
+                        proc.setType(ProcEntry.PREP_FAILED);
+                    } else {
+                        proc.setType(ProcEntry.PROCEDURE);
+                    }
+                    // Sybase gives us lots of useful information about the result set
+                    proc.setColMetaData(baseTds.getColumns());
+                    proc.setParamMetaData(baseTds.getParameters());
+                    pstmt.setColMetaData(proc.getColMetaData());
+                    pstmt.setParamMetaData(proc.getParamMetaData());
                 }
-                // Sybase gives us lots of useful information about the result set
-                proc.setColMetaData(baseTds.getColumns());
-                proc.setParamMetaData(baseTds.getParameters());
-                pstmt.setColMetaData(proc.getColMetaData());
-                pstmt.setParamMetaData(proc.getParamMetaData());
+                // OK we have built a proc so add it to the cache.
+                addCachedProcedure(key, proc);
+            }
+            // Add the handle to the prepared statement so that the handles
+            // can be used to clean up the statement cache properly when the
+            // prepared statement is closed.
+            if (pstmt.handles == null) {
+                pstmt.handles = new HashSet(10);
             }
-            // OK we have built a proc so add it to the cache.
-            addCachedProcedure(key, proc);
-        }
-        // Add the handle to the prepared statement so that the handles
-        // can be used to clean up the statement cache properly when the
-        // prepared statement is closed.
-        if (pstmt.handles == null) {
-            pstmt.handles = new HashSet(10);
-        }
 
-        pstmt.handles.add(proc);
+            pstmt.handles.add(proc);
 
-        // Give the user the name will be null if prepare failed
-        return proc.toString();
+            // Give the user the name will be null if prepare failed
+            return proc.toString();
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
      * Add a stored procedure to the cache.
      * <p>
-     * Not explicitly synchronized because it's only called by synchronized
-     * methods.
+     * Not explicitly locked because it's only called by locked methods.
      *
      * @param key The signature of the procedure to cache.
      * @param proc The stored procedure descriptor.
      */
-    void addCachedProcedure(String key, ProcEntry proc) {
+    void addCachedProcedure(Object key, ProcEntry proc) {
         statementCache.put(key, proc);
 
         if (!autoCommit
@@ -782,12 +924,11 @@ public class JtdsConnection implements java.sql.Connection {
     /**
      * Remove a stored procedure from the cache.
      * <p>
-     * Not explicitly synchronized because it's only called by synchronized
-     * methods.
+     * Not explicitly locked because it's only called by locked methods.
      *
      * @param key The signature of the procedure to remove from the cache.
      */
-    void removeCachedProcedure(String key) {
+    void removeCachedProcedure(Object key) {
         statementCache.remove(key);
 
         if (!autoCommit) {
@@ -795,6 +936,28 @@ public class JtdsConnection implements java.sql.Connection {
         }
     }
 
+    /**
+     * Retrieves the statement cache of this connection, including its hit,
+     * miss and eviction counters.
+     *
+     * @return the statement cache
+     */
+    public ProcedureCache getStatementCache() {
+        return statementCache;
+    }
+
+    /**
+     * Retrieves the cache of parsed SQL statements, including its hit rate.
+     * The cache is shared by all connections, it holds at least as many
+     * statements as the largest <code>parserCacheSize</code> of any
+     * connection.
+     *
+     * @return the cache of parsed SQL statements
+     */
+    public StripedLRUCache<?,?> getParserCache() {
+        return SQLParser.getCache();
+    }
+
     /**
      * Retrieves the maximum statement cache size.
      *
@@ -821,6 +984,80 @@ public class JtdsConnection implements java.sql.Connection {
      */
     void setNetPacketSize(int size) {
         netPacketSize = size;
+
+        if (socket != null) {
+            // packet buffers of the old size cannot be reused
+            socket.setBufferPool(createBufferPool(size));
+            socket.getNetworkStatistics().setPacketSize(size);
+        }
+    }
+
+    /**
+     * Creates the buffer memory budget of this connection, as a child of the
+     * <code>bufferGroup</code> budget if the connection is part of a group,
+     * or of the group budget passed in by the creator of the connection.
+     *
+     * @return the new connection budget
+     */
+    private BufferBudget createBufferBudget() {
+        BufferBudget parent = BufferBudget.getGlobal();
+
+        long groupLimit = bufferGroupMaxMemory > 0
+                ? bufferGroupMaxMemory * 1024L : BufferBudget.UNLIMITED;
+
+        if (bufferGroup != null && bufferGroup.length() > 0) {
+            parent = BufferBudget.getGroup(bufferGroup, groupLimit);
+        } else if (bufferGroupBudget != null) {
+            bufferGroupBudget.setLimit(groupLimit);
+            parent = bufferGroupBudget;
+        }
+
+        return new BufferBudget(serverName + ':' + portNumber, parent,
+                bufferConnectionMaxMemory > 0 ? bufferConnectionMaxMemory * 1024L : BufferBudget.UNLIMITED);
+    }
+
+    /**
+     * Retrieves the buffer memory budget of this connection. The budget
+     * reports the memory currently and at most used to buffer server
+     * responses of this connection and how much data had to be buffered to
+     * disk; its parents provide the same figures for the connection's
+     * <code>bufferGroup</code> and for the JVM.
+     *
+     * @return the connection's budget or <code>null</code> if the connection
+     *         has not been established
+     */
+    public BufferBudget getBufferBudget() {
+        SharedSocket s = socket;
+        return s == null ? null : s.getBufferBudget();
+    }
+
+    /**
+     * Retrieves the network I/O counters of this connection: bytes and
+     * packets transferred, packets buffered for other statements, time spent
+     * waiting for responses and for cancel acknowledgements. The sum of all
+     * connections is returned by {@link NetworkStatistics#getGlobal()} and
+     * published through JMX.
+     *
+     * @return the connection's statistics or <code>null</code> if the
+     *         connection has not been established
+     */
+    public NetworkStatistics getNetworkStatistics() {
+        SharedSocket s = socket;
+        return s == null ? null : s.getNetworkStatistics();
+    }
+
+    /**
+     * Creates or retrieves the pool recycling network packet buffers of the
+     * given size.
+     *
+     * @param size the network packet size
+     * @return the driver-wide pool if <code>sharedPacketPool</code> is set,
+     *         otherwise a new pool for this connection
+     */
+    private PacketBufferPool createBufferPool(int size) {
+        return sharedPacketPool
+                ? PacketBufferPool.getSharedPool(size)
+                : new PacketBufferPool(size, bufferMinPackets);
     }
 
     /**
@@ -886,6 +1123,27 @@ public class JtdsConnection implements java.sql.Connection {
         return maxPrecision;
     }
 
+    /**
+     * Retrieves whether the columns of forward-only, read-only result sets
+     * are only decoded when they are accessed, see {@link TdsCore#readColumn}.
+     *
+     * @return <code>true</code> if rows are decoded lazily
+     */
+    boolean getLazyRows() {
+        return lazyRows;
+    }
+
+    /**
+     * Retrieves whether varchar(max), nvarchar(max) and varbinary(max) values
+     * of forward-only, read-only result sets are left in the network buffers
+     * until they are accessed, see {@link PlpValue}.
+     *
+     * @return <code>true</code> if max type values are streamed
+     */
+    boolean getStreamLOBs() {
+        return streamLOBs;
+    }
+
     /**
      * Retrieves the LOB buffer size.
      *
@@ -924,6 +1182,49 @@ public class JtdsConnection implements java.sql.Connection {
         return useMetadataCache;
     }
 
+    /**
+     * Retrieves whether server side cursors grow the blocks of rows fetched
+     * while they are read forward, see {@link MSCursorResultSet}.
+     *
+     * @return <code>true</code> if the cursor block size is adapted
+     */
+    boolean getAdaptiveFetch() {
+        return adaptiveFetch;
+    }
+
+    /**
+     * Retrieves whether read-only server side cursors request the next block
+     * of rows before the current one has been read, see
+     * {@link MSCursorResultSet}.
+     *
+     * @return <code>true</code> if cursor rows are prefetched
+     */
+    boolean getCursorPrefetch() {
+        return cursorPrefetch;
+    }
+
+    /**
+     * Retrieves whether statements are prepared along with their first
+     * execution using <code>sp_prepexec</code> or
+     * <code>sp_cursorprepexec</code>, see {@link #prepareSQL}.
+     *
+     * @return <code>true</code> if statements are prepared on execution
+     */
+    boolean getUsePrepExec() {
+        return usePrepExec;
+    }
+
+    /**
+     * Retrieves whether the release of prepared statement handles and read
+     * only cursors is deferred to the next request, see
+     * {@link #deferCleanup(String, Object)}.
+     *
+     * @return <code>true</code> if cleanup calls are deferred
+     */
+    boolean getDeferCleanup() {
+        return deferCleanup;
+    }
+
     /**
      * Indicates whether fast forward only cursors should be used for forward
      * only result sets.
@@ -1010,6 +1311,74 @@ public class JtdsConnection implements java.sql.Connection {
         return bufferMinPackets;
     }
 
+    /**
+     * Retrieves the maximum amount of memory in Kb to buffer for this
+     * connection.
+     *
+     * @return the connection's memory limit in Kb, 0 for no limit
+     */
+    int getBufferConnectionMaxMemory() {
+        return bufferConnectionMaxMemory;
+    }
+
+    /**
+     * Retrieves the name of the group sharing a buffer memory budget.
+     *
+     * @return the group name, empty if the connection is not part of a group
+     */
+    String getBufferGroup() {
+        return bufferGroup;
+    }
+
+    /**
+     * Retrieves the maximum amount of memory in Kb to buffer for all
+     * connections of the group.
+     *
+     * @return the group's memory limit in Kb, 0 for no limit
+     */
+    int getBufferGroupMaxMemory() {
+        return bufferGroupMaxMemory;
+    }
+
+    /**
+     * Retrieves whether packets buffered to disk are written to a
+     * memory-mapped file.
+     *
+     * @return <code>true</code> if a memory-mapped spill file is used
+     */
+    boolean getBufferMappedFile() {
+        return bufferMappedFile;
+    }
+
+    /**
+     * Retrieves whether Multiple Active Result Sets (MARS) are requested from
+     * the server.
+     *
+     * @return <code>true</code> if MARS should be used
+     */
+    boolean getUseMARS() {
+        return useMARS;
+    }
+
+    /**
+     * Retrieves whether the NIO socket channel transport should be used.
+     *
+     * @return <code>true</code> if the NIO transport should be used
+     */
+    boolean getUseNIO() {
+        return useNIO;
+    }
+
+    /**
+     * Retrieves whether network packet buffers are recycled in a pool shared
+     * by all connections.
+     *
+     * @return <code>true</code> if the driver-wide packet buffer pool is used
+     */
+    boolean getSharedPacketPool() {
+        return sharedPacketPool;
+    }
+
     /**
      * Retrieves the database name for this connection.
      *
@@ -1092,6 +1461,16 @@ public class JtdsConnection implements java.sql.Connection {
         return namedPipe;
     }
 
+    /**
+     * Retrieves whether the packet size requested at login is chosen from
+     * the traffic of previous connections to the same server.
+     *
+     * @return <code>true</code> if the packet size is adaptive
+     */
+    boolean getAdaptivePacketSize() {
+        return adaptivePacketSize;
+    }
+
     /**
      * Retrieves the packet size for this connection.
      *
@@ -1257,8 +1636,9 @@ public class JtdsConnection implements java.sql.Connection {
         lobBuffer = parseLongProperty(info, Driver.LOBBUFFER);
 
         maxStatements = parseIntegerProperty(info, Driver.MAXSTATEMENTS);
+        maxStatementMemory = parseLongProperty(info, Driver.MAXSTMTMEMORY);
 
-        statementCache = new ProcedureCache(maxStatements);
+        statementCache = new ProcedureCache(maxStatements, maxStatementMemory);
         prepareSql = parseIntegerProperty(info, Driver.PREPARESQL);
         if (prepareSql < 0) {
             prepareSql = 0;
@@ -1301,6 +1681,45 @@ public class JtdsConnection implements java.sql.Connection {
             throw new SQLException(Messages.get("error.connection.badprop",
                     Messages.get(Driver.BUFFERMINPACKETS)), "08001");
         }
+
+        useNIO = parseBooleanProperty(info,Driver.USENIO);
+
+        sharedPacketPool = parseBooleanProperty(info,Driver.SHAREDPACKETPOOL);
+
+        bufferMappedFile = parseBooleanProperty(info,Driver.BUFFERMAPPEDFILE);
+
+        bufferGroup = info.getProperty(Messages.get(Driver.BUFFERGROUP));
+
+        bufferGroupMaxMemory = parseIntegerProperty(info, Driver.BUFFERGROUPMAXMEMORY);
+        if (bufferGroupMaxMemory < 0) {
+            throw new SQLException(Messages.get("error.connection.badprop",
+                    Messages.get(Driver.BUFFERGROUPMAXMEMORY)), "08001");
+        }
+
+        bufferConnectionMaxMemory = parseIntegerProperty(info, Driver.BUFFERCONNECTIONMAXMEMORY);
+        if (bufferConnectionMaxMemory < 0) {
+            throw new SQLException(Messages.get("error.connection.badprop",
+                    Messages.get(Driver.BUFFERCONNECTIONMAXMEMORY)), "08001");
+        }
+
+        useMARS = parseBooleanProperty(info,Driver.USEMARS);
+
+        adaptivePacketSize = parseBooleanProperty(info, Driver.ADAPTIVEPACKETSIZE);
+
+        streamLOBs = parseBooleanProperty(info, Driver.STREAMLOBS);
+
+        lazyRows = parseBooleanProperty(info, Driver.LAZYROWS);
+
+        cursorPrefetch = parseBooleanProperty(info, Driver.CURSORPREFETCH);
+
+        adaptiveFetch = parseBooleanProperty(info, Driver.ADAPTIVEFETCH);
+
+        usePrepExec = parseBooleanProperty(info, Driver.USEPREPEXEC);
+
+        deferCleanup = parseBooleanProperty(info, Driver.DEFERCLEANUP);
+
+        parserCacheSize = parseIntegerProperty(info, Driver.PARSERCACHE);
+        SQLParser.setCacheSize(parserCacheSize);
     }
 
     /**
@@ -1572,6 +1991,27 @@ public class JtdsConnection implements java.sql.Connection {
         return collation;
     }
 
+    /**
+     * Set the descriptor of the current transaction, as reported by the
+     * server in an environment change for TDS 7.2 and later.
+     *
+     * @param descriptor The transaction descriptor, all zero if no
+     *                   transaction is active.
+     */
+    void setTransactionDescriptor(byte[] descriptor) {
+        transactionDescriptor = descriptor;
+    }
+
+    /**
+     * Retrieve the descriptor of the current transaction, to be sent with
+     * every TDS 7.2 request.
+     *
+     * @return The transaction descriptor as a <code>byte[8]</code>.
+     */
+    byte[] getTransactionDescriptor() {
+        return transactionDescriptor;
+    }
+
     /**
      * Retrieves whether a specific charset was requested on creation. If this
      * is the case, all character data should be encoded/decoded using that
@@ -1656,91 +2096,202 @@ public class JtdsConnection implements java.sql.Connection {
     * @param statement
     *    statement to remove
     */
-   synchronized void removeStatement( JtdsStatement statement )
+   void removeStatement( JtdsStatement statement )
       throws SQLException
    {
-      // Remove the JtdsStatement from the statement list
-      synchronized( statements )
+      lock.lock();
+
+      try
       {
-         for( int i = 0; i < statements.size(); i++ )
+         // Remove the JtdsStatement from the statement list
+         synchronized( statements )
          {
-            WeakReference wr = (WeakReference) statements.get( i );
-
-            if( wr != null )
+            for( int i = 0; i < statements.size(); i++ )
             {
-               Statement stmt = (Statement) wr.get();
+               WeakReference wr = (WeakReference) statements.get( i );
 
-               // Remove the statement if found but also remove all
-               // statements that have already been garbage collected
-               if( stmt == null || stmt == statement )
+               if( wr != null )
                {
-                  statements.set( i, null );
+                  Statement stmt = (Statement) wr.get();
+
+                  // Remove the statement if found but also remove all
+                  // statements that have already been garbage collected
+                  if( stmt == null || stmt == statement )
+                  {
+                     statements.set( i, null );
+                  }
                }
             }
          }
-      }
-
-      if( statement instanceof JtdsPreparedStatement )
-      {
-         // Clean up the prepared statement cache; getObsoleteHandles will
-         // decrement the usage count for the set of used handles
-         Collection handles = statementCache.getObsoleteHandles( ((JtdsPreparedStatement) statement).handles );
 
-         if( handles != null )
+         if( statement instanceof JtdsPreparedStatement )
          {
-            if( serverType == Driver.SQLSERVER )
+            // Clean up the prepared statement cache; getObsoleteHandles will
+            // decrement the usage count for the set of used handles
+            Collection handles = statementCache.getObsoleteHandles( ((JtdsPreparedStatement) statement).handles );
+
+            if( handles != null )
             {
-               // SQL Server unprepare
-               StringBuilder cleanupSql = new StringBuilder( handles.size() * 32 );
-               for( Iterator iterator = handles.iterator(); iterator.hasNext(); )
-               {
-                  ProcEntry pe = (ProcEntry) iterator.next();
-                  // Could get put back if in a transaction that is rolled back
-                  pe.appendDropSQL( cleanupSql );
-               }
-               if( cleanupSql.length() > 0 )
+               if( serverType == Driver.SQLSERVER )
                {
-                  baseTds.executeSQL( cleanupSql.toString(), null, null, true, 0, -1, -1, true );
-                  baseTds.clearResponseQueue();
+                  // SQL Server unprepare
+                  StringBuilder cleanupSql = new StringBuilder( handles.size() * 32 );
+                  for( Iterator iterator = handles.iterator(); iterator.hasNext(); )
+                  {
+                     ProcEntry pe = (ProcEntry) iterator.next();
+                     String unprepare = pe.getUnprepareProcedure();
+
+                     // Could get put back if in a transaction that is rolled back
+                     if( unprepare == null || ! deferCleanup( unprepare, pe.toString() ) )
+                     {
+                        pe.appendDropSQL( cleanupSql );
+                     }
+                  }
+                  if( cleanupSql.length() > 0 )
+                  {
+                     baseTds.executeSQL( cleanupSql.toString(), null, null, true, 0, -1, -1, true );
+                     baseTds.clearResponseQueue();
+                  }
                }
-            }
-            else
-            {
-               // Sybase unprepare
-               for( Iterator iterator = handles.iterator(); iterator.hasNext(); )
+               else
                {
-                  ProcEntry pe = (ProcEntry) iterator.next();
-                  if( pe.toString() != null )
+                  // Sybase unprepare
+                  for( Iterator iterator = handles.iterator(); iterator.hasNext(); )
                   {
-                     // Remove the Sybase light weight proc
-                     baseTds.sybaseUnPrepare( pe.toString() );
+                     ProcEntry pe = (ProcEntry) iterator.next();
+                     if( pe.toString() != null )
+                     {
+                        // Remove the Sybase light weight proc
+                        baseTds.sybaseUnPrepare( pe.toString() );
+                     }
                   }
                }
             }
          }
       }
+      finally
+      {
+         lock.unlock();
+      }
    }
 
-    /**
-     * Adds a statement object to the list maintained by the connection.
-     * <p/>
-     * WeakReferences are used so that statements can still be closed and
-     * garbage collected even if not explicitly closed by the connection.
-     *
-     * @param statement statement to add
-     */
-    void addStatement(JtdsStatement statement) {
-        synchronized (statements) {
-            for (int i = 0; i < statements.size(); i++) {
-                WeakReference wr = (WeakReference) statements.get(i);
-
-                // FIXME: entries from statements should be dropped immediately
-                // on GC, instead of being kept until overwritten or connection
-                // being closed
-
-                if (wr == null || wr.get() == null) {
-                    statements.set(i, new WeakReference(statement));
-                    return;
+   /**
+    * <p> Defers a call releasing a server side handle to the next remote
+    * procedure call sent on this connection, saving the round trip of a
+    * request of its own. The call is written ahead of the next RPC request
+    * by {@link TdsCore} and its response, including any error, is skipped.
+    * </p>
+    *
+    * <p> If more than {@link #MAX_CLEANUP_CALLS} calls are pending they are
+    * sent right away by {@link #flushCleanup()}. </p>
+    *
+    * @param procName
+    *    the procedure to call, e.g. <code>sp_cursorclose</code>
+    *
+    * @param handle
+    *    the handle to release, its only parameter
+    *
+    * @return
+    *    <code>false</code> if cleanup calls are not deferred on this
+    *    connection, the caller has to release the handle itself
+    */
+   boolean deferCleanup( String procName, Object handle )
+      throws SQLException
+   {
+      if( ! deferCleanup || tdsVersion < Driver.TDS70 || handle == null )
+      {
+         return false;
+      }
+
+      synchronized( cleanupCalls )
+      {
+         cleanupCalls.add( new CleanupCall( procName, Integer.valueOf( handle.toString() ) ) );
+
+         if( cleanupCalls.size() <= MAX_CLEANUP_CALLS )
+         {
+            return true;
+         }
+      }
+
+      flushCleanup();
+      return true;
+   }
+
+   /**
+    * Retrieves and removes the pending cleanup calls.
+    *
+    * @return
+    *    the deferred calls, in the order they have been deferred, or
+    *    <code>null</code> if there are none
+    */
+   CleanupCall[] takeCleanupCalls()
+   {
+      synchronized( cleanupCalls )
+      {
+         if( cleanupCalls.isEmpty() )
+         {
+            return null;
+         }
+
+         CleanupCall[] calls = cleanupCalls.toArray( new CleanupCall[cleanupCalls.size()] );
+         cleanupCalls.clear();
+         return calls;
+      }
+   }
+
+   /**
+    * Sends the pending cleanup calls by a request of their own. The last
+    * call is executed by the <code>baseTds</code>, the others precede it in
+    * the same request.
+    */
+   void flushCleanup()
+      throws SQLException
+   {
+      lock.lock();
+
+      try
+      {
+         CleanupCall last;
+
+         synchronized( cleanupCalls )
+         {
+            if( cleanupCalls.isEmpty() )
+            {
+               return;
+            }
+
+            last = cleanupCalls.remove( cleanupCalls.size() - 1 );
+         }
+
+         baseTds.executeSQL( null, last.procName, new ParamInfo[] { last.getParameter() }, false, 0, -1, -1, true );
+         baseTds.clearResponseQueue();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+    /**
+     * Adds a statement object to the list maintained by the connection.
+     * <p/>
+     * WeakReferences are used so that statements can still be closed and
+     * garbage collected even if not explicitly closed by the connection.
+     *
+     * @param statement statement to add
+     */
+    void addStatement(JtdsStatement statement) {
+        synchronized (statements) {
+            for (int i = 0; i < statements.size(); i++) {
+                WeakReference wr = (WeakReference) statements.get(i);
+
+                // FIXME: entries from statements should be dropped immediately
+                // on GC, instead of being kept until overwritten or connection
+                // being closed
+
+                if (wr == null || wr.get() == null) {
+                    statements.set(i, new WeakReference(statement));
+                    return;
                 }
             }
 
@@ -1868,58 +2419,63 @@ public class JtdsConnection implements java.sql.Connection {
      * @return optional byte data eg OLE cookie
      * @throws SQLException if an error condition occurs
      */
-    synchronized byte[][] sendXaPacket(int args[], byte[] data)
+    byte[][] sendXaPacket(int args[], byte[] data)
             throws SQLException {
-        ParamInfo params[] = new ParamInfo[6];
-        params[0] = new ParamInfo(Types.INTEGER, null, ParamInfo.RETVAL);
-        params[1] = new ParamInfo(Types.INTEGER, new Integer(args[1]), ParamInfo.INPUT);
-        params[2] = new ParamInfo(Types.INTEGER, new Integer(args[2]), ParamInfo.INPUT);
-        params[3] = new ParamInfo(Types.INTEGER, new Integer(args[3]), ParamInfo.INPUT);
-        params[4] = new ParamInfo(Types.INTEGER, new Integer(args[4]), ParamInfo.INPUT);
-        params[5] = new ParamInfo(Types.VARBINARY, data, ParamInfo.OUTPUT);
-        //
-        // Execute our extended stored procedure (let's hope it is installed!).
-        //
-        baseTds.executeSQL(null, "master..xp_jtdsxa", params, false, 0, -1, -1, true);
-        //
-        // Now process results
-        //
-        ArrayList xids = new ArrayList();
-        while (!baseTds.isEndOfResponse()) {
-            if (baseTds.getMoreResults()) {
-                // This had better be the results from a xa_recover command
-                while (baseTds.getNextRow()) {
-                    Object row[] = baseTds.getRowData();
-                    if (row.length == 1 && row[0] instanceof byte[]) {
-                        xids.add(row[0]);
+        lock.lock();
+        try {
+            ParamInfo params[] = new ParamInfo[6];
+            params[0] = new ParamInfo(Types.INTEGER, null, ParamInfo.RETVAL);
+            params[1] = new ParamInfo(Types.INTEGER, new Integer(args[1]), ParamInfo.INPUT);
+            params[2] = new ParamInfo(Types.INTEGER, new Integer(args[2]), ParamInfo.INPUT);
+            params[3] = new ParamInfo(Types.INTEGER, new Integer(args[3]), ParamInfo.INPUT);
+            params[4] = new ParamInfo(Types.INTEGER, new Integer(args[4]), ParamInfo.INPUT);
+            params[5] = new ParamInfo(Types.VARBINARY, data, ParamInfo.OUTPUT);
+            //
+            // Execute our extended stored procedure (let's hope it is installed!).
+            //
+            baseTds.executeSQL(null, "master..xp_jtdsxa", params, false, 0, -1, -1, true);
+            //
+            // Now process results
+            //
+            ArrayList xids = new ArrayList();
+            while (!baseTds.isEndOfResponse()) {
+                if (baseTds.getMoreResults()) {
+                    // This had better be the results from a xa_recover command
+                    while (baseTds.getNextRow()) {
+                        Object row[] = baseTds.getRowData();
+                        if (row.length == 1 && row[0] instanceof byte[]) {
+                            xids.add(row[0]);
+                        }
                     }
                 }
             }
-        }
-        messages.checkErrors();
-        if (params[0].getOutValue() instanceof Integer) {
-            // Should be return code from XA command
-            args[0] = ((Integer)params[0].getOutValue()).intValue();
-        } else {
-            args[0] = -7; // XAException.XAER_RMFAIL
-        }
-        if (xids.size() > 0) {
-            // List of XIDs from xa_recover
-            byte list[][] = new byte[xids.size()][];
-            for (int i = 0; i < xids.size(); i++) {
-                list[i] = (byte[])xids.get(i);
+            messages.checkErrors();
+            if (params[0].getOutValue() instanceof Integer) {
+                // Should be return code from XA command
+                args[0] = ((Integer)params[0].getOutValue()).intValue();
+            } else {
+                args[0] = -7; // XAException.XAER_RMFAIL
             }
-            return list;
-        } else
-        if (params[5].getOutValue() instanceof byte[]) {
-            // xa_open  the xa connection ID
-            // xa_start OLE Transaction cookie
-            byte cookie[][] = new byte[1][];
-            cookie[0] = (byte[])params[5].getOutValue();
-            return cookie;
-        } else {
-            // All other cases
-            return null;
+            if (xids.size() > 0) {
+                // List of XIDs from xa_recover
+                byte list[][] = new byte[xids.size()][];
+                for (int i = 0; i < xids.size(); i++) {
+                    list[i] = (byte[])xids.get(i);
+                }
+                return list;
+            } else
+            if (params[5].getOutValue() instanceof byte[]) {
+                // xa_open  the xa connection ID
+                // xa_start OLE Transaction cookie
+                byte cookie[][] = new byte[1][];
+                cookie[0] = (byte[])params[5].getOutValue();
+                return cookie;
+            } else {
+                // All other cases
+                return null;
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -1929,16 +2485,21 @@ public class JtdsConnection implements java.sql.Connection {
      * @param oleTranID the OLE transaction cookie or null to delist
      * @throws SQLException if an error condition occurs
      */
-    synchronized void enlistConnection(byte[] oleTranID)
+    void enlistConnection(byte[] oleTranID)
             throws SQLException {
-        if (oleTranID != null) {
-            // TODO: Stored procs are no good but maybe prepare will be OK.
-            prepareSql = TdsCore.EXECUTE_SQL;
-            baseTds.enlistConnection(1, oleTranID);
-            xaTransaction = true;
-        } else {
-            baseTds.enlistConnection(1, null);
-            xaTransaction = false;
+        lock.lock();
+        try {
+            if (oleTranID != null) {
+                // TODO: Stored procs are no good but maybe prepare will be OK.
+                prepareSql = TdsCore.EXECUTE_SQL;
+                baseTds.enlistConnection(1, oleTranID);
+                xaTransaction = true;
+            } else {
+                baseTds.enlistConnection(1, null);
+                xaTransaction = false;
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -1996,31 +2557,45 @@ public class JtdsConnection implements java.sql.Connection {
     */
    Semaphore getMutex()
    {
-      boolean interrupted = false;
+      // JDBC can not be interrupted, the interrupt status is preserved though
+      // (bug [1596743])
+      mutex.acquireUninterruptibly();
+      return mutex;
+   }
 
-      while( true )
-      {
-         // JDBC can not be interrupted, retry on InterruptedException
-         try
-         {
-            mutex.acquire();
-            break;
-         }
-         catch( InterruptedException e )
-         {
-            // interrupt status is cleared now
-            interrupted = true;
-         }
-      }
+   /**
+    * Sets the thread reading the rows of a bulk load while it holds the
+    * connection mutex, see {@link TdsCore#bulkLoad}.
+    *
+    * @param thread
+    *    the thread or <code>null</code> once the rows have been sent
+    */
+   void setBulkLoadThread( Thread thread )
+   {
+      bulkLoadThread = thread;
+   }
 
-      // Bug [1596743] do not absorb interrupt status
-      if( interrupted )
-      {
-         Thread.currentThread().interrupt();
-      }
+   /**
+    * Retrieves the thread reading the rows of a bulk load while it holds the
+    * connection mutex, if any.
+    */
+   Thread getBulkLoadThread()
+   {
+      return bulkLoadThread;
+   }
 
-      return mutex;
-    }
+   /**
+    * Retrieves the lock serializing connection level operations. Statements
+    * hold it to execute a sequence of requests atomically, e.g. to make sure
+    * the connection isn't rolled back between preparing and executing.
+    *
+    * @return
+    *    the connection lock
+    */
+   ReentrantLock getLock()
+   {
+      return lock;
+   }
 
    /**
     * Releases (either closes or caches) a <code>TdsCore</code>.
@@ -2071,15 +2646,25 @@ public class JtdsConnection implements java.sql.Connection {
         return JtdsResultSet.HOLD_CURSORS_OVER_COMMIT;
     }
 
-    synchronized public int getTransactionIsolation() throws SQLException {
-        checkOpen();
+    public int getTransactionIsolation() throws SQLException {
+        lock.lock();
+        try {
+            checkOpen();
 
-        return transactionIsolation;
+            return transactionIsolation;
+        } finally {
+            lock.unlock();
+        }
     }
 
-    synchronized public void clearWarnings() throws SQLException {
-        checkOpen();
-        messages.clearWarnings();
+    public void clearWarnings() throws SQLException {
+        lock.lock();
+        try {
+            checkOpen();
+            messages.clearWarnings();
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -2099,101 +2684,121 @@ public class JtdsConnection implements java.sql.Connection {
      *
      * @throws SQLException if a database access error occurs
      */
-    synchronized public void close() throws SQLException {
-        if (!closed) {
-            try {
-                //
-                // Close any open statements
-                //
-                ArrayList tmpList;
-
-                synchronized (statements) {
-                    tmpList = new ArrayList(statements);
-                    statements.clear();
-                }
+    public void close() throws SQLException {
+        lock.lock();
+        try {
+            if (!closed) {
+                try {
+                    //
+                    // Close any open statements
+                    //
+                    ArrayList tmpList;
+
+                    synchronized (statements) {
+                        tmpList = new ArrayList(statements);
+                        statements.clear();
+                    }
 
-                for (int i = 0; i < tmpList.size(); i++) {
-                    WeakReference wr = (WeakReference)tmpList.get(i);
+                    for (int i = 0; i < tmpList.size(); i++) {
+                        WeakReference wr = (WeakReference)tmpList.get(i);
 
-                    if (wr != null) {
-                        Statement stmt = (Statement) wr.get();
-                        if (stmt != null) {
-                            try {
-                                stmt.close();
-                            } catch (SQLException ex) {
-                                // Ignore
+                        if (wr != null) {
+                            Statement stmt = (Statement) wr.get();
+                            if (stmt != null) {
+                                try {
+                                    stmt.close();
+                                } catch (SQLException ex) {
+                                    // Ignore
+                                }
                             }
                         }
                     }
-                }
 
-                try {
-                    // Tell the server the session is ending, close network connection
-                    if (baseTds != null) {
-                        baseTds.closeConnection();
-                        baseTds.close();
+                    // The server releases all handles along with the session
+                    synchronized (cleanupCalls) {
+                        cleanupCalls.clear();
                     }
-                    // Close cached TdsCore
-                    TdsCore ctds = getCachedTds();
-                    if (ctds != null) {
-                        ctds.close();
+
+                    try {
+                        // Tell the server the session is ending, close network connection
+                        if (baseTds != null) {
+                            baseTds.closeConnection();
+                            baseTds.close();
+                        }
+                        // Close cached TdsCore
+                        TdsCore ctds = getCachedTds();
+                        if (ctds != null) {
+                            ctds.close();
+                        }
+                    } catch (SQLException ex) {
+                        // Ignore
                     }
-                } catch (SQLException ex) {
-                    // Ignore
-                }
 
-                if (socket != null) {
-                    socket.close();
-                }
-            } catch (IOException e) {
-                // Ignore
-            } finally {
-                closed = true;
-                synchronized( connections ) {
-                    if (--connections[0] == 0) {
-                        TimerThread.stopTimer();
+                    if (socket != null) {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // Ignore
+                } finally {
+                    closed = true;
+                    synchronized( connections ) {
+                        if (--connections[0] == 0) {
+                            TimerThread.stopTimer();
+                        }
                     }
                 }
             }
+        } finally {
+            lock.unlock();
         }
     }
 
-    synchronized public void commit() throws SQLException {
-        checkOpen();
-        checkLocal("commit");
+    public void commit() throws SQLException {
+        lock.lock();
+        try {
+            checkOpen();
+            checkLocal("commit");
 
-        if (getAutoCommit()) {
-            throw new SQLException(
-                    Messages.get("error.connection.autocommit", "commit"),
-                    "25000");
-        }
+            if (getAutoCommit()) {
+                throw new SQLException(
+                        Messages.get("error.connection.autocommit", "commit"),
+                        "25000");
+            }
 
-        baseTds.submitSQL("IF @@TRANCOUNT > 0 COMMIT TRAN");
-        procInTran.clear();
-        clearSavepoints();
+            baseTds.submitSQL("IF @@TRANCOUNT > 0 COMMIT TRAN");
+            procInTran.clear();
+            clearSavepoints();
+        } finally {
+            lock.unlock();
+        }
     }
 
-    synchronized public void rollback() throws SQLException {
-        checkOpen();
-        checkLocal("rollback");
+    public void rollback() throws SQLException {
+        lock.lock();
+        try {
+            checkOpen();
+            checkLocal("rollback");
 
-        if (getAutoCommit()) {
-            throw new SQLException(
-                    Messages.get("error.connection.autocommit", "rollback"),
-                    "25000");
-        }
+            if (getAutoCommit()) {
+                throw new SQLException(
+                        Messages.get("error.connection.autocommit", "rollback"),
+                        "25000");
+            }
 
-        baseTds.submitSQL("IF @@TRANCOUNT > 0 ROLLBACK TRAN");
+            baseTds.submitSQL("IF @@TRANCOUNT > 0 ROLLBACK TRAN");
 
-        for (int i = 0; i < procInTran.size(); i++) {
-            String key = (String) procInTran.get(i);
-            if (key != null) {
-                statementCache.remove(key);
+            for (int i = 0; i < procInTran.size(); i++) {
+                Object key = procInTran.get(i);
+                if (key != null) {
+                    statementCache.remove(key);
+                }
             }
-        }
-        procInTran.clear();
+            procInTran.clear();
 
-        clearSavepoints();
+            clearSavepoints();
+        } finally {
+            lock.unlock();
+        }
     }
 
    public boolean getAutoCommit()
@@ -2235,98 +2840,108 @@ public class JtdsConnection implements java.sql.Connection {
         }
     }
 
-    synchronized public void setTransactionIsolation(int level) throws SQLException {
-        checkOpen();
-
-        if (transactionIsolation == level) {
-            // No need to submit a request
-            return;
-        }
+    public void setTransactionIsolation(int level) throws SQLException {
+        lock.lock();
+        try {
+            checkOpen();
 
-        String sql = "SET TRANSACTION ISOLATION LEVEL ";
-        boolean sybase = serverType == Driver.SYBASE;
+            if (transactionIsolation == level) {
+                // No need to submit a request
+                return;
+            }
 
-        switch (level) {
-            case java.sql.Connection.TRANSACTION_READ_UNCOMMITTED:
-                sql += (sybase) ? "0" : "READ UNCOMMITTED";
-                break;
-            case java.sql.Connection.TRANSACTION_READ_COMMITTED:
-                sql += (sybase) ? "1" : "READ COMMITTED";
-                break;
-            case java.sql.Connection.TRANSACTION_REPEATABLE_READ:
-                sql += (sybase) ? "2" : "REPEATABLE READ";
-                break;
-            case java.sql.Connection.TRANSACTION_SERIALIZABLE:
-                sql += (sybase) ? "3" : "SERIALIZABLE";
-                break;
-            case TRANSACTION_SNAPSHOT:
-                if (sybase) {
+            String sql = "SET TRANSACTION ISOLATION LEVEL ";
+            boolean sybase = serverType == Driver.SYBASE;
+
+            switch (level) {
+                case java.sql.Connection.TRANSACTION_READ_UNCOMMITTED:
+                    sql += (sybase) ? "0" : "READ UNCOMMITTED";
+                    break;
+                case java.sql.Connection.TRANSACTION_READ_COMMITTED:
+                    sql += (sybase) ? "1" : "READ COMMITTED";
+                    break;
+                case java.sql.Connection.TRANSACTION_REPEATABLE_READ:
+                    sql += (sybase) ? "2" : "REPEATABLE READ";
+                    break;
+                case java.sql.Connection.TRANSACTION_SERIALIZABLE:
+                    sql += (sybase) ? "3" : "SERIALIZABLE";
+                    break;
+                case TRANSACTION_SNAPSHOT:
+                    if (sybase) {
+                        throw new SQLException(
+                                Messages.get("error.generic.optvalue",
+                                             "TRANSACTION_SNAPSHOT",
+                                             "setTransactionIsolation"),
+                                "HY024");
+                    } else {
+                        sql += "SNAPSHOT";
+                    }
+                    break;
+                case java.sql.Connection.TRANSACTION_NONE:
                     throw new SQLException(
                             Messages.get("error.generic.optvalue",
-                                         "TRANSACTION_SNAPSHOT",
-                                         "setTransactionIsolation"),
+                                    "TRANSACTION_NONE",
+                                    "setTransactionIsolation"),
                             "HY024");
-                } else {
-                    sql += "SNAPSHOT";
-                }
-                break;
-            case java.sql.Connection.TRANSACTION_NONE:
-                throw new SQLException(
-                        Messages.get("error.generic.optvalue",
-                                "TRANSACTION_NONE",
-                                "setTransactionIsolation"),
-                        "HY024");
-            default:
-                throw new SQLException(
-                        Messages.get("error.generic.badoption",
-                                Integer.toString(level),
-                                "level"),
-                        "HY092");
-        }
-
-        transactionIsolation = level;
-        baseTds.submitSQL(sql);
-    }
+                default:
+                    throw new SQLException(
+                            Messages.get("error.generic.badoption",
+                                    Integer.toString(level),
+                                    "level"),
+                            "HY092");
+            }
 
-    synchronized public void setAutoCommit(boolean autoCommit) throws SQLException {
-        checkOpen();
-        checkLocal("setAutoCommit");
-
-        if (this.autoCommit == autoCommit) {
-            // If we don't need to change the current auto commit mode, don't
-            // submit a request and don't commit either. Section 10.1.1 of the
-            // JDBC 3.0 spec states that the transaction should be committed
-            // only "if the value of auto-commit is _changed_ in the middle of
-            // a transaction". This takes precedence over the API docs, which
-            // states that "if this method is called during a transaction, the
-            // transaction is committed".
-            return;
+            transactionIsolation = level;
+            baseTds.submitSQL(sql);
+        } finally {
+            lock.unlock();
         }
+    }
 
-        StringBuilder sql = new StringBuilder(70);
-        //
-        if (!this.autoCommit) {
-            // If we're in manual commit mode the spec requires that we commit
-            // the transaction when setAutoCommit() is called
-            sql.append("IF @@TRANCOUNT > 0 COMMIT TRAN\r\n");
-        }
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        lock.lock();
+        try {
+            checkOpen();
+            checkLocal("setAutoCommit");
+
+            if (this.autoCommit == autoCommit) {
+                // If we don't need to change the current auto commit mode, don't
+                // submit a request and don't commit either. Section 10.1.1 of the
+                // JDBC 3.0 spec states that the transaction should be committed
+                // only "if the value of auto-commit is _changed_ in the middle of
+                // a transaction". This takes precedence over the API docs, which
+                // states that "if this method is called during a transaction, the
+                // transaction is committed".
+                return;
+            }
 
-        if (serverType == Driver.SYBASE) {
-            if (autoCommit) {
-                sql.append("SET CHAINED OFF");
-            } else {
-                sql.append("SET CHAINED ON");
+            StringBuilder sql = new StringBuilder(70);
+            //
+            if (!this.autoCommit) {
+                // If we're in manual commit mode the spec requires that we commit
+                // the transaction when setAutoCommit() is called
+                sql.append("IF @@TRANCOUNT > 0 COMMIT TRAN\r\n");
             }
-        } else {
-            if (autoCommit) {
-                sql.append("SET IMPLICIT_TRANSACTIONS OFF");
+
+            if (serverType == Driver.SYBASE) {
+                if (autoCommit) {
+                    sql.append("SET CHAINED OFF");
+                } else {
+                    sql.append("SET CHAINED ON");
+                }
             } else {
-                sql.append("SET IMPLICIT_TRANSACTIONS ON");
+                if (autoCommit) {
+                    sql.append("SET IMPLICIT_TRANSACTIONS OFF");
+                } else {
+                    sql.append("SET IMPLICIT_TRANSACTIONS ON");
+                }
             }
-        }
 
-        baseTds.submitSQL(sql.toString());
-        this.autoCommit = autoCommit;
+            baseTds.submitSQL(sql.toString());
+            this.autoCommit = autoCommit;
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void setReadOnly(boolean readOnly) throws SQLException {
@@ -2334,32 +2949,42 @@ public class JtdsConnection implements java.sql.Connection {
         this.readOnly = readOnly;
     }
 
-    synchronized public String getCatalog() throws SQLException {
-        checkOpen();
+    public String getCatalog() throws SQLException {
+        lock.lock();
+        try {
+            checkOpen();
 
-        return currentDatabase;
+            return currentDatabase;
+        } finally {
+            lock.unlock();
+        }
     }
 
-    synchronized public void setCatalog(String catalog) throws SQLException {
-        checkOpen();
+    public void setCatalog(String catalog) throws SQLException {
+        lock.lock();
+        try {
+            checkOpen();
 
-        if (currentDatabase != null && currentDatabase.equals(catalog)) {
-            return;
-        }
+            if (currentDatabase != null && currentDatabase.equals(catalog)) {
+                return;
+            }
 
-        int maxlength = tdsVersion >= Driver.TDS70 ? 128 : 30;
+            int maxlength = tdsVersion >= Driver.TDS70 ? 128 : 30;
 
-        if (catalog.length() > maxlength || catalog.length() < 1) {
-            throw new SQLException(
-                    Messages.get("error.generic.badparam",
-                            catalog,
-                            "catalog"),
-                    "3D000");
-        }
+            if (catalog.length() > maxlength || catalog.length() < 1) {
+                throw new SQLException(
+                        Messages.get("error.generic.badparam",
+                                catalog,
+                                "catalog"),
+                        "3D000");
+            }
 
-        String sql = tdsVersion >= Driver.TDS70
-                ? ("use [" + catalog + ']') : "use " + catalog;
-        baseTds.submitSQL(sql);
+            String sql = tdsVersion >= Driver.TDS70
+                    ? ("use [" + catalog + ']') : "use " + catalog;
+            baseTds.submitSQL(sql);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public DatabaseMetaData getMetaData() throws SQLException {
@@ -2381,14 +3006,19 @@ public class JtdsConnection implements java.sql.Connection {
                                java.sql.ResultSet.CONCUR_READ_ONLY);
     }
 
-    synchronized public Statement createStatement(int type, int concurrency)
+    public Statement createStatement(int type, int concurrency)
             throws SQLException {
-        checkOpen();
+        lock.lock();
+        try {
+            checkOpen();
 
-        JtdsStatement stmt = new JtdsStatement(this, type, concurrency);
-        addStatement(stmt);
+            JtdsStatement stmt = new JtdsStatement(this, type, concurrency);
+            addStatement(stmt);
 
-        return stmt;
+            return stmt;
+        } finally {
+            lock.unlock();
+        }
     }
 
     public Statement createStatement(int type, int concurrency, int holdability)
@@ -2430,22 +3060,27 @@ public class JtdsConnection implements java.sql.Connection {
                            java.sql.ResultSet.CONCUR_READ_ONLY);
     }
 
-    synchronized public CallableStatement prepareCall(String sql, int type,
-                                                      int concurrency)
+    public CallableStatement prepareCall(String sql, int type,
+                                         int concurrency)
             throws SQLException {
-        checkOpen();
+        lock.lock();
+        try {
+            checkOpen();
 
-        if (sql == null || sql.length() == 0) {
-            throw new SQLException(Messages.get("error.generic.nosql"), "HY000");
-        }
+            if (sql == null || sql.length() == 0) {
+                throw new SQLException(Messages.get("error.generic.nosql"), "HY000");
+            }
 
-        JtdsCallableStatement stmt = new JtdsCallableStatement(this,
-                                                               sql,
-                                                               type,
-                                                               concurrency);
-        addStatement(stmt);
+            JtdsCallableStatement stmt = new JtdsCallableStatement(this,
+                                                                   sql,
+                                                                   type,
+                                                                   concurrency);
+            addStatement(stmt);
 
-        return stmt;
+            return stmt;
+        } finally {
+            lock.unlock();
+        }
     }
 
     public CallableStatement prepareCall(
@@ -2495,24 +3130,29 @@ public class JtdsConnection implements java.sql.Connection {
         return stmt;
     }
 
-    synchronized public PreparedStatement prepareStatement(String sql,
-                                                           int type,
-                                                           int concurrency)
+    public PreparedStatement prepareStatement(String sql,
+                                              int type,
+                                              int concurrency)
             throws SQLException {
-        checkOpen();
+        lock.lock();
+        try {
+            checkOpen();
 
-        if (sql == null || sql.length() == 0) {
-            throw new SQLException(Messages.get("error.generic.nosql"), "HY000");
-        }
+            if (sql == null || sql.length() == 0) {
+                throw new SQLException(Messages.get("error.generic.nosql"), "HY000");
+            }
 
-        JtdsPreparedStatement stmt = new JtdsPreparedStatement(this,
-                                                               sql,
-                                                               type,
-                                                               concurrency,
-                                                               false);
-        addStatement(stmt);
+            JtdsPreparedStatement stmt = new JtdsPreparedStatement(this,
+                                                                   sql,
+                                                                   type,
+                                                                   concurrency,
+                                                                   false);
+            addStatement(stmt);
 
-        return stmt;
+            return stmt;
+        } finally {
+            lock.unlock();
+        }
     }
 
     public PreparedStatement prepareStatement(
@@ -2591,7 +3231,9 @@ public class JtdsConnection implements java.sql.Connection {
          }
       }
 
-      synchronized( this )
+      lock.lock();
+
+      try
       {
          if( savepoints == null )
          {
@@ -2600,160 +3242,189 @@ public class JtdsConnection implements java.sql.Connection {
 
          savepoints.add(savepoint);
       }
+      finally
+      {
+         lock.unlock();
+      }
    }
 
     /**
      * Releases all savepoints. Used internally when committing or rolling back
      * a transaction.
      */
-    private synchronized void clearSavepoints() {
-        if (savepoints != null) {
-            savepoints.clear();
-        }
+    private void clearSavepoints() {
+        lock.lock();
+        try {
+            if (savepoints != null) {
+                savepoints.clear();
+            }
 
-        if (savepointProcInTran != null) {
-            savepointProcInTran.clear();
-        }
+            if (savepointProcInTran != null) {
+                savepointProcInTran.clear();
+            }
 
-        savepointId = 0;
+            savepointId = 0;
+        } finally {
+            lock.unlock();
+        }
     }
 
     // JDBC 3
 
-    public synchronized void releaseSavepoint(Savepoint savepoint)
+    public void releaseSavepoint(Savepoint savepoint)
              throws SQLException {
-         checkOpen();
+         lock.lock();
+         try {
+              checkOpen();
+
+              if (savepoints == null) {
+                  throw new SQLException(
+                      Messages.get("error.connection.badsavep"), "25000");
+              }
+
+              int index = savepoints.indexOf(savepoint);
+
+              if (index == -1) {
+                  throw new SQLException(
+                      Messages.get("error.connection.badsavep"), "25000");
+              }
+
+              Object tmpSavepoint = savepoints.remove(index);
+
+              if (savepointProcInTran != null) {
+                  if (index != 0) {
+                      // If this wasn't the outermost savepoint, move all procedures
+                      // to the "wrapping" savepoint's list; when and if that
+                      // savepoint will be rolled back it will clear these procedures
+                      // too
+                      List keys = (List) savepointProcInTran.get(savepoint);
+
+                      if (keys != null) {
+                          Savepoint wrapping = (Savepoint) savepoints.get(index - 1);
+                          List wrappingKeys =
+                                  (List) savepointProcInTran.get(wrapping);
+                          if (wrappingKeys == null) {
+                              wrappingKeys = new ArrayList();
+                          }
+                          wrappingKeys.addAll(keys);
+                          savepointProcInTran.put(wrapping, wrappingKeys);
+                      }
+                  }
 
-         if (savepoints == null) {
-             throw new SQLException(
-                 Messages.get("error.connection.badsavep"), "25000");
+                  // If this was the outermost savepoint, just drop references to
+                  // all procedures; they will be managed by the connection
+                  savepointProcInTran.remove(tmpSavepoint);
+              }
+         } finally {
+              lock.unlock();
          }
+    }
 
-         int index = savepoints.indexOf(savepoint);
-
-         if (index == -1) {
-             throw new SQLException(
-                 Messages.get("error.connection.badsavep"), "25000");
-         }
+     public void rollback(Savepoint savepoint) throws SQLException {
+         lock.lock();
+         try {
+             checkOpen();
+             checkLocal("rollback");
 
-         Object tmpSavepoint = savepoints.remove(index);
-
-         if (savepointProcInTran != null) {
-             if (index != 0) {
-                 // If this wasn't the outermost savepoint, move all procedures
-                 // to the "wrapping" savepoint's list; when and if that
-                 // savepoint will be rolled back it will clear these procedures
-                 // too
-                 List keys = (List) savepointProcInTran.get(savepoint);
-
-                 if (keys != null) {
-                     Savepoint wrapping = (Savepoint) savepoints.get(index - 1);
-                     List wrappingKeys =
-                             (List) savepointProcInTran.get(wrapping);
-                     if (wrappingKeys == null) {
-                         wrappingKeys = new ArrayList();
-                     }
-                     wrappingKeys.addAll(keys);
-                     savepointProcInTran.put(wrapping, wrappingKeys);
-                 }
+             if (savepoints == null) {
+                 throw new SQLException(
+                     Messages.get("error.connection.badsavep"), "25000");
              }
 
-             // If this was the outermost savepoint, just drop references to
-             // all procedures; they will be managed by the connection
-             savepointProcInTran.remove(tmpSavepoint);
-         }
-     }
-
-     public synchronized void rollback(Savepoint savepoint) throws SQLException {
-         checkOpen();
-         checkLocal("rollback");
-
-         if (savepoints == null) {
-             throw new SQLException(
-                 Messages.get("error.connection.badsavep"), "25000");
-         }
-
-         int index = savepoints.indexOf(savepoint);
+             int index = savepoints.indexOf(savepoint);
 
-         if (index == -1) {
-             throw new SQLException(
-                 Messages.get("error.connection.badsavep"), "25000");
-         } else if (getAutoCommit()) {
-             throw new SQLException(
-                 Messages.get("error.connection.savenorollback"), "25000");
-         }
+             if (index == -1) {
+                 throw new SQLException(
+                     Messages.get("error.connection.badsavep"), "25000");
+             } else if (getAutoCommit()) {
+                 throw new SQLException(
+                     Messages.get("error.connection.savenorollback"), "25000");
+             }
 
-         Statement statement = null;
+             Statement statement = null;
 
-         try {
-             statement = createStatement();
-             statement.execute("ROLLBACK TRAN jtds" + ((SavepointImpl) savepoint).getId());
-         } finally {
-             if (statement != null) {
-                 statement.close();
+             try {
+                 statement = createStatement();
+                 statement.execute("ROLLBACK TRAN jtds" + ((SavepointImpl) savepoint).getId());
+             } finally {
+                 if (statement != null) {
+                     statement.close();
+                 }
              }
-         }
 
-         int size = savepoints.size();
+             int size = savepoints.size();
 
-         for (int i = size - 1; i >= index; i--) {
-             Object tmpSavepoint = savepoints.remove(i);
+             for (int i = size - 1; i >= index; i--) {
+                 Object tmpSavepoint = savepoints.remove(i);
 
-             if (savepointProcInTran == null) {
-                 continue;
-             }
+                 if (savepointProcInTran == null) {
+                     continue;
+                 }
 
-             List keys = (List) savepointProcInTran.get(tmpSavepoint);
+                 List keys = (List) savepointProcInTran.get(tmpSavepoint);
 
-             if (keys == null) {
-                 continue;
-             }
+                 if (keys == null) {
+                     continue;
+                 }
 
-             for (Iterator iterator = keys.iterator(); iterator.hasNext();) {
-                 String key = (String) iterator.next();
+                 for (Iterator iterator = keys.iterator(); iterator.hasNext();) {
+                     Object key = iterator.next();
 
-                 removeCachedProcedure(key);
+                     removeCachedProcedure(key);
+                 }
              }
-         }
 
-         // recreate savepoint
-         setSavepoint((SavepointImpl) savepoint);
+             // recreate savepoint
+             setSavepoint((SavepointImpl) savepoint);
+         } finally {
+             lock.unlock();
+         }
      }
 
-     synchronized public Savepoint setSavepoint() throws SQLException {
-         checkOpen();
-         checkLocal("setSavepoint");
+     public Savepoint setSavepoint() throws SQLException {
+         lock.lock();
+         try {
+             checkOpen();
+             checkLocal("setSavepoint");
 
-         if (getAutoCommit()) {
-             throw new SQLException(
-                 Messages.get("error.connection.savenoset"), "25000");
-         }
+             if (getAutoCommit()) {
+                 throw new SQLException(
+                     Messages.get("error.connection.savenoset"), "25000");
+             }
 
-         SavepointImpl savepoint = new SavepointImpl(getNextSavepointId());
+             SavepointImpl savepoint = new SavepointImpl(getNextSavepointId());
 
-         setSavepoint(savepoint);
+             setSavepoint(savepoint);
 
-         return savepoint;
+             return savepoint;
+         } finally {
+             lock.unlock();
+         }
      }
 
-     synchronized public Savepoint setSavepoint(String name) throws SQLException {
-         checkOpen();
-         checkLocal("setSavepoint");
-
-         if (getAutoCommit()) {
-             throw new SQLException(
-                 Messages.get("error.connection.savenoset"), "25000");
-         } else if (name == null) {
-             throw new SQLException(
-                 Messages.get("error.connection.savenullname", "savepoint"),
-                 "25000");
-         }
+     public Savepoint setSavepoint(String name) throws SQLException {
+         lock.lock();
+         try {
+             checkOpen();
+             checkLocal("setSavepoint");
+
+             if (getAutoCommit()) {
+                 throw new SQLException(
+                     Messages.get("error.connection.savenoset"), "25000");
+             } else if (name == null) {
+                 throw new SQLException(
+                     Messages.get("error.connection.savenullname", "savepoint"),
+                     "25000");
+             }
 
-         SavepointImpl savepoint = new SavepointImpl(getNextSavepointId(), name);
+             SavepointImpl savepoint = new SavepointImpl(getNextSavepointId(), name);
 
-         setSavepoint(savepoint);
+             setSavepoint(savepoint);
 
-         return savepoint;
+             return savepoint;
+         } finally {
+             lock.unlock();
+         }
      }
 
      /**
@@ -2770,27 +3441,32 @@ public class JtdsConnection implements java.sql.Connection {
       *
       * @param key The signature of the procedure to cache.
       */
-     synchronized void addCachedProcedure(String key) {
-         if (savepoints == null || savepoints.size() == 0) {
-             return;
-         }
+     void addCachedProcedure(Object key) {
+         lock.lock();
+         try {
+             if (savepoints == null || savepoints.size() == 0) {
+                 return;
+             }
 
-         if (savepointProcInTran == null) {
-             savepointProcInTran = new HashMap();
-         }
+             if (savepointProcInTran == null) {
+                 savepointProcInTran = new HashMap();
+             }
 
-         // Retrieve the current savepoint
-         Object savepoint = savepoints.get(savepoints.size() - 1);
+             // Retrieve the current savepoint
+             Object savepoint = savepoints.get(savepoints.size() - 1);
 
-         List keys = (List) savepointProcInTran.get(savepoint);
+             List keys = (List) savepointProcInTran.get(savepoint);
 
-         if (keys == null) {
-             keys = new ArrayList();
-         }
+             if (keys == null) {
+                 keys = new ArrayList();
+             }
 
-         keys.add(key);
+             keys.add(key);
 
-         savepointProcInTran.put(savepoint, keys);
+             savepointProcInTran.put(savepoint, keys);
+         } finally {
+             lock.unlock();
+         }
      }
 
     /////// JDBC4 demarcation, do NOT put any JDBC3 code below this line ///////
@@ -2933,4 +3609,31 @@ public class JtdsConnection implements java.sql.Connection {
         // TODO Auto-generated method stub
         throw new AbstractMethodError();
     }
+
+    /**
+     * A call of a system procedure releasing a server side handle, deferred
+     * to the next request sent on the connection.
+     */
+    static class CleanupCall {
+        /**
+         * The procedure to call.
+         */
+        final String procName;
+        /**
+         * The handle to release.
+         */
+        final Integer handle;
+
+        CleanupCall(String procName, Integer handle) {
+            this.procName = procName;
+            this.handle = handle;
+        }
+
+        /**
+         * Creates the only parameter of the call, the handle.
+         */
+        ParamInfo getParameter() {
+            return new ParamInfo(Types.INTEGER, handle, ParamInfo.INPUT);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,257 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The value of a table-valued parameter, supported by SQL Server 2008 and
+ * later (TDS 7.3).
+ * <p>
+ * A table is passed to a stored procedure or parameterized statement by
+ * calling <code>setObject()</code> on a {@link JtdsPreparedStatement} or
+ * {@link JtdsCallableStatement}, e.g.
+ * <pre>
+ * JtdsDataTable table = new JtdsDataTable( "dbo.IdList" );
+ * table.addColumn( "id", Types.INTEGER );
+ * table.addRow( 1 );
+ * table.addRow( 2 );
+ * stmt.setObject( 1, table );
+ * </pre>
+ * The columns have to match the columns of the user-defined table type in
+ * number and order, the values are converted to the column types when the
+ * statement is executed. The table is sent as it is at that time, so it must
+ * not be modified before <code>execute()</code> returns and each set of
+ * parameters of a batch needs its own instance.
+ * </p>
+ * Table-valued parameters are read-only and cannot be used as output
+ * parameters or embedded into the SQL text, i.e. they don't work with
+ * <code>prepareSQL=0</code> for prepared statements.
+ */
+public final class JtdsDataTable
+{
+
+   /**
+    * the name of the table type, as used in parameter declarations
+    */
+   private final String         _TypeName;
+
+   /**
+    * the schema part of the type name, empty for the default schema
+    */
+   private final String         _Schema;
+
+   /**
+    * the type name without the schema
+    */
+   private final String         _Name;
+
+   /**
+    * the column descriptors
+    */
+   private final List<ColInfo>  _Columns = new ArrayList<ColInfo>();
+
+   /**
+    * the rows added so far
+    */
+   private final List<Object[]> _Rows    = new ArrayList<Object[]>();
+
+   /**
+    * Creates a new, empty table.
+    *
+    * @param typeName
+    *    the name of the user-defined table type, optionally qualified by its
+    *    schema and quoted with brackets, e.g. <code>[dbo].[IdList]</code>
+    */
+   public JtdsDataTable( String typeName )
+   {
+      if( typeName == null || typeName.trim().length() == 0 )
+      {
+         throw new IllegalArgumentException( "typeName" );
+      }
+
+      _TypeName = typeName.trim();
+
+      int dot = _TypeName.lastIndexOf( '.' );
+
+      // a dot within brackets is part of the name
+      if( dot >= 0 && _TypeName.endsWith( "]" ) && _TypeName.lastIndexOf( '[' ) < dot )
+      {
+         dot = _TypeName.lastIndexOf( '[' ) - 1;
+      }
+
+      _Schema = dot < 0 ? "" : unquote( _TypeName.substring( 0, dot ) );
+      _Name   = unquote( _TypeName.substring( dot + 1 ) );
+   }
+
+   /**
+    * Returns the name of the table type as passed to the constructor.
+    */
+   public String getTypeName()
+   {
+      return _TypeName;
+   }
+
+   /**
+    * Adds a column of the default length, precision and scale, e.g.
+    * <code>nvarchar(max)</code> for <code>VARCHAR</code> and
+    * <code>decimal(38,10)</code> for <code>DECIMAL</code>.
+    *
+    * @param name
+    *    the column name
+    *
+    * @param jdbcType
+    *    the <code>java.sql.Types</code> constant of the column
+    *
+    * @throws SQLException
+    *    if the JDBC type is not supported
+    */
+   public void addColumn( String name, int jdbcType )
+      throws SQLException
+   {
+      addColumn( name, jdbcType, 0, -1 );
+   }
+
+   /**
+    * Adds a column.
+    *
+    * @param name
+    *    the column name
+    *
+    * @param jdbcType
+    *    the <code>java.sql.Types</code> constant of the column
+    *
+    * @param precision
+    *    the length of character and binary columns or the precision of
+    *    decimal columns, 0 for the default
+    *
+    * @param scale
+    *    the scale of decimal columns, -1 for the default
+    *
+    * @throws SQLException
+    *    if the JDBC type is not supported
+    *
+    * @throws IllegalStateException
+    *    if rows have already been added
+    */
+   public void addColumn( String name, int jdbcType, int precision, int scale )
+      throws SQLException
+   {
+      if( ! _Rows.isEmpty() )
+      {
+         throw new IllegalStateException( "rows have already been added" );
+      }
+
+      _Columns.add( TdsData.getTableColumn( name, jdbcType, precision, scale ) );
+   }
+
+   /**
+    * Returns the number of columns.
+    */
+   public int getColumnCount()
+   {
+      return _Columns.size();
+   }
+
+   /**
+    * Adds a row.
+    *
+    * @param values
+    *    one value for each column, <code>null</code> values are allowed
+    *
+    * @throws IllegalArgumentException
+    *    if the number of values does not match the number of columns
+    */
+   public void addRow( Object... values )
+   {
+      if( values == null || values.length != _Columns.size() )
+      {
+         throw new IllegalArgumentException( "expected " + _Columns.size() + " values" );
+      }
+
+      _Rows.add( values.clone() );
+   }
+
+   /**
+    * Returns the number of rows.
+    */
+   public int getRowCount()
+   {
+      return _Rows.size();
+   }
+
+   /**
+    * Removes all rows, keeping the columns.
+    */
+   public void clear()
+   {
+      _Rows.clear();
+   }
+
+   /**
+    * Returns the schema of the table type, empty for the default schema.
+    */
+   String getSchemaName()
+   {
+      return _Schema;
+   }
+
+   /**
+    * Returns the name of the table type without schema.
+    */
+   String getTableTypeName()
+   {
+      return _Name;
+   }
+
+   /**
+    * Returns the column descriptors.
+    */
+   ColInfo[] getColumns()
+   {
+      return _Columns.toArray( new ColInfo[_Columns.size()] );
+   }
+
+   /**
+    * Returns the rows.
+    */
+   List<Object[]> getRows()
+   {
+      return _Rows;
+   }
+
+   public String toString()
+   {
+      return "JtdsDataTable[" + _TypeName + ", " + _Columns.size() + " columns, " + _Rows.size() + " rows]";
+   }
+
+   private static String unquote( String name )
+   {
+      name = name.trim();
+
+      if( name.length() >= 2 && name.charAt( 0 ) == '[' && name.charAt( name.length() - 1 ) == ']' )
+      {
+         return name.substring( 1, name.length() - 1 ).replace( "]]", "]" );
+      }
+
+      return name;
+   }
+
+}
@@ -80,6 +80,8 @@ public class JtdsPreparedStatement extends JtdsStatement implements PreparedStat
     private final static NumberFormat f = NumberFormat.getInstance();
     /** Collection of handles used by this statement */
     Collection handles;
+    /** Statement cache key of the last execution. */
+    StatementKey statementKey;
 
     /**
      * Construct a new preparedStatement object.
@@ -759,12 +761,15 @@ public class JtdsPreparedStatement extends JtdsStatement implements PreparedStat
         reset();
 
         if (procName == null && !(this instanceof JtdsCallableStatement)) {
-            // Sync on the connection to make sure rollback() isn't called
+            // Lock the connection to make sure rollback() isn't called
             // between the moment when the statement is prepared and the moment
             // when it's executed.
-            synchronized (connection) {
-                String spName = connection.prepareSQL(this, sql, parameters, returnKeys, false);
+            connection.getLock().lock();
+            try {
+                String spName = connection.prepareSQL(this, sql, parameters, returnKeys, false, true);
                 executeSQL(sql, spName, parameters, true, false);
+            } finally {
+                connection.getLock().unlock();
             }
         } else {
             executeSQL(sql, procName, parameters, true, false);
@@ -816,12 +821,15 @@ public class JtdsPreparedStatement extends JtdsStatement implements PreparedStat
         boolean useCursor = useCursor(returnKeys, sqlWord);
 
         if (procName == null && !(this instanceof JtdsCallableStatement)) {
-            // Sync on the connection to make sure rollback() isn't called
+            // Lock the connection to make sure rollback() isn't called
             // between the moment when the statement is prepared and the moment
             // when it's executed.
-            synchronized (connection) {
-                String spName = connection.prepareSQL(this, sql, parameters, returnKeys, useCursor);
+            connection.getLock().lock();
+            try {
+                String spName = connection.prepareSQL(this, sql, parameters, returnKeys, useCursor, true);
                 return executeSQL(sql, spName, parameters, false, useCursor);
+            } finally {
+                connection.getLock().unlock();
             }
         } else {
             return executeSQL(sql, procName, parameters, false, useCursor);
@@ -1061,12 +1069,15 @@ public class JtdsPreparedStatement extends JtdsStatement implements PreparedStat
         boolean useCursor = useCursor(false, null);
 
         if (procName == null && !(this instanceof JtdsCallableStatement)) {
-            // Sync on the connection to make sure rollback() isn't called
+            // Lock the connection to make sure rollback() isn't called
             // between the moment when the statement is prepared and the moment
             // when it's executed.
-            synchronized (connection) {
-                String spName = connection.prepareSQL(this, sql, parameters, false, useCursor);
+            connection.getLock().lock();
+            try {
+                String spName = connection.prepareSQL(this, sql, parameters, false, useCursor, true);
                 return executeSQLQuery(sql, spName, parameters, useCursor);
+            } finally {
+                connection.getLock().unlock();
             }
         } else {
             return executeSQLQuery(sql, procName, parameters, useCursor);
@@ -1240,8 +1251,15 @@ public class JtdsPreparedStatement extends JtdsStatement implements PreparedStat
     @Override
     public void setAsciiStream(int parameterIndex, InputStream x)
             throws SQLException {
-        // TODO Auto-generated method stub
-        throw new AbstractMethodError();
+        if (x == null) {
+            setParameter(parameterIndex, null, java.sql.Types.LONGVARCHAR, 0, 0);
+        } else {
+            try {
+                setCharacterStream(parameterIndex, new InputStreamReader(x, "US-ASCII"));
+            } catch (UnsupportedEncodingException e) {
+                // Should never happen!
+            }
+        }
     }
 
     /* (non-Javadoc)
@@ -1256,8 +1274,8 @@ public class JtdsPreparedStatement extends JtdsStatement implements PreparedStat
             return;
         }
 
-        // TODO Auto-generated method stub
-        throw new AbstractMethodError();
+        // too long to be loaded into memory, send it in chunks
+        setAsciiStream(parameterIndex, x);
     }
 
     /* (non-Javadoc)
@@ -1266,8 +1284,14 @@ public class JtdsPreparedStatement extends JtdsStatement implements PreparedStat
     @Override
     public void setBinaryStream(int parameterIndex, InputStream x)
             throws SQLException {
-        // TODO Auto-generated method stub
-        throw new AbstractMethodError();
+        checkOpen();
+
+        if (x == null) {
+            setBytes(parameterIndex, null);
+        } else {
+            // unknown length, sent in PLP chunks if supported by the server
+            setParameter(parameterIndex, x, java.sql.Types.LONGVARBINARY, 0, -1);
+        }
     }
 
     /* (non-Javadoc)
@@ -1282,8 +1306,8 @@ public class JtdsPreparedStatement extends JtdsStatement implements PreparedStat
             return;
         }
 
-        // TODO Auto-generated method stub
-        throw new AbstractMethodError();
+        // too long to be loaded into memory, send it in chunks
+        setBinaryStream(parameterIndex, x);
     }
 
     /* (non-Javadoc)
@@ -1292,8 +1316,7 @@ public class JtdsPreparedStatement extends JtdsStatement implements PreparedStat
     @Override
     public void setBlob(int parameterIndex, InputStream inputStream)
             throws SQLException {
-        // TODO Auto-generated method stub
-        throw new AbstractMethodError();
+        setBinaryStream(parameterIndex, inputStream);
     }
 
     /* (non-Javadoc)
@@ -1302,8 +1325,7 @@ public class JtdsPreparedStatement extends JtdsStatement implements PreparedStat
     @Override
     public void setBlob(int parameterIndex, InputStream inputStream, long length)
             throws SQLException {
-        // TODO Auto-generated method stub
-        throw new AbstractMethodError();
+        setBinaryStream(parameterIndex, inputStream, length);
     }
 
     /* (non-Javadoc)
@@ -1312,8 +1334,12 @@ public class JtdsPreparedStatement extends JtdsStatement implements PreparedStat
     @Override
     public void setCharacterStream(int parameterIndex, Reader reader)
             throws SQLException {
-        // TODO Auto-generated method stub
-        throw new AbstractMethodError();
+        if (reader == null) {
+            setParameter(parameterIndex, null, java.sql.Types.LONGVARCHAR, 0, 0);
+        } else {
+            // unknown length, sent in PLP chunks if supported by the server
+            setParameter(parameterIndex, reader, java.sql.Types.LONGVARCHAR, 0, -1);
+        }
     }
 
     /* (non-Javadoc)
@@ -1328,8 +1354,8 @@ public class JtdsPreparedStatement extends JtdsStatement implements PreparedStat
             return;
         }
 
-        // TODO Auto-generated method stub
-        throw new AbstractMethodError();
+        // too long to be loaded into memory, send it in chunks
+        setCharacterStream(parameterIndex, reader);
     }
 
     /* (non-Javadoc)
@@ -1337,8 +1363,7 @@ public class JtdsPreparedStatement extends JtdsStatement implements PreparedStat
      */
     @Override
     public void setClob(int parameterIndex, Reader reader) throws SQLException {
-        // TODO Auto-generated method stub
-        throw new AbstractMethodError();
+        setCharacterStream(parameterIndex, reader);
     }
 
     /* (non-Javadoc)
@@ -1347,8 +1372,7 @@ public class JtdsPreparedStatement extends JtdsStatement implements PreparedStat
     @Override
     public void setClob(int parameterIndex, Reader reader, long length)
             throws SQLException {
-        // TODO Auto-generated method stub
-        throw new AbstractMethodError();
+        setCharacterStream(parameterIndex, reader, length);
     }
 
     /* (non-Javadoc)
@@ -112,6 +112,8 @@ public class JtdsResultSet implements ResultSet {
     protected String cursorName;
     /** Cache to optimize findColumn(String) lookups */
     private HashMap columnMap;
+    /** True if the current row is still being read from the server response. */
+    private boolean partialRow;
 
     /*
      * Private instance variables.
@@ -285,13 +287,48 @@ public class JtdsResultSet implements ResultSet {
             throw new SQLException(Messages.get("error.resultset.norow"), "24000");
         }
 
+        if (partialRow) {
+            statement.getTds().readColumn(index - 1);
+        }
+
         Object data = currentRow[index - 1];
 
+        if (data instanceof PlpValue) {
+            data = ((PlpValue) data).getValue();
+        }
+
         wasNull = data == null;
 
         return data;
     }
 
+    /**
+     * Get the specified column's value if it is still left in the server
+     * response, see the <code>streamLOBs</code> connection property.
+     *
+     * @param index the column index in the row
+     * @return the value or <code>null</code> if it has been read already
+     * @throws SQLException if the connection is closed
+     */
+    private PlpValue getPlpColumn(int index) throws SQLException {
+        checkOpen();
+
+        if (!partialRow || currentRow == null || index < 1 || index > columnCount) {
+            return null;
+        }
+
+        statement.getTds().readColumn(index - 1);
+
+        Object data = currentRow[index - 1];
+
+        if (data instanceof PlpValue) {
+            wasNull = false;
+            return (PlpValue) data;
+        }
+
+        return null;
+    }
+
     /**
      * Check that this connection is still open.
      *
@@ -381,11 +418,16 @@ public class JtdsResultSet implements ResultSet {
     }
 
     /**
-     * Retrieve the current row data.
+     * Retrieve the current row data, reading the rest of a partially read
+     * row from the server response.
      * @return The current row data as an <code>Object[]</code>.
      */
-    protected Object[] getCurrentRow()
+    protected Object[] getCurrentRow() throws SQLException
     {
+        if (partialRow) {
+            statement.getTds().completeRow();
+            partialRow = false;
+        }
         return currentRow;
     }
 
@@ -401,7 +443,7 @@ public class JtdsResultSet implements ResultSet {
             // Need to create local copy of currentRow
             // as this is currently a reference to the
             // row defined in TdsCore
-            currentRow = copyRow(currentRow);
+            currentRow = copyRow(getCurrentRow());
         }
         //
         // Now load the remaining result set rows into memory
@@ -608,12 +650,14 @@ public class JtdsResultSet implements ResultSet {
                 }
             } else {
                 // Need to read from server response
-                if (!statement.getTds().getNextRow()) {
+                if (!statement.getTds().getNextRow(true)) {
+                    partialRow = false;
                     statement.cacheResults();
                     pos = POS_AFTER_LAST;
                     currentRow = null;
                 } else {
                     currentRow = statement.getTds().getRowData();
+                    partialRow = !statement.getTds().isRowComplete();
                     pos++;
                     rowsInResult = pos;
                 }
@@ -663,6 +707,31 @@ public class JtdsResultSet implements ResultSet {
         return wasNull;
     }
 
+    /**
+     * Get the buffer holding the specified column's value as a primitive, see
+     * the <code>lazyRows</code> connection property.
+     *
+     * @param index the column index in the row
+     * @return the row buffer or <code>null</code> if the value has to be
+     *         retrieved by {@link #getColumn(int)}
+     * @throws SQLException if the connection is closed
+     */
+    private RowBuffer getPrimitiveColumn(int index) throws SQLException {
+        checkOpen();
+
+        if (!partialRow || currentRow == null || index < 1 || index > columnCount) {
+            return null;
+        }
+
+        RowBuffer row = statement.getTds().getPrimitiveRow(index - 1);
+
+        if (row != null) {
+            wasNull = row.isNull(index - 1);
+        }
+
+        return row;
+    }
+
     public byte getByte(int columnIndex) throws SQLException {
         return ((Integer) Support.convert(this, getColumn(columnIndex), java.sql.Types.TINYINT, null)).byteValue();
     }
@@ -672,10 +741,27 @@ public class JtdsResultSet implements ResultSet {
     }
 
     public int getInt(int columnIndex) throws SQLException {
+        RowBuffer row = getPrimitiveColumn(columnIndex);
+
+        if (row != null) {
+            long value = row.getLong(columnIndex - 1);
+
+            // values out of range fail the usual way
+            if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                return (int) value;
+            }
+        }
+
         return ((Integer) Support.convert(this, getColumn(columnIndex), java.sql.Types.INTEGER, null)).intValue();
     }
 
     public long getLong(int columnIndex) throws SQLException {
+        RowBuffer row = getPrimitiveColumn(columnIndex);
+
+        if (row != null) {
+            return row.getLong(columnIndex - 1);
+        }
+
         return ((Long) Support.convert(this, getColumn(columnIndex), java.sql.Types.BIGINT, null)).longValue();
     }
 
@@ -684,6 +770,12 @@ public class JtdsResultSet implements ResultSet {
     }
 
     public double getDouble(int columnIndex) throws SQLException {
+        RowBuffer row = getPrimitiveColumn(columnIndex);
+
+        if (row != null) {
+            return row.getDouble(columnIndex - 1);
+        }
+
         return ((Double) Support.convert(this, getColumn(columnIndex), java.sql.Types.DOUBLE, null)).doubleValue();
     }
 
@@ -794,6 +886,16 @@ public class JtdsResultSet implements ResultSet {
     }
 
     public InputStream getBinaryStream(int columnIndex) throws SQLException {
+        PlpValue plp = getPlpColumn(columnIndex);
+
+        if (plp != null) {
+            InputStream stream = plp.getBinaryStream();
+
+            if (stream != null) {
+                return stream;
+            }
+        }
+
         Blob blob = getBlob(columnIndex);
 
         if (blob == null) {
@@ -838,6 +940,16 @@ public class JtdsResultSet implements ResultSet {
     }
 
     public Reader getCharacterStream(int columnIndex) throws SQLException {
+        PlpValue plp = getPlpColumn(columnIndex);
+
+        if (plp != null) {
+            Reader reader = plp.getCharacterStream();
+
+            if (reader != null) {
+                return reader;
+            }
+        }
+
         Clob clob = getClob(columnIndex);
 
         if (clob == null) {
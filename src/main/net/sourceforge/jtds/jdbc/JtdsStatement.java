@@ -82,6 +82,8 @@ public class JtdsStatement implements java.sql.Statement
     static final int CLOSE_ALL_RESULTS = 3;
     static final int BOOLEAN = 16;
     static final int DATALINK = 70;
+    /** Table-valued parameter type, same value as used by the Microsoft driver. */
+    static final int STRUCTURED = -153;
     static final Integer SUCCESS_NO_INFO = new Integer(-2);
     static final Integer EXECUTE_FAILED = new Integer(-3);
     static final int DEFAULT_FETCH_SIZE = 100;
@@ -1077,13 +1079,16 @@ public class JtdsStatement implements java.sql.Statement
             // Lock the connection, making sure the batch executes atomically. This is especially important in the
             // case of prepared statement batches (where we don't want the prepares rolled back before being executed)
             // but should also provide some level of sanity in the general case.
-            synchronized (connection) {
+            connection.getLock().lock();
+            try {
                 if (connection.getServerType() == Driver.SYBASE
                     && connection.getTdsVersion() == Driver.TDS50) {
                     sqlEx = executeSybaseBatch(size, executeSize, counts);
                 } else {
                     sqlEx = executeMSBatch(size, executeSize, counts);
                 }
+            } finally {
+                connection.getLock().unlock();
             }
 
             // Ensure array is the same size as the original statement list
@@ -85,6 +85,16 @@ public class MSCursorResultSet extends JtdsResultSet {
      */
     private static final Integer SQL_ROW_DELETED = new Integer(2);
 
+    /**
+     * The approximate number of bytes an adaptive block of rows may grow to.
+     */
+    private static final int FETCH_BUDGET = 1024 * 1024;
+
+    /**
+     * The maximum number of rows of an adaptive block.
+     */
+    private static final int MAX_BLOCK_ROWS = 32768;
+
     /*
      * Instance variables.
      */
@@ -100,6 +110,12 @@ public class MSCursorResultSet extends JtdsResultSet {
     private int cursorPos;
     /** The cursor is being built asynchronously. */
     private boolean asyncCursor;
+    /** True if the next block of rows is requested before it is needed. */
+    private boolean prefetch;
+    /** True if a fetch of the block following the row cache is pending. */
+    private boolean prefetchPending;
+    /** The number of rows blocks may grow to, 0 if not adaptive. */
+    private int maxBlockSize;
 
     //
     // Fixed sp_XXX parameters
@@ -156,6 +172,17 @@ public class MSCursorResultSet extends JtdsResultSet {
             // Obtain a provisional row count for the result set
             cursorFetch(FETCH_REPEAT, 0);
         }
+
+        // Dynamic cursors cannot be repositioned absolutely, which is needed
+        // to discard a prefetched block, see cursorFetch()
+        prefetch = statement.connection.getCursorPrefetch()
+                && concurrency == ResultSet.CONCUR_READ_ONLY
+                && resultSetType != ResultSet.TYPE_SCROLL_SENSITIVE + 1
+                && !asyncCursor;
+
+        if (statement.connection.getAdaptiveFetch() && columns != null) {
+            maxBlockSize = getMaxBlockSize();
+        }
     }
 
     /**
@@ -352,6 +379,8 @@ public class MSCursorResultSet extends JtdsResultSet {
         TdsCore tds = statement.getTds();
         int prepareSql = statement.connection.getPrepareSql();
         Integer prepStmtHandle = null;
+        // Statement to prepare along with opening the cursor, if any
+        ProcEntry prepExec = tds.takePrepExec(ProcEntry.CURSOR);
 
         //
         // If this cursor is going to be a named forward only cursor
@@ -492,6 +521,7 @@ public class MSCursorResultSet extends JtdsResultSet {
         //
         // OK now open the Cursor
         //
+        int optParam = 2;
         if (prepareSql == TdsCore.PREPARE && prepStmtHandle != null) {
             // Use sp_cursorexecute approach
             procName = "sp_cursorexecute";
@@ -510,6 +540,27 @@ public class MSCursorResultSet extends JtdsResultSet {
             parameters[1] = pCursor;
             // Setup scroll options (mask off parameter flag)
             pScrollOpt.value = new Integer(scrollOpt & ~CURSOR_TYPE_PARAMETERIZED);
+        } else if (prepareSql == TdsCore.PREPARE && prepExec != null) {
+            // Use sp_cursorprepexec approach, returning a statement handle
+            // for later executions as well
+            procName = "sp_cursorprepexec";
+            if (parameters == null) {
+                parameters = new ParamInfo[7];
+                pParamDef = new ParamInfo(Types.LONGVARCHAR, "", ParamInfo.UNICODE);
+            } else {
+                ParamInfo[] params = new ParamInfo[7 + parameters.length];
+                System.arraycopy(parameters, 0, params, 7, parameters.length);
+                parameters = params;
+            }
+            // Setup statement handle param
+            parameters[0] = prepExec.sendPrepExec();
+            // Setup cursor handle param
+            parameters[1] = pCursor;
+            // Setup parameter definitions and statement params
+            parameters[2] = pParamDef;
+            parameters[3] = pSQL;
+            // The options follow
+            optParam = 4;
         } else {
             // Use sp_cursoropen approach
             procName = "sp_cursoropen";
@@ -527,11 +578,11 @@ public class MSCursorResultSet extends JtdsResultSet {
             parameters[1] = pSQL;
         }
         // Setup scroll options
-        parameters[2] = pScrollOpt;
+        parameters[optParam] = pScrollOpt;
         // Setup concurrency options
-        parameters[3] = pConCurOpt;
+        parameters[optParam + 1] = pConCurOpt;
         // Setup numRows parameter
-        parameters[4] = pRowCount;
+        parameters[optParam + 2] = pRowCount;
 
         tds.executeSQL(null, procName, parameters, false,
                 statement.getQueryTimeout(), statement.getMaxRows(),
@@ -669,6 +720,112 @@ public class MSCursorResultSet extends JtdsResultSet {
 
         statement.clearWarnings();
 
+        if (prefetchPending) {
+            prefetchPending = false;
+
+            if (fetchType == FETCH_NEXT && pos == cursorPos + rowCache.length) {
+                // The block following the row cache has been requested already
+                tds.waitForResponse(statement.getQueryTimeout());
+                return loadRows(tds, fetchType);
+            }
+
+            // Discard the prefetched block. The server is positioned on it
+            // but the other fetch types are relative to the row cache, so
+            // fetch the row cache again unless the cursor is forward only.
+            tds.clearResponseQueue();
+            statement.getMessages().checkErrors();
+
+            if (resultSetType != ResultSet.TYPE_FORWARD_ONLY
+                    && fetchType != FETCH_FIRST
+                    && fetchType != FETCH_LAST
+                    && fetchType != FETCH_ABSOLUTE) {
+                requestRows(tds, FETCH_ABSOLUTE, cursorPos, true);
+                loadRows(tds, FETCH_REPEAT);
+            }
+        }
+
+        requestRows(tds, fetchType, rowNum, true);
+        return loadRows(tds, fetchType);
+    }
+
+    /**
+     * Request the next block of rows if the result set has moved past the
+     * middle of the row cache, see the <code>cursorPrefetch</code>
+     * connection property. The response is left in the network buffers and
+     * read by {@link #cursorFetch} once the row cache has been read.
+     *
+     * @throws SQLException if an error occurs
+     */
+    private void prefetchRows() throws SQLException {
+        if (prefetchPending
+                || pos - cursorPos < rowCache.length / 2
+                // A partial block is the last one
+                || rowCache[rowCache.length - 1] == null) {
+            return;
+        }
+
+        requestRows(statement.getTds(), FETCH_NEXT, 0, false);
+        prefetchPending = true;
+    }
+
+    /**
+     * Determine the number of rows to fetch. Without the
+     * <code>adaptiveFetch</code> connection property this is the fetch size.
+     * Otherwise the block size doubles with each block read completely with
+     * <code>next()</code>, up to {@link #maxBlockSize}, and reverts to the
+     * fetch size as soon as the result set is positioned any other way.
+     *
+     * @param fetchType The type of fetch requested.
+     * @return the number of rows to fetch
+     */
+    private int getBlockSize(Integer fetchType) {
+        int size = rowCache.length;
+
+        if (maxBlockSize == 0 || size < fetchSize) {
+            // Not adaptive or the fetch size has been increased
+            return fetchSize;
+        }
+
+        if (fetchType == FETCH_NEXT) {
+            // Only grow once a complete block has been read
+            if (cursorPos > 0 && rowCache[size - 1] != null) {
+                return Math.max(fetchSize, Math.min(size * 2, maxBlockSize));
+            }
+            return size;
+        }
+
+        // Refreshing keeps the block, random access shrinks it
+        return (fetchType == FETCH_REPEAT) ? size : fetchSize;
+    }
+
+    /**
+     * Estimate the number of rows that fit into {@link #FETCH_BUDGET} from
+     * the column sizes, counting large values as a page of data.
+     *
+     * @return the maximum number of rows of an adaptive block
+     */
+    private int getMaxBlockSize() {
+        int rowSize = 0;
+        for (int i = 0; i < columns.length; i++) {
+            // The value plus its length prefix
+            rowSize += Math.min(Math.max(columns[i].bufferSize, 1), 8000) + 2;
+        }
+        return Math.max(1, Math.min(MAX_BLOCK_ROWS, FETCH_BUDGET / rowSize));
+    }
+
+    /**
+     * Send a sp_cursorfetch request followed by a request for the cursor
+     * position and row count.
+     *
+     * @param tds the <code>TdsCore</code> instance
+     * @param fetchType The type of fetch eg FETCH_ABSOLUTE.
+     * @param rowNum The row number to fetch.
+     * @param wait <code>false</code> to return as soon as the request has
+     *        been sent, without waiting for the response
+     * @throws SQLException if an error occurs
+     */
+    private void requestRows(TdsCore tds, Integer fetchType, int rowNum, boolean wait)
+            throws SQLException {
         if (fetchType != FETCH_ABSOLUTE && fetchType != FETCH_RELATIVE) {
             rowNum = 1;
         }
@@ -684,15 +841,16 @@ public class MSCursorResultSet extends JtdsResultSet {
         // Setup rownum
         PARAM_ROWNUM_IN.value = new Integer(rowNum);
         param[2] = PARAM_ROWNUM_IN;
-        // Setup numRows parameter
-        if (((Integer) PARAM_NUMROWS_IN.value).intValue() != fetchSize) {
-            // If the fetch size changed, update the parameter and cache size
-            PARAM_NUMROWS_IN.value = new Integer(fetchSize);
-            rowCache = new Object[fetchSize][];
+        // Setup numRows parameter, the row cache is resized by loadRows()
+        // as a prefetched block must not replace the rows still being read
+        int blockSize = getBlockSize(fetchType);
+        if (((Integer) PARAM_NUMROWS_IN.value).intValue() != blockSize) {
+            PARAM_NUMROWS_IN.value = new Integer(blockSize);
         }
         param[3] = PARAM_NUMROWS_IN;
 
-        synchronized (tds) {
+        tds.getLock().lock();
+        try {
             // No meta data, no timeout (we're not sending it yet), no row
             // limit, don't send yet
             tds.executeSQL(null, "sp_cursorfetch", param, true, 0, 0,
@@ -709,10 +867,34 @@ public class MSCursorResultSet extends JtdsResultSet {
             PARAM_NUMROWS_OUT.clearOutValue();
             param[3] = PARAM_NUMROWS_OUT;
 
-            // No meta data, use the statement timeout, leave max rows as it is
-            // (no limit), leave max field size as it is, send now
-            tds.executeSQL(null, "sp_cursorfetch", param, true,
-                    statement.getQueryTimeout(), -1, -1, true);
+            if (wait) {
+                // No meta data, use the statement timeout, leave max rows as
+                // it is (no limit), leave max field size as it is, send now
+                tds.executeSQL(null, "sp_cursorfetch", param, true,
+                        statement.getQueryTimeout(), -1, -1, true);
+            } else {
+                // The timeout applies when the response is awaited
+                tds.sendSQL(null, "sp_cursorfetch", param, true, -1, -1);
+            }
+        } finally {
+            tds.getLock().unlock();
+        }
+    }
+
+    /**
+     * Load the rows returned by a request sent by {@link #requestRows}.
+     *
+     * @param tds the <code>TdsCore</code> instance
+     * @param fetchType The type of fetch requested.
+     * @return <code>boolean</code> true if a result set row is returned.
+     * @throws SQLException if an error occurs
+     */
+    private boolean loadRows(TdsCore tds, Integer fetchType)
+            throws SQLException {
+        // If the block size changed, update the cache size
+        int blockSize = ((Integer) PARAM_NUMROWS_IN.value).intValue();
+        if (rowCache.length != blockSize) {
+            rowCache = new Object[blockSize][];
         }
 
         // Load rows
@@ -830,7 +1012,8 @@ public class MSCursorResultSet extends JtdsResultSet {
             }
         }
 
-        synchronized (tds) {
+        tds.getLock().lock();
+        try {
             // With meta data (we're not expecting any ResultSets), no timeout
             // (because we're not sending the request yet), don't alter max
             // rows, don't alter max field size, don't send yet
@@ -856,6 +1039,8 @@ public class MSCursorResultSet extends JtdsResultSet {
             // don't alter max rows, don't alter max field size, send now
             tds.executeSQL(null, "sp_cursorfetch", param, true,
                     statement.getQueryTimeout(), -1, -1, true);
+        } finally {
+            tds.getLock().unlock();
         }
 
         // Consume the sp_cursor response
@@ -911,6 +1096,15 @@ public class MSCursorResultSet extends JtdsResultSet {
         tds.clearResponseQueue();
         SQLException ex = statement.getMessages().exceptions;
 
+        if (concurrency == ResultSet.CONCUR_READ_ONLY
+                && statement.connection.deferCleanup("sp_cursorclose",
+                                                     PARAM_CURSOR_HANDLE.value)) {
+            // A read only cursor holds no locks, it is closed along with the
+            // next request sent on the connection
+            statement.getMessages().checkErrors();
+            return;
+        }
+
         ParamInfo param[] = new ParamInfo[1];
 
         // Setup cursor handle param
@@ -1012,6 +1206,9 @@ public class MSCursorResultSet extends JtdsResultSet {
 
     public void close() throws SQLException {
         if (!closed) {
+            // A pending prefetch is discarded along with the rest of the output
+            prefetchPending = false;
+
             try {
                 if (!statement.getConnection().isClosed()) {
                     cursorClose();
@@ -1133,11 +1330,15 @@ public class MSCursorResultSet extends JtdsResultSet {
         checkOpen();
 
         ++pos;
-        if (getCurrentRow() == null) {
-            return cursorFetch(FETCH_NEXT, 0);
-        } else {
-            return true;
+        if (getCurrentRow() == null && !cursorFetch(FETCH_NEXT, 0)) {
+            return false;
         }
+
+        if (prefetch) {
+            prefetchRows();
+        }
+
+        return true;
     }
 
     public boolean previous() throws SQLException {
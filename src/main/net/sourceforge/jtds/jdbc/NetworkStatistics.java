@@ -0,0 +1,395 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import net.sourceforge.jtds.util.Logger;
+
+/**
+ * Network I/O counters of a connection, see
+ * {@link JtdsConnection#getNetworkStatistics()}.
+ * <p>
+ * Each connection records its traffic in its own instance, which forwards all
+ * figures to the driver-wide instance returned by {@link #getGlobal()}. The
+ * driver-wide figures are available through JMX as well, see
+ * {@link NetworkStatisticsMBean}.
+ * </p>
+ * Besides the bytes and packets transferred, the counters show how well the
+ * network packets are used, how much data had to be buffered for statements
+ * other than the one reading from the network, how long statements waited for
+ * the server to answer and how long cancel requests took to be acknowledged.
+ */
+public final class NetworkStatistics implements NetworkStatisticsMBean
+{
+
+   /**
+    * domain and type of the name the driver-wide statistics are registered
+    * with, see {@link #getObjectName()}
+    */
+   public static final String             OBJECT_NAME = "net.sourceforge.jtds:type=NetworkStatistics";
+
+   /**
+    * the driver-wide statistics
+    */
+   private static final NetworkStatistics _Global     = new NetworkStatistics( null );
+
+   /**
+    * the name the driver-wide statistics are registered with, unique to the
+    * class loader of the driver, so that the driver can be loaded by several
+    * applications (or again after redeploying one) at the same time
+    */
+   private static final String            _Name       = OBJECT_NAME + ",loader=" + Integer.toHexString( System.identityHashCode( NetworkStatistics.class.getClassLoader() ) );
+
+   static
+   {
+      try
+      {
+         ManagementFactory.getPlatformMBeanServer().registerMBean( _Global, getObjectName() );
+      }
+      catch( JMException e )
+      {
+         Logger.logException( e );
+      }
+      catch( SecurityException e )
+      {
+         // not allowed to register MBeans, statistics remain available through the API
+      }
+   }
+
+   /**
+    * Retrieves the name the driver-wide statistics are registered with on
+    * the platform MBean server, {@link #OBJECT_NAME} with a
+    * <code>loader</code> key identifying the class loader of the driver.
+    */
+   public static ObjectName getObjectName()
+      throws MalformedObjectNameException
+   {
+      return new ObjectName( _Name );
+   }
+
+   /**
+    * Unregisters the driver-wide statistics from the platform MBean server,
+    * called when the driver is deregistered from the
+    * <code>DriverManager</code> so that the MBean server no longer keeps the
+    * class loader of the driver alive.
+    */
+   static void unregister()
+   {
+      try
+      {
+         ManagementFactory.getPlatformMBeanServer().unregisterMBean( getObjectName() );
+      }
+      catch( InstanceNotFoundException e )
+      {
+         // never registered or already unregistered
+      }
+      catch( JMException e )
+      {
+         Logger.logException( e );
+      }
+      catch( SecurityException e )
+      {
+         // not allowed to unregister MBeans
+      }
+   }
+
+   /**
+    * the driver-wide statistics, <code>null</code> for the driver-wide
+    * statistics themselves
+    */
+   private final NetworkStatistics        _Parent;
+
+   /**
+    * negotiated network packet size of the connection, 0 if unknown
+    */
+   private volatile int                   _PacketSize;
+
+   /**
+    * bytes sent
+    */
+   private final AtomicLong               _BytesSent     = new AtomicLong();
+
+   /**
+    * packets sent
+    */
+   private final AtomicLong               _PacketsSent   = new AtomicLong();
+
+   /**
+    * bytes received
+    */
+   private final AtomicLong               _BytesReceived = new AtomicLong();
+
+   /**
+    * packets received
+    */
+   private final AtomicLong               _PacketsRecv   = new AtomicLong();
+
+   /**
+    * sum of the network packet sizes of all packets sent and received
+    */
+   private final AtomicLong               _Capacity      = new AtomicLong();
+
+   /**
+    * packets buffered in memory
+    */
+   private final AtomicLong               _MemoryQueued  = new AtomicLong();
+
+   /**
+    * packets buffered to disk
+    */
+   private final AtomicLong               _DiskQueued    = new AtomicLong();
+
+   /**
+    * bytes buffered to disk
+    */
+   private final AtomicLong               _Spilled       = new AtomicLong();
+
+   /**
+    * number of responses waited for
+    */
+   private final AtomicLong               _Waits         = new AtomicLong();
+
+   /**
+    * time waited for the first packet of responses, in nanoseconds
+    */
+   private final AtomicLong               _WaitTime      = new AtomicLong();
+
+   /**
+    * cancel requests sent
+    */
+   private final AtomicLong               _Cancels       = new AtomicLong();
+
+   /**
+    * time between sending cancel requests and reading their acknowledgement,
+    * in nanoseconds
+    */
+   private final AtomicLong               _CancelTime    = new AtomicLong();
+
+   /**
+    * Retrieves the driver-wide statistics, the sum of all connections.
+    */
+   public static NetworkStatistics getGlobal()
+   {
+      return _Global;
+   }
+
+   /**
+    * Creates new statistics.
+    *
+    * @param parent
+    *    the statistics to forward all figures to, <code>null</code> for the
+    *    driver-wide statistics only
+    */
+   NetworkStatistics( NetworkStatistics parent )
+   {
+      _Parent = parent;
+   }
+
+   /**
+    * Sets the network packet size used to compute the fill ratio of received
+    * packets.
+    *
+    * @param size
+    *    the negotiated network packet size
+    */
+   void setPacketSize( int size )
+   {
+      _PacketSize = size;
+   }
+
+   /**
+    * Records a TDS packet sent to the server.
+    *
+    * @param length
+    *    the length of the packet, including its header
+    *
+    * @param capacity
+    *    the size of the packet buffer
+    */
+   void recordSent( int length, int capacity )
+   {
+      for( NetworkStatistics stats = this; stats != null; stats = stats._Parent )
+      {
+         stats._BytesSent.addAndGet( length );
+         stats._PacketsSent.incrementAndGet();
+         stats._Capacity.addAndGet( capacity );
+      }
+   }
+
+   /**
+    * Records a TDS packet received from the server.
+    *
+    * @param length
+    *    the length of the packet, including its header
+    */
+   void recordReceived( int length )
+   {
+      int capacity = Math.max( length, _PacketSize );
+
+      for( NetworkStatistics stats = this; stats != null; stats = stats._Parent )
+      {
+         stats._BytesReceived.addAndGet( length );
+         stats._PacketsRecv.incrementAndGet();
+         stats._Capacity.addAndGet( capacity );
+      }
+   }
+
+   /**
+    * Records a packet buffered in memory for another statement.
+    */
+   void recordQueuedInMemory()
+   {
+      for( NetworkStatistics stats = this; stats != null; stats = stats._Parent )
+      {
+         stats._MemoryQueued.incrementAndGet();
+      }
+   }
+
+   /**
+    * Records a packet buffered to disk for another statement.
+    *
+    * @param length
+    *    the number of bytes written to disk
+    */
+   void recordQueuedOnDisk( int length )
+   {
+      for( NetworkStatistics stats = this; stats != null; stats = stats._Parent )
+      {
+         stats._DiskQueued.incrementAndGet();
+         stats._Spilled.addAndGet( length );
+      }
+   }
+
+   /**
+    * Records the time a statement waited for the first packet of a response.
+    *
+    * @param nanos
+    *    the time waited in nanoseconds
+    */
+   void recordWait( long nanos )
+   {
+      for( NetworkStatistics stats = this; stats != null; stats = stats._Parent )
+      {
+         stats._Waits.incrementAndGet();
+         stats._WaitTime.addAndGet( nanos );
+      }
+   }
+
+   /**
+    * Records a cancel request sent to the server.
+    */
+   void recordCancel()
+   {
+      for( NetworkStatistics stats = this; stats != null; stats = stats._Parent )
+      {
+         stats._Cancels.incrementAndGet();
+      }
+   }
+
+   /**
+    * Records the acknowledgement of a cancel request.
+    *
+    * @param nanos
+    *    the time since the cancel request was sent in nanoseconds
+    */
+   void recordCancelAck( long nanos )
+   {
+      for( NetworkStatistics stats = this; stats != null; stats = stats._Parent )
+      {
+         stats._CancelTime.addAndGet( nanos );
+      }
+   }
+
+   public long getBytesSent()
+   {
+      return _BytesSent.get();
+   }
+
+   public long getPacketsSent()
+   {
+      return _PacketsSent.get();
+   }
+
+   public long getBytesReceived()
+   {
+      return _BytesReceived.get();
+   }
+
+   public long getPacketsReceived()
+   {
+      return _PacketsRecv.get();
+   }
+
+   public double getAverageFillRatio()
+   {
+      long capacity = _Capacity.get();
+      return capacity == 0 ? 0 : (double) ( _BytesSent.get() + _BytesReceived.get() ) / capacity;
+   }
+
+   public long getPacketsQueuedInMemory()
+   {
+      return _MemoryQueued.get();
+   }
+
+   public long getPacketsQueuedOnDisk()
+   {
+      return _DiskQueued.get();
+   }
+
+   public long getSpilledBytes()
+   {
+      return _Spilled.get();
+   }
+
+   public long getResponseWaitCount()
+   {
+      return _Waits.get();
+   }
+
+   public long getResponseWaitTime()
+   {
+      return TimeUnit.NANOSECONDS.toMillis( _WaitTime.get() );
+   }
+
+   public long getCancelCount()
+   {
+      return _Cancels.get();
+   }
+
+   public long getCancelTime()
+   {
+      return TimeUnit.NANOSECONDS.toMillis( _CancelTime.get() );
+   }
+
+   public String toString()
+   {
+      return "NetworkStatistics[sent=" + _PacketsSent.get() + " packets/" + _BytesSent.get() + " bytes, received="
+           + _PacketsRecv.get() + " packets/" + _BytesReceived.get() + " bytes, fill=" + Math.round( getAverageFillRatio() * 100 )
+           + "%, queued=" + _MemoryQueued.get() + " in memory/" + _DiskQueued.get() + " on disk, waits=" + _Waits.get()
+           + "/" + getResponseWaitTime() + " ms, cancels=" + _Cancels.get() + "/" + getCancelTime() + " ms]";
+   }
+
+}
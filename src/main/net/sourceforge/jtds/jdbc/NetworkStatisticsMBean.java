@@ -0,0 +1,95 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+/**
+ * Management interface of {@link NetworkStatistics}, the driver-wide
+ * statistics are registered with the platform MBean server as
+ * <code>net.sourceforge.jtds:type=NetworkStatistics,loader=&lt;id&gt;</code>,
+ * see {@link NetworkStatistics#getObjectName()}, until the driver is
+ * deregistered from the <code>DriverManager</code>.
+ */
+public interface NetworkStatisticsMBean
+{
+
+   /**
+    * Retrieves the number of bytes sent, including packet headers.
+    */
+   long getBytesSent();
+
+   /**
+    * Retrieves the number of TDS packets sent.
+    */
+   long getPacketsSent();
+
+   /**
+    * Retrieves the number of bytes received, including packet headers.
+    */
+   long getBytesReceived();
+
+   /**
+    * Retrieves the number of TDS packets received.
+    */
+   long getPacketsReceived();
+
+   /**
+    * Retrieves the average ratio of packet length to network packet size of
+    * all packets sent and received, between 0 and 1.
+    */
+   double getAverageFillRatio();
+
+   /**
+    * Retrieves the number of packets buffered in memory because they belong
+    * to another statement than the one reading from the network.
+    */
+   long getPacketsQueuedInMemory();
+
+   /**
+    * Retrieves the number of packets buffered to disk because they belong to
+    * another statement than the one reading from the network.
+    */
+   long getPacketsQueuedOnDisk();
+
+   /**
+    * Retrieves the number of bytes buffered to disk.
+    */
+   long getSpilledBytes();
+
+   /**
+    * Retrieves the number of responses waited for.
+    */
+   long getResponseWaitCount();
+
+   /**
+    * Retrieves the total time in milliseconds statements were blocked waiting
+    * for the first packet of a response.
+    */
+   long getResponseWaitTime();
+
+   /**
+    * Retrieves the number of cancel requests sent.
+    */
+   long getCancelCount();
+
+   /**
+    * Retrieves the total time in milliseconds between sending cancel requests
+    * and reading their acknowledgements.
+    */
+   long getCancelTime();
+
+}
@@ -0,0 +1,204 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded pool of network packet buffers.
+ * <p>
+ * All pooled buffers have the same length, the network packet size the pool
+ * has been created for. Requests for larger buffers are served by allocating
+ * a new array, such buffers are silently dropped when they are returned.
+ * </p>
+ * The pool is lock-free, idle buffers are kept in a fixed number of slots
+ * that are claimed and filled by atomic operations, so acquiring or releasing
+ * a buffer never allocates memory.
+ * <p>
+ * A connection either uses a pool of its own or one of the driver-wide pools
+ * returned by {@link #getSharedPool(int)}, one per packet size.
+ * </p>
+ */
+final class PacketBufferPool
+{
+
+   /**
+    * maximum number of idle buffers kept by a driver-wide pool
+    */
+   static final int                                       SHARED_CAPACITY = 256;
+
+   /**
+    * driver-wide pools, one per packet size
+    */
+   private static final ConcurrentMap<Integer,PacketBufferPool> _SharedPools = new ConcurrentHashMap<Integer,PacketBufferPool>();
+
+   /**
+    * length of the pooled buffers
+    */
+   private final int                                      _BufferSize;
+
+   /**
+    * slots holding the idle buffers, <code>null</code> if empty
+    */
+   private final AtomicReferenceArray<byte[]>             _Slots;
+
+   /**
+    * approximate number of idle buffers, used to avoid scanning an empty pool
+    */
+   private final AtomicInteger                            _Idle           = new AtomicInteger();
+
+   /**
+    * Retrieves the driver-wide pool for the given packet size.
+    *
+    * @param bufferSize
+    *    the network packet size
+    *
+    * @return
+    *    the shared pool for buffers of the given size
+    */
+   static PacketBufferPool getSharedPool( int bufferSize )
+   {
+      PacketBufferPool pool = _SharedPools.get( bufferSize );
+
+      if( pool == null )
+      {
+         pool = new PacketBufferPool( bufferSize, SHARED_CAPACITY );
+         PacketBufferPool existing = _SharedPools.putIfAbsent( bufferSize, pool );
+         pool = existing != null ? existing : pool;
+      }
+
+      return pool;
+   }
+
+   /**
+    * Creates a new pool.
+    *
+    * @param bufferSize
+    *    the length of the pooled buffers, usually the network packet size
+    *
+    * @param capacity
+    *    the maximum number of idle buffers to keep
+    */
+   PacketBufferPool( int bufferSize, int capacity )
+   {
+      _BufferSize = bufferSize;
+      _Slots      = new AtomicReferenceArray<byte[]>( Math.max( 1, capacity ) );
+   }
+
+   /**
+    * Retrieves the length of the buffers managed by this pool.
+    */
+   int getBufferSize()
+   {
+      return _BufferSize;
+   }
+
+   /**
+    * Retrieves a buffer that is at least <code>length</code> bytes large. The
+    * content of the returned buffer is undefined.
+    *
+    * @param length
+    *    the minimum length of the buffer
+    *
+    * @return
+    *    an idle buffer from the pool or a newly allocated one
+    */
+   byte[] acquire( int length )
+   {
+      if( length > _BufferSize )
+      {
+         return new byte[length];
+      }
+
+      if( _Idle.get() > 0 )
+      {
+         int slots = _Slots.length();
+         int start = probe( slots );
+
+         for( int i = 0; i < slots; i ++ )
+         {
+            int    slot   = ( start + i ) % slots;
+            byte[] buffer = _Slots.get( slot );
+
+            if( buffer != null && _Slots.compareAndSet( slot, buffer, null ) )
+            {
+               _Idle.decrementAndGet();
+               return buffer;
+            }
+         }
+      }
+
+      return new byte[_BufferSize];
+   }
+
+   /**
+    * Returns a buffer to the pool. Buffers not matching the pool's buffer size
+    * and buffers exceeding the pool's capacity are dropped.
+    *
+    * @param buffer
+    *    the buffer to return, may be <code>null</code>
+    */
+   void release( byte[] buffer )
+   {
+      if( buffer == null || buffer.length != _BufferSize )
+      {
+         return;
+      }
+
+      int slots = _Slots.length();
+
+      if( _Idle.get() >= slots )
+      {
+         return;
+      }
+
+      int start = probe( slots );
+
+      for( int i = 0; i < slots; i ++ )
+      {
+         int slot = ( start + i ) % slots;
+
+         if( _Slots.get( slot ) == null && _Slots.compareAndSet( slot, null, buffer ) )
+         {
+            _Idle.incrementAndGet();
+            return;
+         }
+      }
+   }
+
+   /**
+    * Retrieves the number of idle buffers currently held by this pool.
+    */
+   int getIdleCount()
+   {
+      return _Idle.get();
+   }
+
+   /**
+    * Computes the slot to start scanning at, spreading concurrent threads over
+    * the slots of the pool.
+    */
+   private static int probe( int slots )
+   {
+      return (int) ( ( Thread.currentThread().getId() & 0x7FFFFFFF ) % slots );
+   }
+
+}
@@ -18,6 +18,7 @@
 package net.sourceforge.jtds.jdbc;
 
 import java.sql.SQLException;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
@@ -56,7 +57,7 @@ class ParamInfo implements Cloneable {
     int precision = -1;
     /** Parameter decimal scale */
     int scale = -1;
-    /** Length of InputStream */
+    /** Length of InputStream, -1 if unknown */
     int length = -1;
     /** Parameter is an output parameter */
     boolean isOutput;
@@ -74,6 +75,10 @@ class ParamInfo implements Cloneable {
     boolean isSetOut;
     /** OUT Parameter value. */
     Object outValue;
+    /** Converted rows of a table-valued parameter. */
+    Object[][] tableRows;
+    /** Stream of unknown length sent in PLP chunks. */
+    boolean isPlp;
 
     /**
      * Construct a parameter with parameter marker offset.
@@ -251,12 +256,24 @@ class ParamInfo implements Cloneable {
      * Load a byte array from an InputStream
      *
      * @param in The InputStream to read from.
-     * @param length The length of the stream.
+     * @param length The length of the stream, -1 if unknown.
      * @return The data as a <code>byte[]</code>.
      * @throws IOException
      */
     private static byte[] loadFromStream(InputStream in, int length)
         throws IOException {
+        if (length < 0) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            int res;
+
+            while ((res = in.read(buf)) != -1) {
+                out.write(buf, 0, res);
+            }
+
+            return out.toByteArray();
+        }
+
         byte[] buf = new byte[length];
 
         int pos = 0, res;
@@ -280,12 +297,24 @@ class ParamInfo implements Cloneable {
      * Create a String from a Reader stream.
      *
      * @param in The Reader object with the data.
-     * @param length Number of characters to read.
+     * @param length Number of characters to read, -1 if unknown.
      * @return The data as a <code>String</code>.
      * @throws IOException
      */
     private static String loadFromReader(Reader in, int length)
         throws IOException {
+        if (length < 0) {
+            StringBuilder out = new StringBuilder();
+            char[] buf = new char[1024];
+            int res;
+
+            while ((res = in.read(buf)) != -1) {
+                out.append(buf, 0, res);
+            }
+
+            return out.toString();
+        }
+
         char[] buf = new char[length];
 
         int pos = 0, res;
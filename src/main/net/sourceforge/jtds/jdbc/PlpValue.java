@@ -0,0 +1,248 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * A varchar(max), nvarchar(max), xml or varbinary(max) value left in the
+ * server response, see the <code>streamLOBs</code> connection property.
+ * <p>
+ * If the row containing the value is read by a forward-only, read-only
+ * result set, {@link TdsCore} stops reading the row at the value and the
+ * value can be read as a stream straight from the network. The value is
+ * loaded the usual way if it is accessed in any other way or if a column
+ * following it is accessed, and it is discarded if the result set moves to
+ * the next row without accessing it.
+ * </p>
+ * Once the stream has been handed out the value cannot be accessed again.
+ */
+final class PlpValue
+{
+
+   /**
+    * the value has not been accessed yet, the response stream is
+    * positioned at its data
+    */
+   private static final int     PENDING   = 0;
+
+   /**
+    * the value is being read as a stream
+    */
+   private static final int     STREAMING = 1;
+
+   /**
+    * the value has been loaded
+    */
+   private static final int     LOADED    = 2;
+
+   /**
+    * the value has been skipped
+    */
+   private static final int     DISCARDED = 3;
+
+   private final JtdsConnection _Connection;
+
+   private final ColInfo        _Column;
+
+   /**
+    * the total length of the value, -2 if unknown
+    */
+   private final long           _Length;
+
+   /**
+    * the chunks of the value, see {@link ResponseStream#getPlpInputStream()}
+    */
+   private final InputStream    _Data;
+
+   private int                  _State;
+
+   /**
+    * the loaded value, a <code>BlobImpl</code> or <code>ClobImpl</code>
+    */
+   private Object               _Value;
+
+   /**
+    * Creates a value positioned at the data of a PLP column.
+    *
+    * @param connection
+    *    the connection the value is read through
+    *
+    * @param column
+    *    the column descriptor
+    *
+    * @param length
+    *    the total length of the value, -2 if unknown
+    *
+    * @param data
+    *    the chunks of the value
+    */
+   PlpValue( JtdsConnection connection, ColInfo column, long length, InputStream data )
+   {
+      _Connection = connection;
+      _Column     = column;
+      _Length     = length;
+      _Data       = data;
+   }
+
+   /**
+    * Determines whether values of a column can be streamed, i.e. whether the
+    * column is of a max type mapped to a LOB.
+    */
+   static boolean isStreamable( ColInfo column )
+   {
+      return column.isPlp && ( column.jdbcType == Types.BLOB || column.jdbcType == Types.CLOB );
+   }
+
+   /**
+    * Retrieves the binary value of a varbinary(max) column as a stream read
+    * straight from the network, if the value has not been accessed yet.
+    *
+    * @return
+    *    the stream or <code>null</code> if the value has already been loaded
+    */
+   InputStream getBinaryStream()
+      throws SQLException
+   {
+      if( _State == LOADED || _Column.jdbcType != Types.BLOB )
+      {
+         return null;
+      }
+
+      checkPending();
+      _State = STREAMING;
+      return _Data;
+   }
+
+   /**
+    * Retrieves the value of a character column as a stream read straight
+    * from the network, if the value has not been accessed yet.
+    *
+    * @return
+    *    the stream or <code>null</code> if the value has already been loaded
+    */
+   Reader getCharacterStream()
+      throws SQLException
+   {
+      if( _State == LOADED || _Column.jdbcType != Types.CLOB )
+      {
+         return null;
+      }
+
+      checkPending();
+
+      // varchar(max) is sent in the column's charset, nvarchar(max) and xml as UCS-2
+      String charset = TdsData.getPlpCharset( _Connection, _Column );
+
+      try
+      {
+         Reader reader = new InputStreamReader( _Data, charset );
+         _State = STREAMING;
+         return reader;
+      }
+      catch( UnsupportedEncodingException e )
+      {
+         throw new SQLException( Messages.get( "error.charset.invalid", "?", charset ), "2C000" );
+      }
+   }
+
+   /**
+    * Retrieves the value, loading it from the network if it has not been
+    * accessed yet.
+    *
+    * @return
+    *    the value as <code>BlobImpl</code> or <code>ClobImpl</code>
+    */
+   Object getValue()
+      throws SQLException
+   {
+      if( _State != LOADED )
+      {
+         checkPending();
+
+         try
+         {
+            load();
+         }
+         catch( IOException e )
+         {
+            _Connection.setClosed();
+            throw Support.linkException( new SQLException( Messages.get( "error.generic.ioerror", e.getMessage() ), "08S01" ), e );
+         }
+      }
+
+      return _Value;
+   }
+
+   /**
+    * Moves the response stream past the value, loading the value if it has
+    * not been accessed yet and <code>keep</code> is set.
+    *
+    * @param keep
+    *    whether the value may still be accessed
+    */
+   void finish( boolean keep )
+      throws IOException
+   {
+      if( _State == PENDING && keep )
+      {
+         load();
+         return;
+      }
+
+      if( _State != LOADED )
+      {
+         byte[] buffer = new byte[1024];
+
+         while( _Data.read( buffer, 0, buffer.length ) != -1 )
+         {
+            // skip the rest of the value
+         }
+
+         _State = DISCARDED;
+      }
+   }
+
+   public String toString()
+   {
+      return "PlpValue[" + _Column.name + ", " + ( _Length < 0 ? "unknown length" : _Length + " bytes" ) + ']';
+   }
+
+   private void load()
+      throws IOException
+   {
+      _Value = TdsData.readPlpValue( _Connection, _Column, _Length, _Data );
+      _State = LOADED;
+   }
+
+   private void checkPending()
+      throws SQLException
+   {
+      if( _State != PENDING )
+      {
+         throw new SQLException( Messages.get( "error.resultset.plpconsumed", _Column.name ), "HY010" );
+      }
+   }
+
+}
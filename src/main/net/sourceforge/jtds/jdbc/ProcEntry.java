@@ -17,6 +17,9 @@
 //
 package net.sourceforge.jtds.jdbc;
 
+import java.sql.Types;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Stores information about a cached stored procedure or statement handle.
  *
@@ -40,18 +43,66 @@ public class ProcEntry {
     private ParamInfo[] paramMetaData;
     /** Type of statement referenced by this entry. */
     private int type;
-    /** Usage count for this statement. */
-    private int refCount;
+    /** Usage count of an entry evicted from the statement cache. */
+    private static final int EVICTED = -1;
+
+    /** Usage count for this statement or {@link #EVICTED}. */
+    private final AtomicInteger refCount = new AtomicInteger();
+    /** Output parameter receiving the handle from a prepare on execution. */
+    private ParamInfo prepExecHandle;
+    /** True once the prepare on execution has been sent. */
+    private boolean prepExecSent;
 
     /**
      * Retrieves the procedure or handle name.
+     * <p>
+     * If the statement is prepared along with its first execution the handle
+     * is only available once the output parameters of that execution have
+     * been processed, until then the name is <code>null</code>.
      *
      * @return the statement or handle name as a <code>String</code>
      */
     public final String toString() {
+        if (name == null && prepExecHandle != null && prepExecHandle.isSetOut) {
+            if (prepExecHandle.outValue != null) {
+                name = prepExecHandle.outValue.toString();
+            }
+            prepExecHandle = null;
+        }
         return name;
     }
 
+    /**
+     * Sets up the statement to be prepared along with its first execution,
+     * using <code>sp_prepexec</code> or <code>sp_cursorprepexec</code>.
+     */
+    void setPrepExec() {
+        prepExecHandle = new ParamInfo(Types.INTEGER, null, ParamInfo.OUTPUT);
+        prepExecSent = false;
+    }
+
+    /**
+     * Determines whether the statement is to be prepared along with its
+     * execution but has not been sent yet, e.g. because a cursor could not be
+     * opened.
+     *
+     * @return <code>true</code> if the prepare on execution is outstanding
+     */
+    boolean isPrepExecPending() {
+        return prepExecHandle != null && !prepExecSent;
+    }
+
+    /**
+     * Retrieves the output parameter to send with the prepare on execution,
+     * marking it as sent.
+     *
+     * @return the handle output parameter
+     */
+    ParamInfo sendPrepExec() {
+        prepExecSent = true;
+        return prepExecHandle;
+    }
+
     /**
      * Sets the procedure name.
      *
@@ -124,10 +175,39 @@ public class ProcEntry {
         return type;
     }
 
+    /**
+     * Retrieves the system procedure that releases the handle of this
+     * statement, e.g. to call it along with another request instead of
+     * using {@link #appendDropSQL}.
+     *
+     * @return <code>sp_unprepare</code> or <code>sp_cursorunprepare</code>,
+     *         or <code>null</code> if the statement is not a prepared
+     *         statement handle
+     */
+    public String getUnprepareProcedure() {
+        if (toString() == null) {
+            return null;
+        }
+
+        switch (type) {
+            case PREPARE:
+                return "sp_unprepare";
+            case CURSOR:
+                return "sp_cursorunprepare";
+            default:
+                return null;
+        }
+    }
+
     /**
      * Retrieves the SQL to drop this statement.
      */
     public void appendDropSQL(StringBuilder sql) {
+        if (toString() == null) {
+            // The statement was never prepared
+            return;
+        }
+
         switch (type) {
             case PROCEDURE:
                 sql.append("DROP PROC ").append(name).append('\n');
@@ -149,24 +229,86 @@ public class ProcEntry {
      * Increments the usage count.
      */
     public void addRef() {
-        refCount++;
+        refCount.incrementAndGet();
+    }
+
+    /**
+     * Increments the usage count unless the entry has been evicted from the
+     * statement cache.
+     *
+     * @return <code>true</code> if the usage count has been incremented,
+     *         <code>false</code> if the entry has been evicted
+     */
+    public boolean tryAddRef() {
+        int count;
+        do {
+            count = refCount.get();
+            if (count == EVICTED) {
+                return false;
+            }
+        } while (!refCount.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    /**
+     * Marks the entry as evicted from the statement cache if it is not in
+     * use, so that it can no longer be acquired by {@link #tryAddRef()}.
+     *
+     * @return <code>true</code> if the entry has been evicted,
+     *         <code>false</code> if it is in use
+     */
+    public boolean tryEvict() {
+        return refCount.compareAndSet(0, EVICTED);
     }
 
     /**
      * Decrements the usage count.
      */
     public void release() {
-        if (refCount > 0) {
-            refCount--;
-        }
+        int count;
+        do {
+            count = refCount.get();
+        } while (count > 0 && !refCount.compareAndSet(count, count - 1));
     }
 
     /**
      * Retreives the usage count.
      *
-     * @return the usage count as an <code>int</code>
+     * @return the usage count as an <code>int</code>, -1 once the entry has
+     *         been evicted from the statement cache
      */
     public int getRefCount() {
-        return refCount;
+        return refCount.get();
+    }
+
+    /**
+     * Estimates the memory used by this entry, i.e. by its name and its
+     * column and parameter meta data.
+     *
+     * @return the estimated size in bytes
+     */
+    public int getEstimatedSize() {
+        int size = 64 + sizeOf(name);
+
+        for (int i = 0; colMetaData != null && i < colMetaData.length; i++) {
+            ColInfo ci = colMetaData[i];
+            size += 96 + sizeOf(ci.name) + sizeOf(ci.realName)
+                    + sizeOf(ci.tableName) + sizeOf(ci.catalog)
+                    + sizeOf(ci.schema) + sizeOf(ci.sqlType);
+        }
+
+        for (int i = 0; paramMetaData != null && i < paramMetaData.length; i++) {
+            size += 80 + sizeOf(paramMetaData[i].name)
+                    + sizeOf(paramMetaData[i].sqlType);
+        }
+
+        return size;
+    }
+
+    /**
+     * Estimates the memory used by a string.
+     */
+    private static int sizeOf(String s) {
+        return (s == null) ? 0 : 40 + 2 * s.length();
     }
 }
@@ -23,6 +23,7 @@ import java.io.InputStream;
 import java.io.Reader;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.Arrays;
 
 import net.sourceforge.jtds.jdbc.SharedSocket.VirtualSocket;
 import net.sourceforge.jtds.util.*;
@@ -41,6 +42,13 @@ import net.sourceforge.jtds.util.*;
  * @version $Id: RequestStream.java,v 1.18 2005-09-21 21:50:34 ddkilzer Exp $
  */
 public class RequestStream {
+    /**
+     * Maximum number of bytes of a request that are held back to be sent to
+     * the server with a single write.
+     */
+    static final int MAX_GATHER_SIZE = 65536;
+    /** The size of the chunks a stream of unknown length is sent in. */
+    private static final int PLP_CHUNK_SIZE = 8192;
     /** The shared network socket. */
     private final SharedSocket socket;
     /** The output packet buffer. */
@@ -53,10 +61,20 @@ public class RequestStream {
     private final VirtualSocket _VirtualSocket;
     /** True if stream is closed. */
     private boolean isClosed;
-    /** The current output buffer size*/
-    private final int bufferSize;
+    /** The current output packet size, pooled buffers may be larger. */
+    private int bufferSize;
     /** The maximum decimal precision. */
     private final int maxPrecision;
+    /** True if packets of an incomplete request have been written. */
+    private boolean requestStarted;
+    /** Completed packets of the current request not yet sent. */
+    private byte[][] pending = new byte[4][];
+    /** Number of {@link #pending} packets. */
+    private int pendingCount;
+    /** Number of bytes in the {@link #pending} packets. */
+    private int pendingSize;
+    /** Number of data bytes of the current request written so far. */
+    private int requestSize;
 
     /**
      * Construct a RequestStream object.
@@ -78,7 +96,7 @@ public class RequestStream {
         _VirtualSocket = vsock;
         this.socket = socket;
         this.bufferSize = bufferSize;
-        buffer = new byte[bufferSize];
+        buffer = socket.allocatePacketBuffer(bufferSize);
         bufferPtr = TdsCore.PKT_HDR_LEN;
         this.maxPrecision = maxPrecision;
     }
@@ -97,9 +115,14 @@ public class RequestStream {
             throw new IllegalArgumentException("Invalid buffer size parameter " + size);
         }
 
-        byte[] tmp = new byte[size];
-        System.arraycopy(buffer, 0, tmp, 0, bufferPtr);
-        buffer = tmp;
+        if (size > buffer.length) {
+            byte[] tmp = socket.allocatePacketBuffer(size);
+            System.arraycopy(buffer, 0, tmp, 0, bufferPtr);
+            socket.releasePacketBuffer(buffer);
+            buffer = tmp;
+        }
+
+        bufferSize = size;
     }
 
     /**
@@ -140,6 +163,16 @@ public class RequestStream {
       return _VirtualSocket;
    }
 
+    /**
+     * Determine whether nothing has been written for the current request
+     * yet, i.e. whether the next byte written starts a new request.
+     *
+     * @return <code>true</code> if at the start of a new request
+     */
+    boolean isRequestStart() {
+        return bufferPtr == TdsCore.PKT_HDR_LEN && !requestStarted;
+    }
+
     /**
      * Set the current output packet type.
      *
@@ -156,7 +189,7 @@ public class RequestStream {
      * @throws IOException
      */
     void write(byte b) throws IOException {
-        if (bufferPtr == buffer.length) {
+        if (bufferPtr == bufferSize) {
             putPacket(0);
         }
 
@@ -174,7 +207,7 @@ public class RequestStream {
         int off = 0;
 
         while (bytesToWrite > 0) {
-            int available = buffer.length - bufferPtr;
+            int available = bufferSize - bufferPtr;
 
             if (available == 0) {
                 putPacket(0);
@@ -203,7 +236,7 @@ public class RequestStream {
         int i = len - bytesToWrite;
 
         while (bytesToWrite > 0) {
-            int available = buffer.length - bufferPtr;
+            int available = bufferSize - bufferPtr;
 
             if (available == 0) {
                 putPacket(0);
@@ -312,13 +345,13 @@ public class RequestStream {
             for (int i = 0; i < len; ++i) {
                 int c = s.charAt(i);
 
-                if (bufferPtr == buffer.length) {
+                if (bufferPtr == bufferSize) {
                     putPacket(0);
                 }
 
                 buffer[bufferPtr++] = (byte) c;
 
-                if (bufferPtr == buffer.length) {
+                if (bufferPtr == bufferSize) {
                     putPacket(0);
                 }
 
@@ -342,13 +375,13 @@ public class RequestStream {
         for ( ; i < limit; i++) {
             char c = s[i];
 
-            if (bufferPtr == buffer.length) {
+            if (bufferPtr == bufferSize) {
                 putPacket(0);
             }
 
             buffer[bufferPtr++] = (byte) c;
 
-            if (bufferPtr == buffer.length) {
+            if (bufferPtr == bufferSize) {
                 putPacket(0);
             }
 
@@ -468,6 +501,94 @@ public class RequestStream {
         }
     }
 
+    /**
+     * Copy the contents of an InputStream of unknown length to the server as
+     * PLP chunks, followed by the chunk terminator.
+     *
+     * @param in The InputStream to read.
+     * @throws IOException
+     */
+    void writePlpStreamBytes(InputStream in) throws IOException {
+        byte buffer[] = new byte[PLP_CHUNK_SIZE];
+        int res;
+
+        while ((res = in.read(buffer)) != -1) {
+            if (res > 0) {
+                write(res);
+                write(buffer, 0, res);
+            }
+        }
+
+        write(0);
+    }
+
+    /**
+     * Copy the contents of a Reader stream of unknown length to the server as
+     * PLP chunks of UCS-2 characters, followed by the chunk terminator.
+     *
+     * @param in The Reader object with the data.
+     * @throws IOException
+     */
+    void writePlpReaderChars(Reader in) throws IOException {
+        char cbuffer[] = new char[PLP_CHUNK_SIZE / 2];
+        byte bbuffer[] = new byte[PLP_CHUNK_SIZE];
+        int res;
+
+        while ((res = in.read(cbuffer)) != -1) {
+            if (res > 0) {
+                for (int i = 0, j = -1; i < res; i++) {
+                    bbuffer[++j] = (byte) cbuffer[i];
+                    bbuffer[++j] = (byte) (cbuffer[i] >> 8);
+                }
+
+                write(res * 2);
+                write(bbuffer, 0, res * 2);
+            }
+        }
+
+        write(0);
+    }
+
+    /**
+     * Copy the contents of a Reader stream of unknown length to the server as
+     * PLP chunks encoded in the given charset, followed by the chunk
+     * terminator. Surrogate pairs are never split across chunks.
+     *
+     * @param in The Reader object with the data.
+     * @param charset The charset to encode the characters with.
+     * @throws IOException
+     */
+    void writePlpReaderBytes(Reader in, String charset) throws IOException {
+        char buffer[] = new char[PLP_CHUNK_SIZE];
+        int pos = 0;
+        int res;
+
+        while ((res = in.read(buffer, pos, buffer.length - pos)) != -1) {
+            int len = pos + res;
+
+            // Keep a trailing high surrogate for the next chunk
+            pos = (len > 0 && Character.isHighSurrogate(buffer[len - 1])) ? 1 : 0;
+
+            if (len > pos) {
+                byte bytes[] = Support.encodeString(charset, new String(buffer, 0, len - pos));
+                write(bytes.length);
+                write(bytes);
+            }
+
+            if (pos > 0) {
+                buffer[0] = buffer[len - 1];
+            }
+        }
+
+        if (pos > 0) {
+            byte bytes[] = Support.encodeString(charset, new String(buffer, 0, pos));
+            write(bytes.length);
+            write(bytes);
+        }
+
+        write(0);
+    }
+
     /**
      * Write a BigDecimal value to the output stream.
      *
@@ -522,7 +643,20 @@ public class RequestStream {
      * Close the output stream.
      */
     void close() {
-        isClosed = true;
+        if (!isClosed) {
+            isClosed = true;
+            // the current buffer is never part of the pending packets
+            for (int i = 0; i < pendingCount; i++) {
+                socket.releasePacketBuffer(pending[i]);
+                pending[i] = null;
+            }
+            pendingCount = 0;
+            socket.releasePacketBuffer(buffer);
+            // any further write will fail in putPacket()
+            buffer = null;
+            bufferSize = 0;
+            bufferPtr = 0;
+        }
     }
 
     /**
@@ -544,7 +678,10 @@ public class RequestStream {
     }
 
     /**
-     * Write the TDS packet to the network.
+     * Complete the current TDS packet. Packets are collected until the
+     * request is complete or {@link #MAX_GATHER_SIZE} is reached and then
+     * written to the network at once, so a request spanning several packets
+     * usually requires a single write only.
      *
      * @param last Set to 1 if this is the last packet else 0.
      * @throws IOException
@@ -567,7 +704,41 @@ public class RequestStream {
             Logger.logPacket(_VirtualSocket.id, false, buffer);
         }
 
-        buffer = socket.sendNetPacket(_VirtualSocket, buffer);
+        if (pendingCount == pending.length) {
+            byte[][] tmp = new byte[pendingCount * 2][];
+            System.arraycopy(pending, 0, tmp, 0, pendingCount);
+            pending = tmp;
+        }
+
+        pending[pendingCount++] = buffer;
+        pendingSize += bufferPtr;
+        requestSize += bufferPtr - TdsCore.PKT_HDR_LEN;
+
+        if (last != 0) {
+            AdaptivePacketSize sizer = socket.getPacketSizer();
+            if (sizer != null) {
+                sizer.sample(requestSize);
+            }
+            requestSize = 0;
+        }
+
+        if (last != 0 || pendingSize + bufferSize > MAX_GATHER_SIZE) {
+            try {
+                socket.sendNetPackets(_VirtualSocket, pending, pendingCount);
+            } finally {
+                // Keep the current buffer for the next packet
+                for (int i = 0; i < pendingCount - 1; i++) {
+                    socket.releasePacketBuffer(pending[i]);
+                }
+                Arrays.fill(pending, 0, pendingCount, null);
+                pendingCount = 0;
+                pendingSize = 0;
+            }
+        } else {
+            buffer = socket.allocatePacketBuffer(bufferSize);
+        }
+
         bufferPtr = TdsCore.PKT_HDR_LEN;
+        requestStarted = last == 0;
     }
 }
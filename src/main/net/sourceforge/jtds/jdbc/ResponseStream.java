@@ -53,6 +53,8 @@ public class ResponseStream {
    private final VirtualSocket _VirtualSocket;
     /** True if stream is closed. */
     private boolean isClosed;
+    /** Number of data bytes of the current response read so far. */
+    private int responseSize;
     /** A shared byte buffer. */
     private final byte[] byteBuffer = new byte[255];
     /** A shared char buffer. */
@@ -74,11 +76,38 @@ public class ResponseStream {
     {
        _VirtualSocket = vsock;
        this.socket = socket;
-       buffer = new byte[bufferSize];
+       buffer = socket.allocatePacketBuffer( bufferSize );
        bufferLen = bufferSize;
        bufferPtr = bufferSize;
     }
 
+    /**
+     * Constructs a <code>ResponseStream</code> over values already read from
+     * the network, see {@link #reset(byte[], int, int)}.
+     *
+     * @param socket
+     *    the shared socket the values have been read from
+     */
+    ResponseStream( SharedSocket socket )
+    {
+       _VirtualSocket = null;
+       this.socket = socket;
+    }
+
+    /**
+     * Makes a stream created by {@link #ResponseStream(SharedSocket)} read
+     * the given data.
+     *
+     * @param data   the data to read
+     * @param offset the offset of the first byte to read
+     * @param length the number of bytes available
+     */
+    void reset(byte[] data, int offset, int length) {
+        buffer = data;
+        bufferPtr = offset;
+        bufferLen = offset + length;
+    }
+
    /**
     * Retrieves the {@link VirtualSocket} used by this stream id.
     *
@@ -427,8 +456,15 @@ public class ResponseStream {
      * underlying shared socket as well.
      */
     void close() {
-        isClosed = true;
-        socket.closeStream(_VirtualSocket);
+        if (!isClosed) {
+            isClosed = true;
+            socket.closeStream(_VirtualSocket);
+            socket.releasePacketBuffer(buffer);
+            // any further read will fail in getPacket()
+            buffer = null;
+            bufferLen = 0;
+            bufferPtr = 0;
+        }
     }
 
     /**
@@ -463,6 +499,20 @@ public class ResponseStream {
         return new TdsInputStream(this, len);
     }
 
+    /**
+     * Creates an <code>InputStream</code> over a TDS 7.2 partially length
+     * prefixed (PLP) value in the server response.
+     * <p/>
+     * The caller has to read the 8 byte total length of the value first, the
+     * stream returns the data of all chunks and consumes the chunk
+     * terminator once the end of the value has been reached.
+     *
+     * @return the <code>InputStream</code> built over the PLP value
+     */
+    InputStream getPlpInputStream() {
+        return new PlpInputStream(this);
+    }
+
     /**
      * Read the next TDS packet from the network.
      *
@@ -474,9 +524,22 @@ public class ResponseStream {
                 throw new IOException("ResponseStream is closed");
             }
 
+            if (_VirtualSocket == null) {
+                throw new IOException("Unexpected end of row data");
+            }
+
             buffer = socket.getNetPacket(_VirtualSocket, buffer);
             bufferLen = ((buffer[2] & 0xFF) << 8) | (buffer[3] & 0xFF);
             bufferPtr = TdsCore.PKT_HDR_LEN;
+            responseSize += bufferLen - TdsCore.PKT_HDR_LEN;
+
+            if (buffer[1] != 0) {
+                AdaptivePacketSize sizer = socket.getPacketSizer();
+                if (sizer != null) {
+                    sizer.sample(responseSize);
+                }
+                responseSize = 0;
+            }
 
             if (Logger.isActive()) {
                 Logger.logPacket(_VirtualSocket.id, true, buffer);
@@ -484,6 +547,67 @@ public class ResponseStream {
         }
     }
 
+    /**
+     * Inner class implementing an <code>InputStream</code> over the chunks of
+     * a PLP value in the server response.
+     */
+    private static class PlpInputStream extends InputStream {
+        /** The underlying <code>ResponseStream</code>. */
+        ResponseStream tds;
+        /** The data remaining in the current chunk, -1 at the end of the value. */
+        int chunkLen;
+
+        /**
+         * Creates a <code>PlpInputStream</code> instance.
+         *
+         * @param tds the underlying <code>ResponseStream</code>
+         */
+        public PlpInputStream(ResponseStream tds) {
+            this.tds = tds;
+        }
+
+        /**
+         * Moves to the next chunk if the current one has been read.
+         *
+         * @return <code>false</code> if the end of the value has been reached
+         */
+        private boolean nextChunk() throws IOException {
+            while (chunkLen == 0) {
+                chunkLen = tds.readInt();
+
+                if (chunkLen == 0) {
+                    // Chunk terminator
+                    chunkLen = -1;
+                }
+            }
+
+            return chunkLen > 0;
+        }
+
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+
+            chunkLen--;
+            return tds.read();
+        }
+
+        public int read(byte[] bytes, int offset, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            if (!nextChunk()) {
+                return -1;
+            }
+
+            int bc = tds.read(bytes, offset, Math.min(chunkLen, len));
+            chunkLen -= bc;
+            return bc;
+        }
+    }
+
     /**
      * Simple inner class implementing an <code>InputStream</code> over the
      * server response.
@@ -0,0 +1,423 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * The values of a row in their network format, see the <code>lazyRows</code>
+ * connection property.
+ * <p>
+ * {@link TdsCore} copies the values of a row into a single buffer, recording
+ * the offset of each column, and only decodes a value when the column is
+ * accessed. Values of text, image and PLP columns are never copied, they have
+ * to be read straight away.
+ * </p>
+ * <p>
+ * Values of fixed length numeric columns are also kept in a <code>long</code>
+ * slot per column and a null bitmap, so <code>getInt()</code>,
+ * <code>getLong()</code> and <code>getDouble()</code> can read them without
+ * creating any objects.
+ * </p>
+ * The buffer is reused for all rows of a result set.
+ */
+final class RowBuffer
+{
+
+   /**
+    * the column has no primitive slot
+    */
+   static final int             NONE     = 0;
+
+   /**
+    * signed integers, except for 1 byte values which are unsigned
+    */
+   static final int             INTEGER  = 1;
+
+   /**
+    * unsigned integers of Sybase ASE 15
+    */
+   static final int             UNSIGNED = 2;
+
+   /**
+    * 4 and 8 byte floating point values, kept as the bits of a
+    * <code>double</code>
+    */
+   static final int             FLOAT    = 3;
+
+   /**
+    * money values, kept as the number of ten-thousandths
+    */
+   static final int             MONEY    = 4;
+
+   /**
+    * bit values, kept as 0 or 1
+    */
+   static final int             BIT      = 5;
+
+   /**
+    * the stream used to decode values from {@link #_Data}
+    */
+   private final ResponseStream _Stream;
+
+   /**
+    * the values copied, each including its length prefix
+    */
+   private byte[]               _Data    = new byte[256];
+
+   /**
+    * the offset of each column's value in {@link #_Data}, -1 if not copied
+    */
+   private int[]                _Offsets = new int[0];
+
+   /**
+    * the primitive kind of each column's value, {@link #NONE} if not copied
+    */
+   private byte[]               _Kinds   = new byte[0];
+
+   /**
+    * the primitive value of each column, see {@link #_Kinds}
+    */
+   private long[]               _Values  = new long[0];
+
+   /**
+    * a bit per column set if the column's primitive value is null
+    */
+   private long[]               _Nulls   = new long[0];
+
+   /**
+    * the number of bytes used in {@link #_Data}
+    */
+   private int                  _Length;
+
+   /**
+    * Creates an empty row buffer.
+    *
+    * @param socket
+    *    the socket the rows are read from
+    */
+   RowBuffer( SharedSocket socket )
+   {
+      _Stream = new ResponseStream( socket );
+   }
+
+   /**
+    * Clears the buffer for the next row.
+    *
+    * @param columns
+    *    the number of columns of the row
+    */
+   void reset( int columns )
+   {
+      if( _Offsets.length < columns )
+      {
+         _Offsets = new int[columns];
+         _Kinds   = new byte[columns];
+         _Values  = new long[columns];
+         _Nulls   = new long[( columns + 63 ) >> 6];
+      }
+
+      _Length = 0;
+   }
+
+   /**
+    * Copies the value of a column from the server response, if the column's
+    * values can be decoded later on.
+    *
+    * @param in
+    *    the server response, positioned at the value
+    *
+    * @param column
+    *    the zero based column index
+    *
+    * @param ci
+    *    the column descriptor
+    *
+    * @return
+    *    <code>false</code> if the value has to be read by
+    *    {@link TdsData#readData} straight away
+    */
+   boolean copy( ResponseStream in, int column, ColInfo ci )
+      throws IOException
+   {
+      int prefix = TdsData.getLengthPrefix( ci, in.getTdsVersion() );
+
+      if( prefix < 0 )
+      {
+         _Offsets[column] = -1;
+         _Kinds[column]   = NONE;
+         return false;
+      }
+
+      int start = _Length;
+      int size  = prefix == 0 ? TdsData.getFixedLength( ci ) : prefix;
+
+      ensureCapacity( start + size );
+      in.read( _Data, start, size );
+
+      if( prefix > 0 )
+      {
+         int length = _Data[start] & 0xFF;
+
+         if( prefix == 2 )
+         {
+            length |= ( _Data[start + 1] & 0xFF ) << 8;
+
+            // 0xFFFF for null
+            length = length == 0xFFFF ? 0 : length;
+         }
+         else if( prefix == 4 )
+         {
+            length |= ( _Data[start + 1] & 0xFF ) << 8 | ( _Data[start + 2] & 0xFF ) << 16 | ( _Data[start + 3] & 0xFF ) << 24;
+         }
+
+         ensureCapacity( start + size + length );
+         in.read( _Data, start + size, length );
+         size += length;
+      }
+
+      _Offsets[column] = start;
+      _Length = start + size;
+
+      _Kinds[column] = (byte) TdsData.getPrimitiveKind( ci );
+
+      if( _Kinds[column] != NONE )
+      {
+         store( column, start + prefix, size - prefix );
+      }
+
+      return true;
+   }
+
+   /**
+    * Determines whether the value of a column copied by {@link #copy} is
+    * available as a primitive.
+    *
+    * @param column
+    *    the zero based column index
+    */
+   boolean isPrimitive( int column )
+   {
+      return _Kinds[column] != NONE;
+   }
+
+   /**
+    * Determines whether the primitive value of a column is null.
+    *
+    * @param column
+    *    the zero based column index
+    */
+   boolean isNull( int column )
+   {
+      return ( _Nulls[column >> 6] & 1L << column ) != 0;
+   }
+
+   /**
+    * Retrieves the primitive value of a column as a <code>long</code>, the
+    * way <code>Number.longValue()</code> converts the decoded value.
+    *
+    * @param column
+    *    the zero based column index
+    *
+    * @return
+    *    the value, 0 if null
+    */
+   long getLong( int column )
+   {
+      long value = _Values[column];
+
+      switch( _Kinds[column] )
+      {
+         case FLOAT:
+            return (long) Double.longBitsToDouble( value );
+
+         case MONEY:
+            return value / 10000;
+
+         default:
+            return value;
+      }
+   }
+
+   /**
+    * Retrieves the primitive value of a column as a <code>double</code>, the
+    * way <code>Number.doubleValue()</code> converts the decoded value.
+    *
+    * @param column
+    *    the zero based column index
+    *
+    * @return
+    *    the value, 0 if null
+    */
+   double getDouble( int column )
+   {
+      long value = _Values[column];
+
+      switch( _Kinds[column] )
+      {
+         case FLOAT:
+            return Double.longBitsToDouble( value );
+
+         case MONEY:
+            // the division is exact as long as the value fits a double's mantissa
+            if( value >= -( 1L << 53 ) && value <= 1L << 53 )
+            {
+               return value / 10000d;
+            }
+
+            return new BigDecimal( BigInteger.valueOf( value ), 4 ).doubleValue();
+
+         default:
+            return value;
+      }
+   }
+
+   /**
+    * Decodes the primitive value of a column from its copied bytes.
+    *
+    * @param column
+    *    the zero based column index
+    *
+    * @param offset
+    *    the offset of the value in {@link #_Data}, following its length prefix
+    *
+    * @param length
+    *    the length of the value, 0 for null
+    */
+   private void store( int column, int offset, int length )
+   {
+      long mask  = 1L << column;
+      long value = 0;
+
+      if( length == 0 )
+      {
+         _Nulls[column >> 6] |= mask;
+         _Values[column] = 0;
+         return;
+      }
+
+      switch( _Kinds[column] )
+      {
+         case INTEGER:
+         case UNSIGNED:
+            if( length == 1 )
+            {
+               value = _Data[offset] & 0xFF;
+            }
+            else if( length == 2 )
+            {
+               value = _Kinds[column] == INTEGER ? (short) getInt( offset, 2 ) : getInt( offset, 2 );
+            }
+            else if( length == 4 )
+            {
+               value = _Kinds[column] == INTEGER ? getInt( offset, 4 ) : getInt( offset, 4 ) & 0xFFFFFFFFL;
+            }
+            else if( length == 8 && _Kinds[column] == INTEGER )
+            {
+               value = getInt( offset, 4 ) & 0xFFFFFFFFL | (long) getInt( offset + 4, 4 ) << 32;
+            }
+            else
+            {
+               // unsigned bigint values may exceed a long
+               _Kinds[column] = NONE;
+            }
+            break;
+
+         case FLOAT:
+            if( length == 4 )
+            {
+               value = Double.doubleToRawLongBits( Float.intBitsToFloat( getInt( offset, 4 ) ) );
+            }
+            else
+            {
+               value = getInt( offset, 4 ) & 0xFFFFFFFFL | (long) getInt( offset + 4, 4 ) << 32;
+            }
+            break;
+
+         case MONEY:
+            if( length == 4 )
+            {
+               value = getInt( offset, 4 );
+            }
+            else
+            {
+               // 8 byte money values are sent as the high 4 bytes followed by the low 4 bytes
+               value = (long) getInt( offset, 4 ) << 32 | getInt( offset + 4, 4 ) & 0xFFFFFFFFL;
+            }
+            break;
+
+         case BIT:
+            value = _Data[offset] != 0 ? 1 : 0;
+            break;
+      }
+
+      _Nulls[column >> 6] &= ~mask;
+      _Values[column] = value;
+   }
+
+   /**
+    * Reads a little-endian integer of 2 or 4 bytes from {@link #_Data}.
+    */
+   private int getInt( int offset, int length )
+   {
+      int value = 0;
+
+      for( int i = length - 1; i >= 0; i -- )
+      {
+         value = value << 8 | _Data[offset + i] & 0xFF;
+      }
+
+      return value;
+   }
+
+   /**
+    * Decodes the value of a column copied by {@link #copy}.
+    *
+    * @param connection
+    *    the connection the row has been read by
+    *
+    * @param column
+    *    the zero based column index
+    *
+    * @param ci
+    *    the column descriptor
+    *
+    * @return
+    *    the value as returned by {@link TdsData#readData}
+    */
+   Object decode( JtdsConnection connection, int column, ColInfo ci )
+      throws IOException, ProtocolException
+   {
+      int start = _Offsets[column];
+      _Stream.reset( _Data, start, _Length - start );
+      return TdsData.readData( connection, _Stream, ci );
+   }
+
+   private void ensureCapacity( int capacity )
+   {
+      if( capacity > _Data.length )
+      {
+         byte[] data = new byte[Math.max( capacity, _Data.length * 2 )];
+         System.arraycopy( _Data, 0, data, 0, _Length );
+         _Data = data;
+      }
+   }
+
+}
@@ -22,7 +22,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Locale;
 
-import net.sourceforge.jtds.jdbc.cache.SimpleLRUCache;
+import net.sourceforge.jtds.jdbc.cache.StripedLRUCache;
 
 /**
  * Process JDBC escape strings and parameter markers in the SQL string.
@@ -89,9 +89,10 @@ class SQLParser {
     }
 
    /**
-    * a LRU cache for the last 1000 parsed SQL statements
+    * a LRU cache for the most recently parsed SQL statements, shared by all
+    * connections, see {@link #setCacheSize(int)}
     */
-   private final static SimpleLRUCache<ConInfo,CachedSQLQuery> _Cache = new SimpleLRUCache( 1000 );
+   private final static StripedLRUCache<ConInfo,CachedSQLQuery> _Cache = new StripedLRUCache<ConInfo,CachedSQLQuery>( Integer.parseInt( DefaultProperties.PARSER_CACHE_SIZE ) );
 
     /** Input buffer with SQL statement. */
     private final char[] in;
@@ -187,6 +188,34 @@ class SQLParser {
       return ret;
    }
 
+   /**
+    * <p> Grows the cache of parsed SQL statements to hold at least the given
+    * number of statements. The cache is shared by all connections, so it is
+    * never shrunk by a connection asking for a smaller size. </p>
+    *
+    * @param size
+    *    the number of parsed statements to cache
+    */
+   static void setCacheSize( int size )
+   {
+      synchronized( _Cache )
+      {
+         if( size > _Cache.getLimit() )
+         {
+            _Cache.setLimit( size );
+         }
+      }
+   }
+
+   /**
+    * <p> Returns the cache of parsed SQL statements, e.g. to retrieve its hit
+    * rate. </p>
+    */
+   static StripedLRUCache<?,?> getCache()
+   {
+      return _Cache;
+   }
+
     // --------------------------- Private Methods --------------------------------
 
     /** Lookup table to test if character is part of an identifier. */
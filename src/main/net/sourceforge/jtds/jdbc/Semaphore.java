@@ -27,7 +27,11 @@ package net.sourceforge.jtds.jdbc;
  *
  * @author  Mike Hutchinson
  * @version $Id: Semaphore.java,v 1.1 2004-12-20 15:51:17 alin_sinpalean Exp $
+ * @deprecated no longer used by the driver, waiting threads block inside a
+ *             monitor, which pins virtual threads to their carrier; use
+ *             {@link java.util.concurrent.Semaphore} instead
  */
+@Deprecated
 public class Semaphore {
     /**
      * Current number of available permits.
@@ -126,24 +126,18 @@ public class SharedLocalNamedPipe extends SharedSocket {
     }
 
    /**
-    * Send an network packet. If output for another virtual socket is in
-    * progress this packet will be sent later.
-    *
-    * @param vsock
-    *    the {@link VirtualSocket} used by the originating <code>RequestStream</code>
-    *
-    * @param buffer
-    *    the data to send
-    *
-    * @exception java.io.IOException
-    *    if an I/O error occurs
+    * Writes the buffers one by one to the buffered pipe stream, which is
+    * sized to hold a packet, so no packet is ever split between two writes.
     */
-   byte[] sendNetPacket( VirtualSocket vsock, byte buffer[] )
+   protected void writeSegments( byte segments[][], int lengths[], int count )
       throws IOException
    {
-      byte[] ret = super.sendNetPacket(vsock, buffer);
+      for( int i = 0; i < count; i ++ )
+      {
+         getOut().write( segments[i], 0, lengths[i] );
+      }
+
       getOut().flush();
-      return ret;
    }
 
     /**
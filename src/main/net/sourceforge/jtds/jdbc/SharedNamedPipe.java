@@ -144,6 +144,19 @@ public class SharedNamedPipe extends SharedSocket {
         return getPipe() != null;
     }
 
+    /**
+     * Writes the buffers one by one, the named pipe is not able to send
+     * several packets with a single write.
+     */
+    protected void writeSegments(byte segments[][], int lengths[], int count)
+            throws IOException {
+        for (int i = 0; i < count; i++) {
+            getOut().write(segments[i], 0, lengths[i]);
+        }
+
+        getOut().flush();
+    }
+
     /**
      * Close the socket (noop if in shared mode).
      */
@@ -30,10 +30,13 @@ import java.net.NetworkInterface;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.net.SocketFactory;
 
@@ -66,6 +69,22 @@ import net.sourceforge.jtds.util.Logger;
  * maximum buffer memory threshold has been passed. Small result sets that will fit
  * within a specified limit (default 8 packets) will continue to be held in memory
  * (even if the memory threshold has been passed) in the interests of efficiency.
+ * <p>
+ * If MARS has been negotiated with the server (see {@link #enableSMP()}) each
+ * virtual socket is mapped to a session of the session multiplexing protocol
+ * (SMP). Requests of different sessions may then be outstanding at the same
+ * time and the server interleaves their responses, packets read from the
+ * network are routed to the queue of the session they belong to. Each SMP
+ * packet is expected to carry exactly one TDS packet.
+ * <p>
+ * Locking: only one thread at a time reads from the network, holding
+ * {@link #_NetworkLock}, and routes packets of other virtual sockets to
+ * their queues. The queues are guarded by {@link #_QueueLock}, which is
+ * never held during network I/O, so threads with queued data are never
+ * blocked by a network read. A thread that needs the network while another
+ * one is reading parks until data is queued for it or the network is
+ * released. Cancel requests only change the state of the virtual socket
+ * atomically and write the cancel packet, they never wait for a read.
  *
  * @author
  *    Mike Hutchinson, Holger Rehn
@@ -91,6 +110,10 @@ class SharedSocket {
          * I/O Stream for disk packet queue.
          */
         RandomAccessFile diskQueue;
+        /**
+         * Packet queue in the memory-mapped spill file of the socket.
+         */
+        SpillFile.Queue spillQueue;
         /**
          * Number of packets cached to disk.
          */
@@ -98,7 +121,75 @@ class SharedSocket {
         /**
          * Total of input packets in memory or disk.
          */
-        int inputPkts;
+        volatile int inputPkts;
+        /**
+         * The virtual socket has been closed, packets still routed to it are
+         * discarded. Guarded by {@link SharedSocket#_QueueLock}.
+         */
+        boolean closed;
+        /**
+         * Thread parked waiting for data of this virtual socket or for the
+         * network, if any.
+         */
+        volatile Thread waiter;
+        /**
+         * State of the response to the last request, one of {@link #IDLE},
+         * {@link #PENDING} or {@link #CANCELING}.
+         */
+        final AtomicInteger responseState = new AtomicInteger(IDLE);
+        /**
+         * Buffer for the tail of the response, a TDS_DONE token
+         */
+        final byte doneBuffer[] = new byte[TDS_DONE_LEN_TDS90];
+        /**
+         * How much of the doneBuffer has been filled with data, less than the
+         * TDS_DONE length IFF partial packet read.
+         */
+        int doneBufferFrag;
+        /**
+         * A request has been sent and the first packet of its response has
+         * not been read yet. Only used by the thread owning the socket.
+         */
+        boolean awaitingResponse;
+        /**
+         * Time the last cancel request was sent, see
+         * {@link System#nanoTime()}.
+         */
+        volatile long cancelTime;
+        /**
+         * SMP only: the SYN packet opening the session has been sent.
+         */
+        boolean smpOpen;
+        /**
+         * SMP only: sequence number of the last DATA packet sent.
+         */
+        volatile int smpSendSeq;
+        /**
+         * SMP only: highest sequence number the server accepts.
+         */
+        volatile int smpSendWindow = SMP_INITIAL_WINDOW;
+        /**
+         * SMP only: number of DATA packets received and consumed.
+         */
+        int smpConsumed;
+        /**
+         * SMP only: highest sequence number the server may send.
+         */
+        int smpRecvWindow;
+        /**
+         * No response is expected.
+         */
+        static final int IDLE      = 0;
+        /**
+         * A request has been sent and the response has not been completely
+         * read from the network.
+         */
+        static final int PENDING   = 1;
+        /**
+         * A cancel has been sent, the response is complete when the cancel
+         * ACK has been read.
+         */
+        static final int CANCELING = 2;
         /**
          * Construct object to hold state information for each caller.
          * @param streamId the Response/Request stream id.
@@ -138,39 +229,82 @@ class SharedSocket {
      */
     private final ConcurrentMap<Integer,VirtualSocket> _VirtualSockets = new ConcurrentHashMap<>();
     /**
-     * The virtual socket of the object that is expecting a response from the server.
+     * The virtual socket of the object that is expecting a response from the
+     * server, without SMP. Guarded by {@link #_NetworkLock}.
      */
     private VirtualSocket responseOwner;
     /**
-     * Buffer for packet header.
+     * Buffer for packet header read from the network.
      */
     private final byte hdrBuf[] = new byte[TDS_HDR_LEN];
     /**
-     * The directory to buffer data to.
+     * Buffer for packet header read from a disk queue.
      */
-    private final File bufferDir;
+    private final byte queueHdrBuf[] = new byte[TDS_HDR_LEN];
+
+   /**
+    * held by the thread reading from the network
+    */
+   private final ReentrantLock                        _NetworkLock    = new ReentrantLock();
+
+   /**
+    * guards the packet queues of all virtual sockets, never held during
+    * network I/O
+    */
+   private final ReentrantLock                        _QueueLock      = new ReentrantLock();
 
    /**
-    * total memory usage in all instances of the driver
+    * serializes writes to the network
     */
-   private static AtomicInteger                       _MemUsage       = new AtomicInteger();
+   private final ReentrantLock                        _WriteLock      = new ReentrantLock();
 
+   /**
+    * number of threads parked waiting for data or for the network
+    */
+   private final AtomicInteger                        _Waiting        = new AtomicInteger();
+    /**
+     * Pool recycling the packet buffers of this socket, <code>null</code> if
+     * buffers are not recycled.
+     */
+    private volatile PacketBufferPool bufferPool;
+    /**
+     * The directory to buffer data to.
+     */
+    private final File bufferDir;
     /**
-     * Peak memory usage for debug purposes.
+     * Buffer data to a memory-mapped file instead of a temporary file per
+     * virtual socket.
      */
-    private static int peakMemUsage;
+    private boolean bufferMappedFile;
     /**
-     * Max memory limit to use for buffers.
-     * Only when this limit is exceeded will the driver
-     * start caching to disk.
+     * Memory-mapped file shared by all virtual sockets to buffer data to,
+     * created on first use.
      */
-    private static int memoryBudget = 100000; // 100K
+    private SpillFile spillFile;
+
+   /**
+    * memory budget of this connection, only when the limit of this budget or
+    * of one of its parents is exceeded will the driver start caching to disk
+    */
+   private BufferBudget                               _Budget         = new BufferBudget( "connection", BufferBudget.getGlobal(), BufferBudget.UNLIMITED );
+
+   /**
+    * records the sizes of requests and responses if the packet size is
+    * adaptive, <code>null</code> otherwise
+    */
+   private volatile AdaptivePacketSize                _PacketSizer;
+
+   /**
+    * network I/O counters of this connection
+    */
+   private final NetworkStatistics                    _Statistics     = new NetworkStatistics( NetworkStatistics.getGlobal() );
+
     /**
      * Minimum number of packets that will be cached in memory
      * before the driver tries to write to disk even if
-     * memoryBudget has been exceeded.
+     * the memory budget has been exceeded.
      */
-    private static int minMemPkts = 8;
+    private int minMemPkts = 8;
     /**
      * Global flag to indicate that security constraints mean
      * that attempts to create work files will fail.
@@ -201,22 +335,44 @@ class SharedSocket {
      */
     private int port;
     /**
-     * A cancel packet is pending.
+     * Sessions are multiplexed using SMP.
+     */
+    private volatile boolean smp;
+    /**
+     * Number of packets the server may send ahead on each SMP session.
+     */
+    private int smpWindow;
+    /**
+     * Buffer for SMP headers read.
      */
-    private boolean cancelPending;
+    private final byte smpInHdr[] = new byte[SMP_HDR_LEN];
     /**
-     * Synchronization monitor for {@link #cancelPending} and
-     * {@link #responseOwner}.
+     * Buffers for the SMP headers of the next write, one per SMP packet.
+     * Guarded by {@link #_WriteLock}.
      */
-    private final Object cancelMonitor = new Object();
+    private byte smpOutHdrs[][] = new byte[0][];
     /**
-     * Buffer for TDS_DONE packets
+     * Number of {@link #smpOutHdrs} used by the next write.
      */
-    private final byte doneBuffer[] = new byte[TDS_DONE_LEN];
+    private int smpOutHdrCount;
     /**
-     * How much of the doneBuffer has been filled with data, <TDS_DONE_LEN IFF partial packet read.
+     * Buffers to be sent with the next (gathering) write. Guarded by
+     * {@link #_WriteLock}.
      */
-    private int doneBufferFrag = 0;
+    private byte gatherSegs[][] = new byte[16][];
+    /**
+     * Number of bytes to send from each of the {@link #gatherSegs}.
+     */
+    private int gatherLens[] = new int[16];
+    /**
+     * Number of {@link #gatherSegs} used.
+     */
+    private int gatherCount;
+    /**
+     * Buffer the segments of a write are copied to if there is more than
+     * one, so that they can be sent with a single write to the stream.
+     */
+    private byte gatherBuf[];
     /**
      * TDS done token.
      */
@@ -225,6 +381,38 @@ class SharedSocket {
      * Length of a TDS_DONE token.
      */
     private static final int TDS_DONE_LEN  = 9;
+    /**
+     * Length of a TDS_DONE token with 64 bit row count (TDS 7.2).
+     */
+    private static final int TDS_DONE_LEN_TDS90 = 13;
+    /**
+     * Length of SMP packet header.
+     */
+    private static final int SMP_HDR_LEN   = 16;
+    /**
+     * SMP packet identifier.
+     */
+    private static final int SMP_ID        = 0x53;
+    /**
+     * SMP SYN flag, opens a session.
+     */
+    private static final int SMP_SYN       = 0x01;
+    /**
+     * SMP ACK flag, updates the receive window of a session.
+     */
+    private static final int SMP_ACK       = 0x02;
+    /**
+     * SMP FIN flag, closes a session.
+     */
+    private static final int SMP_FIN       = 0x04;
+    /**
+     * SMP DATA flag, the packet carries a TDS packet.
+     */
+    private static final int SMP_DATA      = 0x08;
+    /**
+     * Receive window assumed for a session before the peer announced one.
+     */
+    private static final int SMP_INITIAL_WINDOW = 4;
     /**
      * Length of TDS packet header.
      */
@@ -244,10 +432,22 @@ class SharedSocket {
      * @throws IOException if socket open fails
      */
     SharedSocket(JtdsConnection connection) throws IOException, UnknownHostException {
+        this(connection, createSocketForJDBC3(connection));
+    }
+
+    /**
+     * Construct a <code>SharedSocket</code> object over an already connected
+     * {@link Socket}.
+     *
+     * @param connection the connection object
+     * @param socket     the connected network socket
+     * @throws IOException if the socket streams cannot be obtained
+     */
+    protected SharedSocket(JtdsConnection connection, Socket socket) throws IOException {
         this(connection.getBufferDir(), connection.getTdsVersion(), connection.getServerType());
         host = connection.getServerName();
         port = connection.getPortNumber();
-        socket = createSocketForJDBC3(connection);
+        this.socket = socket;
         setOut(new DataOutputStream(socket.getOutputStream()));
         setIn(new DataInputStream(socket.getInputStream()));
         socket.setTcpNoDelay(connection.getTcpNoDelay());
@@ -267,7 +467,7 @@ class SharedSocket {
     * @throws IOException
     *    if socket open fails
     */
-   private Socket createSocketForJDBC3( JtdsConnection connection ) throws IOException
+   private static Socket createSocketForJDBC3( JtdsConnection connection ) throws IOException
    {
       final String host = connection.getServerName();
       final int port = connection.getPortNumber();
@@ -391,10 +591,11 @@ class SharedSocket {
 
       do
       {
-         id    = _LastID.incrementAndGet();
+         // IDs are used as SMP session IDs, which are limited to 16 bits
+         id    = _LastID.incrementAndGet() & 0xFFFF;
          vsock = new VirtualSocket( id );
       }
-      // safety net, ID might have already been assigned before integer overflow
+      // safety net, ID might have already been assigned before overflow
       while( _VirtualSockets.putIfAbsent( id, vsock ) != null );
 
       return new RequestStream( this, vsock, bufferSize, maxPrecision );
@@ -434,22 +635,73 @@ class SharedSocket {
         this.tdsVersion = tdsVersion;
     }
 
+   /**
+    * Sets the memory budget of this socket. Must be called before any data
+    * has been buffered.
+    *
+    * @param budget
+    *    the connection's budget, usually a child of a group budget or of the
+    *    global budget
+    */
+   void setBufferBudget( BufferBudget budget )
+   {
+      _Budget = budget;
+   }
+
+   /**
+    * Sets the object recording the sizes of requests and responses to choose
+    * the packet size of future connections.
+    *
+    * @param sizer
+    *    the sizer of the server or <code>null</code> if sizes are not recorded
+    */
+   void setPacketSizer( AdaptivePacketSize sizer )
+   {
+      _PacketSizer = sizer;
+   }
+
+   /**
+    * Retrieves the object recording the sizes of requests and responses,
+    * <code>null</code> if sizes are not recorded.
+    */
+   AdaptivePacketSize getPacketSizer()
+   {
+      return _PacketSizer;
+   }
+
+   /**
+    * Retrieves the memory budget of this socket.
+    */
+   BufferBudget getBufferBudget()
+   {
+      return _Budget;
+   }
+
+   /**
+    * Retrieves the network I/O counters of this socket.
+    */
+   NetworkStatistics getNetworkStatistics()
+   {
+      return _Statistics;
+   }
+
     /**
-     * Set the global buffer memory limit for all instances of this driver.
-     *
-     * @param memoryBudget the global memory budget
+     * Switch to multiplexing all further requests using SMP. Must be called
+     * after MARS has been negotiated in the prelogin exchange and before the
+     * login packet is sent.
      */
-    static void setMemoryBudget(int memoryBudget) {
-        SharedSocket.memoryBudget = memoryBudget;
+    void enableSMP() {
+        smpWindow = Math.max(SMP_INITIAL_WINDOW, minMemPkts);
+        smp = true;
     }
 
     /**
-     * Get the global buffer memory limit for all instancs of this driver.
+     * Retrieve whether sessions are multiplexed using SMP.
      *
-     * @return the memory limit as an <code>int</code>
+     * @return <code>true</code> if MARS is enabled
      */
-    static int getMemoryBudget() {
-        return SharedSocket.memoryBudget;
+    boolean isSMP() {
+        return smp;
     }
 
     /**
@@ -458,8 +710,8 @@ class SharedSocket {
      *
      * @param minMemPkts the minimum number of packets to cache
      */
-    static void setMinMemPkts(int minMemPkts) {
-        SharedSocket.minMemPkts = minMemPkts;
+    void setMinMemPkts(int minMemPkts) {
+        this.minMemPkts = minMemPkts;
     }
 
     /**
@@ -467,8 +719,8 @@ class SharedSocket {
      *
      * @return minimum memory packets as an <code>int</code>
      */
-    static int getMinMemPkts() {
-        return SharedSocket.minMemPkts;
+    int getMinMemPkts() {
+        return minMemPkts;
     }
 
     /**
@@ -491,42 +743,48 @@ class SharedSocket {
      */
     boolean cancel( VirtualSocket vsock ) {
         //
-        // Need to synchronize packet send to avoid race conditions on
-        // responsOwner and cancelPending
+        // Only send if response pending for the caller; the reader keeps
+        // reading until the cancel ACK once the state has been switched.
+        // Caller must have acquired connection mutex first.
+        // NB. This method will not work with local named pipes
+        // as this thread will be blocked in the write until the
+        // reading thread has returned from the read.
         //
-        synchronized (cancelMonitor) {
-            //
-            // Only send if response pending for the caller.
-            // Caller must have acquired connection mutex first.
-            // NB. This method will not work with local named pipes
-            // as this thread will be blocked in the write until the
-            // reading thread has returned from the read.
-            //
-            if (responseOwner == vsock && !cancelPending) {
-                try {
-                    //
-                    // Send a cancel packet.
-                    //
-                    cancelPending = true;
-                    doneBufferFrag = 0;
-                    byte[] cancel = new byte[TDS_HDR_LEN];
-                    cancel[0] = TdsCore.CANCEL_PKT;
-                    cancel[1] = 1;
-                    cancel[2] = 0;
-                    cancel[3] = 8;
-                    cancel[4] = 0;
-                    cancel[5] = 0;
-                    cancel[6] = (tdsVersion >= Driver.TDS70) ? (byte) 1 : 0;
-                    cancel[7] = 0;
-                    getOut().write(cancel, 0, TDS_HDR_LEN);
-                    getOut().flush();
-                    if (Logger.isActive()) {
-                        Logger.logPacket(vsock.id, false, cancel);
+        if (vsock.responseState.compareAndSet(VirtualSocket.PENDING, VirtualSocket.CANCELING)) {
+            try {
+                //
+                // Send a cancel packet.
+                //
+                byte[] cancel = new byte[TDS_HDR_LEN];
+                cancel[0] = TdsCore.CANCEL_PKT;
+                cancel[1] = 1;
+                cancel[2] = 0;
+                cancel[3] = 8;
+                cancel[4] = 0;
+                cancel[5] = 0;
+                cancel[6] = (tdsVersion >= Driver.TDS70) ? (byte) 1 : 0;
+                cancel[7] = 0;
+                vsock.cancelTime = System.nanoTime();
+                if (smp) {
+                    // The attention is sent on the session regardless of
+                    // the server's window, it must not wait for the reply
+                    writeSmpPacket(SMP_DATA, vsock, cancel, true);
+                } else {
+                    _WriteLock.lock();
+                    try {
+                        gather(cancel, TDS_HDR_LEN);
+                        writeGathered();
+                    } finally {
+                        _WriteLock.unlock();
                     }
-                    return true;
-                } catch (IOException e) {
-                    // Ignore error as network is probably dead anyway
                 }
+                _Statistics.recordCancel();
+                if (Logger.isActive()) {
+                    Logger.logPacket(vsock.id, false, cancel);
+                }
+                return true;
+            } catch (IOException e) {
+                // Ignore error as network is probably dead anyway
             }
         }
         return false;
@@ -543,7 +801,8 @@ class SharedSocket {
    {
       if( Logger.isActive() )
       {
-         Logger.println( "TdsSocket: Max buffer memory used = " + (peakMemUsage / 1024) + "KB" );
+         Logger.println( "TdsSocket: Max buffer memory used = " + (_Budget.getPeakUsage() / 1024) + "KB, " + _Budget.getSpillCount() + " times buffered to disk" );
+         Logger.println( "TdsSocket: " + _Statistics );
       }
 
       // see if any temporary files need deleting
@@ -565,6 +824,21 @@ class SharedSocket {
 
       _VirtualSockets.clear();
 
+      _QueueLock.lock();
+
+      try
+      {
+         if( spillFile != null )
+         {
+            spillFile.close();
+            spillFile = null;
+         }
+      }
+      finally
+      {
+         _QueueLock.unlock();
+      }
+
       try
       {
          if( sslSocket != null )
@@ -612,16 +886,57 @@ class SharedSocket {
       // unregister virtual socket
       _VirtualSockets.remove( vsock.id );
 
-      if( vsock.diskQueue != null )
+      _QueueLock.lock();
+
+      try
+      {
+         // packets still routed to this socket are discarded from now on
+         vsock.closed = true;
+
+         // discard unread packets still held in memory
+         while( vsock.pktQueue.size() > 0 )
+         {
+            byte[] buffer = (byte[]) vsock.pktQueue.removeFirst();
+            _Budget.release( buffer.length );
+            releasePacketBuffer( buffer );
+         }
+
+         if( vsock.spillQueue != null )
+         {
+            vsock.spillQueue.clear();
+            vsock.spillQueue = null;
+         }
+
+         if( vsock.diskQueue != null )
+         {
+            try
+            {
+               vsock.diskQueue.close();
+               vsock.queueFile.delete();
+            }
+            catch( IOException ioe )
+            {
+               // ignore errors
+            }
+         }
+      }
+      finally
+      {
+         _QueueLock.unlock();
+      }
+
+      if( vsock.smpOpen )
       {
+         // close the SMP session, the server's FIN is ignored when read
+         vsock.smpOpen = false;
+
          try
          {
-            vsock.diskQueue.close();
-            vsock.queueFile.delete();
+            writeSmpPacket( SMP_FIN, vsock, null, true );
          }
          catch( IOException ioe )
          {
-            // ignore errors
+            // ignore errors, the connection is probably dead anyway
          }
       }
    }
@@ -645,17 +960,57 @@ class SharedSocket {
      */
     byte[] sendNetPacket(VirtualSocket vsock, byte buffer[])
             throws IOException {
-        synchronized (_VirtualSockets) {
+        sendNetPackets(vsock, new byte[][] {buffer}, 1);
 
-            while (vsock.inputPkts > 0) {
-                //
-                // There is unread data in the input buffers.
-                // As we are sending another packet we can just discard it now.
-                //
-                if (Logger.isActive()) {
-                    Logger.println("TdsSocket: Unread data in input packet queue");
-                }
-                dequeueInput(vsock);
+        return buffer;
+    }
+
+    /**
+     * Send a number of consecutive packets of a request with as few writes to
+     * the network as possible. If output for another virtual socket is in
+     * progress the packets will be sent later.
+     * <p/>
+     * The packets are not modified and can be reused by the caller as soon as
+     * this method returns.
+     *
+     * @param vsock
+     *    {@link VirtualSocket} of the originating {@link RequestStream}
+     *
+     * @param packets
+     *    the packets to send, only the last one may have the last packet flag
+     *    set
+     *
+     * @param count
+     *    the number of packets to send
+     *
+     * @throws
+     *    IOException if an I/O error occurs
+     */
+    void sendNetPackets(VirtualSocket vsock, byte packets[][], int count)
+            throws IOException {
+        byte[] unread;
+
+        while ((unread = pollInput(vsock)) != null) {
+            //
+            // There is unread data in the input buffers.
+            // As we are sending another packet we can just discard it now.
+            //
+            if (Logger.isActive()) {
+                Logger.println("TdsSocket: Unread data in input packet queue");
+            }
+            releasePacketBuffer(unread);
+            if (smp) {
+                smpConsumed(vsock);
+            }
+        }
+
+        _NetworkLock.lock();
+
+        try {
+            if (smp) {
+                sendSmpPackets(vsock, packets, count);
+                recordSent(vsock, packets, count);
+                return;
             }
 
             if (responseOwner != null) {
@@ -674,23 +1029,38 @@ class SharedSocket {
                     if (!ourData) {
                         // We need to save this input as it belongs to
                         // Another thread.
-                        enqueueInput(tmpSock, tmpBuf);
+                        routeInput(tmpSock, tmpBuf);
                     }   // Any of our input is discarded.
                 } while (tmpBuf[1] == 0); // Read all data to complete TDS packet
+
+                if (ourData) {
+                    releasePacketBuffer(tmpBuf);
+                }
             }
             //
             // At this point we know that we are able to send the first
-            // or subsequent packet of a new request.
+            // or subsequent packets of a new request.
             //
-            getOut().write(buffer, 0, getPktLen(buffer));
+            _WriteLock.lock();
+            try {
+                for (int i = 0; i < count; i++) {
+                    gather(packets[i], getPktLen(packets[i]));
+                }
+
+                writeGathered();
+            } finally {
+                _WriteLock.unlock();
+            }
 
-            if (buffer[1] != 0) {
-                getOut().flush();
+            recordSent(vsock, packets, count);
+
+            if (packets[count - 1][1] != 0) {
                 // We are the response owner now
                 responseOwner = vsock;
+                vsock.responseState.set(VirtualSocket.PENDING);
             }
-
-            return buffer;
+        } finally {
+            releaseNetwork();
         }
     }
 
@@ -711,92 +1081,297 @@ class SharedSocket {
      *    if an I/O error occurs
      */
     byte[] getNetPacket(VirtualSocket vsock, byte buffer[]) throws IOException {
-        synchronized (_VirtualSockets) {
+        if (!vsock.awaitingResponse) {
+            return readNetPacket(vsock, buffer);
+        }
+
+        long start = System.nanoTime();
+        byte[] packet = readNetPacket(vsock, buffer);
+        vsock.awaitingResponse = false;
+        _Statistics.recordWait(System.nanoTime() - start);
+        return packet;
+    }
+
+    /**
+     * Get a network packet, see {@link #getNetPacket}.
+     */
+    private byte[] readNetPacket(VirtualSocket vsock, byte buffer[]) throws IOException {
+        // Return any cached input, the caller's buffer is no longer used
+        byte[] packet = pollInput(vsock);
+
+        if (packet == null && !_NetworkLock.tryLock()) {
+            // Another thread is reading, wait for it to queue our data or to
+            // release the network
+            packet = awaitNetwork(vsock);
+        }
 
-            // Return any cached input
-            if (vsock.inputPkts > 0) {
-                return dequeueInput(vsock);
+        if (packet != null) {
+            releasePacketBuffer(buffer);
+            if (smp) {
+                smpConsumed(vsock);
             }
+            return packet;
+        }
 
-            // Nothing cached see if we are expecting network data
-            if (responseOwner == null)
-                throw new IOException( "Stream " + vsock.id + " attempting to read when no request has been sent" );
+        try {
+            // Data might have been queued before we got hold of the network
+            packet = pollInput(vsock);
+
+            if (packet != null) {
+                releasePacketBuffer(buffer);
+            } else if (smp) {
+                if (vsock.responseState.get() == VirtualSocket.IDLE)
+                    throw new IOException( "Stream " + vsock.id + " attempting to read when no request has been sent" );
+
+                // Read until a packet for this session arrives, queuing the
+                // packets of other sessions
+                while ((packet = readSmpPacket(vsock, buffer)) == null) {
+                    // next packet
+                }
+            } else {
+                // Nothing cached see if we are expecting network data
+                if (responseOwner == null)
+                    throw new IOException( "Stream " + vsock.id + " attempting to read when no request has been sent" );
 
-            // OK There should be data, check that it is for this stream and we are not trying to read another thread's request.
-            if (responseOwner != vsock)
-                throw new IOException("Stream " + vsock.id + " is trying to read data that belongs to stream " + responseOwner.id );
+                // OK There should be data, check that it is for this stream and we are not trying to read another thread's request.
+                if (responseOwner != vsock)
+                    throw new IOException("Stream " + vsock.id + " is trying to read data that belongs to stream " + responseOwner.id );
+
+                // Simple case we are reading our input directly from the server
+                return readPacket(buffer);
+            }
+        } finally {
+            releaseNetwork();
+        }
 
-            // Simple case we are reading our input directly from the server
-            return readPacket(buffer);
+        if (smp) {
+            smpConsumed(vsock);
         }
+        return packet;
     }
 
-   /**
-    * <p> Save a packet buffer in a memory queue or to a disk queue if the
-    * global memory limit for the driver has been exceeded. </p>
-    *
-    * @param vsock
-    *    the virtual socket owning this data
-    *
-    * @param buffer
-    *    the data to queue
-    */
-   private void enqueueInput( VirtualSocket vsock, byte[] buffer )
-      throws IOException
-   {
-      // check to see if we should start caching to disk
-      if( _MemUsage.get() + buffer.length > memoryBudget && vsock.pktQueue.size() >= minMemPkts && !securityViolation && vsock.diskQueue == null )
-      {
-         // try to create a disk file for the queue
-         try
-         {
-            vsock.queueFile = File.createTempFile( "jtds", ".tmp", bufferDir );
-            // vsock.queueFile.deleteOnExit(); memory leak, see http://bugs.java.com/bugdatabase/view_bug.do?bug_id=6664633
-            vsock.diskQueue = new RandomAccessFile( vsock.queueFile, "rw" );
+    /**
+     * Record the packets of a request that have been sent.
+     *
+     * @param vsock   the virtual socket sending the packets
+     * @param packets the TDS packets sent
+     * @param count   the number of packets sent
+     */
+    private void recordSent(VirtualSocket vsock, byte packets[][], int count) {
+        for (int i = 0; i < count; i++) {
+            _Statistics.recordSent(getPktLen(packets[i]), packets[i].length);
+        }
 
-            // write current cache contents to disk and free memory
-            byte[] tmpBuf;
+        if (packets[count - 1][1] != 0) {
+            vsock.awaitingResponse = true;
+        }
+    }
 
-            while( vsock.pktQueue.size() > 0 )
-            {
-               tmpBuf = (byte[]) vsock.pktQueue.removeFirst();
-               vsock.diskQueue.write( tmpBuf, 0, getPktLen( tmpBuf ) );
-               vsock.pktsOnDisk ++;
-            }
-         }
-         catch( java.lang.SecurityException se )
-         {
-            // not allowed to cache to disk so carry on in memory
-            securityViolation = true;
-            vsock.queueFile = null;
-            vsock.diskQueue = null;
-         }
-      }
+    /**
+     * Park until data has been queued for a virtual socket or the network is
+     * free.
+     *
+     * @param vsock the virtual socket waiting for data
+     * @return the next queued packet or <code>null</code> if the network lock
+     *         has been acquired instead
+     */
+    private byte[] awaitNetwork(VirtualSocket vsock) throws IOException {
+        vsock.waiter = Thread.currentThread();
+        _Waiting.incrementAndGet();
 
-      if( vsock.diskQueue != null )
-      {
-         // cache file exists so append buffer to it
-         vsock.diskQueue.write( buffer, 0, getPktLen( buffer ) );
-         vsock.pktsOnDisk ++;
+        try {
+            for (;;) {
+                byte[] packet = pollInput(vsock);
+
+                if (packet != null) {
+                    return packet;
+                }
+
+                if (_NetworkLock.tryLock()) {
+                    return null;
+                }
+
+                LockSupport.park(this);
+            }
+        } finally {
+            vsock.waiter = null;
+            _Waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Release the network lock and wake up threads waiting for it.
+     */
+    private void releaseNetwork() {
+        _NetworkLock.unlock();
+
+        if (_Waiting.get() > 0) {
+            for (VirtualSocket vsock : _VirtualSockets.values()) {
+                Thread waiter = vsock.waiter;
+
+                if (waiter != null) {
+                    LockSupport.unpark(waiter);
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue a packet read from the network for the virtual socket it belongs
+     * to and wake up its owner if waiting. Must be called holding
+     * {@link #_NetworkLock}.
+     *
+     * @param vsock  the virtual socket owning this data
+     * @param buffer the data to queue
+     */
+    private void routeInput(VirtualSocket vsock, byte buffer[]) throws IOException {
+        _QueueLock.lock();
+
+        try {
+            if (vsock.closed) {
+                releasePacketBuffer(buffer);
+                return;
+            }
+
+            enqueueInput(vsock, buffer);
+        } finally {
+            _QueueLock.unlock();
+        }
+
+        Thread waiter = vsock.waiter;
+
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Retrieve the next queued packet of a virtual socket without waiting.
+     *
+     * @param vsock the virtual socket
+     * @return the packet or <code>null</code> if nothing is queued
+     */
+    private byte[] pollInput(VirtualSocket vsock) throws IOException {
+        if (vsock.inputPkts == 0) {
+            return null;
+        }
+
+        _QueueLock.lock();
+
+        try {
+            return dequeueInput(vsock);
+        } finally {
+            _QueueLock.unlock();
+        }
+    }
+
+   /**
+    * <p> Save a packet buffer in a memory queue or to a disk queue if the
+    * global memory limit for the driver has been exceeded. Must be called
+    * holding {@link #_QueueLock}. </p>
+    *
+    * @param vsock
+    *    the virtual socket owning this data
+    *
+    * @param buffer
+    *    the data to queue
+    */
+   private void enqueueInput( VirtualSocket vsock, byte[] buffer )
+      throws IOException
+   {
+      // check to see if we should start caching to disk
+      if( vsock.pktQueue.size() >= minMemPkts && _Budget.exceeds( buffer.length ) && !securityViolation && vsock.diskQueue == null && vsock.spillQueue == null )
+      {
+         // try to create a disk file for the queue
+         try
+         {
+            if( bufferMappedFile )
+            {
+               if( spillFile == null )
+               {
+                  spillFile = new SpillFile( bufferDir );
+               }
+
+               vsock.spillQueue = spillFile.createQueue();
+            }
+            else
+            {
+               vsock.queueFile = File.createTempFile( "jtds", ".tmp", bufferDir );
+               // vsock.queueFile.deleteOnExit(); memory leak, see http://bugs.java.com/bugdatabase/view_bug.do?bug_id=6664633
+               vsock.diskQueue = new RandomAccessFile( vsock.queueFile, "rw" );
+            }
+
+            _Budget.recordSpill();
+
+            // write current cache contents to disk and free memory
+            byte[] tmpBuf;
+
+            while( vsock.pktQueue.size() > 0 )
+            {
+               tmpBuf = (byte[]) vsock.pktQueue.removeFirst();
+               _Budget.release( tmpBuf.length );
+               writeToDisk( vsock, tmpBuf );
+            }
+         }
+         catch( java.lang.SecurityException se )
+         {
+            // not allowed to cache to disk so carry on in memory
+            securityViolation = true;
+            vsock.queueFile = null;
+            vsock.diskQueue = null;
+            vsock.spillQueue = null;
+         }
+      }
+
+      if( vsock.diskQueue != null || vsock.spillQueue != null )
+      {
+         // cache file exists so append buffer to it
+         writeToDisk( vsock, buffer );
       }
       else
       {
          // will cache in memory
          vsock.pktQueue.addLast( buffer );
-         int gm = _MemUsage.addAndGet( buffer.length );
-
-         if( gm > peakMemUsage )
-         {
-            peakMemUsage = gm;
-         }
+         _Budget.allocate( buffer.length );
+         _Statistics.recordQueuedInMemory();
       }
 
       vsock.inputPkts ++;
    }
 
+   /**
+    * Append a packet buffer to the disk queue of a virtual socket and recycle
+    * the buffer.
+    *
+    * @param vsock
+    *    the virtual socket owning this data
+    *
+    * @param buffer
+    *    the data to queue
+    */
+   private void writeToDisk( VirtualSocket vsock, byte[] buffer )
+      throws IOException
+   {
+      int len = getPktLen( buffer );
+
+      if( vsock.spillQueue != null )
+      {
+         vsock.spillQueue.write( buffer, len );
+      }
+      else
+      {
+         vsock.diskQueue.write( buffer, 0, len );
+      }
+
+      vsock.pktsOnDisk ++;
+      _Budget.recordSpilled( len );
+      _Statistics.recordQueuedOnDisk( len );
+      releasePacketBuffer( buffer );
+   }
+
    /**
     * <p> Read a cached packet from the in memory queue or from a disk based
-    * queue. </p>
+    * queue. Must be called holding {@link #_QueueLock}. </p>
     *
     * @param vsock
     *    the virtual socket owning this data
@@ -809,7 +1384,21 @@ class SharedSocket {
    {
       byte[] buffer = null;
 
-      if( vsock.pktsOnDisk > 0 )
+      if( vsock.pktsOnDisk > 0 && vsock.spillQueue != null )
+      {
+         // data is cached in the memory-mapped file
+         buffer = allocatePacketBuffer( vsock.spillQueue.nextLength() );
+         vsock.spillQueue.read( buffer );
+         vsock.pktsOnDisk --;
+
+         if( vsock.pktsOnDisk < 1 )
+         {
+            // queue now empty, recycle its space in the file
+            vsock.spillQueue.clear();
+            vsock.spillQueue = null;
+         }
+      }
+      else if( vsock.pktsOnDisk > 0 )
       {
          // data is cached on disk
          if( vsock.diskQueue.getFilePointer() == vsock.diskQueue.length() )
@@ -818,12 +1407,12 @@ class SharedSocket {
             vsock.diskQueue.seek( 0L );
          }
 
-         vsock.diskQueue.readFully( hdrBuf, 0, TDS_HDR_LEN );
+         vsock.diskQueue.readFully( queueHdrBuf, 0, TDS_HDR_LEN );
 
-         int len = getPktLen( hdrBuf );
+         int len = getPktLen( queueHdrBuf );
 
-         buffer = new byte[len];
-         System.arraycopy( hdrBuf, 0, buffer, 0, TDS_HDR_LEN );
+         buffer = allocatePacketBuffer( len );
+         System.arraycopy( queueHdrBuf, 0, buffer, 0, TDS_HDR_LEN );
          vsock.diskQueue.readFully( buffer, TDS_HDR_LEN, len - TDS_HDR_LEN );
          vsock.pktsOnDisk--;
 
@@ -845,7 +1434,7 @@ class SharedSocket {
       else if( vsock.pktQueue.size() > 0 )
       {
          buffer = (byte[]) vsock.pktQueue.removeFirst();
-         _MemUsage.addAndGet( -buffer.length );
+         _Budget.release( buffer.length );
       }
 
       if( buffer != null )
@@ -857,7 +1446,9 @@ class SharedSocket {
    }
 
     /**
-     * Read a physical TDS packet from the network.
+     * Read a physical TDS packet from the network and track the end of the
+     * response of the {@link #responseOwner}. Must be called holding
+     * {@link #_NetworkLock}.
      *
      * @param buffer a buffer to read the data into (if it fits) or null
      * @return either the incoming buffer if it was large enough or a newly
@@ -865,15 +1456,44 @@ class SharedSocket {
      */
     private byte[] readPacket(byte buffer[])
             throws IOException {
+        byte[] packet = readTdsPacket(buffer);
+
+        if (checkEndOfResponse(responseOwner, packet)) {
+            // End of response; connection now free
+            responseOwner = null;
+        }
+
+        // The caller's buffer can only be recycled once the new buffer is
+        // successfully returned
+        if (packet != buffer) {
+            releasePacketBuffer(buffer);
+        }
+        return packet;
+    }
+
+    /**
+     * Read a physical TDS packet from the network.
+     *
+     * @param buffer a buffer to read the data into (if it fits) or null, it is
+     *               not recycled if replaced
+     * @return either the incoming buffer if it was large enough or a newly
+     *         allocated buffer with the read packet
+     */
+    private byte[] readTdsPacket(byte buffer[])
+            throws IOException {
+        //
+        // Read the header straight into the caller's buffer if there is one,
+        // it only has to be copied if the buffer turns out to be too small
         //
-        // Read rest of header
+        byte[] header = (buffer != null && buffer.length >= TDS_HDR_LEN) ? buffer : hdrBuf;
+
         try {
-            getIn().readFully(hdrBuf);
+            getIn().readFully(header, 0, TDS_HDR_LEN);
         } catch (EOFException e) {
             throw new IOException("DB server closed connection.");
         }
 
-        byte packetType = hdrBuf[0];
+        byte packetType = header[0];
 
         if (packetType != TdsCore.LOGIN_PKT
                 && packetType != TdsCore.QUERY_PKT
@@ -884,7 +1504,7 @@ class SharedSocket {
         }
 
         // figure out how many bytes are remaining in this packet.
-        int len = getPktLen(hdrBuf);
+        int len = getPktLen(header);
 
         if (len < TDS_HDR_LEN || len > 65536) {
             throw new IOException("Invalid network packet length " + len);
@@ -892,15 +1512,15 @@ class SharedSocket {
 
         if (buffer == null || len > buffer.length) {
             // Create or expand the buffer as required
-            buffer = new byte[len];
+            buffer = allocatePacketBuffer(len);
 
             if (len > maxBufSize) {
                 maxBufSize = len;
             }
-        }
 
-        // Preserve the packet header in the buffer
-        System.arraycopy(hdrBuf, 0, buffer, 0, TDS_HDR_LEN);
+            // Preserve the packet header in the buffer
+            System.arraycopy(header, 0, buffer, 0, TDS_HDR_LEN);
+        }
 
         try {
             getIn().readFully(buffer, TDS_HDR_LEN, len - TDS_HDR_LEN);
@@ -919,60 +1539,443 @@ class SharedSocket {
             buffer[1] = 1;
         }
 
-        synchronized (cancelMonitor) {
-            //
-            // If a cancel request is outstanding check that the last TDS packet
-            // is a TDS_DONE with the "cancek ACK" flag set. If it isn't set the
-            // "more packets" flag; this will ensure that the stream keeps
-            // processing until the "cancel ACK" is processed.
-            //
-            if (cancelPending) {
-                //
-                // Move what we assume to be the TDS_DONE packet into doneBuffer
-                // Reassembly might be required if packet is too short and TDS_DONE record was split
-                // over multiple packets.
-                //
-                int frag = Math.min(TDS_DONE_LEN, len - TDS_HDR_LEN);
-                int keep = TDS_DONE_LEN - frag;
-                System.arraycopy(doneBuffer, frag, doneBuffer, 0, keep); // original portion to keep
-                System.arraycopy(buffer, len - frag, doneBuffer, keep, frag); // new fragment tail
-                doneBufferFrag = Math.min(TDS_DONE_LEN, doneBufferFrag + frag);
-                //
-                // If doneBuffer has not yet been fully filled then this cannot be the last packet.
-                if (doneBufferFrag < TDS_DONE_LEN) {
-                   buffer[1] = 0;
-                }
-                //
-                // If this is the last packet and there is a cancel pending see
-                // if the last packet contains a TDS_DONE token with the cancel
-                // ACK set. If not reset the last packet flag so that the dedicated
-                // cancel packet is also read and processed.
-                //
-                if (buffer[1] == 1) {
-                    if ((doneBuffer[0] & 0xFF) < TDS_DONE_TOKEN) {
-                        throw new IOException("Expecting a TDS_DONE or TDS_DONEPROC.");
-                    }
+        _Statistics.recordReceived(len);
 
-                    if ((doneBuffer[1] & TdsCore.DONE_CANCEL) != 0) {
-                        // OK have a cancel ACK packet
-                        cancelPending = false;
-                    } else {
-                        // Must be in next packet so
-                        // force client to read next packet
-                        buffer[1] = 0;
-                    }
-                }
+        return buffer;
+    }
+
+    /**
+     * Check whether a packet completes the response to a request. Must be
+     * called by the thread reading from the network.
+     *
+     * @param vsock  the virtual socket the response belongs to
+     * @param buffer the packet read, its last packet flag is reset if a cancel
+     *               is pending and the cancel ACK has not yet been read
+     * @return <code>true</code> if the packet is the last one of the response
+     */
+    private boolean checkEndOfResponse(VirtualSocket vsock, byte buffer[])
+            throws IOException {
+        if (vsock == null) {
+            return buffer[1] != 0;
+        }
+
+        int len = getPktLen(buffer);
+        int doneLen = (tdsVersion >= Driver.TDS90) ? TDS_DONE_LEN_TDS90 : TDS_DONE_LEN;
+        byte[] doneBuffer = vsock.doneBuffer;
+        //
+        // Move what we assume to be the TDS_DONE packet into doneBuffer, a
+        // cancel might be sent at any time.
+        // Reassembly might be required if packet is too short and TDS_DONE record was split
+        // over multiple packets.
+        //
+        int frag = Math.min(doneLen, len - TDS_HDR_LEN);
+        int keep = doneLen - frag;
+        System.arraycopy(doneBuffer, frag, doneBuffer, 0, keep); // original portion to keep
+        System.arraycopy(buffer, len - frag, doneBuffer, keep, frag); // new fragment tail
+        vsock.doneBufferFrag = Math.min(doneLen, vsock.doneBufferFrag + frag);
+
+        if (buffer[1] == 0) {
+            return false;
+        }
+
+        AtomicInteger state = vsock.responseState;
+
+        //
+        // The response is complete unless a cancel has been sent; the state
+        // can only change from PENDING to CANCELING concurrently.
+        //
+        if (state.compareAndSet(VirtualSocket.PENDING, VirtualSocket.IDLE)
+                || state.get() == VirtualSocket.IDLE) {
+            vsock.doneBufferFrag = 0;
+            return true;
+        }
+
+        //
+        // If a cancel request is outstanding check that the last TDS packet
+        // is a TDS_DONE with the "cancek ACK" flag set. If it isn't set the
+        // "more packets" flag; this will ensure that the stream keeps
+        // processing until the "cancel ACK" is processed.
+        //
+        // If doneBuffer has not yet been fully filled then this cannot be the last packet.
+        if (vsock.doneBufferFrag < doneLen) {
+            buffer[1] = 0;
+            return false;
+        }
+
+        if ((doneBuffer[0] & 0xFF) < TDS_DONE_TOKEN) {
+            throw new IOException("Expecting a TDS_DONE or TDS_DONEPROC.");
+        }
+
+        if ((doneBuffer[1] & TdsCore.DONE_CANCEL) != 0) {
+            // OK have a cancel ACK packet
+            _Statistics.recordCancelAck(System.nanoTime() - vsock.cancelTime);
+            state.set(VirtualSocket.IDLE);
+            vsock.doneBufferFrag = 0;
+            return true;
+        }
+
+        // Must be in next packet so
+        // force client to read next packet
+        buffer[1] = 0;
+        return false;
+    }
+
+    /**
+     * Send TDS packets on the SMP session of a virtual socket, opening the
+     * session first if necessary. Must be called holding
+     * {@link #_NetworkLock}.
+     *
+     * @param vsock   the virtual socket sending the packets
+     * @param packets the TDS packets to send
+     * @param count   the number of packets to send
+     */
+    private void sendSmpPackets(VirtualSocket vsock, byte packets[][], int count)
+            throws IOException {
+        // Discard the rest of a previous response of this session
+        while (vsock.responseState.get() != VirtualSocket.IDLE) {
+            byte[] packet = readSmpPacket(vsock, null);
+
+            if (packet != null) {
+                releasePacketBuffer(packet);
+                smpConsumed(vsock);
+            }
+        }
+
+        if (!vsock.smpOpen) {
+            vsock.smpRecvWindow = vsock.smpConsumed + smpWindow;
+            writeSmpPacket(SMP_SYN, vsock, null, false);
+            vsock.smpOpen = true;
+        }
+
+        for (int i = 0; i < count; ) {
+            // Wait until the server accepts another packet on this session,
+            // queuing the packets of other sessions meanwhile
+            while (vsock.smpSendWindow - vsock.smpSendSeq <= 0) {
+                readSmpPacket(null, null);
             }
 
-            if (buffer[1] != 0) {
-                // End of response; connection now free
-                responseOwner = null;
+            // Send as many packets as the window allows with a single write
+            _WriteLock.lock();
+            try {
+                do {
+                    gatherSmp(SMP_DATA, vsock, packets[i++]);
+                } while (i < count && vsock.smpSendWindow - vsock.smpSendSeq > 0);
+
+                writeGathered();
+            } finally {
+                _WriteLock.unlock();
             }
         }
 
-        return buffer;
+        if (packets[count - 1][1] != 0) {
+            // The response will arrive on this session, nobody reads it
+            // before the network lock is released
+            vsock.responseState.set(VirtualSocket.PENDING);
+        }
+    }
+
+    /**
+     * Read an SMP packet from the network. The TDS packet of a DATA packet is
+     * returned if it belongs to the calling virtual socket, otherwise it is
+     * queued for its owner. Must be called holding {@link #_NetworkLock}.
+     *
+     * @param caller the calling virtual socket or <code>null</code>
+     * @param buffer a buffer to read the caller's data into (if it fits) or
+     *               null, recycled if replaced
+     * @return the TDS packet for the caller or <code>null</code> if the packet
+     *         read did not carry data for the caller
+     */
+    private byte[] readSmpPacket(VirtualSocket caller, byte buffer[])
+            throws IOException {
+        byte[] hdr = smpInHdr;
+
+        try {
+            getIn().readFully(hdr, 0, SMP_HDR_LEN);
+        } catch (EOFException e) {
+            throw new IOException("DB server closed connection.");
+        }
+
+        if ((hdr[0] & 0xFF) != SMP_ID) {
+            throw new IOException("Invalid SMP packet identifier 0x" +
+                                    Integer.toHexString(hdr[0] & 0xFF));
+        }
+
+        int flags  = hdr[1] & 0xFF;
+        int sid    = (hdr[2] & 0xFF) | (hdr[3] & 0xFF) << 8;
+        int len    = getIntLE(hdr, 4);
+        int window = getIntLE(hdr, 12);
+
+        VirtualSocket vsock = _VirtualSockets.get(sid);
+
+        if (vsock != null && vsock.smpOpen) {
+            vsock.smpSendWindow = window;
+        }
+
+        if (flags == SMP_ACK || flags == SMP_FIN) {
+            // Window update or the server confirming a closed session
+            if (len != SMP_HDR_LEN) {
+                throw new IOException("Invalid SMP packet length " + len);
+            }
+            return null;
+        }
+
+        if (flags != SMP_DATA) {
+            throw new IOException("Invalid SMP packet flags 0x" +
+                                    Integer.toHexString(flags));
+        }
+
+        byte[] packet = readTdsPacket(vsock == caller ? buffer : null);
+
+        if (getPktLen(packet) != len - SMP_HDR_LEN) {
+            throw new IOException("SMP packet of length " + len +
+                                    " does not contain exactly one TDS packet");
+        }
+
+        if (vsock == null) {
+            // Session has already been closed
+            if (packet != buffer) {
+                releasePacketBuffer(packet);
+            }
+            return null;
+        }
+
+        checkEndOfResponse(vsock, packet);
+
+        if (vsock != caller) {
+            routeInput(vsock, packet);
+            return null;
+        }
+
+        if (packet != buffer) {
+            releasePacketBuffer(buffer);
+        }
+        return packet;
     }
 
+    /**
+     * Write an SMP packet to the network.
+     *
+     * @param flags  the SMP packet type
+     * @param vsock  the virtual socket of the session
+     * @param packet the TDS packet of a DATA packet, <code>null</code> otherwise
+     * @param flush  <code>true</code> to write the packet now,
+     *               <code>false</code> to send it along with the next write
+     */
+    private void writeSmpPacket(int flags, VirtualSocket vsock, byte packet[], boolean flush)
+            throws IOException {
+        _WriteLock.lock();
+
+        try {
+            gatherSmp(flags, vsock, packet);
+
+            if (flush) {
+                writeGathered();
+            }
+        } finally {
+            _WriteLock.unlock();
+        }
+    }
+
+    /**
+     * Add an SMP packet to the next write. Must be called holding
+     * {@link #_WriteLock}.
+     *
+     * @param flags  the SMP packet type
+     * @param vsock  the virtual socket of the session
+     * @param packet the TDS packet of a DATA packet, <code>null</code> otherwise
+     */
+    private void gatherSmp(int flags, VirtualSocket vsock, byte packet[]) {
+        int len = (packet == null) ? 0 : getPktLen(packet);
+
+        if (smpOutHdrCount == smpOutHdrs.length) {
+            smpOutHdrs = Arrays.copyOf(smpOutHdrs, smpOutHdrCount + 8);
+
+            for (int i = smpOutHdrCount; i < smpOutHdrs.length; i++) {
+                smpOutHdrs[i] = new byte[SMP_HDR_LEN];
+            }
+        }
+
+        byte[] hdr = smpOutHdrs[smpOutHdrCount++];
+
+        if (flags == SMP_DATA) {
+            vsock.smpSendSeq++;
+        }
+
+        hdr[0] = (byte) SMP_ID;
+        hdr[1] = (byte) flags;
+        hdr[2] = (byte) vsock.id;
+        hdr[3] = (byte) (vsock.id >> 8);
+        putIntLE(hdr, 4, SMP_HDR_LEN + len);
+        putIntLE(hdr, 8, (flags == SMP_SYN) ? 0 : vsock.smpSendSeq);
+        putIntLE(hdr, 12, vsock.smpRecvWindow);
+
+        gather(hdr, SMP_HDR_LEN);
+
+        if (len > 0) {
+            gather(packet, len);
+        }
+    }
+
+    /**
+     * Add a buffer to the next write. Must be called holding
+     * {@link #_WriteLock}.
+     *
+     * @param segment the buffer to send
+     * @param len     the number of bytes to send from the buffer
+     */
+    private void gather(byte segment[], int len) {
+        if (gatherCount == gatherSegs.length) {
+            gatherSegs = Arrays.copyOf(gatherSegs, gatherCount * 2);
+            gatherLens = Arrays.copyOf(gatherLens, gatherCount * 2);
+        }
+
+        gatherSegs[gatherCount] = segment;
+        gatherLens[gatherCount++] = len;
+    }
+
+    /**
+     * Send all buffers added by {@link #gather} and flush the network output.
+     * Must be called holding {@link #_WriteLock}.
+     */
+    private void writeGathered() throws IOException {
+        try {
+            writeSegments(gatherSegs, gatherLens, gatherCount);
+        } finally {
+            // Don't keep the caller's buffers reachable
+            Arrays.fill(gatherSegs, 0, gatherCount, null);
+            gatherCount = 0;
+            smpOutHdrCount = 0;
+        }
+    }
+
+    /**
+     * Write a number of buffers to the network and flush the output. The
+     * buffers are copied into a single buffer, so that a request consisting
+     * of several packets is sent with one write instead of one per packet.
+     * <p/>
+     * Subclasses may override this method to use a gathering write or to
+     * preserve the packet boundaries required by their transport.
+     *
+     * @param segments the buffers to write
+     * @param lengths  the number of bytes to write from each buffer
+     * @param count    the number of buffers
+     * @throws IOException if an I/O error occurs
+     */
+    protected void writeSegments(byte segments[][], int lengths[], int count)
+            throws IOException {
+        DataOutputStream out = getOut();
+
+        if (count == 1) {
+            out.write(segments[0], 0, lengths[0]);
+        } else if (count > 1) {
+            int total = 0;
+
+            for (int i = 0; i < count; i++) {
+                total += lengths[i];
+            }
+
+            if (gatherBuf == null || gatherBuf.length < total) {
+                gatherBuf = new byte[total];
+            }
+
+            for (int i = 0, pos = 0; i < count; pos += lengths[i++]) {
+                System.arraycopy(segments[i], 0, gatherBuf, pos, lengths[i]);
+            }
+
+            out.write(gatherBuf, 0, total);
+        }
+
+        out.flush();
+    }
+
+    /**
+     * Account a packet of an SMP session as consumed and send an ACK to
+     * extend the server's window once half of it has been used.
+     *
+     * @param vsock the virtual socket of the session
+     */
+    private void smpConsumed(VirtualSocket vsock) throws IOException {
+        vsock.smpConsumed++;
+
+        if (vsock.smpOpen && vsock.smpRecvWindow - vsock.smpConsumed <= smpWindow / 2) {
+            vsock.smpRecvWindow = vsock.smpConsumed + smpWindow;
+            writeSmpPacket(SMP_ACK, vsock, null, true);
+        }
+    }
+
+    /**
+     * Convert four bytes in little-endian order into an <code>int</code>.
+     */
+    private static int getIntLE(byte buf[], int off) {
+        return (buf[off] & 0xFF) | (buf[off + 1] & 0xFF) << 8
+                | (buf[off + 2] & 0xFF) << 16 | (buf[off + 3] & 0xFF) << 24;
+    }
+
+    /**
+     * Store an <code>int</code> as four bytes in little-endian order.
+     */
+    private static void putIntLE(byte buf[], int off, int value) {
+        buf[off]     = (byte) value;
+        buf[off + 1] = (byte) (value >> 8);
+        buf[off + 2] = (byte) (value >> 16);
+        buf[off + 3] = (byte) (value >> 24);
+    }
+
+   /**
+    * Sets whether data is buffered to a memory-mapped file shared by all
+    * virtual sockets instead of a temporary file per virtual socket.
+    *
+    * @param mapped
+    *    <code>true</code> to use a memory-mapped file
+    */
+   void setBufferMappedFile( boolean mapped )
+   {
+      bufferMappedFile = mapped;
+   }
+
+   /**
+    * Sets the pool used to recycle packet buffers. Buffers handed out by a
+    * previous pool are silently dropped when they are released.
+    *
+    * @param pool
+    *    the pool to use or <code>null</code> to disable recycling
+    */
+   void setBufferPool( PacketBufferPool pool )
+   {
+      bufferPool = pool;
+   }
+
+   /**
+    * Retrieves a packet buffer from the pool or allocates a new one.
+    *
+    * @param length
+    *    the minimum length of the buffer
+    *
+    * @return
+    *    a buffer with at least <code>length</code> bytes
+    */
+   byte[] allocatePacketBuffer( int length )
+   {
+      PacketBufferPool pool = bufferPool;
+      return pool != null ? pool.acquire( length ) : new byte[length];
+   }
+
+   /**
+    * Returns a packet buffer no longer used by the caller to the pool.
+    *
+    * @param buffer
+    *    the buffer to release, may be <code>null</code>
+    */
+   void releasePacketBuffer( byte[] buffer )
+   {
+      PacketBufferPool pool = bufferPool;
+
+      if( pool != null )
+      {
+         pool.release( buffer );
+      }
+   }
+
     /**
      * Convert two bytes (in network byte order) in a byte array into a Java
      * short integer.
@@ -1041,6 +2044,16 @@ class SharedSocket {
         this.out = out;
     }
 
+    /**
+     * Getter for {@link SharedSocket#socket} field.
+     *
+     * @return the network {@link Socket} or <code>null</code> if not connected
+     *         via TCP/IP
+     */
+    protected Socket getSocket() {
+        return socket;
+    }
+
     /**
      * Get the server host name.
      *
@@ -0,0 +1,596 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sourceforge.jtds.util.Logger;
+
+/**
+ * This class implements the network transport to the database server using a
+ * non-blocking {@link SocketChannel}.
+ * <p>
+ * Incoming data is read into a pooled direct {@link ByteBuffer} that is large
+ * enough to hold several TDS packets, so a single read from the network will
+ * usually satisfy both the header and the body of one or more packets. The
+ * packets are then transferred straight from the receive buffer into the
+ * packet buffers parsed by {@link ResponseStream}, without the intermediate
+ * copies and per-read system calls of the stream based transport.
+ * </p>
+ * Socket timeouts are implemented using a {@link Selector}, the channel is
+ * never used in blocking mode after the connection has been established.
+ * <p>
+ * This transport cannot be combined with SSL/TLS, the caller has to fall back
+ * to a plain {@link SharedSocket} if encryption is requested.
+ * </p>
+ */
+class SharedSocketChannel extends SharedSocket
+{
+
+   /**
+    * size of the direct receive buffers, large enough for two maximum sized
+    * TDS packets
+    */
+   static final int                      RECEIVE_BUFFER_SIZE = 2 * 65536;
+
+   /**
+    * maximum number of idle direct buffers kept in the pool
+    */
+   private static final int              MAX_POOLED_BUFFERS  = 64;
+
+   /**
+    * driver-wide pool of idle direct receive buffers; direct buffers are
+    * expensive to allocate and are never reclaimed by a young generation GC
+    */
+   private static final Queue<ByteBuffer> _BufferPool        = new ConcurrentLinkedQueue<ByteBuffer>();
+
+   /**
+    * number of buffers currently held by {@link #_BufferPool}
+    */
+   private static final AtomicInteger    _PoolSize           = new AtomicInteger();
+
+   /**
+    * the network channel
+    */
+   private final SocketChannel           _Channel;
+
+   /**
+    * selector used to wait for incoming data
+    */
+   private final Selector                _ReadSelector;
+
+   /**
+    * selector used to wait for the network to accept outgoing data
+    */
+   private final Selector                _WriteSelector;
+
+   /**
+    * receive buffer, always kept in read mode (flipped)
+    */
+   private final ByteBuffer              _Receive;
+
+   /**
+    * state flag, set while a thread is using the receive buffer
+    */
+   private static final int              READING             = 1;
+
+   /**
+    * state flag, set once the transport has been closed
+    */
+   private static final int              CLOSED              = 2;
+
+   /**
+    * combination of {@link #READING} and {@link #CLOSED}, used to make sure the
+    * receive buffer is not returned to the pool while it's still in use
+    */
+   private final AtomicInteger           _State              = new AtomicInteger();
+
+   /**
+    * Creates a new instance of <code>SharedSocketChannel</code>.
+    *
+    * @param connection
+    *    the connection object
+    *
+    * @throws IOException
+    *    if the connection to the server cannot be established
+    */
+   SharedSocketChannel( JtdsConnection connection )
+      throws IOException
+   {
+      super( connection, openChannel( connection ) );
+
+      _Channel = getSocket().getChannel();
+
+      boolean success = false;
+      Selector read  = null;
+      Selector write = null;
+
+      try
+      {
+         _Channel.configureBlocking( false );
+         read  = Selector.open();
+         write = Selector.open();
+         _Channel.register( read , SelectionKey.OP_READ  );
+         _Channel.register( write, SelectionKey.OP_WRITE );
+         success = true;
+      }
+      finally
+      {
+         if( ! success )
+         {
+            closeQuietly( read  );
+            closeQuietly( write );
+            _Channel.close();
+         }
+      }
+
+      _ReadSelector  = read;
+      _WriteSelector = write;
+
+      _Receive = acquireBuffer();
+      _Receive.flip();
+
+      setOut( new DataOutputStream( new ChannelOutputStream() ) );
+      setIn ( new DataInputStream ( new ChannelInputStream () ) );
+
+      if( Logger.isActive() )
+      {
+         Logger.println( "TdsSocket: Using NIO transport" );
+      }
+   }
+
+   /**
+    * Opens and connects a {@link SocketChannel} to the server, applying the
+    * bind address and the login timeout of the connection.
+    *
+    * @param connection
+    *    the connection object
+    *
+    * @return
+    *    the {@link Socket} view of the connected channel
+    */
+   private static Socket openChannel( JtdsConnection connection )
+      throws IOException
+   {
+      final String bindAddress = connection.getBindAddress();
+
+      SocketChannel channel = SocketChannel.open();
+
+      try
+      {
+         Socket socket = channel.socket();
+
+         // call Socket.bind(SocketAddress) if bindAddress parameter is set
+         if( bindAddress != null && ! bindAddress.isEmpty() )
+         {
+            socket.bind( new InetSocketAddress( bindAddress, 0 ) );
+         }
+
+         // establish connection, still in blocking mode to honor the timeout
+         socket.connect( new InetSocketAddress( connection.getServerName(), connection.getPortNumber() ), connection.getLoginTimeout() * 1000 );
+         return socket;
+      }
+      catch( IOException ioe )
+      {
+         channel.close();
+         throw ioe;
+      }
+   }
+
+   /**
+    * Enabling TLS is not supported for the channel based transport.
+    */
+   void enableEncryption( String ssl )
+      throws IOException
+   {
+      throw new IOException( "TLS encryption is not supported by the NIO transport" );
+   }
+
+   /**
+    * Close the socket and release all resources.
+    */
+   void close()
+      throws IOException
+   {
+      try
+      {
+         super.close();
+      }
+      finally
+      {
+         releaseResources();
+      }
+   }
+
+   /**
+    * Force close the socket causing any pending reads/writes to fail.
+    */
+   void forceClose()
+   {
+      try
+      {
+         super.forceClose();
+      }
+      finally
+      {
+         // a thread blocked in select() is not woken up by closing the channel
+         _ReadSelector.wakeup();
+         _WriteSelector.wakeup();
+      }
+   }
+
+   /**
+    * Closes the selectors and returns the receive buffer to the pool, unless
+    * it's currently in use by a reading thread. In that case the buffer will
+    * be released by that thread.
+    */
+   private void releaseResources()
+   {
+      closeQuietly( _ReadSelector  );
+      closeQuietly( _WriteSelector );
+
+      while( true )
+      {
+         int state = _State.get();
+
+         if( ( state & CLOSED ) != 0 )
+         {
+            return;
+         }
+
+         if( _State.compareAndSet( state, state | CLOSED ) )
+         {
+            if( ( state & READING ) == 0 )
+            {
+               releaseBuffer( _Receive );
+            }
+
+            return;
+         }
+      }
+   }
+
+   /**
+    * Marks the receive buffer as being in use.
+    *
+    * @throws SocketException
+    *    if the transport has already been closed
+    */
+   private void beginRead()
+      throws SocketException
+   {
+      while( true )
+      {
+         int state = _State.get();
+
+         if( ( state & CLOSED ) != 0 )
+         {
+            throw new SocketException( "Socket closed" );
+         }
+
+         if( _State.compareAndSet( state, state | READING ) )
+         {
+            return;
+         }
+      }
+   }
+
+   /**
+    * Marks the receive buffer as no longer in use, releasing it if the
+    * transport has been closed in the meantime.
+    */
+   private void endRead()
+   {
+      while( true )
+      {
+         int state = _State.get();
+
+         if( _State.compareAndSet( state, state & ~READING ) )
+         {
+            if( ( state & CLOSED ) != 0 )
+            {
+               releaseBuffer( _Receive );
+            }
+
+            return;
+         }
+      }
+   }
+
+   /**
+    * Waits until the channel becomes ready for the given operation.
+    *
+    * @param selector
+    *    the selector the channel is registered with for the operation
+    *
+    * @param timeout
+    *    timeout in milliseconds, 0 to wait forever
+    *
+    * @throws SocketTimeoutException
+    *    if the timeout expired before the channel became ready
+    *
+    * @throws InterruptedIOException
+    *    if the thread has been interrupted, the interrupt status is preserved
+    */
+   private void await( Selector selector, int timeout )
+      throws IOException
+   {
+      long start = timeout > 0 ? System.currentTimeMillis() : 0;
+      long left  = timeout;
+
+      while( true )
+      {
+         int ready;
+
+         try
+         {
+            ready = selector.select( left );
+            selector.selectedKeys().clear();
+         }
+         catch( ClosedSelectorException cse )
+         {
+            throw new SocketException( "Socket closed" );
+         }
+
+         // the channel might have been closed by forceClose()
+         if( ! _Channel.isOpen() )
+         {
+            throw new SocketException( "Socket closed" );
+         }
+
+         if( ready > 0 )
+         {
+            return;
+         }
+
+         // select() returns at once while the interrupt status is set
+         if( Thread.currentThread().isInterrupted() )
+         {
+            throw new InterruptedIOException( "Thread interrupted" );
+         }
+
+         if( timeout > 0 )
+         {
+            left = timeout - ( System.currentTimeMillis() - start );
+
+            if( left <= 0 )
+            {
+               throw new SocketTimeoutException( "Read timed out" );
+            }
+         }
+      }
+   }
+
+   /**
+    * Retrieves a direct buffer from the pool or allocates a new one.
+    */
+   private static ByteBuffer acquireBuffer()
+   {
+      ByteBuffer buffer = _BufferPool.poll();
+
+      if( buffer == null )
+      {
+         return ByteBuffer.allocateDirect( RECEIVE_BUFFER_SIZE );
+      }
+
+      _PoolSize.decrementAndGet();
+      buffer.clear();
+      return buffer;
+   }
+
+   /**
+    * Returns a direct buffer to the pool, the buffer is dropped if the pool is
+    * already full.
+    */
+   private static void releaseBuffer( ByteBuffer buffer )
+   {
+      if( _PoolSize.incrementAndGet() <= MAX_POOLED_BUFFERS )
+      {
+         _BufferPool.offer( buffer );
+      }
+      else
+      {
+         _PoolSize.decrementAndGet();
+      }
+   }
+
+   private static void closeQuietly( Selector selector )
+   {
+      if( selector != null )
+      {
+         try
+         {
+            selector.close();
+         }
+         catch( IOException e )
+         {
+            // ignore
+         }
+      }
+   }
+
+   /**
+    * <code>InputStream</code> serving data from the receive buffer, refilling
+    * it from the channel as required.
+    */
+   private class ChannelInputStream extends InputStream
+   {
+
+      public int read()
+         throws IOException
+      {
+         beginRead();
+
+         try
+         {
+            if( ! fill() )
+            {
+               return -1;
+            }
+
+            return _Receive.get() & 0xFF;
+         }
+         finally
+         {
+            endRead();
+         }
+      }
+
+      public int read( byte[] b, int off, int len )
+         throws IOException
+      {
+         if( len == 0 )
+         {
+            return 0;
+         }
+
+         beginRead();
+
+         try
+         {
+            if( ! fill() )
+            {
+               return -1;
+            }
+
+            int count = Math.min( len, _Receive.remaining() );
+            _Receive.get( b, off, count );
+            return count;
+         }
+         finally
+         {
+            endRead();
+         }
+      }
+
+      /**
+       * Ensures there is at least one byte available in the receive buffer.
+       *
+       * @return
+       *    <code>false</code> if the end of the stream has been reached
+       */
+      private boolean fill()
+         throws IOException
+      {
+         while( ! _Receive.hasRemaining() )
+         {
+            _Receive.clear();
+
+            int count;
+
+            try
+            {
+               count = _Channel.read( _Receive );
+
+               if( count == 0 )
+               {
+                  await( _ReadSelector, _Channel.socket().getSoTimeout() );
+                  count = _Channel.read( _Receive );
+               }
+            }
+            finally
+            {
+               _Receive.flip();
+            }
+
+            if( count < 0 )
+            {
+               return false;
+            }
+         }
+
+         return true;
+      }
+
+   }
+
+   /**
+    * Writes the buffers with a single gathering write to the channel instead
+    * of copying them into one buffer first.
+    */
+   protected void writeSegments( byte[][] segments, int[] lengths, int count )
+      throws IOException
+   {
+      ByteBuffer[] buffers   = new ByteBuffer[count];
+      long         remaining = 0;
+
+      for( int i = 0; i < count; i ++ )
+      {
+         buffers[i] = ByteBuffer.wrap( segments[i], 0, lengths[i] );
+         remaining += lengths[i];
+      }
+
+      while( remaining > 0 )
+      {
+         long written = _Channel.write( buffers );
+
+         if( written == 0 )
+         {
+            await( _WriteSelector, 0 );
+         }
+
+         remaining -= written;
+      }
+   }
+
+   /**
+    * <code>OutputStream</code> writing directly to the channel.
+    */
+   private class ChannelOutputStream extends OutputStream
+   {
+
+      public void write( int b )
+         throws IOException
+      {
+         write( new byte[] { (byte) b }, 0, 1 );
+      }
+
+      public void write( byte[] b, int off, int len )
+         throws IOException
+      {
+         ByteBuffer buffer = ByteBuffer.wrap( b, off, len );
+
+         while( buffer.hasRemaining() )
+         {
+            if( _Channel.write( buffer ) == 0 )
+            {
+               await( _WriteSelector, 0 );
+            }
+         }
+      }
+
+   }
+
+}
@@ -0,0 +1,293 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Memory-mapped, append-only spill file for the packet queues of all
+ * {@link SharedSocket.VirtualSocket}s of a connection.
+ * <p>
+ * The file is divided into segments of {@link #SEGMENT_SIZE} bytes that are
+ * mapped into memory once and then recycled, each {@link Queue} owning a chain
+ * of segments. Packets are appended to the last segment of a queue and read
+ * from the first one by plain memory copies, without any system call. A
+ * segment is returned to the connection's free list as soon as it has been
+ * read completely, so the file only grows with the amount of data that is
+ * spilled at the same time.
+ * </p>
+ * Instances of this class are not thread-safe, the caller has to synchronize
+ * all access.
+ */
+final class SpillFile
+{
+
+   /**
+    * size of a single segment of the spill file, large enough for many
+    * maximum sized TDS packets
+    */
+   static final int                           SEGMENT_SIZE = 1 << 22;
+
+   /**
+    * marker written to a segment's remaining space if the next packet did not
+    * fit; TDS packets never start with a zero packet type
+    */
+   private static final byte                  END_MARKER   = 0;
+
+   /**
+    * mapped segments, indexed by their position in the file
+    */
+   private final List<MappedByteBuffer>       _Segments    = new ArrayList<MappedByteBuffer>();
+
+   /**
+    * indices of the segments currently not used by any queue
+    */
+   private final ArrayDeque<Integer>          _Free        = new ArrayDeque<Integer>();
+
+   /**
+    * the spill file
+    */
+   private File                               _File;
+
+   /**
+    * the open spill file
+    */
+   private RandomAccessFile                   _Access;
+
+   /**
+    * Creates a new, empty spill file.
+    *
+    * @param directory
+    *    the directory to create the file in
+    *
+    * @throws IOException
+    *    if the file cannot be created
+    */
+   SpillFile( File directory )
+      throws IOException
+   {
+      _File   = File.createTempFile( "jtds", ".tmp", directory );
+      _Access = new RandomAccessFile( _File, "rw" );
+   }
+
+   /**
+    * Creates a new, empty packet queue backed by this file.
+    */
+   Queue createQueue()
+   {
+      return new Queue();
+   }
+
+   /**
+    * Retrieves the number of segments mapped so far.
+    */
+   int getSegmentCount()
+   {
+      return _Segments.size();
+   }
+
+   /**
+    * Retrieves the number of segments currently not used by any queue.
+    */
+   int getFreeSegmentCount()
+   {
+      return _Free.size();
+   }
+
+   /**
+    * Closes and deletes the spill file. All queues created by this instance
+    * become unusable.
+    */
+   void close()
+   {
+      _Segments.clear();
+      _Free.clear();
+
+      if( _Access != null )
+      {
+         try
+         {
+            _Access.close();
+         }
+         catch( IOException ioe )
+         {
+            // ignore errors
+         }
+         finally
+         {
+            // might fail on some platforms until the mappings are reclaimed
+            _File.delete();
+            _Access = null;
+            _File   = null;
+         }
+      }
+   }
+
+   /**
+    * Takes a segment from the free list or maps a new one at the end of the
+    * file.
+    *
+    * @return
+    *    the index of the segment
+    */
+   private int allocateSegment()
+      throws IOException
+   {
+      Integer free = _Free.pollFirst();
+
+      if( free != null )
+      {
+         return free.intValue();
+      }
+
+      int index = _Segments.size();
+      _Segments.add( _Access.getChannel().map( FileChannel.MapMode.READ_WRITE, (long) index * SEGMENT_SIZE, SEGMENT_SIZE ) );
+      return index;
+   }
+
+   /**
+    * Returns a segment to the free list. Recently used segments are reused
+    * first, their pages are most likely still resident.
+    */
+   private void freeSegment( int index )
+   {
+      _Free.addFirst( index );
+   }
+
+   /**
+    * FIFO queue of TDS packets stored in a chain of segments of the spill
+    * file.
+    */
+   final class Queue
+   {
+
+      /**
+       * indices of the segments owned by this queue, in read order
+       */
+      private final ArrayDeque<Integer> _Chain = new ArrayDeque<Integer>();
+
+      /**
+       * read view of the first segment in the chain
+       */
+      private ByteBuffer                _Head;
+
+      /**
+       * write view of the last segment in the chain
+       */
+      private ByteBuffer                _Tail;
+
+      /**
+       * Appends a packet to the queue.
+       *
+       * @param packet
+       *    buffer holding the TDS packet, including the header
+       *
+       * @param length
+       *    the length of the packet
+       */
+      void write( byte[] packet, int length )
+         throws IOException
+      {
+         if( _Tail == null || _Tail.remaining() < length )
+         {
+            if( _Tail != null && _Tail.hasRemaining() )
+            {
+               _Tail.put( END_MARKER );
+            }
+
+            int segment = allocateSegment();
+            _Chain.addLast( segment );
+            _Tail = _Segments.get( segment ).duplicate();
+
+            if( _Head == null )
+            {
+               _Head = _Segments.get( segment ).duplicate();
+            }
+         }
+
+         _Tail.put( packet, 0, length );
+      }
+
+      /**
+       * Retrieves the length of the next packet in the queue. The caller has
+       * to make sure that the queue is not empty.
+       */
+      int nextLength()
+      {
+         advance();
+
+         int pos = _Head.position();
+         return ( ( _Head.get( pos + 2 ) & 0xFF ) << 8 ) | ( _Head.get( pos + 3 ) & 0xFF );
+      }
+
+      /**
+       * Reads the next packet from the queue. The caller has to make sure that
+       * the queue is not empty.
+       *
+       * @param buffer
+       *    buffer to receive the packet, at least {@link #nextLength()} bytes
+       *
+       * @return
+       *    the length of the packet
+       */
+      int read( byte[] buffer )
+      {
+         int length = nextLength();
+         _Head.get( buffer, 0, length );
+         return length;
+      }
+
+      /**
+       * Releases all segments of this queue, discarding any unread packets.
+       * The queue can be reused afterwards.
+       */
+      void clear()
+      {
+         while( ! _Chain.isEmpty() )
+         {
+            freeSegment( _Chain.pollFirst().intValue() );
+         }
+
+         _Head = null;
+         _Tail = null;
+      }
+
+      /**
+       * Moves the read view to the next segment if the current one has been
+       * read completely, recycling the exhausted segment.
+       */
+      private void advance()
+      {
+         if( ! _Head.hasRemaining() || _Head.get( _Head.position() ) == END_MARKER )
+         {
+            freeSegment( _Chain.pollFirst().intValue() );
+            _Head = _Segments.get( _Chain.peekFirst().intValue() ).duplicate();
+         }
+      }
+
+   }
+
+}
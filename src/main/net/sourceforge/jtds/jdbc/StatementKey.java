@@ -0,0 +1,171 @@
+//jTDS JDBC Driver for Microsoft SQL Server and Sybase
+//Copyright (C) 2004 The jTDS Project
+//
+//This library is free software; you can redistribute it and/or
+//modify it under the terms of the GNU Lesser General Public
+//License as published by the Free Software Foundation; either
+//version 2.1 of the License, or (at your option) any later version.
+//
+//This library is distributed in the hope that it will be useful,
+//but WITHOUT ANY WARRANTY; without even the implied warranty of
+//MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//Lesser General Public License for more details.
+//
+//You should have received a copy of the GNU Lesser General Public
+//License along with this library; if not, write to the Free Software
+//Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.jdbc;
+
+import java.util.Arrays;
+
+/**
+ * Key of a prepared statement in the statement cache of a connection.
+ * <p/>
+ * The key consists of the SQL text, the current database and the native
+ * types of the parameters on Microsoft SQL Server, as procedures and handles
+ * are database specific and a statement has to be prepared separately for
+ * each combination of parameter types. On Sybase it consists of the SQL text
+ * and the auto commit mode, i.e. whether the procedure is created in chained
+ * mode.
+ * <p/>
+ * The hash code is computed once. A <code>JtdsPreparedStatement</code> keeps
+ * the key of its last execution and reuses it as long as it
+ * {@link #matches matches} the execution, so the key of a statement executed
+ * repeatedly is neither rebuilt nor rehashed.
+ */
+final class StatementKey {
+    /** Distinguishes cursor and non cursor statements, or the commit mode. */
+    private final char flag;
+    /** The current database or <code>null</code> for Sybase. */
+    private final String catalog;
+    /** The SQL text of the statement. */
+    private final String sql;
+    /** The native parameter types or <code>null</code> for Sybase. */
+    private final String[] types;
+    /** The hash code of the key. */
+    private final int hash;
+
+    /**
+     * Constructs the key of a statement.
+     *
+     * @param sql        the sql statement to generate the key for
+     * @param params     the statement parameters, with their native types set
+     * @param serverType the type of server to generate the key for
+     * @param catalog    the catalog is required for uniqueness on Microsoft
+     *                   SQL Server
+     * @param autoCommit true if in auto commit mode
+     * @param cursor     true if this is a prepared cursor
+     */
+    StatementKey(String sql, ParamInfo[] params, int serverType,
+                 String catalog, boolean autoCommit, boolean cursor) {
+        this.sql = sql;
+
+        if (serverType == Driver.SQLSERVER) {
+            // Need to distinguish otherwise identical SQL for cursor and
+            // non cursor prepared statements (sp_prepare/sp_cursorprepare).
+            flag = (cursor) ? 'C' : 'X';
+            this.catalog = catalog;
+            types = new String[params.length];
+
+            for (int i = 0; i < params.length; i++) {
+                types[i] = params[i].sqlType;
+            }
+        } else {
+            flag = (autoCommit) ? 'T' : 'F';
+            this.catalog = null;
+            types = null;
+        }
+
+        int h = flag;
+        h = 31 * h + ((this.catalog == null) ? 0 : this.catalog.hashCode());
+        h = 31 * h + sql.hashCode();
+        h = 31 * h + Arrays.hashCode(types);
+        hash = h;
+    }
+
+    /**
+     * Determines whether this key is the key of a statement execution, i.e.
+     * whether a new key constructed from the same arguments would be equal
+     * to this one.
+     *
+     * @param sql        the sql statement
+     * @param params     the statement parameters, with their native types set
+     * @param serverType the type of server
+     * @param catalog    the current database
+     * @param autoCommit true if in auto commit mode
+     * @param cursor     true if this is a prepared cursor
+     * @return <code>true</code> if this key can be used for the execution
+     */
+    boolean matches(String sql, ParamInfo[] params, int serverType,
+                    String catalog, boolean autoCommit, boolean cursor) {
+        if (!this.sql.equals(sql)) {
+            return false;
+        }
+
+        if (serverType != Driver.SQLSERVER) {
+            return types == null && flag == ((autoCommit) ? 'T' : 'F');
+        }
+
+        if (types == null || flag != ((cursor) ? 'C' : 'X')
+                || (this.catalog == null ? catalog != null
+                        : !this.catalog.equals(catalog))
+                || types.length != params.length) {
+            return false;
+        }
+
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == null ? params[i].sqlType != null
+                    : !types[i].equals(params[i].sqlType)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public int hashCode() {
+        return hash;
+    }
+
+    public boolean equals(Object object) {
+        if (object == this) {
+            return true;
+        }
+
+        if (!(object instanceof StatementKey)) {
+            return false;
+        }
+
+        StatementKey key = (StatementKey) object;
+
+        return hash == key.hash
+                && flag == key.flag
+                && sql.equals(key.sql)
+                && (catalog == null ? key.catalog == null : catalog.equals(key.catalog))
+                && Arrays.equals(types, key.types);
+    }
+
+    /**
+     * Retrieves the key in its string form: the flag, the catalog, the SQL
+     * text and the parameter types.
+     *
+     * @return the key as a <code>String</code>
+     */
+    public String toString() {
+        StringBuilder key = new StringBuilder(
+                1 + ((catalog == null) ? 0 : catalog.length()) + sql.length()
+                + 11 * ((types == null) ? 0 : types.length));
+
+        key.append(flag);
+        if (catalog != null) {
+            key.append(catalog);
+        }
+        key.append(sql);
+        for (int i = 0; types != null && i < types.length; i++) {
+            key.append(types[i]);
+        }
+
+        return key.toString();
+    }
+}
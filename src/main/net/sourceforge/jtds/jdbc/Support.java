@@ -108,6 +108,7 @@ public class Support {
         typeMap.put(Clob.class,               new Integer(java.sql.Types.LONGVARCHAR));
         // bug #626
         typeMap.put(BigInteger.class,         new Integer(java.sql.Types.BIGINT));
+        typeMap.put(JtdsDataTable.class,      new Integer(JtdsStatement.STRUCTURED));
     }
 
     /**
@@ -629,6 +630,13 @@ public class Support {
                 case java.sql.Types.OTHER:
                     return x;
 
+                case JtdsStatement.STRUCTURED:
+                    if (x instanceof JtdsDataTable) {
+                        return x;
+                    }
+
+                    break;
+
                 case java.sql.Types.JAVA_OBJECT:
                     throw new SQLException(
                             Messages.get("error.convert.badtypes",
@@ -824,6 +832,7 @@ public class Support {
             case java.sql.Types.REF:           return "REF";
             case java.sql.Types.SMALLINT:      return "SMALLINT";
             case java.sql.Types.STRUCT:        return "STRUCT";
+            case JtdsStatement.STRUCTURED:     return "STRUCTURED";
             case java.sql.Types.TIME:          return "TIME";
             case java.sql.Types.TIMESTAMP:     return "TIMESTAMP";
             case java.sql.Types.TINYINT:       return "TINYINT";
@@ -1008,52 +1017,6 @@ public class Support {
         buf.append(' ');
     }
 
-    /**
-     * Generates a unique statement key for a given SQL statement.
-     *
-     * @param sql        the sql statement to generate the key for
-     * @param params     the statement parameters
-     * @param serverType the type of server to generate the key for
-     * @param catalog    the catalog is required for uniqueness on Microsoft
-     *                   SQL Server
-     * @param autoCommit true if in auto commit mode
-     * @param cursor     true if this is a prepared cursor
-     * @return the unique statement key
-     */
-    static String getStatementKey(String sql, ParamInfo[] params,
-                                  int serverType, String catalog,
-                                  boolean autoCommit, boolean cursor) {
-        StringBuilder key;
-
-        if (serverType == Driver.SQLSERVER) {
-            key = new StringBuilder(1 + catalog.length() + sql.length()
-                    + 11 * params.length);
-            // Need to distinguish otherwise identical SQL for cursor and
-            // non cursor prepared statements (sp_prepare/sp_cursorprepare).
-            key.append((cursor) ? 'C':'X');
-            // Need to ensure that the current database is included in the key
-            // as procedures and handles are database specific.
-            key.append(catalog);
-            // Now the actual SQL statement
-            key.append(sql);
-            //
-            // Append parameter data types to key.
-            //
-            for (int i = 0; i < params.length; i++) {
-                key.append(params[i].sqlType);
-            }
-        } else {
-            key = new StringBuilder(sql.length() + 2);
-            // A simple key works for Sybase just need to know if
-            // proc created in chained mode or not.
-            key.append((autoCommit) ? 'T': 'F');
-            // Now the actual SQL statement
-            key.append(sql);
-        }
-
-        return key.toString();
-    }
-
     /**
      * Constructs a parameter definition string for use with
      * sp_executesql, sp_prepare, sp_prepexec, sp_cursoropen,
@@ -1158,6 +1121,11 @@ public class Support {
 
             Object value = list[i].value;
 
+            if (value instanceof JtdsDataTable) {
+                // Table-valued parameters cannot be embedded into the SQL
+                throw new SQLException(Messages.get("error.tvp.notprepared"), "HYC00");
+            }
+
             if (value instanceof java.io.InputStream
                     || value instanceof java.io.Reader) {
                 try {
@@ -30,6 +30,8 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.ietf.jgss.GSSContext;
 import org.ietf.jgss.GSSException;
@@ -138,6 +140,7 @@ public class TdsCore {
                    || token == TDS5_WIDE_RESULT
                    || token == TDS_COLINFO_TOKEN
                    || token == TDS_ROW_TOKEN
+                   || token == TDS_NBCROW_TOKEN
                    || token == ALTMETADATA_TOKEN
                    || token == TDS_ALTROW;
         }
@@ -149,7 +152,7 @@ public class TdsCore {
          *    <code>true</code> if the current token is a result row.
          */
         public boolean isRowData() {
-            return token == TDS_ROW_TOKEN || token == TDS_ALTROW;
+            return token == TDS_ROW_TOKEN || token == TDS_NBCROW_TOKEN || token == TDS_ALTROW;
         }
 
     }
@@ -187,6 +190,8 @@ public class TdsCore {
     public static final byte REPLY_PKT = 4;
     /** TDS Cancel packet. */
     public static final byte CANCEL_PKT = 6;
+    /** TDS 7.0 Bulk load packet. */
+    public static final byte BULKLOAD_PKT = 7;
     /** TDS MSDTC packet. */
     public static final byte MSDTC_PKT = 14;
     /** TDS 5.0 Query packet. */
@@ -253,6 +258,8 @@ public class TdsCore {
     private static final byte TDS_CONTROL_TOKEN     = (byte) 174;  // 0xAE
     /** TDS Result set data row token. */
     private static final byte TDS_ROW_TOKEN         = (byte) 209;  // 0xD1
+    /** TDS 7.3 result set data row token with null bitmap. (NBCROW) */
+    private static final byte TDS_NBCROW_TOKEN      = (byte) 210;  // 0xD2
     /** TDS Computed result set data row token. (TDS_ALTROW) */
     private static final byte TDS_ALTROW            = (byte) 211;  // 0xD3
     /** TDS 5.0 parameter value token. */
@@ -295,12 +302,48 @@ public class TdsCore {
     private static final byte TDS_ENV_LCID          = (byte) 5;
     /** Environment change: TDS 8 collation changed. */
     private static final byte TDS_ENV_SQLCOLLATION  = (byte) 7; // TDS8 Collation
+    /** Environment change: TDS 7.2 transaction started. */
+    private static final byte TDS_ENV_BEGINTRAN     = (byte) 8;
+    /** Environment change: TDS 7.2 transaction committed. */
+    private static final byte TDS_ENV_COMMITTRAN    = (byte) 9;
+    /** Environment change: TDS 7.2 transaction rolled back. */
+    private static final byte TDS_ENV_ROLLBACKTRAN  = (byte) 10;
+    /** Environment change: TDS 7.2 enlisted in a distributed transaction. */
+    private static final byte TDS_ENV_ENLISTDTC     = (byte) 11;
+    /** Environment change: TDS 7.2 defected from a distributed transaction. */
+    private static final byte TDS_ENV_DEFECTDTC     = (byte) 12;
+    /** Environment change: TDS 7.2 transaction ended by the server. */
+    private static final byte TDS_ENV_TRANENDED     = (byte) 17;
+
+    //
+    // TDS 7.2 request headers
+    //
+    /** Total length of the ALL_HEADERS stream sent with each request. */
+    private static final int ALL_HEADERS_LEN        = 22;
+    /** Transaction descriptor header type. */
+    private static final short HEADER_TRANSACTION   = 2;
+    /** Prelogin option: Multiple Active Result Sets. */
+    private static final byte PRELOGIN_MARS         = 4;
 
     //
     // Static variables used only for performance
     //
     /** Used to optimize the {@link #getParameters()} call */
     private static final ParamInfo[] EMPTY_PARAMETER_INFO = new ParamInfo[0];
+    /**
+     * Statements a SQL batch may start with to be prefixed with the
+     * statements setting the row count and text size. Batches starting with
+     * anything else, e.g. a <code>CREATE VIEW</code> or a procedure call
+     * without <code>EXEC</code>, have to be the first statement of a batch.
+     * <code>SET</code> is left out as options such as
+     * <code>SHOWPLAN_XML</code> or <code>PARSEONLY</code> have to be the only
+     * statement of a batch.
+     */
+    private static final String[] PREFIXABLE_STATEMENTS = {
+        "BEGIN", "COMMIT", "DECLARE", "DELETE", "EXEC", "EXECUTE", "IF",
+        "INSERT", "MERGE", "PRINT", "RAISERROR", "ROLLBACK", "SAVE", "SELECT",
+        "THROW", "TRUNCATE", "UPDATE", "WHILE", "WITH"
+    };
 
     //
     // End token status bytes
@@ -318,6 +361,8 @@ public class TdsCore {
      * response is terminated by a DONE packet with this flag set).
      */
     private static final byte DONE_END_OF_RESPONSE  = (byte) 0x80;
+    /** TDS 7.2 separator of batched RPC requests. */
+    private static final byte RPC_BATCH_SEPARATOR   = (byte) 0xFF;
 
     //
     // Prepared SQL types
@@ -409,6 +454,26 @@ public class TdsCore {
     private Object[] rowData;
     /** The array of computed column data objects in the current row. */
     private Object[] computedRowData;
+    /** The null bitmap of the current NBCROW row, reused for all rows. */
+    private byte[] nullBitmap;
+    /** True if the current row was sent as NBCROW. */
+    private boolean nbcRow;
+    /** The index of the next column of a partially read row, see {@link #readColumn(int)}. */
+    private int nextColumn = Integer.MAX_VALUE;
+    /** The PLP value the response stream is positioned at, if any. */
+    private PlpValue pendingPlp;
+    /** True while {@link #getNextRow(boolean)} reads a row that may be left partially read. */
+    private boolean readPartially;
+    /** True if the current row is left partially read at streamable PLP columns. */
+    private boolean streamRow;
+    /** True if the values of the current row are copied to {@link #rawRow}. */
+    private boolean lazyRow;
+    /** True if the current row has values not decoded yet. */
+    private boolean hasUndecoded;
+    /** The values of the current row in their network format, if read lazily. */
+    private RowBuffer rawRow;
+    /** Placeholder in {@link #rowData} for a value left in {@link #rawRow}. */
+    private static final Object UNDECODED = new Object();
     /** The array of table names associated with this result. */
     private TableMetaData[] tables;
     /** The descriptor object for the current TDS token. */
@@ -421,6 +486,8 @@ public class TdsCore {
     private ParamInfo[] parameters;
     /** The index of the next output parameter to populate. */
     private int nextParam = -1;
+    /** The statement to prepare along with the next execution. */
+    private ProcEntry prepExec;
     /** The head of the diagnostic messages chain. */
     private final SQLDiagnostic messages;
     /** Indicates that this object is closed. */
@@ -436,10 +503,27 @@ public class TdsCore {
     private boolean inBatch;
     /** Indicates type of SSL connection. */
     private int sslMode = SSL_NO_ENCRYPT;
+    /** Indicates that the server agreed to use MARS. */
+    private boolean marsEnabled;
     /** Indicates pending cancel that needs to be cleared. */
     private boolean cancelPending;
-    /** Synchronization monitor for {@link #cancelPending}. */
-    private final int[] cancelMonitor = new int[1];
+    /** Type of the pending cancel, TIMEOUT_CANCEL or ASYNC_CANCEL. */
+    private int cancelType;
+    /** Lock for {@link #cancelPending} and {@link #cancelType}. */
+    private final ReentrantLock cancelLock = new ReentrantLock();
+    /** Lock serializing requests sent through this object. */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * True if the current request has been prefixed with the statements
+     * setting the row count and text size.
+     */
+    private boolean setOptionsSent;
+
+    /**
+     * Number of deferred cleanup calls preceding the current request, whose
+     * responses have to be skipped.
+     */
+    private int cleanupResponses;
 
     /**
      * flag set to {@code true} whenever a TDS_ERROR token is received
@@ -485,6 +569,16 @@ public class TdsCore {
         }
     }
 
+    /**
+     * Retrieve the lock serializing the requests sent through this object.
+     * Callers hold it to send a sequence of requests atomically.
+     *
+     * @return the request lock
+     */
+    ReentrantLock getLock() {
+        return lock;
+    }
+
     /**
      * Retrieve the TDS protocol version.
      *
@@ -536,6 +630,10 @@ public class TdsCore {
 
     /**
      * Retrieve the current result set data items.
+     * <p/>
+     * If the row was read by {@link #getNextRow(boolean)} columns following
+     * a streamable PLP column and columns of a lazily read row are only
+     * available after calling {@link #readColumn(int)}.
      *
      * @return the row data as an <code>Object</code> array
      */
@@ -544,7 +642,110 @@ public class TdsCore {
     }
 
     /**
-     * Negotiate SSL settings with SQL 2000+ server.
+     * Determine whether the current row has been read completely.
+     *
+     * @return <code>true</code> if all columns of the current row are available
+     */
+    boolean isRowComplete() {
+        return columns == null || nextColumn > columns.length && !hasUndecoded;
+    }
+
+    /**
+     * Read and decode the columns of a partially read row up to and including
+     * the given column. PLP values left in the response are loaded, unless
+     * their stream has already been handed out, values of a lazily read row
+     * are only decoded for the given column.
+     *
+     * @param index the zero based column index
+     * @throws SQLException if an I/O or protocol error occurs
+     */
+    void readColumn(int index) throws SQLException {
+        if (nextColumn <= index || rowData[index] == UNDECODED) {
+            readColumns(index, true, index);
+        }
+    }
+
+    /**
+     * Get the buffer holding the primitive value of a column of a lazily read
+     * row, reading the row up to the column if necessary.
+     *
+     * @param index the zero based column index
+     * @return the row buffer or <code>null</code> if the column's value is not
+     *         available as a primitive
+     * @throws SQLException if an I/O or protocol error occurs
+     */
+    RowBuffer getPrimitiveRow(int index) throws SQLException {
+        if (nextColumn <= index) {
+            readColumns(index, true, index + 1);
+        }
+
+        if (hasUndecoded && rowData[index] == UNDECODED && rawRow.isPrimitive(index)) {
+            return rawRow;
+        }
+
+        return null;
+    }
+
+    /**
+     * Read the rest of a partially read row, loading all PLP values left in
+     * the response and decoding all values of a lazily read row.
+     *
+     * @throws SQLException if an I/O or protocol error occurs
+     */
+    void completeRow() throws SQLException {
+        if (!isRowComplete()) {
+            readColumns(columns.length, true, 0);
+        }
+    }
+
+    /**
+     * Read the columns of the current row up to the given column.
+     *
+     * @param last the zero based index of the last column to read, the
+     *        number of columns to complete the row
+     * @param keep <code>false</code> if PLP values left in the response are
+     *        skipped rather than loaded
+     * @param decode the index of the first column up to <code>last</code>
+     *        to decode if the row is read lazily
+     * @throws SQLException if an I/O or protocol error occurs
+     */
+    private void readColumns(int last, boolean keep, int decode) throws SQLException {
+        checkOpen();
+
+        try {
+            readRow(last, keep);
+
+            if (hasUndecoded) {
+                for (int i = decode; i <= last && i < columns.length; i++) {
+                    if (rowData[i] == UNDECODED) {
+                        rowData[i] = rawRow.decode(connection, i, columns[i]);
+                    }
+                }
+
+                if (decode == 0 && last >= columns.length) {
+                    hasUndecoded = false;
+                }
+            }
+        } catch (IOException ioe) {
+            connection.setClosed();
+            throw Support.linkException(
+                new SQLException(
+                       Messages.get(
+                                "error.generic.ioerror", ioe.getMessage()),
+                                    "08S01"), ioe);
+        } catch (ProtocolException pe) {
+            connection.setClosed();
+            throw Support.linkException(
+                new SQLException(
+                       Messages.get(
+                                "error.generic.tdserror", pe.getMessage()),
+                                    "08S01"), pe);
+        }
+    }
+
+    /**
+     * Negotiate SSL settings and Multiple Active Result Sets (MARS) with SQL
+     * 2000+ server.
      * <p/>
      * Server returns the following values for SSL mode:
      * <ol>
@@ -553,16 +754,22 @@ public class TdsCore {
      * <li>2 = No certificate no encryption possible.
      * <li>3 = Server requests force encryption.
      * </ol>
+     * If MARS is agreed on all further traffic is multiplexed by the SMP
+     * layer of the socket, starting with the login.
+     *
      * @param instance The server instance name.
      * @param ssl The SSL URL property value.
+     * @param useMARS Request MARS, only honored for TDS 7.2.
      * @throws IOException
      */
-    void negotiateSSL(String instance, String ssl)
+    void negotiateSSL(String instance, String ssl, boolean useMARS)
             throws IOException, SQLException {
+        boolean mars = useMARS && tdsVersion >= Driver.TDS90;
+
         if (!ssl.equalsIgnoreCase(Ssl.SSL_OFF)) {
             if (ssl.equalsIgnoreCase(Ssl.SSL_REQUIRE) ||
                     ssl.equalsIgnoreCase(Ssl.SSL_AUTHENTICATE)) {
-                sendPreLoginPacket(instance, true);
+                sendPreLoginPacket(instance, SSL_CLIENT_FORCE_ENCRYPT, mars);
                 sslMode = readPreLoginPacket();
                 if (sslMode != SSL_CLIENT_FORCE_ENCRYPT &&
                     sslMode != SSL_SERVER_FORCE_ENCRYPT) {
@@ -571,12 +778,20 @@ public class TdsCore {
                             "08S01");
                 }
             } else {
-                sendPreLoginPacket(instance, false);
+                sendPreLoginPacket(instance, SSL_ENCRYPT_LOGIN, mars);
                 sslMode = readPreLoginPacket();
             }
             if (sslMode != SSL_NO_ENCRYPT) {
                 socket.enableEncryption(ssl);
             }
+        } else if (mars) {
+            // Pre login only sent to request MARS, without encryption
+            sendPreLoginPacket(instance, SSL_NO_ENCRYPT, true);
+            readPreLoginPacket();
+        }
+
+        if (mars && marsEnabled) {
+            socket.enableSMP();
         }
     }
 
@@ -799,15 +1014,45 @@ public class TdsCore {
      *                      are queued up and not thrown
      */
     boolean getNextRow() throws SQLException {
+        return getNextRow(false);
+    }
+
+    /**
+     * Retrieve the next data row from the result set, optionally leaving
+     * varchar(max), nvarchar(max) and varbinary(max) values in the response
+     * to be read as a stream and the other values undecoded, see the
+     * <code>streamLOBs</code> and <code>lazyRows</code> connection
+     * properties.
+     * <p/>
+     * Values of the previous row that have not been accessed are skipped.
+     *
+     * @param stream <code>true</code> if the row may be read partially
+     * @return <code>false</code> if at the end of results, <code>true</code>
+     *         otherwise
+     * @throws SQLException if an I/O or protocol error occurs; server errors
+     *                      are queued up and not thrown
+     */
+    boolean getNextRow(boolean stream) throws SQLException {
         if (endOfResponse || endOfResults) {
             return false;
         }
         checkOpen();
-        nextToken();
 
-        // Will either be first or next data row or end.
-        while (!currentToken.isRowData() && !currentToken.isEndToken()) {
-            nextToken(); // Could be messages
+        if (stream && nextColumn <= columns.length) {
+            readColumns(columns.length, false, columns.length);
+        }
+
+        readPartially = stream;
+
+        try {
+            nextToken();
+
+            // Will either be first or next data row or end.
+            while (!currentToken.isRowData() && !currentToken.isEndToken()) {
+                nextToken(); // Could be messages
+            }
+        } finally {
+            readPartially = false;
         }
 
         if( endOfResults ) // end result in case EOF has been detected reading the token(s)
@@ -830,18 +1075,23 @@ public class TdsCore {
    {
       checkOpen();
 
+      if( columns != null && nextColumn <= columns.length )
+      {
+         readColumns( columns.length, true, columns.length );
+      }
+
       try
       {
          byte x = endOfResponse ? TDS_DONE_TOKEN : (byte) in.peek();
 
-         while( x != TDS_ROW_TOKEN && x != TDS_ALTROW && x != TDS_DONE_TOKEN && x != TDS_DONEINPROC_TOKEN && x != TDS_DONEPROC_TOKEN )
+         while( x != TDS_ROW_TOKEN && x != TDS_NBCROW_TOKEN && x != TDS_ALTROW && x != TDS_DONE_TOKEN && x != TDS_DONEINPROC_TOKEN && x != TDS_DONEPROC_TOKEN )
          {
             nextToken();
             x = (byte) in.peek();
          }
 
          messages.checkErrors();
-         return x == TDS_ROW_TOKEN || x == TDS_ALTROW;
+         return x == TDS_ROW_TOKEN || x == TDS_NBCROW_TOKEN || x == TDS_ALTROW;
       }
       catch( IOException e )
       {
@@ -864,20 +1114,25 @@ public class TdsCore {
      * <p>
      * Used by Sybase a no-op for Microsoft.
      */
-    synchronized void closeConnection() {
+    void closeConnection() {
+        lock.lock();
         try {
-            if (tdsVersion == Driver.TDS50) {
-                socket.setTimeout(1000);
-                out.setPacketType(SYBQUERY_PKT);
-                out.write(TDS_CLOSE_TOKEN);
-                out.write((byte)0);
-                out.flush();
-                endOfResponse = false;
-                clearResponseQueue();
+            try {
+                if (tdsVersion == Driver.TDS50) {
+                    socket.setTimeout(1000);
+                    out.setPacketType(SYBQUERY_PKT);
+                    out.write(TDS_CLOSE_TOKEN);
+                    out.write((byte)0);
+                    out.flush();
+                    endOfResponse = false;
+                    clearResponseQueue();
+                }
+            } catch (Exception e) {
+                // Ignore any exceptions as this connection
+                // is closing anyway.
             }
-        } catch (Exception e) {
-            // Ignore any exceptions as this connection
-            // is closing anyway.
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -905,15 +1160,18 @@ public class TdsCore {
         Semaphore mutex = null;
         try {
             mutex = connection.getMutex();
-            synchronized (cancelMonitor) {
+            cancelLock.lock();
+            try {
                 if (!cancelPending && !endOfResponse) {
                     cancelPending = socket.cancel(out.getVirtualSocket());
                 }
                 // If a cancel request was sent, reset the end of response flag
                 if (cancelPending) {
-                    cancelMonitor[0] = timeout ? TIMEOUT_CANCEL : ASYNC_CANCEL;
+                    cancelType = timeout ? TIMEOUT_CANCEL : ASYNC_CANCEL;
                     endOfResponse = false;
                 }
+            } finally {
+                cancelLock.unlock();
             }
         } finally {
             if (mutex != null) {
@@ -951,6 +1209,155 @@ public class TdsCore {
       messages.checkErrors();
    }
 
+    /**
+     * Acquires the connection mutex for sending a request.
+     *
+     * @return the mutex, to be released once the request has been sent
+     * @throws SQLException if the current thread is reading the rows of a
+     *         bulk load through the connection, which holds the mutex
+     */
+    private Semaphore getMutex() throws SQLException {
+        if (connection.getBulkLoadThread() == Thread.currentThread()) {
+            throw new SQLException(
+                    Messages.get("error.bulkcopy.reentrant"), "HY000");
+        }
+        return connection.getMutex();
+    }
+
+    /**
+     * Load rows into a table, see {@link JtdsBulkCopy}.
+     * <p>
+     * The <code>INSERT BULK</code> statement is executed first, then the rows
+     * are streamed to the server as a bulk load request made up of a
+     * COLMETADATA token describing the columns, a ROW token per row and a
+     * DONE token. With TDS 5.0 the request consists of the rows only, in the
+     * format Sybase stores them in, see {@link TdsData#getTds5BulkRow}.
+     * <p>
+     * If the row source fails, e.g. because a row cannot be converted to the
+     * column types, the request is ended after the preceding rows, which are
+     * loaded, and the exception is thrown once the server has answered.
+     * <p>
+     * The rows are read while the connection mutex is held, so the row
+     * source must not send requests through the same connection, e.g. by
+     * fetching the next block of a server side cursor. Such a request fails
+     * instead of waiting for the mutex forever.
+     *
+     * @param sql     the <code>INSERT BULK</code> statement
+     * @param columns the columns values are sent for, all columns of the
+     *                table for TDS 5.0
+     * @param rows    the rows to load, converted by
+     *                {@link TdsData#getBulkValue}
+     * @param maxRows the maximum number of rows to send, 0 for all
+     * @return the number of rows loaded
+     * @throws SQLException if an error occurs
+     */
+    int bulkLoad(String sql,
+                 ColInfo[] columns,
+                 JtdsBulkCopy.RowSource rows,
+                 int maxRows)
+            throws SQLException {
+        submitSQL(sql);
+
+        lock.lock();
+        try {
+            SQLException rowError = null;
+            Semaphore mutex = null;
+
+            try {
+                mutex = getMutex();
+                connection.setBulkLoadThread(Thread.currentThread());
+                out.setPacketType(BULKLOAD_PKT);
+
+                if (tdsVersion >= Driver.TDS70) {
+                    out.write(TDS7_RESULT_TOKEN);
+                    out.write((short) columns.length);
+
+                    for (int i = 0; i < columns.length; i++) {
+                        TdsData.writeBulkColumn(out, columns[i], connection.getCollation(),
+                                columns[i].name);
+                    }
+                }
+
+                for (int count = 0; maxRows == 0 || count < maxRows; count++) {
+                    Object[] values;
+
+                    try {
+                        values = rows.nextRow();
+                    } catch (SQLException e) {
+                        rowError = e;
+                        break;
+                    }
+
+                    if (values == null) {
+                        break;
+                    }
+
+                    if (tdsVersion == Driver.TDS50) {
+                        byte[] row = TdsData.getTds5BulkRow(columns, values);
+                        out.write((short) row.length);
+                        out.write(row);
+                        continue;
+                    }
+
+                    out.write(TDS_ROW_TOKEN);
+
+                    for (int i = 0; i < columns.length; i++) {
+                        TdsData.writeBulkValue(out, columns[i], values[i]);
+                    }
+                }
+
+                if (tdsVersion >= Driver.TDS70) {
+                    out.write(TDS_DONE_TOKEN);
+                    out.write((short) 0);
+                    out.write((short) 0);
+
+                    if (tdsVersion >= Driver.TDS90) {
+                        out.write((long) 0);
+                    } else {
+                        out.write(0);
+                    }
+                }
+
+                out.flush();
+            } catch (IOException ioe) {
+                connection.setClosed();
+
+                throw Support.linkException(
+                    new SQLException(
+                           Messages.get(
+                                    "error.generic.ioerror", ioe.getMessage()),
+                                        "08S01"), ioe);
+            } finally {
+                if (mutex != null) {
+                    connection.setBulkLoadThread(null);
+                    mutex.release();
+                }
+            }
+
+            endOfResponse = false;
+            endOfResults  = true;
+            int count = 0;
+
+            while (!endOfResponse) {
+                nextToken();
+
+                if (currentToken.isUpdateCount()) {
+                    count += currentToken.updateCount;
+                }
+            }
+
+            messages.checkErrors();
+
+            if (rowError != null) {
+                throw rowError;
+            }
+
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Notifies the <code>TdsCore</code> that a batch is starting. This is so
      * that it knows to use <code>sp_executesql</code> for parameterized
@@ -978,145 +1385,308 @@ public class TdsCore {
      * @param sendNow      whether to send the request now or not
      * @throws SQLException if an error occurs
      */
-    synchronized void executeSQL(String sql,
-                                 String procName,
-                                 ParamInfo[] parameters,
-                                 boolean noMetaData,
-                                 int timeOut,
-                                 int maxRows,
-                                 int maxFieldSize,
-                                 boolean sendNow)
+    void executeSQL(String sql,
+                    String procName,
+                    ParamInfo[] parameters,
+                    boolean noMetaData,
+                    int timeOut,
+                    int maxRows,
+                    int maxFieldSize,
+                    boolean sendNow)
+            throws SQLException {
+        executeSQL(sql, procName, parameters, noMetaData, timeOut, maxRows,
+                maxFieldSize, sendNow, true);
+    }
+
+    /**
+     * Send an SQL statement with optional parameters to the server without
+     * waiting for the response to arrive. The connection is released as soon
+     * as the request has been sent, the response is read by the following
+     * calls to this <code>TdsCore</code> as usual, typically after
+     * {@link #waitForResponse(int)}.
+     *
+     * @param sql          SQL statement to execute
+     * @param procName     stored procedure to execute or <code>null</code>
+     * @param parameters   parameters for call or null
+     * @param noMetaData   suppress meta data for cursor calls
+     * @param maxRows      the maximum number of data rows to return (-1 to
+     *                     leave unaltered)
+     * @param maxFieldSize the maximum number of bytes in a column to return
+     *                     (-1 to leave unaltered)
+     * @throws SQLException if an error occurs
+     */
+    void sendSQL(String sql,
+                 String procName,
+                 ParamInfo[] parameters,
+                 boolean noMetaData,
+                 int maxRows,
+                 int maxFieldSize)
             throws SQLException {
-        boolean sendFailed = true; // Used to ensure mutex is released.
-        _ErrorReceived = false; // reset error token flag
+        executeSQL(sql, procName, parameters, noMetaData, 0, maxRows,
+                maxFieldSize, true, false);
+    }
+
+    /**
+     * Wait for the response to a request sent by {@link #sendSQL} to arrive,
+     * applying the query timeout.
+     *
+     * @param timeOut the query timeout or 0
+     * @throws SQLException if an I/O error occurs or the timeout expires
+     */
+    void waitForResponse(int timeOut) throws SQLException {
+        checkOpen();
 
         try {
-            //
-            // Obtain a lock on the connection giving exclusive access
-            // to the network connection for this thread
-            //
-            if (connectionLock == null) {
-                connectionLock = connection.getMutex();
-            }
-            // Also checks if connection is open
-            clearResponseQueue();
-            messages.exceptions = null;
+            wait(timeOut);
+        } catch (IOException ioe) {
+            connection.setClosed();
 
-            //
-            // Set the connection row count and text size if required.
-            // Once set these will not be changed within a
-            // batch so execution of the set rows query will
-            // only occur once a the start of a batch.
-            // No other thread can send until this one has finished.
-            //
-            setRowCountAndTextSize(maxRows, maxFieldSize);
+            throw Support.linkException(
+                new SQLException(
+                       Messages.get(
+                                "error.generic.ioerror", ioe.getMessage()),
+                                    "08S01"), ioe);
+        }
+    }
 
-            messages.clearWarnings();
-            returnStatus = null;
-            //
-            // Normalize the parameters argument to simplify later checks
-            //
-            if (parameters != null && parameters.length == 0) {
-                parameters = null;
-            }
-            this.parameters = parameters;
-            //
-            // Normalise the procName argument as well
-            //
-            if (procName != null && procName.length() == 0) {
-                procName = null;
-            }
+    /**
+     * Send an SQL statement, optionally waiting for the response.
+     *
+     * @see #executeSQL(String, String, ParamInfo[], boolean, int, int, int, boolean)
+     * @param waitResponse whether to wait for the response to a request sent
+     *                     now, applying the timeout
+     */
+    private void executeSQL(String sql,
+                            String procName,
+                            ParamInfo[] parameters,
+                            boolean noMetaData,
+                            int timeOut,
+                            int maxRows,
+                            int maxFieldSize,
+                            boolean sendNow,
+                            boolean waitResponse)
+            throws SQLException {
+        lock.lock();
+        try {
+            ProcEntry proc = takePrepExec(ProcEntry.PREPARE);
+            boolean sendFailed = true; // Used to ensure mutex is released.
+            _ErrorReceived = false; // reset error token flag
 
-            if (parameters != null && parameters[0].isRetVal) {
-                returnParam = parameters[0];
-                nextParam = 0;
-            } else {
-                returnParam = null;
-                nextParam = -1;
-            }
+            try {
+                //
+                // Obtain a lock on the connection giving exclusive access
+                // to the network connection for this thread
+                //
+                if (connectionLock == null) {
+                    connectionLock = getMutex();
+                }
+                // Also checks if connection is open
+                clearResponseQueue();
+                messages.exceptions = null;
+                setOptionsSent = false;
+                cleanupResponses = 0;
 
-            if (parameters != null) {
-                if (procName == null && sql.startsWith("EXECUTE ")) {
-                    //
-                    // If this is a callable statement that could not be fully parsed
-                    // into an RPC call convert to straight SQL now.
-                    // An example of non RPC capable SQL is {?=call sp_example('literal', ?)}
-                    //
-                    for (int i = 0; i < parameters.length; i++){
-                        // Output parameters not allowed.
-                        if (!parameters[i].isRetVal && parameters[i].isOutput){
-                            throw new SQLException(Messages.get("error.prepare.nooutparam",
-                                    Integer.toString(i + 1)), "07000");
-                        }
-                    }
-                    sql = Support.substituteParameters(sql, parameters, connection);
+                messages.clearWarnings();
+                returnStatus = null;
+                //
+                // Normalize the parameters argument to simplify later checks
+                //
+                if (parameters != null && parameters.length == 0) {
                     parameters = null;
+                }
+                this.parameters = parameters;
+                //
+                // Normalise the procName argument as well
+                //
+                if (procName != null && procName.length() == 0) {
+                    procName = null;
+                }
+
+                if (parameters != null && parameters[0].isRetVal) {
+                    returnParam = parameters[0];
+                    nextParam = 0;
                 } else {
-                    //
-                    // Check all parameters are either output or have values set
-                    //
-                    for (int i = 0; i < parameters.length; i++){
-                        if (!parameters[i].isSet && !parameters[i].isOutput){
-                            throw new SQLException(Messages.get("error.prepare.paramnotset",
-                                    Integer.toString(i + 1)), "07000");
+                    returnParam = null;
+                    nextParam = -1;
+                }
+
+                if (parameters != null) {
+                    if (procName == null && sql.startsWith("EXECUTE ")) {
+                        //
+                        // If this is a callable statement that could not be fully parsed
+                        // into an RPC call convert to straight SQL now.
+                        // An example of non RPC capable SQL is {?=call sp_example('literal', ?)}
+                        //
+                        for (int i = 0; i < parameters.length; i++){
+                            // Output parameters not allowed.
+                            if (!parameters[i].isRetVal && parameters[i].isOutput){
+                                throw new SQLException(Messages.get("error.prepare.nooutparam",
+                                        Integer.toString(i + 1)), "07000");
+                            }
+                        }
+                        sql = Support.substituteParameters(sql, parameters, connection);
+                        parameters = null;
+                    } else {
+                        //
+                        // Check all parameters are either output or have values set
+                        //
+                        for (int i = 0; i < parameters.length; i++){
+                            if (!parameters[i].isSet && !parameters[i].isOutput){
+                                throw new SQLException(Messages.get("error.prepare.paramnotset",
+                                        Integer.toString(i + 1)), "07000");
+                            }
+                            parameters[i].clearOutValue();
+                            // FIXME Should only set TDS type if not already set
+                            // but we might need to take a lot of care not to
+                            // exceed size limitations (e.g. write 11 chars in a
+                            // VARCHAR(10) )
+                            TdsData.getNativeType(connection, parameters[i]);
                         }
-                        parameters[i].clearOutValue();
-                        // FIXME Should only set TDS type if not already set
-                        // but we might need to take a lot of care not to
-                        // exceed size limitations (e.g. write 11 chars in a
-                        // VARCHAR(10) )
-                        TdsData.getNativeType(connection, parameters[i]);
                     }
                 }
-            }
 
-            try {
-                switch (tdsVersion) {
-                    case Driver.TDS42:
-                        executeSQL42(sql, procName, parameters, noMetaData, sendNow);
-                        break;
-                    case Driver.TDS50:
-                        executeSQL50(sql, procName, parameters);
-                        break;
-                    case Driver.TDS70:
-                    case Driver.TDS80:
-                    case Driver.TDS81:
-                        executeSQL70(sql, procName, parameters, noMetaData, sendNow);
-                        break;
-                    default:
-                        throw new IllegalStateException("Unknown TDS version " + tdsVersion);
+                if (proc != null && procName == null && !inBatch
+                        && tdsVersion >= Driver.TDS70) {
+                    // Prepare the statement along with the execution
+                    parameters = getPrepExecParameters(sql, parameters, proc);
+                    this.parameters = parameters;
+                    procName = "sp_prepexec";
                 }
 
-                if (sendNow) {
-                    out.flush();
+                //
+                // Set the connection row count and text size if required.
+                // Once set these will not be changed within a
+                // batch so execution of the set rows query will
+                // only occur once a the start of a batch.
+                // No other thread can send until this one has finished.
+                //
+                sql = setRowCountAndTextSize(sql, procName, parameters,
+                        maxRows, maxFieldSize);
+
+                try {
+                    switch (tdsVersion) {
+                        case Driver.TDS42:
+                            executeSQL42(sql, procName, parameters, noMetaData, sendNow);
+                            break;
+                        case Driver.TDS50:
+                            executeSQL50(sql, procName, parameters);
+                            break;
+                        case Driver.TDS70:
+                        case Driver.TDS80:
+                        case Driver.TDS81:
+                        case Driver.TDS90:
+                        case Driver.TDS73:
+                        case Driver.TDS74:
+                            executeSQL70(sql, procName, parameters, noMetaData, sendNow,
+                                    sendNow && waitResponse);
+                            break;
+                        default:
+                            throw new IllegalStateException("Unknown TDS version " + tdsVersion);
+                    }
+
+                    if (sendNow) {
+                        out.flush();
+                        connectionLock.release();
+                        connectionLock = null;
+                        sendFailed = false;
+                        endOfResponse = false;
+                        endOfResults  = true;
+
+                        if (waitResponse) {
+                            wait(timeOut);
+                            skipCleanupResponses();
+                        }
+                    } else {
+                        sendFailed = false;
+                    }
+                } catch (IOException ioe) {
+                    connection.setClosed();
+
+                    throw Support.linkException(
+                        new SQLException(
+                               Messages.get(
+                                        "error.generic.ioerror", ioe.getMessage()),
+                                            "08S01"), ioe);
+                }
+            } finally {
+                if ((sendNow || sendFailed) && connectionLock != null) {
                     connectionLock.release();
                     connectionLock = null;
-                    sendFailed = false;
-                    endOfResponse = false;
-                    endOfResults  = true;
-                    wait(timeOut);
-                } else {
-                    sendFailed = false;
                 }
-            } catch (IOException ioe) {
-                connection.setClosed();
-
-                throw Support.linkException(
-                    new SQLException(
-                           Messages.get(
-                                    "error.generic.ioerror", ioe.getMessage()),
-                                        "08S01"), ioe);
+                // Clear the in batch flag
+                if (sendNow) {
+                    inBatch = false;
+                }
             }
         } finally {
-            if ((sendNow || sendFailed) && connectionLock != null) {
-                connectionLock.release();
-                connectionLock = null;
-            }
-            // Clear the in batch flag
-            if (sendNow) {
-                inBatch = false;
-            }
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Have the next execution of an SQL statement prepare it as well, using
+     * <code>sp_prepexec</code> or <code>sp_cursorprepexec</code>. The
+     * statement handle is set on the cache entry once it has been returned.
+     * <p>
+     * The entry only applies to the next call of <code>executeSQL</code>, or
+     * to the cursor opened by it, and is discarded otherwise.
+     *
+     * @param proc the statement cache entry to prepare, or <code>null</code>
+     */
+    void setPrepExec(ProcEntry proc) {
+        prepExec = proc;
+    }
+
+    /**
+     * Retrieve and clear the entry set by {@link #setPrepExec}.
+     *
+     * @param type the type of entry expected, <code>ProcEntry.PREPARE</code>
+     *             or <code>ProcEntry.CURSOR</code>
+     * @return the entry or <code>null</code> if no entry of that type is set
+     */
+    ProcEntry takePrepExec(int type) {
+        ProcEntry proc = prepExec;
+        prepExec = null;
+
+        return (proc != null && proc.getType() == type) ? proc : null;
+    }
+
+    /**
+     * Build the parameters of a <code>sp_prepexec</code> call, preparing and
+     * executing an SQL statement.
+     *
+     * @param sql        the SQL statement
+     * @param parameters the actual parameter list or <code>null</code>
+     * @param proc       the statement cache entry to prepare
+     * @return the parameters, starting with the handle output parameter
+     * @throws SQLException if an error occurs
+     */
+    private ParamInfo[] getPrepExecParameters(String sql,
+                                              ParamInfo[] parameters,
+                                              ProcEntry proc)
+            throws SQLException {
+        ParamInfo[] values = (parameters == null) ? new ParamInfo[0] : parameters;
+        ParamInfo[] params = new ParamInfo[3 + values.length];
+        System.arraycopy(values, 0, params, 3, values.length);
+
+        // Setup prepare handle param
+        params[0] = proc.sendPrepExec();
+
+        // Setup parameter descriptor param
+        params[1] = new ParamInfo(Types.LONGVARCHAR,
+                Support.getParameterDefinitions(values),
+                ParamInfo.UNICODE);
+
+        // Setup sql statement param
+        params[2] = new ParamInfo(Types.LONGVARCHAR,
+                Support.substituteParamMarkers(sql, values),
+                ParamInfo.UNICODE);
+
+        for (int i = 0; i < 3; i++) {
+            TdsData.getNativeType(connection, params[i]);
         }
+
+        return params;
     }
 
     /**
@@ -1276,77 +1846,82 @@ public class TdsCore {
      * @return name of the procedure
      * @throws SQLException if an error occurs
      */
-    synchronized String sybasePrepare(String sql, ParamInfo[] params)
+    String sybasePrepare(String sql, ParamInfo[] params)
             throws SQLException {
-        checkOpen();
-        messages.clearWarnings();
-        if (sql == null || sql.length() == 0) {
-            throw new IllegalArgumentException(
-                    "sql parameter must be at least 1 character long.");
-        }
+        lock.lock();
+        try {
+            checkOpen();
+            messages.clearWarnings();
+            if (sql == null || sql.length() == 0) {
+                throw new IllegalArgumentException(
+                        "sql parameter must be at least 1 character long.");
+            }
 
-        String procName = connection.getProcName();
+            String procName = connection.getProcName();
 
-        if (procName == null || procName.length() != 11) {
-            throw new IllegalArgumentException(
-                    "procName parameter must be 11 characters long.");
-        }
+            if (procName == null || procName.length() != 11) {
+                throw new IllegalArgumentException(
+                        "procName parameter must be 11 characters long.");
+            }
 
-        // TODO Check if output parameters are handled ok
-        // Check no text/image parameters
-        for (int i = 0; i < params.length; i++) {
-            if ("text".equals(params[i].sqlType)
-                || "unitext".equals(params[i].sqlType)
-                || "image".equals(params[i].sqlType)) {
-                return null; // Sadly no way
+            // TODO Check if output parameters are handled ok
+            // Check no text/image parameters
+            for (int i = 0; i < params.length; i++) {
+                if ("text".equals(params[i].sqlType)
+                    || "unitext".equals(params[i].sqlType)
+                    || "image".equals(params[i].sqlType)) {
+                    return null; // Sadly no way
+                }
             }
-        }
 
-        Semaphore mutex = null;
+            Semaphore mutex = null;
 
-        try {
-            mutex = connection.getMutex();
+            try {
+                mutex = getMutex();
 
-            out.setPacketType(SYBQUERY_PKT);
-            out.write(TDS5_DYNAMIC_TOKEN);
+                out.setPacketType(SYBQUERY_PKT);
+                out.write(TDS5_DYNAMIC_TOKEN);
+
+                byte buf[] = Support.encodeString(connection.getCharset(), sql);
+
+                out.write((short) (buf.length + 41));
+                out.write((byte) 1);
+                out.write((byte) 0);
+                out.write((byte) 10);
+                out.writeAscii(procName.substring(1));
+                out.write((short) (buf.length + 26));
+                out.writeAscii("create proc ");
+                out.writeAscii(procName.substring(1));
+                out.writeAscii(" as ");
+                out.write(buf);
+                out.flush();
+                endOfResponse = false;
+                clearResponseQueue();
+                messages.checkErrors();
+                return procName;
+            } catch (IOException ioe) {
+                connection.setClosed();
+                throw Support.linkException(
+                    new SQLException(
+                           Messages.get(
+                                    "error.generic.ioerror", ioe.getMessage()),
+                                        "08S01"), ioe);
+            } catch (SQLException e) {
+                if ("08S01".equals(e.getSQLState())) {
+                    // Serious error rethrow
+                    throw e;
+                }
 
-            byte buf[] = Support.encodeString(connection.getCharset(), sql);
-
-            out.write((short) (buf.length + 41));
-            out.write((byte) 1);
-            out.write((byte) 0);
-            out.write((byte) 10);
-            out.writeAscii(procName.substring(1));
-            out.write((short) (buf.length + 26));
-            out.writeAscii("create proc ");
-            out.writeAscii(procName.substring(1));
-            out.writeAscii(" as ");
-            out.write(buf);
-            out.flush();
-            endOfResponse = false;
-            clearResponseQueue();
-            messages.checkErrors();
-            return procName;
-        } catch (IOException ioe) {
-            connection.setClosed();
-            throw Support.linkException(
-                new SQLException(
-                       Messages.get(
-                                "error.generic.ioerror", ioe.getMessage()),
-                                    "08S01"), ioe);
-        } catch (SQLException e) {
-            if ("08S01".equals(e.getSQLState())) {
-                // Serious error rethrow
-                throw e;
+                // This exception probably caused by failure to prepare
+                // Return null;
+                return null;
+            } finally {
+                if (mutex != null) {
+                    mutex.release();
+                }
             }
-
-            // This exception probably caused by failure to prepare
-            // Return null;
-            return null;
         } finally {
-            if (mutex != null) {
-                mutex.release();
-            }
+            lock.unlock();
         }
     }
 
@@ -1356,49 +1931,54 @@ public class TdsCore {
      * @param procName the temporary procedure name
      * @throws SQLException if an error occurs
      */
-    synchronized void sybaseUnPrepare(String procName)
+    void sybaseUnPrepare(String procName)
             throws SQLException {
-        checkOpen();
-        messages.clearWarnings();
+        lock.lock();
+        try {
+            checkOpen();
+            messages.clearWarnings();
 
-        if (procName == null || procName.length() != 11) {
-            throw new IllegalArgumentException(
-                    "procName parameter must be 11 characters long.");
-        }
+            if (procName == null || procName.length() != 11) {
+                throw new IllegalArgumentException(
+                        "procName parameter must be 11 characters long.");
+            }
 
-        Semaphore mutex = null;
-        try {
-            mutex = connection.getMutex();
+            Semaphore mutex = null;
+            try {
+                mutex = getMutex();
 
-            out.setPacketType(SYBQUERY_PKT);
-            out.write(TDS5_DYNAMIC_TOKEN);
-            out.write((short) (15));
-            out.write((byte) 4);
-            out.write((byte) 0);
-            out.write((byte) 10);
-            out.writeAscii(procName.substring(1));
-            out.write((short)0);
-            out.flush();
-            endOfResponse = false;
-            clearResponseQueue();
-            messages.checkErrors();
-        } catch (IOException ioe) {
-            connection.setClosed();
-            throw Support.linkException(
-                new SQLException(
-                       Messages.get(
-                                "error.generic.ioerror", ioe.getMessage()),
-                                    "08S01"), ioe);
-        } catch (SQLException e) {
-            if ("08S01".equals(e.getSQLState())) {
-                // Serious error rethrow
-                throw e;
+                out.setPacketType(SYBQUERY_PKT);
+                out.write(TDS5_DYNAMIC_TOKEN);
+                out.write((short) (15));
+                out.write((byte) 4);
+                out.write((byte) 0);
+                out.write((byte) 10);
+                out.writeAscii(procName.substring(1));
+                out.write((short)0);
+                out.flush();
+                endOfResponse = false;
+                clearResponseQueue();
+                messages.checkErrors();
+            } catch (IOException ioe) {
+                connection.setClosed();
+                throw Support.linkException(
+                    new SQLException(
+                           Messages.get(
+                                    "error.generic.ioerror", ioe.getMessage()),
+                                        "08S01"), ioe);
+            } catch (SQLException e) {
+                if ("08S01".equals(e.getSQLState())) {
+                    // Serious error rethrow
+                    throw e;
+                }
+                // This exception probably caused by failure to unprepare
+            } finally {
+                if (mutex != null) {
+                    mutex.release();
+                }
             }
-            // This exception probably caused by failure to unprepare
         } finally {
-            if (mutex != null) {
-                mutex.release();
-            }
+            lock.unlock();
         }
     }
 
@@ -1411,57 +1991,63 @@ public class TdsCore {
      * @return a <code>byte[]</code> array containing the TM address data
      * @throws SQLException
      */
-    synchronized byte[] enlistConnection(int type, byte[] oleTranID) throws SQLException {
-        Semaphore mutex = null;
+    byte[] enlistConnection(int type, byte[] oleTranID) throws SQLException {
+        lock.lock();
         try {
-            mutex = connection.getMutex();
+            Semaphore mutex = null;
+            try {
+                mutex = getMutex();
 
-            out.setPacketType(MSDTC_PKT);
-            out.write((short)type);
-            switch (type) {
-                case 0: // Get result set with location of MSTDC
-                    out.write((short)0);
-                    break;
-                case 1: // Set OLE transaction ID
-                    if (oleTranID != null) {
-                        out.write((short)oleTranID.length);
-                        out.write(oleTranID);
-                    } else {
-                        // Delist the connection from all transactions.
+                out.setPacketType(MSDTC_PKT);
+                writeAllHeaders();
+                out.write((short)type);
+                switch (type) {
+                    case 0: // Get result set with location of MSTDC
                         out.write((short)0);
-                    }
-                    break;
-            }
-            out.flush();
-            endOfResponse = false;
-            endOfResults  = true;
-        } catch (IOException ioe) {
-            connection.setClosed();
-            throw Support.linkException(
-                    new SQLException(
-                            Messages.get(
-                                    "error.generic.ioerror", ioe.getMessage()),
-                            "08S01"),
-                    ioe);
-        } finally {
-            if (mutex != null) {
-                mutex.release();
+                        break;
+                    case 1: // Set OLE transaction ID
+                        if (oleTranID != null) {
+                            out.write((short)oleTranID.length);
+                            out.write(oleTranID);
+                        } else {
+                            // Delist the connection from all transactions.
+                            out.write((short)0);
+                        }
+                        break;
+                }
+                out.flush();
+                endOfResponse = false;
+                endOfResults  = true;
+            } catch (IOException ioe) {
+                connection.setClosed();
+                throw Support.linkException(
+                        new SQLException(
+                                Messages.get(
+                                        "error.generic.ioerror", ioe.getMessage()),
+                                "08S01"),
+                        ioe);
+            } finally {
+                if (mutex != null) {
+                    mutex.release();
+                }
             }
-        }
 
-        byte[] tmAddress = null;
-        if (getMoreResults() && getNextRow()) {
-            if (rowData.length == 1) {
-                Object x = rowData[0];
-                if (x instanceof byte[]) {
-                    tmAddress = (byte[])x;
+            byte[] tmAddress = null;
+            if (getMoreResults() && getNextRow()) {
+                if (rowData.length == 1) {
+                    Object x = rowData[0];
+                    if (x instanceof byte[]) {
+                        tmAddress = (byte[])x;
+                    }
                 }
             }
-        }
 
-        clearResponseQueue();
-        messages.checkErrors();
-        return tmAddress;
+            clearResponseQueue();
+            messages.checkErrors();
+            return tmAddress;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -1614,50 +2200,63 @@ public class TdsCore {
 
     /**
      * Send the SQL Server 2000 pre login packet.
-     * <p>Packet contains; netlib version, ssl mode, instance
-     * and process ID.
+     * <p>Packet contains; netlib version, ssl mode, instance,
+     * process ID and optionally the MARS request.
      * @param instance
-     * @param forceEncryption
+     * @param encryption the client side SSL mode
+     * @param mars request MARS
      * @throws IOException
      */
-    private void sendPreLoginPacket(String instance, boolean forceEncryption)
+    private void sendPreLoginPacket(String instance, int encryption, boolean mars)
             throws IOException {
+        // Offset of the first data item, after 5 bytes per pointer and terminator
+        final short base = (short) (mars ? 26 : 21);
         out.setPacketType(PRELOGIN_PKT);
         // Write Netlib pointer
         out.write((short)0);
-        out.write((short)21);
+        out.write(base);
         out.write((byte)6);
         // Write Encrypt flag pointer
         out.write((short)1);
-        out.write((short)27);
+        out.write((short)(base+6));
         out.write((byte)1);
         // Write Instance name pointer
         out.write((short)2);
-        out.write((short)28);
+        out.write((short)(base+7));
         out.write((byte)(instance.length()+1));
         // Write process ID pointer
         out.write((short)3);
-        out.write((short)(28+instance.length()+1));
+        out.write((short)(base+7+instance.length()+1));
         out.write((byte)4);
+        if (mars) {
+            // Write MARS pointer
+            out.write((short)PRELOGIN_MARS);
+            out.write((short)(base+7+instance.length()+1+4));
+            out.write((byte)1);
+        }
         // Write terminator
         out.write((byte)0xFF);
         // Write fake net lib ID 8.341.0
         out.write(new byte[]{0x08, 0x00, 0x01, 0x55, 0x00, 0x00});
-        // Write force encryption flag
-        out.write((byte)(forceEncryption? 1: 0));
+        // Write encryption flag
+        out.write((byte)encryption);
         // Write instance name
         out.writeAscii(instance);
         out.write((byte)0);
         // Write dummy process ID
         out.write(new byte[]{0x01, 0x02, 0x00, 0x00});
+        if (mars) {
+            // Request MARS
+            out.write((byte)1);
+        }
         //
         out.flush();
     }
 
     /**
      * Process the pre login acknowledgment from the server.
-     * <p>Packet contains; server version no, SSL mode, instance name
-     * and process id.
+     * <p>Packet contains; server version no, SSL mode, instance name,
+     * process id and whether MARS is enabled.
      * <p>Server returns the following values for SSL mode:
      * <ol>
      * <ll>0 = Certificate installed encrypt login packet only.
@@ -1700,12 +2299,17 @@ public class TdsCore {
                         Support.toHex(data[i]));
             }
         }
-        if (recordCount > 1) {
-            return data[1][0]; // This is the server side SSL mode
-        } else {
-            // Response too short to include SSL mode!
-            return SSL_NO_ENCRYPT;
+        int serverSslMode = SSL_NO_ENCRYPT;
+        for (int i = 0; i < recordCount; i++) {
+            if (data[i].length > 0) {
+                if (list[i][0] == 1) {
+                    serverSslMode = data[i][0]; // This is the server side SSL mode
+                } else if (list[i][0] == PRELOGIN_MARS) {
+                    marsEnabled = data[i][0] == 1;
+                }
+            }
         }
+        return serverSslMode;
     }
 
     /**
@@ -1988,8 +2592,11 @@ public class TdsCore {
           }
        }
 
+        // TDS 7.2 added the change password and long SSPI fields
+        final short fixedLen = (short) (tdsVersion >= Driver.TDS90 ? 94 : 86);
+
         //mdb:begin-change
-        short packSize = (short) (86 + 2 *
+        short packSize = (short) (fixedLen + 2 *
                 (wsid.length() +
                 appName.length() +
                 serverName.length() +
@@ -2018,10 +2625,15 @@ public class TdsCore {
         if (tdsVersion == Driver.TDS70) {
             // SQL Server 7
             out.write(0x70000000);
-//        } else
-//        if (tdsVersion == Driver.TDS90) {
-//            // SQL Server 2005
-//            out.write(0x72090002);
+        } else if (tdsVersion >= Driver.TDS74) {
+            // SQL Server 2012
+            out.write(0x74000004);
+        } else if (tdsVersion >= Driver.TDS73) {
+            // SQL Server 2008 (TDS 7.3.B, required for NBCROW)
+            out.write(0x730B0003);
+        } else if (tdsVersion >= Driver.TDS90) {
+            // SQL Server 2005
+            out.write(0x72090002);
         } else {
             // SQL Server 2000
             out.write(0x71000001);
@@ -2053,7 +2665,7 @@ public class TdsCore {
         out.write(empty, 0, 4); // Collation
 
         // Pack up value lengths, positions.
-        short curPos = 86;
+        short curPos = fixedLen;
 
         // Hostname
         out.write(curPos);
@@ -2118,6 +2730,14 @@ public class TdsCore {
         //"next position" (same as total packet size)
         out.write((int)packSize);
 
+        if (tdsVersion >= Driver.TDS90) {
+            // No password change
+            out.write(packSize);
+            out.write((short) 0);
+            // No long SSPI data
+            out.write(0);
+        }
+
         out.write(wsid);
 
         // Pack up the login values.
@@ -2353,6 +2973,12 @@ public class TdsCore {
 
       try
       {
+         // the rest of a partially read row precedes the next token
+         if( columns != null && nextColumn <= columns.length )
+         {
+            readRow( columns.length, true );
+         }
+
          // handle result set splitting in case of computed results
          if( computedColumns != null )
          {
@@ -2367,6 +2993,7 @@ public class TdsCore {
                                    break;
 
                case TDS_ROW_TOKEN: // endOfResults==true indicates a computed result has been read last
+               case TDS_NBCROW_TOKEN:
                                    if( endOfResults )
                                    {
                                       endOfResults = false;
@@ -2443,6 +3070,9 @@ public class TdsCore {
             case TDS_ROW_TOKEN:
                tdsRowToken();
                break;
+            case TDS_NBCROW_TOKEN:
+               tdsNbcRowToken();
+               break;
             case TDS_ALTROW:
                tdsAltRowToken();
                break;
@@ -2500,6 +3130,9 @@ public class TdsCore {
       {
          // Consume the rest of the response
          in.skipToEnd();
+         pendingPlp = null;
+         nextColumn = Integer.MAX_VALUE;
+         hasUndecoded = false;
          endOfResponse = true;
          endOfResults = true;
          cancelPending = false;
@@ -2686,7 +3319,8 @@ public class TdsCore {
         for (int i = 0; i < colCnt; i++) {
             ColInfo col = new ColInfo();
 
-            col.userType = in.readShort();
+            // TDS 7.2 sends 32 bit user types
+            col.userType = (tdsVersion >= Driver.TDS90) ? in.readInt() : in.readShort();
 
             int flags = in.readShort();
 
@@ -2983,6 +3617,14 @@ public class TdsCore {
         {
            _ErrorReceived = true;
 
+           if (setOptionsSent) {
+               // The batch might have failed before the SET statements
+               // were executed, don't rely on the values stored
+               setOptionsSent = false;
+               connection.setRowCount(-1);
+               connection.setTextSize(-1);
+           }
+
             if (severity < 10) {
                 severity = 11; // Ensure treated as error
             }
@@ -3027,11 +3669,8 @@ public class TdsCore {
         // Next byte indicates if output parameter or return value
         // 1 = normal output param, 2 = function or stored proc return
         boolean funcReturnVal = (in.read() == 2);
-        // Next byte is the parameter type that we supplied which
-        // may not be the same as the parameter definition
-        /* int inputTdsType = */ in.read();
-        // Not sure what these bytes are (they always seem to be zero).
-        in.skip(3);
+        // Skip the user type (32 bit with TDS 7.2) and the flags
+        in.skip((tdsVersion >= Driver.TDS90) ? 6 : 4);
 
         ColInfo col = new ColInfo();
         TdsData.readType(in, col);
@@ -3207,13 +3846,113 @@ public class TdsCore {
      * @throws ProtocolException
      */
     private void tdsRowToken() throws IOException, ProtocolException {
-        for (int i = 0; i < columns.length; i++) {
-            rowData[i] =  TdsData.readData(connection, in, columns[i]);
+        nbcRow = false;
+        startRow();
+        readRow(streamRow ? getStreamColumn() : columns.length, true);
+        endOfResults = false;
+    }
+
+    /**
+     * Process a TDS 7.3 row token with null bitmap. Null columns are only
+     * flagged in the bitmap preceding the row, the data of the other columns
+     * follows as in a normal row.
+     *
+     * @throws IOException
+     * @throws ProtocolException
+     */
+    private void tdsNbcRowToken() throws IOException, ProtocolException {
+        int bitmapLen = (columns.length + 7) >> 3;
+
+        if (nullBitmap == null || nullBitmap.length < bitmapLen) {
+            nullBitmap = new byte[bitmapLen];
         }
 
+        in.read(nullBitmap, 0, bitmapLen);
+
+        nbcRow = true;
+        startRow();
+        readRow(streamRow ? getStreamColumn() : columns.length, true);
         endOfResults = false;
     }
 
+    /**
+     * Prepare reading a row, setting up how the row is read.
+     */
+    private void startRow() {
+        nextColumn = 0;
+        streamRow = readPartially && connection.getStreamLOBs();
+        lazyRow = readPartially && connection.getLazyRows();
+        hasUndecoded = false;
+
+        if (lazyRow) {
+            if (rawRow == null) {
+                rawRow = new RowBuffer(socket);
+            }
+
+            rawRow.reset(columns.length);
+        }
+    }
+
+    /**
+     * Get the index of the first column whose values may be left in the
+     * response when reading a row with {@link #streamRow} set.
+     *
+     * @return the zero based column index or the number of columns
+     */
+    private int getStreamColumn() {
+        for (int i = 0; i < columns.length; i++) {
+            if (PlpValue.isStreamable(columns[i])) {
+                return i;
+            }
+        }
+
+        return columns.length;
+    }
+
+    /**
+     * Read the columns of the current row from {@link #nextColumn} up to the
+     * given column. With {@link #streamRow} set, the data of streamable PLP
+     * columns is left in the response until the next column is read, with
+     * {@link #lazyRow} set values are copied to {@link #rawRow} without
+     * decoding them where possible.
+     *
+     * @param last the zero based index of the last column to read, the
+     *        number of columns to complete the row
+     * @param keep <code>false</code> if PLP values left in the response are
+     *        skipped rather than loaded
+     * @throws IOException
+     * @throws ProtocolException
+     */
+    private void readRow(int last, boolean keep)
+            throws IOException, ProtocolException {
+        while (nextColumn <= last) {
+            if (pendingPlp != null) {
+                PlpValue plp = pendingPlp;
+                pendingPlp = null;
+                plp.finish(keep);
+            }
+
+            int i = nextColumn++;
+
+            if (i == columns.length) {
+                nextColumn = Integer.MAX_VALUE;
+                break;
+            }
+
+            if (nbcRow && (nullBitmap[i >> 3] & (1 << (i & 7))) != 0) {
+                rowData[i] = null;
+            } else if (streamRow && PlpValue.isStreamable(columns[i])) {
+                pendingPlp = TdsData.readPlpHeader(connection, in, columns[i]);
+                rowData[i] = pendingPlp;
+            } else if (lazyRow && rawRow.copy(in, i, columns[i])) {
+                rowData[i] = UNDECODED;
+                hasUndecoded = true;
+            } else {
+                rowData[i] = TdsData.readData(connection, in, columns[i]);
+            }
+        }
+    }
+
     /**
      * Process TDS 5.0 Params Token.
      * Stored procedure output parameters or data returned in parameter format
@@ -3429,6 +4168,34 @@ public class TdsCore {
                     break;
                 }
 
+            case TDS_ENV_BEGINTRAN:
+            case TDS_ENV_ENLISTDTC:
+                {
+                    // New transaction descriptor, old value is empty
+                    int clen = in.read();
+                    byte descriptor[] = new byte[8];
+                    if (clen == 8) {
+                        in.read(descriptor);
+                    } else {
+                        in.skip(clen);
+                    }
+                    connection.setTransactionDescriptor(descriptor);
+                    in.skip(in.read());
+                    break;
+                }
+
+            case TDS_ENV_COMMITTRAN:
+            case TDS_ENV_ROLLBACKTRAN:
+            case TDS_ENV_DEFECTDTC:
+            case TDS_ENV_TRANENDED:
+                {
+                    // Transaction ended, new value is empty
+                    in.skip(in.read());
+                    in.skip(in.read());
+                    connection.setTransactionDescriptor(new byte[8]);
+                    break;
+                }
+
             default:
                 {
                     if (Logger.isActive()) {
@@ -3682,7 +4449,12 @@ public class TdsCore {
         in.skip(1);
         currentToken.operation = (byte)in.read();
         in.skip(1);
-        currentToken.updateCount = in.readInt();
+        if (tdsVersion >= Driver.TDS90) {
+            // TDS 7.2 sends 64 bit row counts
+            currentToken.updateCount = (int) Math.min(in.readLong(), Integer.MAX_VALUE);
+        } else {
+            currentToken.updateCount = in.readInt();
+        }
 
         if (!endOfResults) {
             // This will eliminate the select row count for sybase
@@ -3696,15 +4468,18 @@ public class TdsCore {
         if ((currentToken.status & DONE_CANCEL) != 0) {
             // Synchronize resetting of the cancelPending flag to ensure it
             // doesn't happen during the sending of a cancel request
-            synchronized (cancelMonitor) {
+            cancelLock.lock();
+            try {
                 cancelPending = false;
                 // Only throw an exception if this was a cancel() call
-                if (cancelMonitor[0] == ASYNC_CANCEL) {
+                if (cancelType == ASYNC_CANCEL) {
                     messages.addException(
                         new SQLException(Messages.get("error.generic.cancelled",
                                                       "Statement"),
                                          "HY008"));
                 }
+            } finally {
+                cancelLock.unlock();
             }
         }
         else
@@ -3959,13 +4734,16 @@ public class TdsCore {
      * @param procName Stored procedure to execute or <code>null</code>.
      * @param parameters Parameters for call or <code>null</code>.
      * @param noMetaData Suppress meta data for cursor calls.
+     * @param cleanup Whether the connection's deferred cleanup calls may
+     *                precede an RPC request.
      * @throws SQLException
      */
     private void executeSQL70(String sql,
                               String procName,
                               ParamInfo[] parameters,
                               boolean noMetaData,
-                              boolean sendNow)
+                              boolean sendNow,
+                              boolean cleanup)
         throws IOException, SQLException {
         int prepareSql = connection.getPrepareSql();
 
@@ -4047,49 +4825,23 @@ public class TdsCore {
         if (procName != null) {
             // RPC call
             out.setPacketType(RPC_PKT);
-            Integer shortcut;
+            cleanup &= out.isRequestStart();
+            writeAllHeaders();
 
-            if (tdsVersion >= Driver.TDS80
-                    && (shortcut = (Integer) tds8SpNames.get(procName)) != null) {
-                // Use the shortcut form of procedure name for TDS8
-                out.write((short) -1);
-                out.write(shortcut.shortValue());
-            } else {
-                out.write((short) procName.length());
-                out.write(procName);
+            if (cleanup) {
+                writeCleanupCalls();
             }
-            //
-            // If noMetaData is true then column meta data will be supressed.
-            // This option is used by sp_cursorfetch or optionally by sp_execute
-            // provided that the required meta data has been cached.
-            //
-            out.write((short) (noMetaData ? 2 : 0));
-
-            if (parameters != null) {
-                // Send the required parameter data
-                for (int i = nextParam + 1; i < parameters.length; i++) {
-                    if (parameters[i].name != null) {
-                       out.write((byte) parameters[i].name.length());
-                       out.write(parameters[i].name);
-                    } else {
-                       out.write((byte) 0);
-                    }
 
-                    out.write((byte) (parameters[i].isOutput ? 1 : 0));
+            writeRpc(procName, parameters, nextParam + 1, noMetaData);
 
-                    TdsData.writeParam(out,
-                            connection.getCharsetInfo(),
-                            connection.getCollation(),
-                            parameters[i]);
-                }
-            }
             if (!sendNow) {
                 // Append RPC packets
-                out.write(DONE_END_OF_RESPONSE);
+                out.write(tdsVersion >= Driver.TDS90 ? RPC_BATCH_SEPARATOR : DONE_END_OF_RESPONSE);
             }
         } else if (sql.length() > 0) {
             // Simple SQL query with no parameters
             out.setPacketType(QUERY_PKT);
+            writeAllHeaders();
             out.write(sql);
             if (!sendNow) {
                 // Append SQL packets
@@ -4098,49 +4850,241 @@ public class TdsCore {
         }
     }
 
+    /**
+     * Write a single RPC call of a TDS 7.0 RPC request.
+     *
+     * @param procName   the procedure to call
+     * @param parameters the parameters of the call or <code>null</code>
+     * @param first      the index of the first parameter to send
+     * @param noMetaData suppress meta data for cursor calls
+     * @throws IOException if an I/O error occurs
+     */
+    private void writeRpc(String procName,
+                          ParamInfo[] parameters,
+                          int first,
+                          boolean noMetaData)
+        throws IOException {
+        Integer shortcut;
+
+        if (tdsVersion >= Driver.TDS80
+                && (shortcut = (Integer) tds8SpNames.get(procName)) != null) {
+            // Use the shortcut form of procedure name for TDS8
+            out.write((short) -1);
+            out.write(shortcut.shortValue());
+        } else {
+            out.write((short) procName.length());
+            out.write(procName);
+        }
+        //
+        // If noMetaData is true then column meta data will be supressed.
+        // This option is used by sp_cursorfetch or optionally by sp_execute
+        // provided that the required meta data has been cached.
+        //
+        out.write((short) (noMetaData ? 2 : 0));
+
+        if (parameters != null) {
+            // Send the required parameter data
+            for (int i = first; i < parameters.length; i++) {
+                if (parameters[i].name != null) {
+                   out.write((byte) parameters[i].name.length());
+                   out.write(parameters[i].name);
+                } else {
+                   out.write((byte) 0);
+                }
+
+                out.write((byte) (parameters[i].isOutput ? 1 : 0));
+
+                TdsData.writeParam(out,
+                        connection.getCharsetInfo(),
+                        connection.getCollation(),
+                        parameters[i]);
+            }
+        }
+    }
+
+    /**
+     * Write the cleanup calls deferred by the connection ahead of the RPC
+     * call of the current request, see
+     * {@link JtdsConnection#deferCleanup(String, Object)}. Their responses
+     * are skipped by {@link #skipCleanupResponses()}.
+     *
+     * @throws IOException if an I/O error occurs
+     * @throws SQLException if the handle parameter cannot be converted
+     */
+    private void writeCleanupCalls() throws IOException, SQLException {
+        JtdsConnection.CleanupCall[] calls = connection.takeCleanupCalls();
+
+        if (calls == null) {
+            return;
+        }
+
+        for (int i = 0; i < calls.length; i++) {
+            ParamInfo[] params = new ParamInfo[] {calls[i].getParameter()};
+            TdsData.getNativeType(connection, params[0]);
+
+            writeRpc(calls[i].procName, params, 0, false);
+            out.write(tdsVersion >= Driver.TDS90 ? RPC_BATCH_SEPARATOR : DONE_END_OF_RESPONSE);
+        }
+
+        cleanupResponses = calls.length;
+    }
+
+    /**
+     * Consume the responses to the deferred cleanup calls preceding the
+     * current request, each ending with a DONEPROC token. Errors and the
+     * return status of the calls are discarded, the handles are released
+     * with the session anyway.
+     *
+     * @throws SQLException if an I/O error occurs
+     */
+    private void skipCleanupResponses() throws SQLException {
+        if (cleanupResponses == 0) {
+            return;
+        }
+
+        ParamInfo savedReturnParam = returnParam;
+        returnParam = null;
+
+        try {
+            while (cleanupResponses > 0 && !endOfResponse) {
+                nextToken();
+
+                if (currentToken.token == TDS_DONEPROC_TOKEN) {
+                    cleanupResponses--;
+                }
+            }
+        } finally {
+            cleanupResponses = 0;
+            returnParam = savedReturnParam;
+        }
+
+        returnStatus = null;
+        messages.exceptions = null;
+        messages.clearWarnings();
+    }
+
+    /**
+     * Write the TDS 7.2 ALL_HEADERS data stream that has to precede SQL batch,
+     * RPC and transaction manager requests. It carries the descriptor of the
+     * connection's current transaction, so that requests of all statements
+     * (i.e. of all MARS sessions) run in that transaction.
+     * <p/>
+     * Nothing is written for older TDS versions or if the current request has
+     * already been started, e.g. when batching RPC calls.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void writeAllHeaders() throws IOException {
+        if (tdsVersion >= Driver.TDS90 && out.isRequestStart()) {
+            out.write(ALL_HEADERS_LEN);
+            // Transaction descriptor header
+            out.write(ALL_HEADERS_LEN - 4);
+            out.write(HEADER_TRANSACTION);
+            out.write(connection.getTransactionDescriptor());
+            // Outstanding request count
+            out.write(1);
+        }
+    }
+
     /**
      * Sets the server row count (to limit the number of rows in a result set)
      * and text size (to limit the size of returned TEXT/NTEXT fields).
+     * <p/>
+     * If the request about to be sent is a plain SQL batch that may be
+     * prefixed, see {@link #isPrefixable(String)}, the statements are
+     * prepended to the batch, saving a round trip to the server. Otherwise
+     * they are executed by a request of their own.
      *
+     * @param sql          the SQL of the request about to be sent
+     * @param procName     the procedure to execute or <code>null</code>
+     * @param parameters   the parameters of the request or <code>null</code>
      * @param rowCount the number of rows to return or 0 for no limit or -1 to
      *                 leave as is
      * @param textSize the maximum number of bytes in a TEXT column to return
      *                 or -1 to leave as is
+     * @return the SQL to send, possibly prefixed with the SET statements
      * @throws SQLException if an error is returned by the server
      */
-    private void setRowCountAndTextSize(int rowCount, int textSize)
+    private String setRowCountAndTextSize(String sql,
+                                          String procName,
+                                          ParamInfo[] parameters,
+                                          int rowCount,
+                                          int textSize)
             throws SQLException {
         boolean newRowCount =
                 rowCount >= 0 && rowCount != connection.getRowCount();
         boolean newTextSize =
                 textSize >= 0 && textSize != connection.getTextSize();
         if (newRowCount || newTextSize) {
-            try {
-                StringBuilder query = new StringBuilder(64);
-                if (newRowCount) {
-                    query.append("SET ROWCOUNT ").append(rowCount);
-                }
-                if (newTextSize) {
-                    query.append(" SET TEXTSIZE ")
-                            .append(textSize == 0 ? 2147483647 : textSize);
+            StringBuilder query = new StringBuilder(64);
+            if (newRowCount) {
+                query.append("SET ROWCOUNT ").append(rowCount);
+            }
+            if (newTextSize) {
+                query.append(" SET TEXTSIZE ")
+                        .append(textSize == 0 ? 2147483647 : textSize);
+            }
+            if (tdsVersion != Driver.TDS50 && procName == null
+                    && parameters == null && isPrefixable(sql)
+                    && out.isRequestStart()) {
+                // Send the SET statements as part of the SQL batch,
+                // terminated for statements such as WITH or THROW
+                sql = query.append("; ").append(sql).toString();
+                setOptionsSent = true;
+            } else {
+                try {
+                    out.setPacketType(QUERY_PKT);
+                    writeAllHeaders();
+                    out.write(query.toString());
+                    out.flush();
+                    endOfResponse = false;
+                    endOfResults  = true;
+                    wait(0);
+                    clearResponseQueue();
+                    messages.checkErrors();
+                } catch (IOException ioe) {
+                    throw new SQLException(
+                                Messages.get("error.generic.ioerror",
+                                                        ioe.getMessage()), "08S01");
                 }
-                out.setPacketType(QUERY_PKT);
-                out.write(query.toString());
-                out.flush();
-                endOfResponse = false;
-                endOfResults  = true;
-                wait(0);
-                clearResponseQueue();
-                messages.checkErrors();
-                // Update the values stored in the Connection
-                connection.setRowCount(rowCount);
-                connection.setTextSize(textSize);
-            } catch (IOException ioe) {
-                throw new SQLException(
-                            Messages.get("error.generic.ioerror",
-                                                    ioe.getMessage()), "08S01");
+            }
+            // Update the values stored in the Connection
+            connection.setRowCount(rowCount);
+            connection.setTextSize(textSize);
+        }
+        return sql;
+    }
+
+    /**
+     * Determines whether a SQL batch may be prefixed with the statements
+     * setting the row count and text size, i.e. whether it starts with one of
+     * the {@link #PREFIXABLE_STATEMENTS}.
+     *
+     * @param sql the SQL batch
+     * @return <code>true</code> if the batch may be prefixed
+     */
+    private static boolean isPrefixable(String sql) {
+        int start = 0;
+        int len = sql.length();
+        while (start < len && Character.isWhitespace(sql.charAt(start))) {
+            start++;
+        }
+        int end = start;
+        while (end < len && Character.isLetter(sql.charAt(end))) {
+            end++;
+        }
+        if (end == start || (end < len && (sql.charAt(end) == '_'
+                || Character.isLetterOrDigit(sql.charAt(end))))) {
+            // Empty, a comment or an identifier such as sp_who
+            return false;
+        }
+        String word = sql.substring(start, end);
+        for (int i = 0; i < PREFIXABLE_STATEMENTS.length; i++) {
+            if (PREFIXABLE_STATEMENTS[i].equalsIgnoreCase(word)) {
+                return true;
             }
         }
+        return false;
     }
 
     /**
@@ -4533,7 +5477,7 @@ public class TdsCore {
          col.schema          = columns[columnIndex].schema;
 
          // user typeID of the data type of the column, 0x0000 with the exceptions of TIMESTAMP (0x0050) and alias types (greater than 0x00FF)
-         col.userType        = in.readShort();
+         col.userType        = ( tdsVersion >= Driver.TDS90 ) ? in.readInt() : in.readShort();
 
          // process flags
          int flags = in.readShort();
@@ -20,8 +20,16 @@ package net.sourceforge.jtds.jdbc;
 import java.io.*;
 import java.math.BigInteger;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
 import java.sql.Types;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
 
 import net.sourceforge.jtds.util.BlobBuffer;
 
@@ -61,6 +69,7 @@ public class TdsData {
          * <ol>
          * <li> -5 sql_variant type.
          * <li> -4 text, image or ntext types.
+         * <li> -3 SQL Server 2005+ xml and CLR user-defined types.
          * <li> -2 SQL Server 7+ long char and var binary types.
          * <li> -1 varchar, varbinary, null types.
          * </ol>
@@ -158,8 +167,8 @@ public class TdsData {
     private static final int SYBVARIANT            = 98; // 0x62              (MS: SQL_VARIANT)
     private static final int SYBSINT8              = 191;// 0xBF SYBASE 15
 
-    // SQL Server user defined data type
-    // private static final int UDT                   = 240;
+    // SQL Server 2005 CLR user defined data type
+    private static final int UDT                   = 240;
 
     // XML data type introduced in SQL Server 2005
     private static final int XML                   = 241;
@@ -170,6 +179,9 @@ public class TdsData {
     private static final int DATETIME2N            = 42; // 0x2A MSSQL 2008
     private static final int DATETIMEOFFSETN       = 43; // 0x2B MSSQL 2008
 
+    // table-valued parameters introduced in SQL Server 2008
+    private static final int TVP                   = 243;// 0xF3 MSSQL 2008
+
     /*
      * Special case for Sybase 12.5+
      * This long data type is used to send text and image
@@ -205,10 +217,19 @@ public class TdsData {
      * Constants for variable length data types
      */
     private static final int VAR_MAX               = 255;
+    private static final int PLP_MAX               = 0xFFFF;
+    private static final long PLP_NULL             = -1L;
+    private static final long PLP_UNKNOWN          = -2L;
     private static final int SYB_LONGVAR_MAX       = 16384;
     private static final int MS_LONGVAR_MAX        = 8000;
     private static final int SYB_CHUNK_SIZE        = 8192;
 
+    /*
+     * Days from 0001-01-01, the epoch of the SQL Server 2008 date types, to
+     * 1970-01-01
+     */
+    private static final int DAYS_TO_1970          = 719162;
+
     /**
      * Array of TDS data type descriptors.
      */
@@ -272,7 +293,9 @@ public class TdsData {
       types[SYBVARIANT]      = new TypeInfo( "sql_variant"      , -5,  0, 8000, false, false, Types.VARCHAR   );
       types[SYBSINT8]        = new TypeInfo( "bigint"           ,  8, 19,   20, true , false, Types.BIGINT    );
       // XML data type introduced in SQL Server 2005
-      types[XML]             = new TypeInfo( "xml"              , -4, -1,   -1, false, true , Types.SQLXML    );
+      types[XML]             = new TypeInfo( "xml"              , -3, -1,   -1, false, false, Types.CLOB      );
+      // CLR user defined types introduced in SQL Server 2005
+      types[UDT]             = new TypeInfo( "udt"              , -3, -1,   -1, false, false, Types.VARBINARY );
       // time and date data types introduced in SQL Server 2008
       types[DATEN]           = new TypeInfo( "date"             ,  3, 10,   10, false, false, Types.DATE      );
       types[TIMEN]           = new TypeInfo( "time"             , -1, -1,   -1, false, false, Types.TIME      );
@@ -369,6 +392,7 @@ public class TdsData {
     static int readType(ResponseStream in, ColInfo ci)
             throws IOException, ProtocolException {
         int tdsVersion = in.getTdsVersion();
+        boolean isTds9 = tdsVersion >= Driver.TDS90;
         boolean isTds8 = tdsVersion >= Driver.TDS80;
         boolean isTds7 = tdsVersion >= Driver.TDS70;
         boolean isTds5 = tdsVersion == Driver.TDS50;
@@ -385,6 +409,9 @@ public class TdsData {
         ci.tdsType     = type;
         ci.jdbcType    = types[type].jdbcType;
         ci.bufferSize  = types[type].size;
+        ci.isPlp       = false;
+
+        String udtName = null;
 
         // Now get the buffersize if required
         if (ci.bufferSize == -5) {
@@ -400,10 +427,69 @@ public class TdsData {
                 bytesRead += getCollation(in, ci);
             }
 
-            int lenName = in.readShort();
+            if (isTds9) {
+                // TDS 7.2 sends a multi-part table name
+                int parts = in.read();
+                bytesRead += 5;
+
+                StringBuilder tableName = new StringBuilder();
+
+                for (int i = 0; i < parts; i++) {
+                    int lenName = in.readShort();
+
+                    if (i > 0) {
+                        tableName.append('.');
+                    }
+
+                    tableName.append(in.readString(lenName));
+                    bytesRead += 2 + lenName * 2;
+                }
+
+                ci.tableName = tableName.toString();
+            } else {
+                int lenName = in.readShort();
+
+                ci.tableName = in.readString(lenName);
+                bytesRead += 6 + ((in.getTdsVersion() >= Driver.TDS70) ? lenName * 2 : lenName);
+            }
+        } else if (ci.bufferSize == -3) {
+            // xml or CLR user defined type, always sent as PLP
+            ci.isPlp = true;
+
+            if (type == XML) {
+                bytesRead += 1;
+
+                if (in.read() != 0) {
+                    // Skip the XML schema collection
+                    int len = in.read();
+                    in.skipString(len);
+                    bytesRead += 1 + len * 2;
+                    len = in.read();
+                    in.skipString(len);
+                    bytesRead += 1 + len * 2;
+                    len = in.readShort();
+                    in.skipString(len);
+                    bytesRead += 2 + len * 2;
+                }
 
-            ci.tableName = in.readString(lenName);
-            bytesRead += 6 + ((in.getTdsVersion() >= Driver.TDS70) ? lenName * 2 : lenName);
+                ci.bufferSize = Integer.MAX_VALUE / 2;
+            } else {
+                ci.bufferSize = in.readShort() & 0xFFFF;
+                // Skip database and schema, keep the type name
+                int len = in.read();
+                in.skipString(len);
+                bytesRead += 3 + len * 2;
+                len = in.read();
+                in.skipString(len);
+                bytesRead += 1 + len * 2;
+                len = in.read();
+                udtName = in.readString(len);
+                bytesRead += 1 + len * 2;
+                // Skip the assembly qualified name
+                len = in.readShort();
+                in.skipString(len);
+                bytesRead += 2 + len * 2;
+            }
         } else if (ci.bufferSize == -2) {
             // longvarchar longvarbinary
             if (isTds5 && ci.tdsType == XSYBCHAR) {
@@ -414,6 +500,12 @@ public class TdsData {
                 bytesRead += 2;
             }
 
+            if (isTds9 && ci.bufferSize == -1) {
+                // TDS 7.2 max type, sent as PLP
+                ci.isPlp      = true;
+                ci.bufferSize = Integer.MAX_VALUE;
+            }
+
             if (isTds8) {
                 bytesRead += getCollation(in, ci);
             }
@@ -533,6 +625,21 @@ public class TdsData {
                 ci.sqlType     = types[type].sqlType;
                 break;
 
+            // date is sent without length, the time types with the scale
+            // of the fractional seconds instead
+            case DATEN:
+                ci.scale = 0;
+                break;
+            case TIMEN:
+            case DATETIME2N:
+            case DATETIMEOFFSETN:
+                ci.scale       = ci.bufferSize;
+                ci.bufferSize  = getDateTime2Length(type, ci.scale);
+                ci.precision   = ((type == TIMEN) ? 8 : (type == DATETIME2N) ? 19 : 26)
+                                 + ((ci.scale > 0) ? ci.scale + 1 : 0);
+                ci.displaySize = ci.precision;
+                break;
+
             // Although a binary type force displaysize to MAXINT
             case SYBIMAGE:
                 ci.precision   = Integer.MAX_VALUE;
@@ -545,7 +652,20 @@ public class TdsData {
             case XSYBBINARY:
             case XSYBVARBINARY:
                 ci.precision   = ci.bufferSize;
-                ci.displaySize = ci.precision * 2;
+                ci.displaySize = ci.isPlp ? Integer.MAX_VALUE : ci.precision * 2;
+                break;
+
+            // xml is sent as unicode text
+            case XML:
+                ci.precision   = ci.bufferSize;
+                ci.displaySize = ci.bufferSize;
+                break;
+
+            // CLR types are reported by their type name
+            case UDT:
+                ci.sqlType     = udtName;
+                ci.precision   = ci.bufferSize == PLP_MAX ? Integer.MAX_VALUE : ci.bufferSize;
+                ci.displaySize = ci.bufferSize == PLP_MAX ? Integer.MAX_VALUE : ci.precision * 2;
                 break;
 
             // SQL Server unicode text can only display half as many chars
@@ -579,6 +699,11 @@ public class TdsData {
                 break;
         }
 
+        // max types are large objects, like text, ntext and image
+        if (ci.isPlp && type != UDT) {
+            ci.jdbcType = (type == XSYBVARBINARY) ? Types.BLOB : Types.CLOB;
+        }
+
         // For numeric types add 'identity' for auto inc data type
         if (ci.isIdentity) {
             ci.sqlType += " identity";
@@ -689,6 +814,10 @@ public class TdsData {
             throws IOException, ProtocolException {
         int len;
 
+        if (ci.isPlp) {
+            return readPlpData(connection, in, ci);
+        }
+
         switch (ci.tdsType) {
             case SYBINTN:
                 switch (in.read()) {
@@ -1037,6 +1166,13 @@ public class TdsData {
             case SYBDATETIME:
                 return getDatetimeValue(in, ci.tdsType);
 
+            // SQL Server 2008 date and time types, TDS 7.3+
+            case DATEN:
+            case TIMEN:
+            case DATETIME2N:
+            case DATETIMEOFFSETN:
+                return getDateTime2Value(in, ci.tdsType, ci.scale, in.read());
+
             case SYBDATEN:
             case SYBDATE:
                 len = (ci.tdsType == SYBDATEN)? in.read(): 4;
@@ -1143,6 +1279,328 @@ public class TdsData {
         return null;
     }
 
+    /**
+     * Get the size of the length prefix of a column's values, for copying
+     * values in their network format to decode them later on, see
+     * {@link RowBuffer}.
+     *
+     * @param ci the column descriptor
+     * @param tdsVersion the TDS version of the connection
+     * @return 1, 2 or 4 for length prefixed values, 0 for values of the fixed
+     *         length returned by {@link #getFixedLength(ColInfo)} or -1 if the
+     *         values cannot be copied, e.g. text, image and PLP values
+     */
+    static int getLengthPrefix(ColInfo ci, int tdsVersion) {
+        if (ci.isPlp) {
+            return -1;
+        }
+
+        switch (ci.tdsType) {
+            case SYBINT1:
+            case SYBINT2:
+            case SYBINT4:
+            case SYBINT8:
+            case SYBSINT1:
+            case SYBSINT8:
+            case SYBUINT2:
+            case SYBUINT4:
+            case SYBUINT8:
+            case SYBREAL:
+            case SYBFLT8:
+            case SYBMONEY4:
+            case SYBMONEY:
+            case SYBDATETIME4:
+            case SYBDATETIME:
+            case SYBDATE:
+            case SYBTIME:
+            case SYBBIT:
+                return 0;
+
+            case SYBINTN:
+            case SYBUINTN:
+            case SYBBITN:
+            case SYBFLTN:
+            case SYBMONEYN:
+            case SYBDATETIMN:
+            case SYBDATEN:
+            case SYBTIMEN:
+            case SYBNUMERIC:
+            case SYBDECIMAL:
+            case SYBUNIQUE:
+            case SYBCHAR:
+            case SYBVARCHAR:
+            case SYBNVARCHAR:
+            case SYBBINARY:
+            case SYBVARBINARY:
+            case DATEN:
+            case TIMEN:
+            case DATETIME2N:
+            case DATETIMEOFFSETN:
+                return 1;
+
+            case XSYBCHAR:
+            case XSYBVARCHAR:
+                // Sybase wide table strings have a 4 byte length
+                return tdsVersion == Driver.TDS50 ? 4 : 2;
+
+            case XSYBNCHAR:
+            case XSYBNVARCHAR:
+            case XSYBBINARY:
+            case XSYBVARBINARY:
+                return 2;
+
+            case SYBLONGBINARY:
+                return 4;
+
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Get the kind of primitive slot {@link RowBuffer} keeps the values of a
+     * column in.
+     *
+     * @param ci the column descriptor
+     * @return one of the <code>RowBuffer</code> kinds, <code>NONE</code> if
+     *         the values of the column are only decoded as objects
+     */
+    static int getPrimitiveKind(ColInfo ci) {
+        switch (ci.tdsType) {
+            case SYBINT1:
+            case SYBINT2:
+            case SYBINT4:
+            case SYBINT8:
+            case SYBSINT8:
+            case SYBINTN:
+                return RowBuffer.INTEGER;
+
+            case SYBUINT2:
+            case SYBUINT4:
+            case SYBUINTN:
+                return RowBuffer.UNSIGNED;
+
+            case SYBREAL:
+            case SYBFLT8:
+            case SYBFLTN:
+                return RowBuffer.FLOAT;
+
+            case SYBMONEY4:
+            case SYBMONEY:
+            case SYBMONEYN:
+                return RowBuffer.MONEY;
+
+            case SYBBIT:
+            case SYBBITN:
+                return RowBuffer.BIT;
+
+            default:
+                return RowBuffer.NONE;
+        }
+    }
+
+    /**
+     * Get the length of the values of a fixed length column.
+     *
+     * @param ci the column descriptor
+     * @return the length of the values in bytes
+     */
+    static int getFixedLength(ColInfo ci) {
+        return types[ci.tdsType].size;
+    }
+
+    /**
+     * Read a TDS 7.2 partially length-prefixed (PLP) data item, i.e. a max
+     * type, xml or CLR user defined type value.
+     * <p>
+     * Like text and image data, values not larger than the connection's
+     * <code>lobBuffer</code> are loaded into memory, larger values or values
+     * of unknown length are written straight to disk.
+     *
+     * @param connection the connection the data is read for
+     * @param in The server ResponseStream.
+     * @param ci The ColInfo column descriptor object.
+     * @return The data item Object or null.
+     * @throws IOException
+     */
+    private static Object readPlpData(JtdsConnection connection, ResponseStream in, ColInfo ci)
+            throws IOException {
+        long totalLen = in.readLong();
+
+        if (totalLen == PLP_NULL) {
+            return null;
+        }
+
+        return readPlpValue(connection, ci, totalLen, in.getPlpInputStream());
+    }
+
+    /**
+     * Read the header of a PLP value but leave its data in the response, to
+     * be read as a stream or loaded later on.
+     *
+     * @param connection the connection the data is read for
+     * @param in The server ResponseStream.
+     * @param ci The ColInfo column descriptor object.
+     * @return a {@link PlpValue} positioned at the data or <code>null</code>
+     * @throws IOException
+     */
+    static PlpValue readPlpHeader(JtdsConnection connection, ResponseStream in, ColInfo ci)
+            throws IOException {
+        long totalLen = in.readLong();
+
+        if (totalLen == PLP_NULL) {
+            return null;
+        }
+
+        return new PlpValue(connection, ci, totalLen, in.getPlpInputStream());
+    }
+
+    /**
+     * Read the chunks of a PLP value whose total length has already been read.
+     *
+     * @param connection the connection the data is read for
+     * @param ci The ColInfo column descriptor object.
+     * @param totalLen the total length of the value or -2 if unknown
+     * @param plp the PLP value as returned by {@link ResponseStream#getPlpInputStream()}
+     * @return the value as <code>BlobImpl</code>, <code>ClobImpl</code> or
+     *         <code>byte[]</code>
+     * @throws IOException
+     */
+    static Object readPlpValue(JtdsConnection connection, ColInfo ci, long totalLen, InputStream plp)
+            throws IOException {
+        // Total length is -2 if unknown
+        boolean inMemory = totalLen >= 0 && totalLen <= connection.getLobBuffer();
+
+        try {
+            if (ci.jdbcType == Types.VARBINARY) {
+                // CLR user defined type
+                return readPlpBytes(plp, totalLen);
+            }
+
+            if (ci.jdbcType == Types.BLOB) {
+                if (inMemory) {
+                    return new BlobImpl(connection, readPlpBytes(plp, totalLen));
+                }
+
+                BlobImpl blob = new BlobImpl(connection);
+                copyPlp(plp, blob.setBinaryStream(1));
+                return blob;
+            }
+
+            ClobImpl clob = new ClobImpl(connection);
+            BlobBuffer blobBuffer = clob.getBlobBuffer();
+
+            if (ci.tdsType == XSYBVARCHAR) {
+                // varchar(max) is converted to UCS-2 like text data
+                BufferedReader rdr = new BufferedReader(
+                        new InputStreamReader(plp, getPlpCharset(connection, ci)), 1024);
+                int c;
+
+                if (inMemory) {
+                    byte[] data = new byte[(int) totalLen * 2];
+                    int p = 0;
+
+                    while ((c = rdr.read()) >= 0) {
+                        data[p++] = (byte) c;
+                        data[p++] = (byte) (c >> 8);
+                    }
+
+                    blobBuffer.setBuffer(data, false);
+                    // Explicitly set length as multi byte character sets
+                    // may not fill array completely.
+                    blobBuffer.setLength(p);
+                } else {
+                    OutputStream out = blobBuffer.setBinaryStream(1, false);
+
+                    while ((c = rdr.read()) >= 0) {
+                        out.write(c);
+                        out.write(c >> 8);
+                    }
+
+                    out.close();
+                }
+            } else if (inMemory) {
+                // nvarchar(max) and xml are already UCS-2
+                byte[] data = readPlpBytes(plp, totalLen);
+                blobBuffer.setBuffer(data, false);
+                blobBuffer.setLength(data.length);
+            } else {
+                copyPlp(plp, blobBuffer.setBinaryStream(1, false));
+            }
+
+            return clob;
+        } catch (SQLException e) {
+            // Transform setBinaryStream SQLException
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Get the charset of a character PLP column.
+     *
+     * @param connection the connection the data is read for
+     * @param ci The ColInfo column descriptor object.
+     * @return the column's charset for varchar(max), UCS-2 otherwise
+     */
+    static String getPlpCharset(JtdsConnection connection, ColInfo ci) {
+        if (ci.tdsType != XSYBVARCHAR) {
+            return "UTF-16LE";
+        }
+
+        return (ci.charsetInfo != null)
+                ? ci.charsetInfo.getCharset() : connection.getCharset();
+    }
+
+    /**
+     * Read all chunks of a PLP value into a byte array.
+     *
+     * @param plp the PLP value as returned by {@link ResponseStream#getPlpInputStream()}
+     * @param totalLen the total length of the value or -2 if unknown
+     * @return the value as a <code>byte[]</code>
+     */
+    private static byte[] readPlpBytes(InputStream plp, long totalLen)
+            throws IOException {
+        if (totalLen >= 0 && totalLen <= Integer.MAX_VALUE) {
+            byte[] data = new byte[(int) totalLen];
+            int p = 0;
+            int result;
+
+            while (p < data.length
+                    && (result = plp.read(data, p, data.length - p)) != -1) {
+                p += result;
+            }
+
+            // Consume the chunk terminator
+            if (plp.read() != -1 || p != data.length) {
+                throw new IOException("PLP data does not match the announced length");
+            }
+
+            return data;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        copyPlp(plp, bytes);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Copy all chunks of a PLP value to an output stream and close it.
+     *
+     * @param plp the PLP value as returned by {@link ResponseStream#getPlpInputStream()}
+     * @param out the stream to write the data to
+     */
+    private static void copyPlp(InputStream plp, OutputStream out)
+            throws IOException {
+        byte[] buffer = new byte[1024];
+        int result;
+
+        while ((result = plp.read(buffer, 0, buffer.length)) != -1) {
+            out.write(buffer, 0, result);
+        }
+
+        out.close();
+    }
+
     /**
      * Retrieve the signed status of the column.
      *
@@ -1285,6 +1743,56 @@ public class TdsData {
         ci.scale = 0;
     }
 
+    /**
+     * Check whether a JDBC type is one of the binary types.
+     *
+     * @param jdbcType the <code>java.sql.Types</code> constant
+     * @return <code>true</code> for binary types and BLOBs
+     */
+    private static boolean isBinaryType(int jdbcType) {
+        return jdbcType == Types.BINARY || jdbcType == Types.VARBINARY
+                || jdbcType == Types.LONGVARBINARY || jdbcType == Types.BLOB;
+    }
+
+    /**
+     * Select a max type for a stream parameter of unknown length, to be sent
+     * in PLP chunks by {@link #writeParam}. Only possible for input
+     * parameters with SQL Server 2005 and later (TDS 7.2).
+     *
+     * @param connection the connectionJDBC object
+     * @param pi         the parameter descriptor
+     * @param jdbcType   the JDBC type of the parameter
+     * @return <code>true</code> if the parameter will be sent as PLP value
+     */
+    private static boolean setPlpType(JtdsConnection connection, ParamInfo pi, int jdbcType) {
+        if (connection.getTdsVersion() < Driver.TDS90 || pi.isOutput) {
+            return false;
+        }
+
+        if (isBinaryType(jdbcType)) {
+            if (!(pi.value instanceof InputStream)) {
+                return false;
+            }
+
+            pi.tdsType = XSYBVARBINARY;
+            pi.sqlType = "varbinary(max)";
+        } else if (jdbcType == Types.CHAR || jdbcType == Types.VARCHAR
+                || jdbcType == Types.LONGVARCHAR || jdbcType == Types.CLOB) {
+            if (pi.isUnicode) {
+                pi.tdsType = XSYBNVARCHAR;
+                pi.sqlType = "nvarchar(max)";
+            } else {
+                pi.tdsType = XSYBVARCHAR;
+                pi.sqlType = "varchar(max)";
+            }
+        } else {
+            return false;
+        }
+
+        pi.isPlp = true;
+        return true;
+    }
+
     /**
      * Retrieve the TDS native type code for the parameter.
      *
@@ -1300,6 +1808,28 @@ public class TdsData {
             jdbcType = Support.getJdbcType(pi.value);
         }
 
+        pi.isPlp = false;
+
+        if (pi.length < 0
+                && (pi.value instanceof InputStream || pi.value instanceof Reader)) {
+            // Stream of unknown length, send it in chunks if possible
+            if (setPlpType(connection, pi, jdbcType)) {
+                return;
+            }
+
+            try {
+                if (isBinaryType(jdbcType)) {
+                    byte[] bytes = pi.getBytes(connection.getCharset());
+                    pi.length = bytes.length;
+                } else {
+                    pi.length = pi.getString(connection.getCharset()).length();
+                }
+            } catch (IOException e) {
+                throw new SQLException(
+                        Messages.get("error.generic.ioerror", e.getMessage()), "HY000");
+            }
+        }
+
         switch (jdbcType) {
             case Types.CHAR:
             case Types.VARCHAR:
@@ -1551,11 +2081,44 @@ public class TdsData {
 
                 break;
 
-            case Types.OTHER:
-            case Types.NULL:
-                // Send a null String in the absence of anything better
-                pi.tdsType = SYBVARCHAR;
-                pi.sqlType = "varchar(255)";
+            case JtdsStatement.STRUCTURED:
+                if (connection.getTdsVersion() < Driver.TDS73) {
+                    throw new SQLException(Messages.get("error.tvp.tdsversion"), "HYC00");
+                }
+
+                if (pi.isOutput) {
+                    throw new SQLException(Messages.get("error.tvp.output"), "HY105");
+                }
+
+                if (pi.value == null) {
+                    throw new SQLException(Messages.get("error.tvp.null"), "HY009");
+                }
+
+                JtdsDataTable table = (JtdsDataTable) pi.value;
+                ColInfo[] columns = table.getColumns();
+                List<Object[]> rows = table.getRows();
+
+                // Convert the rows now, writeParam() cannot fail
+                pi.tableRows = new Object[rows.size()][];
+
+                for (int i = 0; i < pi.tableRows.length; i++) {
+                    Object[] row = rows.get(i);
+                    pi.tableRows[i] = new Object[columns.length];
+
+                    for (int j = 0; j < columns.length; j++) {
+                        pi.tableRows[i][j] = getBulkValue(connection, columns[j], row[j]);
+                    }
+                }
+
+                pi.tdsType = TVP;
+                pi.sqlType = table.getTypeName() + " READONLY";
+                break;
+
+            case Types.OTHER:
+            case Types.NULL:
+                // Send a null String in the absence of anything better
+                pi.tdsType = SYBVARCHAR;
+                pi.sqlType = "varchar(255)";
                 break;
 
             case Types.SQLXML:
@@ -2103,6 +2666,11 @@ public class TdsData {
             pi.charsetInfo = charsetInfo;
         }
 
+        if (pi.isPlp) {
+            writePlpParam(out, pi);
+            return;
+        }
+
         switch (pi.tdsType) {
 
             case XSYBVARCHAR:
@@ -2529,6 +3097,10 @@ public class TdsData {
                 }
                 break;
 
+            case TVP:
+                writeTableParam(out, collation, pi);
+                break;
+
             default:
                 throw new IllegalStateException("Unsupported output TDS type "
                         + Integer.toHexString(pi.tdsType));
@@ -2538,6 +3110,39 @@ public class TdsData {
 // ---------------------- Private methods from here -----------------------
 //
 
+    /**
+     * Write a stream parameter of unknown length as a series of PLP chunks,
+     * reading the stream as the chunks are sent.
+     *
+     * @param out the server request stream
+     * @param pi  the parameter descriptor
+     * @throws IOException if an I/O error occurs
+     */
+    private static void writePlpParam(RequestStream out, ParamInfo pi)
+            throws IOException {
+        out.write((byte) pi.tdsType);
+        out.write((short) PLP_MAX);
+
+        if (pi.tdsType == XSYBVARBINARY) {
+            out.write(PLP_UNKNOWN);
+            out.writePlpStreamBytes((InputStream) pi.value);
+            return;
+        }
+
+        putCollation(out, pi);
+        out.write(PLP_UNKNOWN);
+
+        String charset = pi.charsetInfo.getCharset();
+        Reader reader = pi.value instanceof Reader ? (Reader) pi.value
+                : new InputStreamReader((InputStream) pi.value, charset);
+
+        if (pi.tdsType == XSYBNVARCHAR) {
+            out.writePlpReaderChars(reader);
+        } else {
+            out.writePlpReaderBytes(reader, charset);
+        }
+    }
+
     /**
      * Private constructor to prevent users creating an
      * actual instance of this class.
@@ -2597,152 +3202,1252 @@ public class TdsData {
     }
 
     /**
-     * Output a java.sql.Date/Time/Timestamp value to the server
-     * as a Sybase datetime value.
+     * Get the length of a TDS 7.3 date, time, datetime2 or datetimeoffset
+     * value.
      *
-     * @param out   the server request stream
-     * @param value the date value to write
+     * @param type  the TDS data type
+     * @param scale the number of fractional second digits
+     * @return the length of the value in bytes
      */
-    private static void putDateTimeValue(RequestStream out, DateTime value)
-            throws IOException {
-        if (value == null) {
-            out.write((byte) 0);
-            return;
+    private static int getDateTime2Length(int type, int scale) {
+        int len = (type == DATEN) ? 0 : (scale <= 2) ? 3 : (scale <= 4) ? 4 : 5;
+
+        if (type != TIMEN) {
+            len += 3;
         }
-        out.write((byte) 8);
-        out.write(value.getDate());
-        out.write(value.getTime());
+
+        if (type == DATETIMEOFFSETN) {
+            len += 2;
+        }
+
+        return len;
     }
 
     /**
-     * Read a MONEY value from the server response stream.
+     * Read a TDS 7.3 date, time, datetime2 or datetimeoffset value.
+     * <p>
+     * The time is sent as the number of 10<sup>-scale</sup> seconds since
+     * midnight in 3 to 5 bytes, the date as the number of days since
+     * 0001-01-01 in 3 bytes and the offset as a number of minutes, with the
+     * date and time of a datetimeoffset value expressed in UTC.
      *
-     * @param in The server response stream.
-     * @param type The TDS data type.
-     * @return The java.math.BigDecimal value or null.
+     * @param in    the server response stream
+     * @param type  the TDS data type
+     * @param scale the number of fractional second digits
+     * @param len   the length of the value, 0 for null
+     * @return a <code>java.sql.Date</code>, <code>Time</code> or
+     *         <code>Timestamp</code> or null
      * @throws IOException
-     * @throws ProtocolException
+     * @throws ProtocolException if the length is invalid
      */
-    private static Object getMoneyValue(ResponseStream in, final int type)
-    throws IOException, ProtocolException {
-        final int len;
+    private static Object getDateTime2Value(ResponseStream in, int type, int scale, int len)
+            throws IOException, ProtocolException {
+        if (len == 0) {
+            return null;
+        }
 
-        if (type == SYBMONEY) {
-            len = 8;
-        } else if (type == SYBMONEYN) {
-            len = in.read();
+        if (scale > 7 || len != getDateTime2Length(type, scale)) {
+            throw new ProtocolException("Invalid " + types[type].sqlType
+                    + " value with size of " + len + " bytes.");
+        }
+
+        long nanos = 0;
+
+        if (type != DATEN) {
+            int timeLen = getDateTime2Length(TIMEN, scale);
+
+            for (int i = 0; i < timeLen; i++) {
+                nanos |= (long) in.read() << (i * 8);
+            }
+
+            for (int i = scale; i < 9; i++) {
+                nanos *= 10;
+            }
+        }
+
+        int days = 0;
+
+        if (type != TIMEN) {
+            days = in.read() | in.read() << 8 | in.read() << 16;
+        }
+
+        int seconds = (int) (nanos / 1000000000L);
+
+        if (type == DATETIMEOFFSETN) {
+            // The offset is informational only, the value is in UTC
+            in.readShort();
+            Timestamp ts = new Timestamp(((long) (days - DAYS_TO_1970) * 86400 + seconds) * 1000);
+            ts.setNanos((int) (nanos % 1000000000L));
+            return ts;
+        }
+
+        GregorianCalendar cal = new GregorianCalendar();
+        cal.clear();
+
+        if (type == TIMEN) {
+            cal.set(1970, Calendar.JANUARY, 1);
         } else {
-            len = 4;
+            // Convert to the proleptic Gregorian calendar date, see
+            // http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+            int z   = days + 306;
+            int era = z / 146097;
+            int doe = z - era * 146097;
+            int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+            int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+            int mp  = (5 * doy + 2) / 153;
+            int day = doy - (153 * mp + 2) / 5 + 1;
+            int month = (mp < 10) ? mp + 3 : mp - 9;
+            cal.set(yoe + era * 400 + ((month <= 2) ? 1 : 0), month - 1, day);
         }
 
-        BigInteger x = null;
+        if (type == DATEN) {
+            return new java.sql.Date(cal.getTimeInMillis());
+        }
 
-        if (len == 4) {
-            x = BigInteger.valueOf(in.readInt());
-        } else if (len == 8) {
-            final byte b4 = (byte) in.read();
-            final byte b5 = (byte) in.read();
-            final byte b6 = (byte) in.read();
-            final byte b7 = (byte) in.read();
-            final byte b0 = (byte) in.read();
-            final byte b1 = (byte) in.read();
-            final byte b2 = (byte) in.read();
-            final byte b3 = (byte) in.read();
-            final long l = (b0 & 0xff) + ((long) (b1 & 0xff) << 8)
-                           + ((long) (b2 & 0xff) << 16) + ((long) (b3 & 0xff) << 24)
-                           + ((long) (b4 & 0xff) << 32) + ((long) (b5 & 0xff) << 40)
-                           + ((long) (b6 & 0xff) << 48) + ((long) (b7 & 0xff) << 56);
+        cal.set(Calendar.HOUR_OF_DAY, seconds / 3600);
+        cal.set(Calendar.MINUTE, seconds / 60 % 60);
+        cal.set(Calendar.SECOND, seconds % 60);
 
-            x = BigInteger.valueOf(l);
-        } else if (len != 0) {
-            throw new ProtocolException("Invalid money value.");
+        if (type == TIMEN) {
+            cal.set(Calendar.MILLISECOND, (int) (nanos / 1000000 % 1000));
+            return new Time(cal.getTimeInMillis());
         }
 
-        return (x == null) ? null : new BigDecimal(x, 4);
+        Timestamp ts = new Timestamp(cal.getTimeInMillis());
+        ts.setNanos((int) (nanos % 1000000000L));
+        return ts;
     }
 
     /**
-     * Read a MSQL 2000 sql_variant data value from the input stream.
-     * <p>SQL_VARIANT has the following structure:
-     * <ol>
-     * <li>INT4 total size of data
-     * <li>INT1 TDS data type (text/image/ntext/sql_variant not allowed)
-     * <li>INT1 Length of extra type descriptor information
-     * <li>Optional additional type info required by some types
-     * <li>byte[0...n] the actual data
-     * </ol>
+     * Output a java.sql.Date/Time/Timestamp value to the server
+     * as a Sybase datetime value.
      *
-     * @param connection used to obtain collation/charset information
-     * @param in         the server response stream
-     * @return the SQL_VARIANT data
+     * @param out   the server request stream
+     * @param value the date value to write
      */
-    private static Object getVariant(JtdsConnection connection,
-                                     ResponseStream in)
-            throws IOException, ProtocolException {
-        byte[] bytes;
-        int len = in.readInt();
-
-        if (len == 0) {
-            // Length of zero means item is null
-            return null;
+    private static void putDateTimeValue(RequestStream out, DateTime value)
+            throws IOException {
+        if (value == null) {
+            out.write((byte) 0);
+            return;
         }
+        out.write((byte) 8);
+        out.write(value.getDate());
+        out.write(value.getTime());
+    }
 
-        ColInfo ci = new ColInfo();
-        len -= 2;
-        ci.tdsType = in.read(); // TDS Type
-        len -= in.read(); // Size of descriptor
-
+    /**
+     * Retrieve the bulk load type of a column, i.e. the nullable variant of
+     * the column's TDS data type.
+     *
+     * @param ci the column descriptor
+     * @return the TDS data type used to send values of the column
+     */
+    private static int getBulkType(ColInfo ci) {
         switch (ci.tdsType) {
             case SYBINT1:
-                return new Integer(in.read() & 0xFF);
-
             case SYBINT2:
-                return new Integer(in.readShort());
-
             case SYBINT4:
-                return new Integer(in.readInt());
-
             case SYBINT8:
-                return new Long(in.readLong());
+                return SYBINTN;
+            case SYBBIT:
+                return SYBBITN;
+            case SYBREAL:
+            case SYBFLT8:
+                return SYBFLTN;
+            case SYBMONEY4:
+            case SYBMONEY:
+                return SYBMONEYN;
+            case SYBDATETIME4:
+            case SYBDATETIME:
+                return SYBDATETIMN;
+            default:
+                return ci.tdsType;
+        }
+    }
+
+    /**
+     * Determine whether values are sent for a column in a bulk load, i.e.
+     * whether the column is neither an identity nor a timestamp column.
+     *
+     * @param ci the column descriptor
+     * @return <code>true</code> if values are sent for the column
+     */
+    static boolean isBulkColumn(ColInfo ci) {
+        return !ci.isIdentity && ci.userType != UDT_TIMESTAMP;
+    }
 
+    /**
+     * Get the type declaration of a column for an <code>INSERT BULK</code>
+     * statement, e.g. <code>nvarchar(20)</code>.
+     *
+     * @param ci the column descriptor
+     * @return the SQL type of the column
+     * @throws SQLException if the column's data type cannot be bulk loaded
+     */
+    static String getBulkColumnType(ColInfo ci) throws SQLException {
+        switch (getBulkType(ci)) {
+            case SYBINTN:
+            case SYBBITN:
+            case SYBFLTN:
+            case SYBMONEYN:
+            case SYBDATETIMN:
+            case SYBUNIQUE:
+            case DATEN:
+                return ci.sqlType;
+            case SYBDECIMAL:
+            case SYBNUMERIC:
+                return ci.sqlType + '(' + ci.precision + ',' + ci.scale + ')';
             case XSYBCHAR:
             case XSYBVARCHAR:
-                // FIXME Use collation for reading
-                getCollation(in, ci);
-                try {
-                    setColumnCharset(ci, connection);
-                } catch (SQLException ex) {
-                    // Skip the buffer size and value
-                    in.skip(2 + len);
-                    throw new ProtocolException(ex.toString() + " [SQLState: "
-                            + ex.getSQLState() + ']');
-                }
-
-                in.skip(2); // Skip buffer size
-                return in.readNonUnicodeString(len);
-
+            case XSYBBINARY:
+            case XSYBVARBINARY:
+                return ci.sqlType + (ci.isPlp ? "(max)" : "(" + ci.bufferSize + ')');
             case XSYBNCHAR:
             case XSYBNVARCHAR:
-                // XXX Why do we need collation for Unicode strings?
-                in.skip(7); // Skip collation and buffer size
+                return ci.sqlType + (ci.isPlp ? "(max)" : "(" + ci.bufferSize / 2 + ')');
+            case TIMEN:
+            case DATETIME2N:
+            case DATETIMEOFFSETN:
+                return ci.sqlType + '(' + ci.scale + ')';
+            default:
+                throw new SQLException(Messages.get("error.bulkcopy.badtype",
+                        ci.name, ci.sqlType), "HY004");
+        }
+    }
 
-                return in.readUnicodeString(len / 2);
+    /**
+     * Write a table-valued parameter: the TVP type, the name of the table
+     * type, the column descriptors and the rows as converted by
+     * {@link #getNativeType}.
+     *
+     * @param out       the server request stream
+     * @param collation the default SQL Server 2000 collation
+     * @param pi        the parameter descriptor
+     * @throws IOException
+     */
+    private static void writeTableParam(RequestStream out, byte[] collation, ParamInfo pi)
+            throws IOException {
+        JtdsDataTable table = (JtdsDataTable) pi.value;
+        ColInfo[] columns = table.getColumns();
+
+        out.write((byte) TVP);
+        // The database name must be empty, followed by schema and type name
+        out.write((byte) 0);
+        String schema = table.getSchemaName();
+        out.write((byte) schema.length());
+        out.write(schema);
+        String name = table.getTableTypeName();
+        out.write((byte) name.length());
+        out.write(name);
+
+        out.write((short) columns.length);
+
+        for (int i = 0; i < columns.length; i++) {
+            // Column names are not sent
+            writeBulkColumn(out, columns[i], collation, "");
+        }
 
-            case XSYBVARBINARY:
-            case XSYBBINARY:
-                in.skip(2); // Skip buffer size
-                bytes = new byte[len];
-                in.read(bytes);
+        // No optional metadata (TVP_ORDER_UNIQUE, TVP_COLUMN_ORDERING)
+        out.write((byte) 0);
 
-                return bytes;
+        for (int i = 0; i < pi.tableRows.length; i++) {
+            out.write((byte) 1); // TVP_ROW_TOKEN
 
-            case SYBMONEY4:
-            case SYBMONEY:
-                return getMoneyValue(in, ci.tdsType);
+            for (int j = 0; j < columns.length; j++) {
+                writeBulkValue(out, columns[j], pi.tableRows[i][j]);
+            }
+        }
 
-            case SYBDATETIME4:
-            case SYBDATETIME:
-                return getDatetimeValue(in, ci.tdsType);
+        out.write((byte) 0); // TVP_END_TOKEN
+    }
+
+    /**
+     * Create the descriptor of a column of a table-valued parameter, see
+     * {@link JtdsDataTable#addColumn(String, int, int, int)}.
+     *
+     * @param name      the column name
+     * @param jdbcType  the <code>java.sql.Types</code> constant of the column
+     * @param precision the length of character and binary columns or the
+     *                  precision of decimal columns, 0 for the default
+     * @param scale     the scale of decimal columns, -1 for the default
+     * @return the column descriptor
+     * @throws SQLException if the JDBC type is not supported
+     */
+    static ColInfo getTableColumn(String name, int jdbcType, int precision, int scale)
+            throws SQLException {
+        ColInfo ci = new ColInfo();
+        ci.name     = name;
+        ci.jdbcType = jdbcType;
+        ci.nullable = 1;
+
+        switch (jdbcType) {
+            case Types.BIT:
+            case JtdsStatement.BOOLEAN:
+                setTableColumnType(ci, SYBBITN, 1);
+                break;
+            case Types.TINYINT:
+                setTableColumnType(ci, SYBINT1, 1);
+                break;
+            case Types.SMALLINT:
+                setTableColumnType(ci, SYBINT2, 2);
+                break;
+            case Types.INTEGER:
+                setTableColumnType(ci, SYBINT4, 4);
+                break;
+            case Types.BIGINT:
+                setTableColumnType(ci, SYBINT8, 8);
+                break;
+            case Types.REAL:
+                setTableColumnType(ci, SYBREAL, 4);
+                break;
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                setTableColumnType(ci, SYBFLT8, 8);
+                break;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                setTableColumnType(ci, SYBDECIMAL, -1);
+                ci.precision = (precision > 0) ? precision : DEFAULT_PRECISION_38;
+                ci.scale     = (scale >= 0) ? scale : DEFAULT_SCALE;
+                if (ci.scale > ci.precision) {
+                    throw new SQLException(Messages.get("error.generic.badscale"), "HY092");
+                }
+                ci.sqlType  += "(" + ci.precision + ',' + ci.scale + ')';
+                break;
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.CLOB:
+                // Always sent as unicode
+                setTableColumnType(ci, XSYBNVARCHAR, 2);
+                ci.isPlp = jdbcType == Types.LONGVARCHAR || jdbcType == Types.CLOB
+                           || precision <= 0 || precision > MS_LONGVAR_MAX / 2;
+                ci.bufferSize = ci.isPlp ? Integer.MAX_VALUE : precision * 2;
+                ci.sqlType   += ci.isPlp ? "(max)" : "(" + precision + ')';
+                break;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                setTableColumnType(ci, XSYBVARBINARY, 1);
+                ci.isPlp = jdbcType == Types.LONGVARBINARY || jdbcType == Types.BLOB
+                           || precision <= 0 || precision > MS_LONGVAR_MAX;
+                ci.bufferSize = ci.isPlp ? Integer.MAX_VALUE : precision;
+                ci.sqlType   += ci.isPlp ? "(max)" : "(" + precision + ')';
+                break;
+            case Types.DATE:
+                setTableColumnType(ci, DATEN, 3);
+                break;
+            case Types.TIME:
+            case Types.TIMESTAMP:
+                setTableColumnType(ci, (jdbcType == Types.TIME) ? TIMEN : DATETIME2N, -1);
+                ci.scale      = 7;
+                ci.bufferSize = getDateTime2Length(ci.tdsType, ci.scale);
+                ci.sqlType   += "(7)";
+                break;
+            default:
+                throw new SQLException(Messages.get("error.baddatatype",
+                        Support.getJdbcTypeName(jdbcType)), "HY004");
+        }
+
+        return ci;
+    }
+
+    /**
+     * Set the TDS type of a column of a table-valued parameter.
+     *
+     * @param ci   the column descriptor
+     * @param type the TDS data type
+     * @param size the size of the values
+     */
+    private static void setTableColumnType(ColInfo ci, int type, int size) {
+        ci.tdsType     = type;
+        ci.bufferSize  = size;
+        ci.sqlType     = types[type].sqlType;
+        ci.precision   = types[type].precision;
+        ci.displaySize = types[type].displaySize;
+    }
+
+    /**
+     * Write the COLMETADATA entry of a column to a bulk load request or
+     * table-valued parameter.
+     *
+     * @param out       the server request stream
+     * @param ci        the column descriptor
+     * @param collation the default SQL Server 2000 collation
+     * @param name      the column name to send
+     * @throws IOException
+     */
+    static void writeBulkColumn(RequestStream out, ColInfo ci, byte[] collation, String name)
+            throws IOException {
+        int type = getBulkType(ci);
+
+        // User type, 4 bytes since TDS 7.2
+        if (out.getTdsVersion() >= Driver.TDS90) {
+            out.write(0);
+        } else {
+            out.write((short) 0);
+        }
+
+        // Flags: updatability unknown, nullable
+        out.write((short) (ci.nullable == 0 ? 0x08 : 0x09));
+        out.write((byte) type);
+
+        switch (type) {
+            case SYBINTN:
+            case SYBBITN:
+            case SYBFLTN:
+            case SYBMONEYN:
+            case SYBDATETIMN:
+            case SYBUNIQUE:
+                out.write((byte) ci.bufferSize);
+                break;
+            case SYBDECIMAL:
+            case SYBNUMERIC:
+                out.write(out.getMaxDecimalBytes());
+                out.write((byte) ci.precision);
+                out.write((byte) ci.scale);
+                break;
+            case XSYBCHAR:
+            case XSYBVARCHAR:
+            case XSYBNCHAR:
+            case XSYBNVARCHAR:
+                out.write((short) (ci.isPlp ? PLP_MAX : ci.bufferSize));
+
+                if (out.getTdsVersion() >= Driver.TDS80) {
+                    out.write((ci.collation != null) ? ci.collation : collation);
+                }
+                break;
+            case XSYBBINARY:
+            case XSYBVARBINARY:
+                out.write((short) (ci.isPlp ? PLP_MAX : ci.bufferSize));
+                break;
+            case TIMEN:
+            case DATETIME2N:
+            case DATETIMEOFFSETN:
+                out.write((byte) ci.scale);
+                break;
+        }
+
+        out.write((byte) name.length());
+        out.write(name);
+    }
+
+    /**
+     * Convert a value to the Java type sent for a column in a bulk load:
+     * <code>Long</code> for integers, <code>Boolean</code>,
+     * <code>Double</code>, <code>BigDecimal</code> with the column's scale,
+     * <code>DateTime</code> for datetime and smalldatetime values,
+     * <code>Timestamp</code> for the TDS 7.3 date and time types and
+     * <code>byte[]</code> for character, binary and uniqueidentifier values,
+     * character values encoded in the column's character set.
+     *
+     * @param connection the connection the data is sent to
+     * @param ci         the column descriptor
+     * @param value      the value to convert, may be <code>null</code>
+     * @return the converted value or <code>null</code>
+     * @throws SQLException if the value cannot be converted or does not fit
+     *                      into the column
+     */
+    static Object getBulkValue(JtdsConnection connection, ColInfo ci, Object value)
+            throws SQLException {
+        if (value == null) {
+            return null;
+        }
+
+        int type = getBulkType(ci);
+
+        switch (type) {
+            case SYBINTN:
+                Long l = (Long) Support.convert(connection, value, Types.BIGINT, null);
+                long min = (ci.bufferSize == 1) ? 0 : -1L << (ci.bufferSize * 8 - 1);
+                long max = (ci.bufferSize == 1) ? 255 : ~min;
+
+                if (l.longValue() < min || l.longValue() > max) {
+                    throw new SQLException(Messages.get("error.convert.numericoverflow",
+                            value, ci.sqlType), "22003");
+                }
+
+                return l;
+
+            case SYBBITN:
+                return Support.convert(connection, value, Types.BIT, null);
+
+            case SYBFLTN:
+                return Support.convert(connection, value, Types.DOUBLE, null);
+
+            case SYBMONEYN:
+            case SYBDECIMAL:
+            case SYBNUMERIC:
+                BigDecimal bd = (BigDecimal) Support.convert(connection, value, Types.DECIMAL, null);
+                bd = bd.setScale(ci.scale, BigDecimal.ROUND_HALF_UP);
+
+                if ((type == SYBMONEYN)
+                        ? bd.unscaledValue().bitLength() >= ci.bufferSize * 8
+                        : bd.precision() - bd.scale() > ci.precision - ci.scale) {
+                    throw new SQLException(Messages.get("error.convert.numericoverflow",
+                            value, ci.sqlType), "22003");
+                }
+
+                return bd;
+
+            case SYBDATETIMN:
+                return new DateTime((Timestamp) Support.convert(connection, value,
+                        Types.TIMESTAMP, null));
+
+            case DATEN:
+            case TIMEN:
+            case DATETIME2N:
+            case DATETIMEOFFSETN:
+                Timestamp ts = (Timestamp) Support.convert(connection, value,
+                        Types.TIMESTAMP, null);
+
+                if (type != TIMEN) {
+                    Calendar cal = getDateTime2Calendar(type, ts);
+
+                    if (cal.get(Calendar.ERA) == GregorianCalendar.BC
+                            || cal.get(Calendar.YEAR) > 9999) {
+                        throw new SQLException(Messages.get("error.convert.badtypeconst",
+                                value, ci.sqlType), "22007");
+                    }
+                }
+
+                return ts;
+
+            case SYBUNIQUE:
+                byte[] guid;
+
+                if (value instanceof UniqueIdentifier) {
+                    guid = ((UniqueIdentifier) value).getBytes();
+                } else if (value instanceof byte[]) {
+                    guid = (byte[]) value;
+                } else {
+                    guid = getGuidBytes(value.toString());
+                }
+
+                if (guid == null || guid.length != 16) {
+                    throw new SQLException(Messages.get("error.convert.badtypeconst",
+                            value, ci.sqlType), "22005");
+                }
+
+                return guid;
+
+            case SYBCHAR:
+            case SYBVARCHAR:
+            case SYBBINARY:
+            case SYBVARBINARY:
+            case XSYBCHAR:
+            case XSYBVARCHAR:
+            case XSYBNCHAR:
+            case XSYBNVARCHAR:
+            case XSYBBINARY:
+            case XSYBVARBINARY:
+                byte[] bytes;
+
+                if (type == SYBBINARY || type == SYBVARBINARY
+                        || type == XSYBBINARY || type == XSYBVARBINARY) {
+                    bytes = (byte[]) Support.convert(connection, value, Types.VARBINARY,
+                            connection.getCharset());
+                } else {
+                    String s = (String) Support.convert(connection, value, Types.VARCHAR, null);
+                    String charset = (type == XSYBNCHAR || type == XSYBNVARCHAR)
+                            ? "UTF-16LE"
+                            : (ci.charsetInfo != null)
+                                ? ci.charsetInfo.getCharset()
+                                : connection.getCharset();
+                    try {
+                        bytes = s.getBytes(charset);
+                    } catch (UnsupportedEncodingException e) {
+                        throw new SQLException(Messages.get("error.charset.invalid",
+                                "?", charset), "2C000");
+                    }
+                }
+
+                if (!ci.isPlp && bytes.length > ci.bufferSize) {
+                    throw new SQLException(Messages.get("error.bulkcopy.toolong",
+                            ci.name, String.valueOf(ci.bufferSize)), "22001");
+                }
+
+                return bytes;
+
+            default:
+                throw new SQLException(Messages.get("error.bulkcopy.badtype",
+                        ci.name, ci.sqlType), "HY004");
+        }
+    }
+
+    /**
+     * Write a column value to a bulk load request.
+     *
+     * @param out   the server request stream
+     * @param ci    the column descriptor
+     * @param value the value as converted by {@link #getBulkValue}, may be
+     *              <code>null</code>
+     * @throws IOException
+     */
+    static void writeBulkValue(RequestStream out, ColInfo ci, Object value)
+            throws IOException {
+        int type = getBulkType(ci);
+
+        switch (type) {
+            case SYBINTN:
+                if (value == null) {
+                    out.write((byte) 0);
+                    break;
+                }
+
+                long l = ((Long) value).longValue();
+                out.write((byte) ci.bufferSize);
+
+                switch (ci.bufferSize) {
+                    case 1:
+                        out.write((byte) l);
+                        break;
+                    case 2:
+                        out.write((short) l);
+                        break;
+                    case 4:
+                        out.write((int) l);
+                        break;
+                    default:
+                        out.write(l);
+                }
+                break;
+
+            case SYBBITN:
+                if (value == null) {
+                    out.write((byte) 0);
+                } else {
+                    out.write((byte) 1);
+                    out.write((byte) (((Boolean) value).booleanValue() ? 1 : 0));
+                }
+                break;
+
+            case SYBFLTN:
+                if (value == null) {
+                    out.write((byte) 0);
+                } else if (ci.bufferSize == 4) {
+                    out.write((byte) 4);
+                    out.write(((Number) value).floatValue());
+                } else {
+                    out.write((byte) 8);
+                    out.write(((Number) value).doubleValue());
+                }
+                break;
+
+            case SYBMONEYN:
+                if (value == null) {
+                    out.write((byte) 0);
+                    break;
+                }
+
+                long money = ((BigDecimal) value).unscaledValue().longValue();
+                out.write((byte) ci.bufferSize);
+
+                if (ci.bufferSize == 8) {
+                    out.write((int) (money >> 32));
+                }
+
+                out.write((int) money);
+                break;
+
+            case SYBDECIMAL:
+            case SYBNUMERIC:
+                out.write((BigDecimal) value);
+                break;
+
+            case SYBDATETIMN:
+                if (value == null) {
+                    out.write((byte) 0);
+                } else if (ci.bufferSize == 8) {
+                    putDateTimeValue(out, (DateTime) value);
+                } else {
+                    // smalldatetime, rounded to the minute
+                    DateTime dt = (DateTime) value;
+                    int days    = dt.getDate();
+                    int minutes = (dt.getTime() + 9000) / 18000;
+
+                    if (minutes == 1440) {
+                        days++;
+                        minutes = 0;
+                    }
+
+                    out.write((byte) 4);
+                    out.write((short) days);
+                    out.write((short) minutes);
+                }
+                break;
+
+            case DATEN:
+            case TIMEN:
+            case DATETIME2N:
+            case DATETIMEOFFSETN:
+                putDateTime2Value(out, type, ci.scale, (Timestamp) value);
+                break;
+
+            case SYBUNIQUE:
+                if (value == null) {
+                    out.write((byte) 0);
+                } else {
+                    out.write((byte) 16);
+                    out.write((byte[]) value);
+                }
+                break;
+
+            default:
+                byte[] bytes = (byte[]) value;
+
+                if (ci.isPlp) {
+                    if (bytes == null) {
+                        out.write(PLP_NULL);
+                    } else {
+                        out.write((long) bytes.length);
+
+                        if (bytes.length > 0) {
+                            out.write(bytes.length);
+                            out.write(bytes);
+                        }
+
+                        out.write(0);
+                    }
+                } else if (bytes == null) {
+                    out.write((short) 0xFFFF);
+                } else {
+                    out.write((short) bytes.length);
+                    out.write(bytes);
+                }
+        }
+    }
+
+    /**
+     * Check that a Sybase column can be bulk loaded, i.e. that its values
+     * can be stored in the row format of {@link #getTds5BulkRow}.
+     *
+     * @param ci the column descriptor
+     * @throws SQLException if the column's data type cannot be bulk loaded
+     */
+    static void checkTds5BulkColumn(ColInfo ci) throws SQLException {
+        switch (getBulkType(ci)) {
+            case SYBINTN:
+            case SYBBITN:
+            case SYBFLTN:
+            case SYBMONEYN:
+            case SYBDATETIMN:
+            case SYBDECIMAL:
+            case SYBNUMERIC:
+            case SYBCHAR:
+            case SYBVARCHAR:
+            case SYBBINARY:
+            case SYBVARBINARY:
+            case XSYBCHAR:
+            case XSYBVARCHAR:
+                return;
+            default:
+                throw new SQLException(Messages.get("error.bulkcopy.badtype",
+                        ci.name, ci.sqlType), "HY004");
+        }
+    }
+
+    /**
+     * Format a row of a TDS 5.0 bulk load request.
+     * <p>
+     * Unlike TDS 7.0 and later, Sybase expects the rows in the format the
+     * server stores them in, each one preceded by its length: the number of
+     * variable length columns, a row number assigned by the server and the
+     * values of the fixed length columns, i.e. all <code>NOT NULL</code>
+     * columns of fixed length types, in column order. If any variable length
+     * column is not <code>NULL</code>, the row length, the values of the
+     * variable length columns, the adjustment table holding the high bytes
+     * of the column offsets and the offset table holding their low bytes
+     * follow. Trailing <code>NULL</code> values are left out.
+     *
+     * @param columns the columns of the table
+     * @param values  the values as converted by {@link #getBulkValue}, may be
+     *                <code>null</code>
+     * @return the row, to be sent preceded by its length
+     */
+    static byte[] getTds5BulkRow(ColInfo[] columns, Object[] values) {
+        int size = 8 + columns.length * 3;
+
+        for (int i = 0; i < columns.length; i++) {
+            size += Math.max(columns[i].bufferSize, 17);
+        }
+
+        ByteBuffer row = ByteBuffer.allocate(size + size / 256 + 1);
+        row.order(ByteOrder.LITTLE_ENDIAN);
+        row.put((byte) 0); // number of variable length columns, set below
+        row.put((byte) 0); // row number, assigned by the server
+
+        for (int i = 0; i < columns.length; i++) {
+            if (isTds5FixedColumn(columns[i])) {
+                putTds5BulkValue(row, columns[i], values[i]);
+            }
+        }
+
+        int lengthPos = row.position();
+        row.putShort((short) 0); // row length, set below
+        int[] offsets = new int[columns.length + 1];
+        int count = 0;
+        offsets[0] = row.position();
+
+        for (int i = 0; i < columns.length; i++) {
+            if (!isTds5FixedColumn(columns[i])) {
+                if (values[i] != null) {
+                    putTds5BulkValue(row, columns[i], values[i]);
+                }
+
+                offsets[++count] = row.position();
+            }
+        }
+
+        // Trailing NULL values are not sent
+        while (count > 0 && offsets[count] == offsets[count - 1]) {
+            count--;
+        }
+
+        if (count == 0) {
+            row.position(lengthPos);
+        } else {
+            row.position(offsets[count]);
+            row.put((byte) (count + 1));
+
+            // The adjustment table: for each multiple of 256 exceeded by the
+            // last offset, the number of offsets below it plus one
+            for (int high = offsets[count] / 256; high > 0; high--) {
+                int n = 1;
+
+                for (int i = 0; i <= count; i++) {
+                    if (offsets[i] / 256 < high) {
+                        n++;
+                    }
+                }
+
+                row.put((byte) n);
+            }
+
+            for (int i = count; i >= 0; i--) {
+                row.put((byte) offsets[i]);
+            }
+
+            row.put(0, (byte) count);
+            row.putShort(lengthPos, (short) row.position());
+        }
+
+        return Arrays.copyOf(row.array(), row.position());
+    }
+
+    /**
+     * Determine whether a Sybase column is stored in the fixed length part of
+     * the row, i.e. whether it is a <code>NOT NULL</code> column of a fixed
+     * length type.
+     *
+     * @param ci the column descriptor
+     * @return <code>true</code> if the column is of fixed length
+     */
+    private static boolean isTds5FixedColumn(ColInfo ci) {
+        if (ci.nullable != 0) {
+            return false;
+        }
+
+        switch (getBulkType(ci)) {
+            case SYBVARCHAR:
+            case SYBVARBINARY:
+            case XSYBVARCHAR:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Put a column value into a TDS 5.0 bulk load row. <code>NULL</code>
+     * values of fixed length columns, i.e. identity columns the server
+     * assigns values to, are sent as zeros.
+     *
+     * @param row   the row buffer
+     * @param ci    the column descriptor
+     * @param value the value as converted by {@link #getBulkValue}, may be
+     *              <code>null</code>
+     */
+    private static void putTds5BulkValue(ByteBuffer row, ColInfo ci, Object value) {
+        int type = getBulkType(ci);
+
+        if (type == SYBDECIMAL || type == SYBNUMERIC) {
+            // Sign byte followed by the big endian magnitude
+            int length = (BigInteger.TEN.pow(ci.precision).subtract(BigInteger.ONE)
+                    .bitLength() + 7) / 8;
+
+            if (value == null) {
+                row.position(row.position() + length + 1);
+                return;
+            }
+
+            BigInteger unscaled = ((BigDecimal) value).unscaledValue();
+            byte[] bytes = unscaled.abs().toByteArray();
+            int skip = (bytes[0] == 0) ? 1 : 0;
+
+            row.put((byte) (unscaled.signum() < 0 ? 1 : 0));
+            row.position(row.position() + length - (bytes.length - skip));
+            row.put(bytes, skip, bytes.length - skip);
+            return;
+        }
+
+        if (value == null) {
+            row.position(row.position() + ci.bufferSize);
+            return;
+        }
+
+        switch (type) {
+            case SYBINTN:
+                long l = ((Long) value).longValue();
+
+                switch (ci.bufferSize) {
+                    case 1:
+                        row.put((byte) l);
+                        break;
+                    case 2:
+                        row.putShort((short) l);
+                        break;
+                    case 4:
+                        row.putInt((int) l);
+                        break;
+                    default:
+                        row.putLong(l);
+                }
+                break;
+
+            case SYBBITN:
+                row.put((byte) (((Boolean) value).booleanValue() ? 1 : 0));
+                break;
+
+            case SYBFLTN:
+                if (ci.bufferSize == 4) {
+                    row.putFloat(((Number) value).floatValue());
+                } else {
+                    row.putDouble(((Number) value).doubleValue());
+                }
+                break;
+
+            case SYBMONEYN:
+                long money = ((BigDecimal) value).unscaledValue().longValue();
+
+                if (ci.bufferSize == 8) {
+                    row.putInt((int) (money >> 32));
+                }
+
+                row.putInt((int) money);
+                break;
+
+            case SYBDATETIMN:
+                DateTime dt = (DateTime) value;
+
+                if (ci.bufferSize == 8) {
+                    row.putInt(dt.getDate());
+                    row.putInt(dt.getTime());
+                } else {
+                    // smalldatetime, rounded to the minute
+                    int days    = dt.getDate();
+                    int minutes = (dt.getTime() + 9000) / 18000;
+
+                    if (minutes == 1440) {
+                        days++;
+                        minutes = 0;
+                    }
+
+                    row.putShort((short) days);
+                    row.putShort((short) minutes);
+                }
+                break;
+
+            default:
+                byte[] bytes = (byte[]) value;
+                boolean binary = type == SYBBINARY || type == SYBVARBINARY;
+
+                if (bytes.length == 0) {
+                    // Empty strings are stored as a single blank
+                    bytes = binary ? new byte[1] : new byte[] {' '};
+                }
+
+                row.put(bytes);
+
+                if (isTds5FixedColumn(ci)) {
+                    // Pad char columns with blanks, binary columns with zeros
+                    for (int i = bytes.length; i < ci.bufferSize; i++) {
+                        row.put(binary ? 0 : (byte) ' ');
+                    }
+                }
+        }
+    }
+
+    /**
+     * Output a java.sql.Timestamp value to the server as a TDS 7.3 date,
+     * time, datetime2 or datetimeoffset value, see
+     * {@link #getDateTime2Value}. Values of datetimeoffset columns are sent
+     * in UTC.
+     *
+     * @param out   the server request stream
+     * @param type  the TDS data type
+     * @param scale the number of fractional second digits
+     * @param value the value to write, between 0001-01-01 and 9999-12-31, or
+     *              <code>null</code>
+     */
+    private static void putDateTime2Value(RequestStream out, int type, int scale,
+                                          Timestamp value)
+            throws IOException {
+        if (value == null) {
+            out.write((byte) 0);
+            return;
+        }
+
+        Calendar cal = getDateTime2Calendar(type, value);
+        out.write((byte) getDateTime2Length(type, scale));
+
+        if (type != DATEN) {
+            long time = cal.get(Calendar.HOUR_OF_DAY) * 3600
+                        + cal.get(Calendar.MINUTE) * 60
+                        + cal.get(Calendar.SECOND);
+            int nanos = value.getNanos();
+
+            for (int i = 0; i < scale; i++) {
+                time *= 10;
+            }
+
+            for (int i = scale; i < 9; i++) {
+                nanos /= 10;
+            }
+
+            time += nanos;
+
+            for (int i = getDateTime2Length(TIMEN, scale); i > 0; i--) {
+                out.write((byte) time);
+                time >>= 8;
+            }
+        }
+
+        if (type != TIMEN) {
+            // Days since 0001-01-01 in the proleptic Gregorian calendar, see
+            // http://howardhinnant.github.io/date_algorithms.html#days_from_civil
+            int y = cal.get(Calendar.YEAR);
+            int m = cal.get(Calendar.MONTH) + 1;
+            int d = cal.get(Calendar.DAY_OF_MONTH);
+
+            y -= (m <= 2) ? 1 : 0;
+            int era = y / 400;
+            int yoe = y - era * 400;
+            int doy = (153 * (m + ((m > 2) ? -3 : 9)) + 2) / 5 + d - 1;
+            int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+            int days = era * 146097 + doe - 306;
+
+            out.write((byte) days);
+            out.write((byte) (days >> 8));
+            out.write((byte) (days >> 16));
+        }
+
+        if (type == DATETIMEOFFSETN) {
+            out.write((short) 0);
+        }
+    }
+
+    /**
+     * Get a calendar set to a TDS 7.3 date and time value to send, in UTC for
+     * datetimeoffset values and in the default time zone otherwise.
+     *
+     * @param type  the TDS data type
+     * @param value the value to send
+     * @return the calendar
+     */
+    private static Calendar getDateTime2Calendar(int type, Timestamp value) {
+        GregorianCalendar cal = new GregorianCalendar();
+
+        if (type == DATETIMEOFFSETN) {
+            cal.setTimeZone(java.util.TimeZone.getTimeZone("UTC"));
+        }
+
+        cal.setTime(value);
+        return cal;
+    }
+
+    /**
+     * Convert a uniqueidentifier string of the form
+     * NNNNNNNN-NNNN-NNNN-NNNN-NNNNNNNNNNNN into its binary form, the reverse
+     * of {@link UniqueIdentifier#toString()}.
+     *
+     * @param value the string value
+     * @return the 16 bytes of the uniqueidentifier or <code>null</code> if the
+     *         string is not a valid uniqueidentifier
+     */
+    private static byte[] getGuidBytes(String value) {
+        String hex = value.replace("-", "");
+
+        if (hex.length() != 32) {
+            return null;
+        }
+
+        byte[] bytes = new byte[16];
+
+        for (int i = 0; i < 16; i++) {
+            int hi = Character.digit(hex.charAt(i * 2), 16);
+            int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+
+            if (hi < 0 || lo < 0) {
+                return null;
+            }
+
+            bytes[i] = (byte) (hi << 4 | lo);
+        }
+
+        // The first three groups are sent in little endian byte order
+        byte[] guid = bytes.clone();
+        guid[0] = bytes[3];
+        guid[1] = bytes[2];
+        guid[2] = bytes[1];
+        guid[3] = bytes[0];
+        guid[4] = bytes[5];
+        guid[5] = bytes[4];
+        guid[6] = bytes[7];
+        guid[7] = bytes[6];
+
+        return guid;
+    }
+
+    /**
+     * Read a MONEY value from the server response stream.
+     *
+     * @param in The server response stream.
+     * @param type The TDS data type.
+     * @return The java.math.BigDecimal value or null.
+     * @throws IOException
+     * @throws ProtocolException
+     */
+    private static Object getMoneyValue(ResponseStream in, final int type)
+    throws IOException, ProtocolException {
+        final int len;
+
+        if (type == SYBMONEY) {
+            len = 8;
+        } else if (type == SYBMONEYN) {
+            len = in.read();
+        } else {
+            len = 4;
+        }
+
+        BigInteger x = null;
+
+        if (len == 4) {
+            x = BigInteger.valueOf(in.readInt());
+        } else if (len == 8) {
+            final byte b4 = (byte) in.read();
+            final byte b5 = (byte) in.read();
+            final byte b6 = (byte) in.read();
+            final byte b7 = (byte) in.read();
+            final byte b0 = (byte) in.read();
+            final byte b1 = (byte) in.read();
+            final byte b2 = (byte) in.read();
+            final byte b3 = (byte) in.read();
+            final long l = (b0 & 0xff) + ((long) (b1 & 0xff) << 8)
+                           + ((long) (b2 & 0xff) << 16) + ((long) (b3 & 0xff) << 24)
+                           + ((long) (b4 & 0xff) << 32) + ((long) (b5 & 0xff) << 40)
+                           + ((long) (b6 & 0xff) << 48) + ((long) (b7 & 0xff) << 56);
+
+            x = BigInteger.valueOf(l);
+        } else if (len != 0) {
+            throw new ProtocolException("Invalid money value.");
+        }
+
+        return (x == null) ? null : new BigDecimal(x, 4);
+    }
+
+    /**
+     * Read a MSQL 2000 sql_variant data value from the input stream.
+     * <p>SQL_VARIANT has the following structure:
+     * <ol>
+     * <li>INT4 total size of data
+     * <li>INT1 TDS data type (text/image/ntext/sql_variant not allowed)
+     * <li>INT1 Length of extra type descriptor information
+     * <li>Optional additional type info required by some types
+     * <li>byte[0...n] the actual data
+     * </ol>
+     *
+     * @param connection used to obtain collation/charset information
+     * @param in         the server response stream
+     * @return the SQL_VARIANT data
+     */
+    private static Object getVariant(JtdsConnection connection,
+                                     ResponseStream in)
+            throws IOException, ProtocolException {
+        byte[] bytes;
+        int len = in.readInt();
+
+        if (len == 0) {
+            // Length of zero means item is null
+            return null;
+        }
+
+        ColInfo ci = new ColInfo();
+        len -= 2;
+        ci.tdsType = in.read(); // TDS Type
+        len -= in.read(); // Size of descriptor
+
+        switch (ci.tdsType) {
+            case SYBINT1:
+                return new Integer(in.read() & 0xFF);
+
+            case SYBINT2:
+                return new Integer(in.readShort());
+
+            case SYBINT4:
+                return new Integer(in.readInt());
+
+            case SYBINT8:
+                return new Long(in.readLong());
+
+            case XSYBCHAR:
+            case XSYBVARCHAR:
+                // FIXME Use collation for reading
+                getCollation(in, ci);
+                try {
+                    setColumnCharset(ci, connection);
+                } catch (SQLException ex) {
+                    // Skip the buffer size and value
+                    in.skip(2 + len);
+                    throw new ProtocolException(ex.toString() + " [SQLState: "
+                            + ex.getSQLState() + ']');
+                }
+
+                in.skip(2); // Skip buffer size
+                return in.readNonUnicodeString(len);
+
+            case XSYBNCHAR:
+            case XSYBNVARCHAR:
+                // XXX Why do we need collation for Unicode strings?
+                in.skip(7); // Skip collation and buffer size
+
+                return in.readUnicodeString(len / 2);
+
+            case XSYBVARBINARY:
+            case XSYBBINARY:
+                in.skip(2); // Skip buffer size
+                bytes = new byte[len];
+                in.read(bytes);
+
+                return bytes;
+
+            case SYBMONEY4:
+            case SYBMONEY:
+                return getMoneyValue(in, ci.tdsType);
+
+            case SYBDATETIME4:
+            case SYBDATETIME:
+                return getDatetimeValue(in, ci.tdsType);
+
+            case DATEN:
+                return getDateTime2Value(in, DATEN, 0, len);
+
+            case TIMEN:
+            case DATETIME2N:
+            case DATETIMEOFFSETN:
+                return getDateTime2Value(in, ci.tdsType, in.read(), len);
 
             case SYBBIT:
                 return (in.read() != 0) ? Boolean.TRUE : Boolean.FALSE;
@@ -2825,7 +4530,13 @@ public class TdsData {
      *         <code>Driver.TDS<i>XX</i></code> values)
      */
     public static int getTdsVersion(int rawTdsVersion) {
-        if (rawTdsVersion >= 0x71000001) {
+        if (rawTdsVersion >= 0x74000004) {
+            return Driver.TDS74;
+        } else if (rawTdsVersion >= 0x730A0003) {
+            return Driver.TDS73;
+        } else if (rawTdsVersion >= 0x72090002) {
+            return Driver.TDS90;
+        } else if (rawTdsVersion >= 0x71000001) {
             return Driver.TDS81;
         } else if (rawTdsVersion >= 0x07010000) {
             return Driver.TDS80;
@@ -18,28 +18,43 @@
 package net.sourceforge.jtds.jdbc.cache;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.sourceforge.jtds.jdbc.ProcEntry;
 
 /**
  * LRU cache for procedures and statement handles.
+ * <p/>
+ * The cache is bounded by the number of entries and by their estimated
+ * memory, i.e. the size of the statement key (which contains the SQL text)
+ * and of the meta data kept by the {@link ProcEntry}. Lookups do not lock,
+ * they only record the order of the access. Entries are only ordered when the
+ * cache has grown beyond one of its bounds, the least recently used entries
+ * not in use by any statement are released then.
+ * <p/>
+ * Hit, miss and eviction counters show whether the cache is large enough for
+ * the statements of an application.
  *
  * @version $Id: ProcedureCache.java,v 1.5 2005-07-05 16:44:25 alin_sinpalean Exp $
  */
 public class ProcedureCache implements StatementCache {
 
     /**
-     * Encapsulates the cached Object and implements the linked list used to
-     * implement the LRU logic.
+     * Encapsulates the cached Object along with its estimated size and the
+     * order of its last use.
      */
     private static class CacheEntry {
-        String key;
-        ProcEntry value;
-        CacheEntry next;
-        CacheEntry prior;
+        final Object key;
+        final ProcEntry value;
+        final long size;
+        volatile long lastUsed;
+        /** True once a scavenge had to keep the entry because it was in use. */
+        boolean evictionPrevented;
 
         /**
          * Constructs a new cache entry encapsulating the supplied key and
@@ -47,83 +62,92 @@ public class ProcedureCache implements StatementCache {
          *
          * @param key   key used to identify the cache entry
          * @param value object being cached
+         * @param time  the current value of the cache's clock
          */
-        CacheEntry(String key, ProcEntry value) {
+        CacheEntry(Object key, ProcEntry value, long time) {
             this.key = key;
             this.value = value;
+            size = 2L * key.toString().length() + value.getEstimatedSize();
+            lastUsed = time;
         }
+    }
 
-        /**
-         * Unlinks this CacheEntry from the linked list.
-         */
-        void unlink() {
-            next.prior = prior;
-            prior.next = next;
+    /** Orders cache entries from the least to the most recently used. */
+    private static final Comparator<CacheEntry> LEAST_RECENTLY_USED = new Comparator<CacheEntry>() {
+        public int compare(CacheEntry o1, CacheEntry o2) {
+            long t1 = o1.lastUsed;
+            long t2 = o2.lastUsed;
+            return (t1 < t2) ? -1 : (t1 == t2) ? 0 : 1;
         }
-
-        /**
-         * Links this CacheEntry into the linked list after the node specified.
-         *
-         * @param ce node after which this entry will be linked
-         */
-        void link(CacheEntry ce) {
-            next = ce.next;
-            prior = ce;
-            next.prior = this;
-            ce.next = this;
-        }
-    }
+    };
 
     /** The maximum initial HashMap size. */
     private static final int MAX_INITIAL_SIZE = 50;
     /** The actual cache instance. */
-    private HashMap cache;
+    private final ConcurrentHashMap<Object,CacheEntry> cache;
     /** Maximum cache size or 0 to disable. */
-    int cacheSize;
-    /** Head node of the linked list. */
-    CacheEntry head;
-    /** Tail node of the linked list. */
-    CacheEntry tail;
+    final int cacheSize;
+    /** Maximum estimated memory of all entries or 0 for no limit. */
+    final long maxMemory;
+    /** Estimated memory of all entries. */
+    private final AtomicLong memory = new AtomicLong();
+    /** Logical clock ordering the uses of the entries. */
+    private final AtomicLong clock = new AtomicLong();
     /** List of redundant cache entries. */
     ArrayList free;
 
+    /** Number of lookups that found an entry. */
+    private final AtomicLong hits = new AtomicLong();
+    /** Number of lookups that found no entry. */
+    private final AtomicLong misses = new AtomicLong();
+    /** Number of entries released to bring down the cache size. */
+    private final AtomicLong evictions = new AtomicLong();
+    /** Number of entries that would have been released but were in use. */
+    private final AtomicLong inUseEvictions = new AtomicLong();
+
     /**
-     * Constructs a new statement cache.
+     * Constructs a new statement cache, bounded by the number of entries only.
      *
      * @param cacheSize maximum cache size or 0 to disable caching
      */
     public ProcedureCache(int cacheSize) {
+        this(cacheSize, 0);
+    }
+
+    /**
+     * Constructs a new statement cache.
+     *
+     * @param cacheSize maximum cache size or 0 to disable caching
+     * @param maxMemory maximum estimated memory of the cached entries in
+     *                  bytes or 0 for no limit
+     */
+    public ProcedureCache(int cacheSize, long maxMemory) {
         this.cacheSize = cacheSize;
-        cache = new HashMap(Math.min(MAX_INITIAL_SIZE, cacheSize) + 1);
-        head  = new CacheEntry(null, null);
-        tail  = new CacheEntry(null, null);
-        head.next = tail;
-        tail.prior = head;
+        this.maxMemory = maxMemory;
+        cache = new ConcurrentHashMap<Object,CacheEntry>(Math.min(MAX_INITIAL_SIZE, cacheSize) + 1);
         free = new ArrayList();
     }
 
     /**
      * Retrieves a ProcEntry object from the cache.
      * <p/>
-     * If the entry exists it is moved to the front of the linked list to keep
-     * it alive as long as possible.
+     * If the entry exists its order of use is updated to keep it alive as long
+     * as possible.
      *
      * @param key the key value identifying the required entry
      * @return the keyed entry as an <code>Object</code> or null if the entry
      *         does not exist
      */
-    public synchronized Object get(String key) {
-        CacheEntry ce = (CacheEntry) cache.get(key);
-        if (ce != null) {
-            // remove entry from linked list
-            ce.unlink();
-            // Relink at Head
-            ce.link(head);
-            // Increment usage count
-            ce.value.addRef();
+    public Object get(Object key) {
+        CacheEntry ce = cache.get(key);
+        // Increment usage count, unless a concurrent scavenge evicted it
+        if (ce != null && ce.value.tryAddRef()) {
+            hits.incrementAndGet();
+            ce.lastUsed = clock.incrementAndGet();
 
             return ce.value;
         }
+        misses.incrementAndGet();
         return null;
     }
 
@@ -136,14 +160,14 @@ public class ProcedureCache implements StatementCache {
      * @param key    value used to identify the entry
      * @param handle proc entry to be inserted into the cache
      */
-    public synchronized void put(String key, Object handle) {
+    public synchronized void put(Object key, Object handle) {
         // Increment usage count
         ((ProcEntry) handle).addRef();
 
         // Add new entry to cache
-        CacheEntry ce = new CacheEntry(key, (ProcEntry) handle);
-        cache.put(key, ce);
-        ce.link(head);
+        CacheEntry ce = new CacheEntry(key, (ProcEntry) handle, clock.incrementAndGet());
+        CacheEntry old = cache.put(key, ce);
+        memory.addAndGet(ce.size - (old == null ? 0 : old.size));
 
         // See if we need to scavenge some existing entries
         scavengeCache();
@@ -154,13 +178,10 @@ public class ProcedureCache implements StatementCache {
      *
      * @param key value that identifies the cache entry
      */
-    public synchronized void remove(String key) {
-        CacheEntry ce = (CacheEntry) cache.get(key);
+    public synchronized void remove(Object key) {
+        CacheEntry ce = cache.remove(key);
         if (ce != null) {
-            // remove entry from linked list
-            ce.unlink();
-            // Remove from HashMap
-            cache.remove(key);
+            memory.addAndGet(-ce.size);
         }
     }
 
@@ -196,26 +217,110 @@ public class ProcedureCache implements StatementCache {
         }
     }
 
+    /**
+     * Retrieves the number of entries in the cache.
+     *
+     * @return the number of cached statements
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * Retrieves the estimated memory used by the entries in the cache.
+     *
+     * @return the estimated size of all entries in bytes
+     */
+    public long getEstimatedMemory() {
+        return memory.get();
+    }
+
+    /**
+     * Retrieves the number of lookups that found a cached statement.
+     *
+     * @return the number of cache hits
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Retrieves the number of lookups that found no cached statement, each
+     * causing the statement to be prepared.
+     *
+     * @return the number of cache misses
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Retrieves the number of statements released to bring down the size of
+     * the cache. A count growing along with the misses indicates the cache
+     * is too small for the statements of the application.
+     *
+     * @return the number of evicted entries
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Retrieves the number of statements that would have been released to
+     * bring down the size of the cache but were kept because they were still
+     * used by an open <code>PreparedStatement</code>. The cache exceeds its
+     * bounds while this happens. Each statement is counted once, no matter
+     * how often it is skipped while it remains in use.
+     *
+     * @return the number of entries whose eviction was prevented by their use
+     */
+    public long getInUseEvictionCount() {
+        return inUseEvictions.get();
+    }
+
     /**
      * Removes unused entries trying to bring down the cache to the requested
-     * size. The removed entries are placed in the {@link #free} list.
+     * size and memory. The removed entries are placed in the {@link #free}
+     * list.
      * <p/>
      * <b>Note:</b> entries that are in use will not be removed so it is
      * possible for the cache to still be larger than {@link #cacheSize} after
      * the call finishes.
      */
     private void scavengeCache() {
-        CacheEntry ce = tail.prior;
-        while (ce != head && cache.size() > cacheSize) {
-            if (ce.value.getRefCount() == 0) {
-                // remove entry from linked list
-                ce.unlink();
-                // Add to free list for reclaiming
-                free.add(ce.value);
-                // Remove from HashMap
-                cache.remove(ce.key);
+        if (!isOversized()) {
+            return;
+        }
+
+        CacheEntry[] entries = cache.values().toArray(new CacheEntry[cache.size()]);
+        Arrays.sort(entries, LEAST_RECENTLY_USED);
+
+        for (int i = 0; i < entries.length && isOversized(); i++) {
+            CacheEntry ce = entries[i];
+            // Evicting atomically keeps get() from acquiring the entry now
+            if (ce.value.tryEvict()) {
+                if (cache.remove(ce.key, ce)) {
+                    memory.addAndGet(-ce.size);
+                    // Add to free list for reclaiming
+                    free.add(ce.value);
+                    evictions.incrementAndGet();
+                }
+            } else if (!ce.evictionPrevented) {
+                ce.evictionPrevented = true;
+                inUseEvictions.incrementAndGet();
             }
-            ce = ce.prior;
         }
     }
+
+    /**
+     * Determines whether the cache exceeds its size or memory bounds.
+     */
+    private boolean isOversized() {
+        if (cacheSize == Integer.MAX_VALUE) {
+            // Fast caching, never release any statements
+            return false;
+        }
+        return cache.size() > cacheSize
+                || maxMemory > 0 && memory.get() > maxMemory;
+    }
 }
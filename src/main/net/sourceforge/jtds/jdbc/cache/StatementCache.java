@@ -29,9 +29,11 @@ import java.util.Collection;
  * There are two types of attributes that the cache is concerned with:
  * <dl>
  *   <dt>statement key</dt>
- *   <dd><code>String</code> generated from the SQL query for which the
- *     prepared statement was created, the database name and the parameter
- *     types; this key uniquely identifies a server-side preparation of the
+ *   <dd>object generated from the SQL query for which the prepared
+ *     statement was created, the database name and the parameter types,
+ *     implementing <code>equals</code> and <code>hashCode</code>; its
+ *     <code>toString</code> form is the key as a <code>String</code>; this
+ *     key uniquely identifies a server-side preparation of the
  *     statement and is used to retrieve the handle of the statement when it
  *     needs to be executed</dd>
  *   <dt>temporary procedure name or <code>sp_prepare</code> or
@@ -65,7 +67,7 @@ public interface StatementCache {
      * @param key the statement key whose associated handle is to be returned
      * @return statement handle
 	 */
-	Object get(String key);
+	Object get(Object key);
 
 	/**
 	 * Places the specified statement handle in the cache for the given key. If
@@ -74,7 +76,7 @@ public interface StatementCache {
      * @param key the statement key to associated with the handle
      * @param handle the statement handle
      */
-	void put(String key, Object handle);
+	void put(Object key, Object handle);
 
 	/**
 	 * Removes a statement key and handle from the cache for the specified key.
@@ -82,7 +84,7 @@ public interface StatementCache {
      * @param key the statement key whose associated handle is to be removed
      *            from the cache
 	 */
-	void remove(String key);
+	void remove(Object key);
 
 	/**
 	 * Returns a <code>Collection</code> of obsolete statement handles that may
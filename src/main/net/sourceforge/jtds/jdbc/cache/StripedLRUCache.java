@@ -0,0 +1,319 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package net.sourceforge.jtds.jdbc.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p> LRU cache for any type of object that can be used by many threads
+ * concurrently. </p>
+ *
+ * <p> The entries are spread over a number of segments by the hash codes of
+ * their keys, each segment being an access ordered {@link LinkedHashMap}
+ * with its own lock and its share of the maximum size. Threads accessing
+ * different segments do not contend, the least recently used entry of a
+ * segment is removed once the segment is full. </p>
+ *
+ * <p> The cache counts the lookups that found an entry and those that did
+ * not, see {@link #getHitRate()}. </p>
+ */
+public class StripedLRUCache<K,V>
+{
+
+   // private constants ////////////////////////////////////////////////////////
+
+   /**
+    * maximum number of segments
+    */
+   private static final int          MAX_SEGMENTS = 64;
+
+   // private instance fields //////////////////////////////////////////////////
+
+   /**
+    * the segments holding the entries, their number is a power of 2
+    */
+   private final Segment<K,V>[]      _Segments;
+
+   /**
+    * maximum number of entries in this cache
+    */
+   private volatile int              _Limit;
+
+   // public constructors //////////////////////////////////////////////////////
+
+   /**
+    * <p> Constructs a new LRU cache with a limited capacity, using a number of
+    * segments suitable for the available processors. </p>
+    *
+    * @param limit
+    *    maximum number of entries in this cache
+    */
+   public StripedLRUCache( int limit )
+   {
+      this( limit, 4 * Runtime.getRuntime().availableProcessors() );
+   }
+
+   /**
+    * <p> Constructs a new LRU cache with a limited capacity. </p>
+    *
+    * @param limit
+    *    maximum number of entries in this cache
+    *
+    * @param segments
+    *    number of segments to spread the entries over, rounded up to a power
+    *    of 2 and limited to 64
+    */
+   @SuppressWarnings( "unchecked" )
+   public StripedLRUCache( int limit, int segments )
+   {
+      int count = 1;
+
+      while( count < segments && count < MAX_SEGMENTS )
+      {
+         count <<= 1;
+      }
+
+      _Segments = (Segment<K,V>[]) new Segment<?,?>[count];
+
+      for( int i = 0; i < count; i ++ )
+      {
+         _Segments[i] = new Segment<K,V>();
+      }
+
+      setLimit( limit );
+   }
+
+   // public methods ///////////////////////////////////////////////////////////
+
+   /**
+    * <p> Updates the LRU cache by adding a new entry. </p>
+    *
+    * @see
+    *    java.util.Map#put(Object,Object)
+    *
+    * @param key
+    *    key with which the specified value is to be associated
+    *
+    * @param value
+    *    value to be associated with the specified key
+    *
+    * @return
+    *    previous value associated with key or {@code null} if there was no
+    *    mapping for key
+    */
+   public V put( K key, V value )
+   {
+      Segment<K,V> segment = segmentFor( key );
+
+      synchronized( segment )
+      {
+         return segment.put( key, value );
+      }
+   }
+
+   /**
+    * <p> Get the value associated with the given key, if any. </p>
+    *
+    * @see
+    *    java.util.Map#get(Object)
+    *
+    * @param key
+    *    the key whose associated value is to be returned
+    *
+    * @return
+    *    the value to which the specified key is mapped, or {@code null} if this
+    *    map contains no mapping for the key
+    */
+   public V get( K key )
+   {
+      Segment<K,V> segment = segmentFor( key );
+
+      synchronized( segment )
+      {
+         V value = segment.get( key );
+
+         if( value == null )
+         {
+            segment._Misses ++;
+         }
+         else
+         {
+            segment._Hits ++;
+         }
+
+         return value;
+      }
+   }
+
+   /**
+    * <p> Changes the maximum number of entries in this cache. If the cache
+    * holds more entries, the least recently used ones are removed as new
+    * entries are added. </p>
+    *
+    * @param limit
+    *    maximum number of entries in this cache
+    */
+   public void setLimit( int limit )
+   {
+      _Limit = Math.max( 0, limit );
+
+      // each segment gets its share, rounded up
+      int share = ( _Limit + _Segments.length - 1 ) / _Segments.length;
+
+      for( Segment<K,V> segment : _Segments )
+      {
+         synchronized( segment )
+         {
+            segment._Limit = share;
+         }
+      }
+   }
+
+   /**
+    * <p> Returns the maximum number of entries in this cache. </p>
+    */
+   public int getLimit()
+   {
+      return _Limit;
+   }
+
+   /**
+    * <p> Returns the number of entries in this cache. </p>
+    */
+   public int size()
+   {
+      int size = 0;
+
+      for( Segment<K,V> segment : _Segments )
+      {
+         synchronized( segment )
+         {
+            size += segment.size();
+         }
+      }
+
+      return size;
+   }
+
+   /**
+    * <p> Returns the number of lookups that found an entry. </p>
+    */
+   public long getHitCount()
+   {
+      long hits = 0;
+
+      for( Segment<K,V> segment : _Segments )
+      {
+         synchronized( segment )
+         {
+            hits += segment._Hits;
+         }
+      }
+
+      return hits;
+   }
+
+   /**
+    * <p> Returns the number of lookups that found no entry. </p>
+    */
+   public long getMissCount()
+   {
+      long misses = 0;
+
+      for( Segment<K,V> segment : _Segments )
+      {
+         synchronized( segment )
+         {
+            misses += segment._Misses;
+         }
+      }
+
+      return misses;
+   }
+
+   /**
+    * <p> Returns the ratio of lookups that found an entry to all lookups,
+    * between 0 and 1, or 0 if there have been no lookups yet. </p>
+    */
+   public double getHitRate()
+   {
+      long hits  = getHitCount();
+      long total = hits + getMissCount();
+
+      return total == 0 ? 0 : (double) hits / total;
+   }
+
+   // private methods //////////////////////////////////////////////////////////
+
+   /**
+    * <p> Returns the segment holding the entry for the given key. </p>
+    */
+   private Segment<K,V> segmentFor( K key )
+   {
+      int hash = key.hashCode();
+
+      // spread the higher bits of the hash code to the index bits
+      hash ^= hash >>> 16;
+      hash ^= hash >>> 8;
+
+      return _Segments[hash & _Segments.length - 1];
+   }
+
+   // private inner class Segment //////////////////////////////////////////////
+
+   /**
+    * <p> A segment of the cache, guarded by its own monitor. </p>
+    */
+   private static final class Segment<K,V> extends LinkedHashMap<K,V>
+   {
+
+      private static final long serialVersionUID = 1L;
+
+      /**
+       * maximum number of entries in this segment
+       */
+      int  _Limit;
+
+      /**
+       * number of lookups that found an entry
+       */
+      long _Hits;
+
+      /**
+       * number of lookups that found no entry
+       */
+      long _Misses;
+
+      Segment()
+      {
+         super( 16, 0.75f, true );
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      protected boolean removeEldestEntry( Map.Entry<K,V> eldest )
+      {
+         return size() > _Limit;
+      }
+
+   }
+
+}
@@ -32,6 +32,7 @@ import javax.sql.DataSource;
 import javax.sql.XAConnection;
 import javax.sql.XADataSource;
 
+import net.sourceforge.jtds.jdbc.BufferBudget;
 import net.sourceforge.jtds.jdbc.DefaultProperties;
 import net.sourceforge.jtds.jdbc.Driver;
 import net.sourceforge.jtds.jdbc.Messages;
@@ -65,6 +66,12 @@ public class JtdsDataSource implements DataSource, ConnectionPoolDataSource, XAD
     */
    private static final Driver _Driver          = new Driver();
 
+   /**
+    * Buffer budget shared by the connections of this DataSource if no
+    * <code>bufferGroup</code> is configured, created by the first connection.
+    */
+   private transient volatile BufferBudget _BufferBudget;
+
    /**
     * Constructs a configured DataSource.
     */
@@ -183,7 +190,8 @@ public class JtdsDataSource implements DataSource, ConnectionPoolDataSource, XAD
 
       // Connect with the URL stub and set properties. The defaults will be
       // filled in by connect().
-      return _Driver.connect( url, props );
+      // connections of this DataSource share a buffer budget unless a group is configured explicitly
+      return _Driver.connect( url, props, getDefaultBufferBudget() );
    }
 
    public Reference getReference()
@@ -234,7 +242,7 @@ public class JtdsDataSource implements DataSource, ConnectionPoolDataSource, XAD
     * @throws SQLException
     * if an error occurs
     */
-   public synchronized javax.sql.PooledConnection getPooledConnection( String user, String password )
+   public javax.sql.PooledConnection getPooledConnection( String user, String password )
       throws SQLException
    {
       return new net.sourceforge.jtds.jdbcx.PooledConnection( getConnection( user, password ) );
@@ -684,6 +692,208 @@ public class JtdsDataSource implements DataSource, ConnectionPoolDataSource, XAD
       return Boolean.valueOf( (String) _Config.get( Driver.USEJCIFS ) ).booleanValue();
    }
 
+   public void setUseNIO( boolean useNIO )
+   {
+      _Config.put( Driver.USENIO, String.valueOf( useNIO ) );
+   }
+
+   public boolean getUseNIO()
+   {
+      return Boolean.valueOf( (String) _Config.get( Driver.USENIO ) ).booleanValue();
+   }
+
+   public void setSharedPacketPool( boolean sharedPacketPool )
+   {
+      _Config.put( Driver.SHAREDPACKETPOOL, String.valueOf( sharedPacketPool ) );
+   }
+
+   public boolean getSharedPacketPool()
+   {
+      return Boolean.valueOf( (String) _Config.get( Driver.SHAREDPACKETPOOL ) ).booleanValue();
+   }
+
+   public void setBufferMappedFile( boolean bufferMappedFile )
+   {
+      _Config.put( Driver.BUFFERMAPPEDFILE, String.valueOf( bufferMappedFile ) );
+   }
+
+   public boolean getBufferMappedFile()
+   {
+      return Boolean.valueOf( (String) _Config.get( Driver.BUFFERMAPPEDFILE ) ).booleanValue();
+   }
+
+   public void setBufferGroup( String bufferGroup )
+   {
+      _Config.put( Driver.BUFFERGROUP, bufferGroup );
+   }
+
+   public String getBufferGroup()
+   {
+      return (String) _Config.get( Driver.BUFFERGROUP );
+   }
+
+   /**
+    * Retrieves the buffer memory budget shared by the connections of this
+    * DataSource (or of its <code>bufferGroup</code>, if set), providing the
+    * memory currently and at most used to buffer server responses and how
+    * much data had to be buffered to disk.
+    *
+    * @return
+    *    the budget or <code>null</code> if no connection has been obtained
+    *    from this DataSource so far
+    */
+   public BufferBudget getBufferBudget()
+   {
+      String group = getBufferGroup();
+      return group != null && group.length() > 0 ? BufferBudget.getGroup( group ) : _BufferBudget;
+   }
+
+   /**
+    * Retrieves the buffer budget shared by the connections of this
+    * DataSource if no <code>bufferGroup</code> is configured, creating it if
+    * necessary.
+    */
+   private BufferBudget getDefaultBufferBudget()
+   {
+      BufferBudget budget = _BufferBudget;
+
+      if( budget == null )
+      {
+         synchronized( this )
+         {
+            budget = _BufferBudget;
+
+            if( budget == null )
+            {
+               budget = BufferBudget.createGroup( "DataSource" );
+               _BufferBudget = budget;
+            }
+         }
+      }
+
+      return budget;
+   }
+
+   public void setBufferGroupMaxMemory( int bufferGroupMaxMemory )
+   {
+      _Config.put( Driver.BUFFERGROUPMAXMEMORY, String.valueOf( bufferGroupMaxMemory ) );
+   }
+
+   public int getBufferGroupMaxMemory()
+   {
+      return getIntProperty( Driver.BUFFERGROUPMAXMEMORY );
+   }
+
+   public void setBufferConnectionMaxMemory( int bufferConnectionMaxMemory )
+   {
+      _Config.put( Driver.BUFFERCONNECTIONMAXMEMORY, String.valueOf( bufferConnectionMaxMemory ) );
+   }
+
+   public int getBufferConnectionMaxMemory()
+   {
+      return getIntProperty( Driver.BUFFERCONNECTIONMAXMEMORY );
+   }
+
+   public void setUseMARS( boolean useMARS )
+   {
+      _Config.put( Driver.USEMARS, String.valueOf( useMARS ) );
+   }
+
+   public boolean getUseMARS()
+   {
+      return Boolean.valueOf( (String) _Config.get( Driver.USEMARS ) ).booleanValue();
+   }
+
+   public void setAdaptivePacketSize( boolean adaptivePacketSize )
+   {
+      _Config.put( Driver.ADAPTIVEPACKETSIZE, String.valueOf( adaptivePacketSize ) );
+   }
+
+   public boolean getAdaptivePacketSize()
+   {
+      return Boolean.valueOf( (String) _Config.get( Driver.ADAPTIVEPACKETSIZE ) ).booleanValue();
+   }
+
+   public void setStreamLOBs( boolean streamLOBs )
+   {
+      _Config.put( Driver.STREAMLOBS, String.valueOf( streamLOBs ) );
+   }
+
+   public boolean getStreamLOBs()
+   {
+      return Boolean.valueOf( (String) _Config.get( Driver.STREAMLOBS ) ).booleanValue();
+   }
+
+   public void setLazyRows( boolean lazyRows )
+   {
+      _Config.put( Driver.LAZYROWS, String.valueOf( lazyRows ) );
+   }
+
+   public boolean getLazyRows()
+   {
+      return Boolean.valueOf( (String) _Config.get( Driver.LAZYROWS ) ).booleanValue();
+   }
+
+   public void setCursorPrefetch( boolean cursorPrefetch )
+   {
+      _Config.put( Driver.CURSORPREFETCH, String.valueOf( cursorPrefetch ) );
+   }
+
+   public boolean getCursorPrefetch()
+   {
+      return Boolean.valueOf( (String) _Config.get( Driver.CURSORPREFETCH ) ).booleanValue();
+   }
+
+   public void setAdaptiveFetch( boolean adaptiveFetch )
+   {
+      _Config.put( Driver.ADAPTIVEFETCH, String.valueOf( adaptiveFetch ) );
+   }
+
+   public boolean getAdaptiveFetch()
+   {
+      return Boolean.valueOf( (String) _Config.get( Driver.ADAPTIVEFETCH ) ).booleanValue();
+   }
+
+   public void setUsePrepExec( boolean usePrepExec )
+   {
+      _Config.put( Driver.USEPREPEXEC, String.valueOf( usePrepExec ) );
+   }
+
+   public boolean getUsePrepExec()
+   {
+      return Boolean.valueOf( (String) _Config.get( Driver.USEPREPEXEC ) ).booleanValue();
+   }
+
+   public void setDeferCleanup( boolean deferCleanup )
+   {
+      _Config.put( Driver.DEFERCLEANUP, String.valueOf( deferCleanup ) );
+   }
+
+   public boolean getDeferCleanup()
+   {
+      return Boolean.valueOf( (String) _Config.get( Driver.DEFERCLEANUP ) ).booleanValue();
+   }
+
+   public void setMaxStatementMemory( long maxStatementMemory )
+   {
+      _Config.put( Driver.MAXSTMTMEMORY, String.valueOf( maxStatementMemory ) );
+   }
+
+   public long getMaxStatementMemory()
+   {
+      return getLongProperty( Driver.MAXSTMTMEMORY );
+   }
+
+   public void setParserCacheSize( int parserCacheSize )
+   {
+      _Config.put( Driver.PARSERCACHE, String.valueOf( parserCacheSize ) );
+   }
+
+   public int getParserCacheSize()
+   {
+      return getIntProperty( Driver.PARSERCACHE );
+   }
+
    private void addNonNullProperties( Properties props, String user, String password )
    {
       Iterator it = _Config.entrySet().iterator();
@@ -62,8 +62,12 @@ public class JtdsObjectFactory implements ObjectFactory
             Driver.BATCHSIZE,
             Driver.BINDADDRESS,
             Driver.BUFFERDIR,
+            Driver.BUFFERCONNECTIONMAXMEMORY,
+            Driver.BUFFERGROUP,
+            Driver.BUFFERGROUPMAXMEMORY,
             Driver.BUFFERMAXMEMORY,
             Driver.BUFFERMINPACKETS,
+            Driver.BUFFERMAPPEDFILE,
             Driver.CACHEMETA,
             Driver.CHARSET,
             Driver.DATABASENAME,
@@ -78,9 +82,14 @@ public class JtdsObjectFactory implements ObjectFactory
             Driver.MAXSTATEMENTS,
             Driver.NAMEDPIPE,
             Driver.PACKETSIZE,
+            Driver.ADAPTIVEPACKETSIZE,
             Driver.PASSWORD,
             Driver.PORTNUMBER,
             Driver.PREPARESQL,
+            Driver.USEPREPEXEC,
+            Driver.DEFERCLEANUP,
+            Driver.MAXSTMTMEMORY,
+            Driver.PARSERCACHE,
             Driver.PROGNAME,
             Driver.SERVERNAME,
             Driver.SERVERTYPE,
@@ -91,10 +100,17 @@ public class JtdsObjectFactory implements ObjectFactory
             Driver.TCPNODELAY,
             Driver.TDS,
             Driver.USECURSORS,
+            Driver.CURSORPREFETCH,
+            Driver.ADAPTIVEFETCH,
             Driver.USEJCIFS,
             Driver.USENTLMV2,
+            Driver.USENIO,
+            Driver.SHAREDPACKETPOOL,
             Driver.USEKERBEROS,
             Driver.USELOBS,
+            Driver.STREAMLOBS,
+            Driver.LAZYROWS,
+            Driver.USEMARS,
             Driver.USER,
             Driver.SENDSTRINGPARAMETERSASUNICODE,
             Driver.WSID,
@@ -66,7 +66,7 @@ public class JtdsXAConnection extends PooledConnection implements XAConnection {
         return resource;
     }
 
-    public synchronized void close() throws SQLException {
+    public void close() throws SQLException {
         try {
             XASupport.xa_close(connection, xaConnectionId);
         } catch (SQLException e) {
@@ -19,6 +19,7 @@ package net.sourceforge.jtds.jdbcx;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.sql.*;
 
@@ -33,6 +34,12 @@ import net.sourceforge.jtds.jdbcx.proxy.*;
 public class PooledConnection implements javax.sql.PooledConnection {
     private ArrayList listeners = new ArrayList();
 
+    /**
+     * Lock used instead of the monitor of this object, closing the connection
+     * involves network I/O.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
     protected Connection connection;
 
     public PooledConnection(Connection connection) {
@@ -45,14 +52,19 @@ public class PooledConnection implements javax.sql.PooledConnection {
      * @see #fireConnectionEvent
      * @see #removeConnectionEventListener
      */
-    public synchronized void addConnectionEventListener(ConnectionEventListener listener) {
-        // Clone the list of listeners to avoid concurrent modifications. See
-        // bug [1113040] Small bug in net.sourceforge.jtds.jdbcx.PooledConnection
-        // for a description of how these can occur. The method still needs to
-        // be synchronized to prevent race conditions.
-        listeners = (ArrayList) listeners.clone();
-        // Now add the listener to the new, cloned list
-        listeners.add(listener);
+    public void addConnectionEventListener(ConnectionEventListener listener) {
+        lock.lock();
+        try {
+            // Clone the list of listeners to avoid concurrent modifications. See
+            // bug [1113040] Small bug in net.sourceforge.jtds.jdbcx.PooledConnection
+            // for a description of how these can occur. The method still needs to
+            // be locked to prevent race conditions.
+            listeners = (ArrayList) listeners.clone();
+            // Now add the listener to the new, cloned list
+            listeners.add(listener);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -60,9 +72,14 @@ public class PooledConnection implements javax.sql.PooledConnection {
      *
      * @throws SQLException if an error occurs
      */
-    public synchronized void close() throws SQLException {
-        connection.close();
-        connection = null; // Garbage collect the connection
+    public void close() throws SQLException {
+        lock.lock();
+        try {
+            connection.close();
+            connection = null; // Garbage collect the connection
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -73,26 +90,31 @@ public class PooledConnection implements javax.sql.PooledConnection {
      *        an error where the connection may not longer be used.
      * @param sqlException the SQLException to pass to the listeners
      */
-    public synchronized void fireConnectionEvent(boolean closed, SQLException sqlException) {
-        if (listeners.size() > 0) {
-            ConnectionEvent connectionEvent = new ConnectionEvent(this, sqlException);
-            Iterator iterator = listeners.iterator();
-
-            while (iterator.hasNext()) {
-                ConnectionEventListener listener = (ConnectionEventListener) iterator.next();
-
-                if (closed) {
-                    listener.connectionClosed(connectionEvent);
-                } else {
-                    try {
-                        if (connection == null || connection.isClosed()) {
-                            listener.connectionErrorOccurred(connectionEvent);
+    public void fireConnectionEvent(boolean closed, SQLException sqlException) {
+        lock.lock();
+        try {
+            if (listeners.size() > 0) {
+                ConnectionEvent connectionEvent = new ConnectionEvent(this, sqlException);
+                Iterator iterator = listeners.iterator();
+
+                while (iterator.hasNext()) {
+                    ConnectionEventListener listener = (ConnectionEventListener) iterator.next();
+
+                    if (closed) {
+                        listener.connectionClosed(connectionEvent);
+                    } else {
+                        try {
+                            if (connection == null || connection.isClosed()) {
+                                listener.connectionErrorOccurred(connectionEvent);
+                            }
+                        } catch (SQLException ex) {
+                            // Will never occur
                         }
-                    } catch (SQLException ex) {
-                        // Will never occur
                     }
                 }
             }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -101,18 +123,23 @@ public class PooledConnection implements javax.sql.PooledConnection {
      *
      * @throws SQLException if an error occurs
      */
-    public synchronized Connection getConnection() throws SQLException {
-        if (connection == null) {
-            fireConnectionEvent(false,
-                new SQLException(Messages.get("error.jdbcx.conclosed"),
-                                 "08003"));
+    public Connection getConnection() throws SQLException {
+        lock.lock();
+        try {
+            if (connection == null) {
+                fireConnectionEvent(false,
+                    new SQLException(Messages.get("error.jdbcx.conclosed"),
+                                     "08003"));
+
+                return null;
+            }
 
-            return null;
+            // Should the SQLException be captured here for safety in the future even though
+            // no SQLException is being thrown by the ConnectionProxy at the moment???
+            return new ConnectionProxy(this, connection);
+        } finally {
+            lock.unlock();
         }
-
-        // Should the SQLException be captured here for safety in the future even though
-        // no SQLException is being thrown by the ConnectionProxy at the moment???
-        return new ConnectionProxy(this, connection);
     }
 
     /**
@@ -121,14 +148,19 @@ public class PooledConnection implements javax.sql.PooledConnection {
      * @see #addConnectionEventListener
      * @see #fireConnectionEvent
      */
-    public synchronized void removeConnectionEventListener(ConnectionEventListener listener) {
-        // Clone the list of listeners to avoid concurrent modifications. See
-        // bug [1113040] Small bug in net.sourceforge.jtds.jdbcx.PooledConnection
-        // for a description of how these can occur. The method still needs to
-        // be synchronized to prevent race conditions.
-        listeners = (ArrayList) listeners.clone();
-        // Now remove the listener from the new, cloned list
-        listeners.remove(listener);
+    public void removeConnectionEventListener(ConnectionEventListener listener) {
+        lock.lock();
+        try {
+            // Clone the list of listeners to avoid concurrent modifications. See
+            // bug [1113040] Small bug in net.sourceforge.jtds.jdbcx.PooledConnection
+            // for a description of how these can occur. The method still needs to
+            // be locked to prevent race conditions.
+            listeners = (ArrayList) listeners.clone();
+            // Now remove the listener from the new, cloned list
+            listeners.remove(listener);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /////// JDBC4 demarcation, do NOT put any JDBC3 code below this line ///////
@@ -17,8 +17,11 @@
 //
 package net.sourceforge.jtds.util;
 
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Simple timer class used to implement login and query timeouts.
@@ -28,6 +31,15 @@ import java.util.ListIterator;
  * <p/>
  * It provides both a singleton implementation and a default constructor for
  * the case when more than one timer thread is desired.
+ * <p/>
+ * Timers are kept in a hashed timing wheel: {@link #WHEEL_SIZE} slots of
+ * {@link #TICK} milliseconds each, a timer being stored in the slot of its
+ * expiry tick modulo the wheel size. New timers are handed to the timer
+ * thread through lock-free queues, striped by thread, and cancelled timers
+ * are only flagged and dropped when the timer thread next visits their slot.
+ * Both {@link #setTimer} and {@link #cancelTimer} therefore run in constant
+ * time without any lock or counter shared by all threads. Timers fire at
+ * most one tick late.
  *
  * @author Alin Sinpalean
  * @author Mike Hutchinson
@@ -44,15 +56,37 @@ public class TimerThread extends Thread {
         void timerExpired();
     }
 
+    /** Duration of a tick of the timing wheel in milliseconds. */
+    static final int TICK = 10;
+    /** Number of slots of the timing wheel, a power of 2. */
+    static final int WHEEL_SIZE = 512;
+    /** Number of queues for new timers, a power of 2. */
+    private static final int STRIPES = 16;
+
+    /** State of a timer waiting to expire. */
+    private static final int WAITING   = 0;
+    /** State of a timer whose listener is being notified. */
+    private static final int FIRING    = 1;
+    /** State of a timer that has expired. */
+    private static final int EXPIRED   = 2;
+    /** State of a timer cancelled before it expired. */
+    private static final int CANCELLED = 3;
+
     /**
      * Internal class associating a login or query timeout value with a target
      * <code>TimerListener</code>.
      */
     private static class TimerRequest {
+        /** The state of this timer, one of the constants above. */
+        final AtomicInteger state = new AtomicInteger(WAITING);
         /** The time when this timeout will expire. */
         final long time;
         /** Target to notify when the timeout expires. */
         final TimerListener target;
+        /** The tick this timeout expires at, set by the timer thread. */
+        long tick;
+        /** The next timer in the same slot of the wheel. */
+        TimerRequest next;
 
         /**
          * Create a <code>TimerRequest</code>.
@@ -75,10 +109,23 @@ public class TimerThread extends Thread {
     /** Singleton instance. */
     private static TimerThread instance;
 
-    /** List of <code>TimerRequest</code>s to execute, ordered by time. */
-    private final LinkedList timerList = new LinkedList();
-    /** Time when the first request time out should occur. */
-    private long nextTimeout;
+    /**
+     * Timers added since the last tick, not yet in the wheel. Generic arrays
+     * cannot be created, all elements are queues of <code>TimerRequest</code>s.
+     */
+    @SuppressWarnings("unchecked")
+    private final Queue<TimerRequest>[] newTimers =
+            (Queue<TimerRequest>[]) new Queue<?>[STRIPES];
+    /** Slots of the timing wheel, only accessed by the timer thread. */
+    private final TimerRequest[] wheel = new TimerRequest[WHEEL_SIZE];
+    /** Number of timers in the wheel, including cancelled ones. */
+    private int wheelCount;
+    /** Set while the timer thread waits for new timers. */
+    private volatile boolean idle;
+    /** Time of tick 0. */
+    private final long start = System.currentTimeMillis();
+    /** The last tick processed by the timer thread. */
+    private long lastTick;
 
     /**
      * Singleton getter.
@@ -99,53 +146,131 @@ public class TimerThread extends Thread {
         super("jTDS TimerThread");
         // Ensure that this thread does not prevent the VM from exiting
         this.setDaemon(true);
+
+        for (int i = 0; i < STRIPES; i++) {
+            newTimers[i] = new ConcurrentLinkedQueue<TimerRequest>();
+        }
     }
 
     /**
      * Execute the <code>TimerThread</code> main loop.
      */
     public void run() {
-        synchronized (timerList) {
-            boolean run = true;
-            while (run) {
-                try {
-                    long ms;
-                    while ((ms = nextTimeout - System.currentTimeMillis()) > 0 || nextTimeout == 0) {
-                        // positive timeout, wait appropriately
-                        timerList.wait(nextTimeout==0 ? 0 : ms);
-                    }
+        while (!isInterrupted()) {
+            if (wheelCount == 0) {
+                // Announce the wait before checking for new timers, so that
+                // either this thread sees a new timer or setTimer() sees the
+                // flag and wakes this thread up
+                idle = true;
+                if (!hasNewTimers()) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+                // The wheel is empty, there are no ticks to catch up with
+                lastTick = Math.max(lastTick, currentTick() - 1);
+            } else {
+                long ms = start + (lastTick + 1) * TICK - System.currentTimeMillis();
+                if (ms > 0) {
+                    LockSupport.parkNanos(this, ms * 1000000L);
+                }
+            }
 
-                    // Fire expired timeout requests
-                    long time = System.currentTimeMillis();
-                    while (!timerList.isEmpty()) {
-                        // Examine the head of the list and see
-                        // if the timer has expired.
-                        TimerRequest t = (TimerRequest) timerList.getFirst();
-                        if (t.time > time) {
-                            break; // No timers have expired
-                        }
-                        // Notify target of timeout
-                        t.target.timerExpired();
-                        // Remove the fired timeout request
-                        timerList.removeFirst();
+            // Move new timers into the wheel
+            for (int i = 0; i < STRIPES; i++) {
+                TimerRequest t;
+                while ((t = newTimers[i].poll()) != null) {
+                    if (t.state.get() == WAITING) {
+                        t.tick = Math.max(lastTick + 1,
+                                (t.time - start + TICK - 1) / TICK);
+                        int slot = (int) (t.tick & (WHEEL_SIZE - 1));
+                        t.next = wheel[slot];
+                        wheel[slot] = t;
+                        wheelCount++;
                     }
+                }
+            }
+
+            // Fire expired timeout requests, at most one revolution is
+            // required to visit every slot
+            long now = currentTick();
+            long first = Math.max(lastTick + 1, now - WHEEL_SIZE + 1);
+            for (long tick = first; tick <= now; tick++) {
+                expire((int) (tick & (WHEEL_SIZE - 1)), now);
+            }
+            lastTick = Math.max(lastTick, now);
+        }
+
+        // stopThread() called, or thread interrupted externally
+        for (int i = 0; i < STRIPES; i++) {
+            newTimers[i].clear();
+        }
+        Arrays.fill(wheel, null);
+    }
 
-                    // Determine next timeout
-                    updateNextTimeout();
-                } catch (InterruptedException e) {
-                    // stopThread() called, or thread interrupted externally
-                    run = false;
-                    timerList.clear();
+    /**
+     * Check whether any new timers are waiting to be moved into the wheel.
+     */
+    private boolean hasNewTimers() {
+        for (int i = 0; i < STRIPES; i++) {
+            if (!newTimers[i].isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fire the expired timers of a slot and remove them as well as all
+     * cancelled timers from the slot.
+     *
+     * @param slot the slot of the wheel
+     * @param now  the current tick
+     */
+    private void expire(int slot, long now) {
+        TimerRequest prev = null;
+        TimerRequest t = wheel[slot];
+
+        while (t != null) {
+            TimerRequest next = t.next;
+            boolean remove = t.state.get() != WAITING;
+
+            if (!remove && t.tick <= now && t.state.compareAndSet(WAITING, FIRING)) {
+                try {
+                    // Notify target of timeout
+                    t.target.timerExpired();
+                } finally {
+                    t.state.set(EXPIRED);
+                }
+                remove = true;
+            }
+
+            if (remove) {
+                if (prev == null) {
+                    wheel[slot] = next;
+                } else {
+                    prev.next = next;
                 }
+                t.next = null;
+                wheelCount--;
+            } else {
+                prev = t;
             }
+            t = next;
         }
     }
 
+    /**
+     * Retrieve the current tick of the wheel.
+     */
+    private long currentTick() {
+        return (System.currentTimeMillis() - start) / TICK;
+    }
+
     /**
      * Add a timer request to the queue.
      * <p/>
-     * The queue is ordered by time so that the head of the list is always the
-     * first timer to expire.
+     * The request is picked up by the timer thread at its next tick, no lock
+     * is required.
      *
      * @param timeout the interval in milliseconds after which the timer will
      *                expire
@@ -157,33 +282,11 @@ public class TimerThread extends Thread {
         // Create a new timer request
         TimerRequest t = new TimerRequest(timeout, l);
 
-        synchronized (timerList) {
-            if (timerList.isEmpty()) {
-                // List was empty, just add new request
-                timerList.add(t);
-            } else {
-                // Tiny optimization; new requests will usually go to the end
-                TimerRequest crt = (TimerRequest) timerList.getLast();
-                if (t.time >= crt.time) {
-                    timerList.addLast(t);
-                } else {
-                    // Iterate the list and insert it into the right place
-                    for (ListIterator li = timerList.listIterator(); li.hasNext(); ) {
-                        crt = (TimerRequest) li.next();
-                        if (t.time < crt.time) {
-                            li.previous();
-                            li.add(t);
-                            break;
-                        }
-                    }
-                }
-            }
+        newTimers[(int) Thread.currentThread().getId() & (STRIPES - 1)].add(t);
 
-            // If this request is now the first in the list, interrupt timer
-            if (timerList.getFirst() == t) {
-                nextTimeout = t.time;
-                timerList.notifyAll();
-            }
+        // Wake up the timer thread if it is waiting for work
+        if (idle) {
+            LockSupport.unpark(this);
         }
 
         // Return the created request as timer handle
@@ -192,6 +295,9 @@ public class TimerThread extends Thread {
 
     /**
      * Remove a redundant timer before it expires.
+     * <p/>
+     * If the timer is just expiring, this method waits for the
+     * <code>TimerListener</code> to return.
      *
      * @param handle handle to the request to be removed from the queue (a
      *        <code>TimerRequest</code> instance)
@@ -200,13 +306,15 @@ public class TimerThread extends Thread {
     public boolean cancelTimer(Object handle) {
         TimerRequest t = (TimerRequest) handle;
 
-        synchronized (timerList) {
-            boolean result = timerList.remove(t);
-            if (nextTimeout == t.time) {
-                updateNextTimeout();
-            }
-            return result;
+        if (t.state.compareAndSet(WAITING, CANCELLED)) {
+            // The timer thread drops the request when it next visits its slot
+            return true;
+        }
+
+        while (t.state.get() == FIRING) {
+            LockSupport.parkNanos(100000L);
         }
+        return false;
     }
 
     /**
@@ -226,19 +334,11 @@ public class TimerThread extends Thread {
      *
      * @param handle handle to the request to be checked for expiry (a
      *        <code>TimerRequest</code> instance)
-     * @return <code>true</code> if timer has expired
+     * @return <code>true</code> if timer has expired or has been cancelled
      */
     public boolean hasExpired(Object handle) {
         TimerRequest t = (TimerRequest) handle;
 
-        synchronized (timerList) {
-            return !timerList.contains(t);
-        }
-    }
-
-    /** Internal method that updates the value of {@link #nextTimeout}. */
-    private void updateNextTimeout() {
-        nextTimeout = timerList.isEmpty() ? 0
-                : ((TimerRequest) timerList.getFirst()).time;
+        return t.state.get() != WAITING;
     }
 }
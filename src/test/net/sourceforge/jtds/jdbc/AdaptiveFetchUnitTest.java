@@ -0,0 +1,157 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Tests the adaptive cursor block size against a {@link TdsStandInServer}.
+ */
+public class AdaptiveFetchUnitTest extends StandInTestCase
+{
+
+   /**
+    * Test that the block size doubles while the result set is read forward.
+    */
+   public void testGrow()
+      throws Exception
+   {
+      Connection connection = connect( "useCursors=true;adaptiveFetch=true" );
+      Statement stmt = connection.createStatement();
+      stmt.setFetchSize( 10 );
+      ResultSet rs = stmt.executeQuery( "SELECT CURSOR 200" );
+
+      for( int i = 1; i <= 200; i ++ )
+      {
+         assertTrue( rs.next() );
+         assertEquals( i, rs.getInt( 1 ) );
+      }
+
+      assertFalse( rs.next() );
+      assertEquals( 10, rs.getFetchSize() );
+
+      List<int[]> fetches = _Server.getCursorFetches();
+      assertEquals( 20, fetches.get( 0 )[2] );
+      assertEquals( 40, fetches.get( 1 )[2] );
+      assertEquals( 80, fetches.get( 2 )[2] );
+      assertEquals( 160, fetches.get( 3 )[2] );
+      connection.close();
+   }
+
+   /**
+    * Test that the block size reverts to the fetch size when the result set
+    * is positioned randomly and grows again when it is read forward.
+    */
+   public void testShrink()
+      throws Exception
+   {
+      Connection connection = connect( "adaptiveFetch=true" );
+      Statement stmt = connection.createStatement( ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY );
+      stmt.setFetchSize( 10 );
+      ResultSet rs = stmt.executeQuery( "SELECT CURSOR 200" );
+
+      for( int i = 1; i <= 80; i ++ )
+      {
+         assertTrue( rs.next() );
+      }
+
+      int count = _Server.getCursorFetches().size();
+      assertTrue( rs.absolute( 2 ) );
+      assertEquals( 2, rs.getInt( 1 ) );
+
+      for( int i = 3; i <= 12; i ++ )
+      {
+         assertTrue( rs.next() );
+         assertEquals( i, rs.getInt( 1 ) );
+      }
+
+      List<int[]> fetches = _Server.getCursorFetches();
+      assertEquals( count + 2, fetches.size() );
+      assertEquals( 16, fetches.get( count )[0] );
+      assertEquals( 10, fetches.get( count )[2] );
+      assertEquals( 2, fetches.get( count + 1 )[0] );
+      assertEquals( 20, fetches.get( count + 1 )[2] );
+      connection.close();
+   }
+
+   /**
+    * Test that the fetch size is used as it is without
+    * <code>adaptiveFetch</code>.
+    */
+   public void testDisabled()
+      throws Exception
+   {
+      Connection connection = connect( "useCursors=true" );
+      Statement stmt = connection.createStatement();
+      stmt.setFetchSize( 10 );
+      ResultSet rs = stmt.executeQuery( "SELECT CURSOR 50" );
+
+      while( rs.next() )
+      {
+         // read all rows
+      }
+
+      for( int[] fetch : _Server.getCursorFetches() )
+      {
+         assertEquals( 10, fetch[2] );
+      }
+
+      connection.close();
+   }
+
+   /**
+    * Test that prefetched blocks grow as well.
+    */
+   public void testPrefetch()
+      throws Exception
+   {
+      Connection connection = connect( "useCursors=true;adaptiveFetch=true;cursorPrefetch=true" );
+      Statement stmt = connection.createStatement();
+      stmt.setFetchSize( 10 );
+      ResultSet rs = stmt.executeQuery( "SELECT CURSOR 100" );
+
+      for( int i = 1; i <= 100; i ++ )
+      {
+         assertTrue( rs.next() );
+         assertEquals( i, rs.getInt( 1 ) );
+      }
+
+      assertFalse( rs.next() );
+
+      List<int[]> fetches = _Server.getCursorFetches();
+      assertEquals( 20, fetches.get( 0 )[2] );
+      assertEquals( 40, fetches.get( 1 )[2] );
+      connection.close();
+   }
+
+   private Connection connect( String properties )
+      throws SQLException
+   {
+      Connection connection = DriverManager.getConnection( _Server.getURL() + ';' + properties );
+
+      // forget the fetches of the connection's initial settings
+      _Server.getCursorFetches().clear();
+      return connection;
+   }
+
+}
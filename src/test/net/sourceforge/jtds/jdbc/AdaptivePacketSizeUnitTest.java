@@ -0,0 +1,115 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the {@link AdaptivePacketSize} class.
+ */
+public class AdaptivePacketSizeUnitTest extends TestCase
+{
+
+   /**
+    * Test that no packet size is recommended before enough samples have been
+    * recorded.
+    */
+   public void testMinSamples()
+   {
+      AdaptivePacketSize sizer = new AdaptivePacketSize( "test" );
+
+      for( int i = 1; i < AdaptivePacketSize.MIN_SAMPLES; i ++ )
+      {
+         sizer.sample( 100000 );
+      }
+
+      assertEquals( 0, sizer.getPacketSize() );
+      sizer.sample( 100000 );
+      assertEquals( AdaptivePacketSize.MAX_SIZE, sizer.getPacketSize() );
+   }
+
+   /**
+    * Test that small messages result in the smallest packet size and large
+    * messages in the largest one.
+    */
+   public void testWorkloads()
+   {
+      AdaptivePacketSize oltp = new AdaptivePacketSize( "oltp" );
+      AdaptivePacketSize bulk = new AdaptivePacketSize( "bulk" );
+
+      for( int i = 0; i < 1000; i ++ )
+      {
+         oltp.sample( 200 + i % 3000 );
+         bulk.sample( i % 10 == 0 ? 200 : 1000000 );
+      }
+
+      assertEquals( AdaptivePacketSize.MIN_SIZE, oltp.getPacketSize() );
+      assertEquals( AdaptivePacketSize.MAX_SIZE, bulk.getPacketSize() );
+   }
+
+   /**
+    * Test that a medium sized workload gets the smallest packet size within
+    * the tolerance.
+    */
+   public void testMediumMessages()
+   {
+      AdaptivePacketSize sizer = new AdaptivePacketSize( "test" );
+
+      for( int i = 0; i < 1000; i ++ )
+      {
+         // fits into a single 16 KB packet but needs 2 packets of 8 KB
+         sizer.sample( 12000 );
+      }
+
+      assertEquals( 16384, sizer.getPacketSize() );
+   }
+
+   /**
+    * Test that the recommendation follows a change of the workload.
+    */
+   public void testDecay()
+   {
+      AdaptivePacketSize sizer = new AdaptivePacketSize( "test" );
+
+      for( int i = 0; i < AdaptivePacketSize.DECAY_INTERVAL; i ++ )
+      {
+         sizer.sample( 1000000 );
+      }
+
+      assertEquals( AdaptivePacketSize.MAX_SIZE, sizer.getPacketSize() );
+
+      for( int i = 0; i < 12 * AdaptivePacketSize.DECAY_INTERVAL; i ++ )
+      {
+         sizer.sample( 500 );
+      }
+
+      assertEquals( AdaptivePacketSize.MIN_SIZE, sizer.getPacketSize() );
+   }
+
+   /**
+    * Test that instances are shared by server.
+    */
+   public void testInstances()
+   {
+      AdaptivePacketSize sizer = AdaptivePacketSize.getInstance( "AdaptivePacketSizeUnitTest:1433" );
+
+      assertSame( sizer, AdaptivePacketSize.getInstance( "AdaptivePacketSizeUnitTest:1433" ) );
+      assertNotSame( sizer, AdaptivePacketSize.getInstance( "AdaptivePacketSizeUnitTest:1434" ) );
+   }
+
+}
@@ -0,0 +1,149 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.sql.Connection;
+
+import junit.framework.TestCase;
+import net.sourceforge.jtds.jdbcx.JtdsDataSource;
+
+/**
+ * Unit tests for the {@link BufferBudget} class.
+ */
+public class BufferBudgetUnitTest extends TestCase
+{
+
+   /**
+    * Test that usage is accounted on all levels and that the limit of any
+    * level is enforced.
+    */
+   public void testHierarchy()
+   {
+      BufferBudget root  = new BufferBudget( "root" , null , 10000                  );
+      BufferBudget group = new BufferBudget( "group", root , 4000                   );
+      BufferBudget conn1 = new BufferBudget( "c1"   , group, 1000                   );
+      BufferBudget conn2 = new BufferBudget( "c2"   , group, BufferBudget.UNLIMITED );
+      BufferBudget other = new BufferBudget( "other", root , BufferBudget.UNLIMITED );
+
+      // connection limit
+      conn1.allocate( 800 );
+      assertFalse( conn1.exceeds( 200 ) );
+      assertTrue ( conn1.exceeds( 201 ) );
+
+      // group limit, shared by both connections
+      conn2.allocate( 3000 );
+      assertEquals( 3800, group.getUsage() );
+      assertTrue ( conn2.exceeds( 201 ) );
+
+      // other groups are only limited by the global budget
+      assertFalse( other.exceeds( 6000 ) );
+      assertTrue ( other.exceeds( 6201 ) );
+
+      conn2.release( 3000 );
+      assertEquals( 800 , group.getUsage() );
+      assertEquals( 800 , root.getUsage() );
+      assertEquals( 3800, root.getPeakUsage() );
+      assertEquals( 3000, conn2.getPeakUsage() );
+   }
+
+   /**
+    * Test that counters do not overflow beyond the range of an int.
+    */
+   public void testLongCounters()
+   {
+      BufferBudget root = new BufferBudget( "root", null, BufferBudget.UNLIMITED );
+      BufferBudget conn = new BufferBudget( "conn", root, BufferBudget.UNLIMITED );
+
+      conn.allocate( Integer.MAX_VALUE );
+      conn.allocate( Integer.MAX_VALUE );
+      assertEquals( 2L * Integer.MAX_VALUE, root.getUsage() );
+      assertFalse( conn.exceeds( Integer.MAX_VALUE ) );
+
+      conn.recordSpill();
+      conn.recordSpilled( 3L * Integer.MAX_VALUE );
+      assertEquals( 1, root.getSpillCount() );
+      assertEquals( 3L * Integer.MAX_VALUE, root.getSpilledBytes() );
+   }
+
+   /**
+    * Test that group budgets are shared by name and children of the global
+    * budget.
+    */
+   public void testGroups()
+   {
+      BufferBudget group = BufferBudget.getGroup( "BufferBudgetUnitTest", 1024 );
+
+      assertSame  ( group, BufferBudget.getGroup( "BufferBudgetUnitTest" ) );
+      assertSame  ( BufferBudget.getGlobal(), group.getParent() );
+      assertSame  ( group, BufferBudget.getGroup( "BufferBudgetUnitTest", 2048 ) );
+      assertEquals( 2048, group.getLimit() );
+      assertNull  ( BufferBudget.getGroup( "BufferBudgetUnitTest.unknown" ) );
+   }
+
+   /**
+    * Test that each DataSource without a <code>bufferGroup</code> has a
+    * budget of its own, shared by its connections but not registered as a
+    * named group.
+    */
+   public void testDataSource()
+      throws Exception
+   {
+      TdsStandInServer server = new TdsStandInServer();
+
+      try
+      {
+         JtdsDataSource ds1 = dataSource( server );
+         JtdsDataSource ds2 = dataSource( server );
+         assertNull( ds1.getBufferBudget() );
+
+         Connection c1 = ds1.getConnection();
+         Connection c2 = ds1.getConnection();
+         Connection c3 = ds2.getConnection();
+
+         BufferBudget group = ds1.getBufferBudget();
+         assertNotNull( group );
+         assertSame   ( BufferBudget.getGlobal(), group.getParent() );
+         assertSame   ( group, ( (JtdsConnection) c1 ).getBufferBudget().getParent() );
+         assertSame   ( group, ( (JtdsConnection) c2 ).getBufferBudget().getParent() );
+         assertSame   ( ds2.getBufferBudget(), ( (JtdsConnection) c3 ).getBufferBudget().getParent() );
+         assertNotSame( group, ds2.getBufferBudget() );
+         assertNull   ( BufferBudget.getGroup( group.getName() ) );
+
+         c1.close();
+         c2.close();
+         c3.close();
+      }
+      finally
+      {
+         server.close();
+      }
+   }
+
+   private static JtdsDataSource dataSource( TdsStandInServer server )
+   {
+      JtdsDataSource ds = new JtdsDataSource();
+      ds.setServerName( "localhost" );
+      ds.setPortNumber( server.getPort() );
+      ds.setDatabaseName( "standin" );
+      ds.setTds( "8.0" );
+      ds.setUser( "test" );
+      ds.setPassword( "test" );
+      return ds;
+   }
+
+}
@@ -0,0 +1,249 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tests {@link JtdsBulkCopy} against a {@link TdsStandInServer}.
+ */
+public class BulkCopyUnitTest extends StandInTestCase
+{
+
+   private Connection _Connection;
+
+   protected void setUp()
+      throws Exception
+   {
+      super.setUp();
+      _Connection = DriverManager.getConnection( _Server.getURL() );
+   }
+
+   protected void tearDown()
+      throws Exception
+   {
+      _Connection.close();
+      super.tearDown();
+   }
+
+   /**
+    * Test that rows of an iterator are converted and loaded, leaving out the
+    * identity column.
+    */
+   public void testIterator()
+      throws Exception
+   {
+      JtdsBulkCopy copy = bulkCopy();
+      copy.setTableLock( true );
+
+      List<Object[]> rows = Arrays.asList(
+         new Object[] { 1, "abc", new BigDecimal( "12.345" ), Timestamp.valueOf( "2024-01-02 03:04:05" ) },
+         new Object[] { null, null, "-7", null } );
+
+      assertEquals( 2, copy.writeToServer( rows.iterator() ) );
+      assertEquals( 2, copy.getRowsCopied() );
+      assertEquals( "INSERT BULK BULKTARGET ([n] int, [s] nvarchar(10), [d] decimal(10,2), [t] datetime) WITH (TABLOCK)", _Server.getLastQuery() );
+
+      List<Object[]> loaded = _Server.getBulkRows();
+      assertEquals( 2, loaded.size() );
+      assertEquals( Arrays.asList( 1L, "abc", new BigDecimal( "12.35" ), Timestamp.valueOf( "2024-01-02 03:04:05" ) ), Arrays.asList( loaded.get( 0 ) ) );
+      assertEquals( Arrays.asList( null, null, new BigDecimal( "-7.00" ), null ), Arrays.asList( loaded.get( 1 ) ) );
+   }
+
+   /**
+    * Test that CSV records are parsed and sent in batches.
+    */
+   public void testCsvBatches()
+      throws Exception
+   {
+      JtdsBulkCopy copy = bulkCopy();
+      copy.setBatchSize( 2 );
+
+      String csv = "1,plain,1.5,2024-01-02 03:04:05\r\n"
+                 + "2,\"a,\"\"b\"\"\",0,\n"
+                 + ",\"\",3,\n"
+                 + "\n"
+                 + "4,\"multi\nline\",4,\n"
+                 + "5,x,5,";
+
+      assertEquals( 5, copy.writeToServer( new StringReader( csv ) ) );
+      assertFalse ( _Server.getLastQuery().contains( "TABLOCK" ) );
+
+      List<Object[]> loaded = _Server.getBulkRows();
+      assertEquals( 5, loaded.size() );
+      assertEquals( "plain", loaded.get( 0 )[1] );
+      assertEquals( "a,\"b\"", loaded.get( 1 )[1] );
+      assertNull  ( loaded.get( 1 )[3] );
+      assertNull  ( loaded.get( 2 )[0] );
+      assertEquals( "", loaded.get( 2 )[1] );
+      assertEquals( "multi\nline", loaded.get( 3 )[1] );
+      assertEquals( 5L, loaded.get( 4 )[0] );
+   }
+
+   /**
+    * Test that the rows preceding a row that cannot be converted are loaded.
+    */
+   public void testConversionError()
+      throws Exception
+   {
+      JtdsBulkCopy copy = bulkCopy();
+
+      List<Object[]> rows = Arrays.asList(
+         new Object[] { 1, "ok", 1, null },
+         new Object[] { 2, "12345678901", 2, null },
+         new Object[] { 3, "never", 3, null } );
+
+      try
+      {
+         copy.writeToServer( rows.iterator() );
+         fail( "value too long" );
+      }
+      catch( SQLException e )
+      {
+         assertEquals( "22001", e.getSQLState() );
+      }
+
+      assertEquals( 1, copy.getRowsCopied() );
+      assertEquals( 1, _Server.getBulkRows().size() );
+
+      try
+      {
+         copy.writeToServer( Arrays.asList( new Object[][] { { 1, "x" } } ).iterator() );
+         fail( "too few values" );
+      }
+      catch( SQLException e )
+      {
+         assertEquals( "21S01", e.getSQLState() );
+      }
+
+      // the connection is still usable
+      assertEquals( 1, copy.writeToServer( Arrays.asList( new Object[][] { { 255, "x", 0, null } } ).iterator() ) );
+      assertEquals( 2, copy.getRowsCopied() );
+   }
+
+   /**
+    * Test that a row source reading through the connection the rows are
+    * loaded through fails instead of deadlocking.
+    */
+   public void testSameConnection()
+      throws Exception
+   {
+      JtdsBulkCopy copy = bulkCopy();
+
+      Iterator<Object[]> rows = new Iterator<Object[]>()
+      {
+         private int _Row;
+
+         public boolean hasNext()
+         {
+            return _Row < 3;
+         }
+
+         public Object[] next()
+         {
+            try
+            {
+               ResultSet rs = _Connection.createStatement().executeQuery( "SELECT " + ++ _Row );
+               rs.next();
+               return new Object[] { rs.getInt( 1 ), "x", 0, null };
+            }
+            catch( SQLException e )
+            {
+               throw new RuntimeException( e );
+            }
+         }
+
+         public void remove()
+         {
+            throw new UnsupportedOperationException();
+         }
+      };
+
+      try
+      {
+         copy.writeToServer( rows );
+         fail( "rows read through the same connection" );
+      }
+      catch( SQLException e )
+      {
+         assertEquals( Messages.get( "error.bulkcopy.reentrant" ), e.getMessage() );
+      }
+
+      // the row read before the bulk load request has been loaded
+      assertEquals( 1, _Server.getBulkRows().size() );
+      assertEquals( 1, copy.writeToServer( Arrays.asList( new Object[][] { { 255, "x", 0, null } } ).iterator() ) );
+   }
+
+   /**
+    * Test the Sybase row format: fixed length columns first, followed by the
+    * row length, the variable length columns and the offset table.
+    */
+   public void testTds5Row()
+   {
+      ColInfo[] columns = { column( 56, 0, 4, 0, 0 ),      // int not null
+                            column( 47, 0, 3, 0, 0 ),      // char(3) not null
+                            column( 108, 0, 17, 5, 2 ),    // numeric(5,2) not null
+                            column( 39, 1, 300, 0, 0 ),    // varchar(300) null
+                            column( 38, 1, 4, 0, 0 ),      // int null
+                            column( 39, 1, 10, 0, 0 ) };   // varchar(10) null
+
+      byte[] row = TdsData.getTds5BulkRow( columns, new Object[] { 1L, "ab".getBytes(), new BigDecimal( "-1.23" ), "xyz".getBytes(), null, null } );
+      assertEquals( "01" + "00" + "01000000" + "616220" + "0100007B" + "1500" + "78797A" + "02" + "12" + "0F", Support.toHex( row ) );
+
+      // variable length columns left out entirely
+      row = TdsData.getTds5BulkRow( columns, new Object[] { 2L, new byte[0], new BigDecimal( "999.99" ), null, null, null } );
+      assertEquals( "00" + "00" + "02000000" + "202020" + "0001869F", Support.toHex( row ) );
+
+      // offsets beyond 255 need an adjustment table
+      byte[] data = new byte[300];
+      Arrays.fill( data, (byte) 'x' );
+      row = TdsData.getTds5BulkRow( columns, new Object[] { 3L, "abc".getBytes(), BigDecimal.ZERO.setScale( 2 ), data, 5L, null } );
+      assertEquals( 13 + 2 + 300 + 4 + 5, row.length );
+      assertEquals( "0200" + "4401", Support.toHex( Arrays.copyOfRange( row, 0, 2 ) ) + Support.toHex( Arrays.copyOfRange( row, 13, 15 ) ) );
+      assertEquals( "05000000" + "03" + "02" + "3F" + "3B" + "0F", Support.toHex( Arrays.copyOfRange( row, 315, row.length ) ) );
+   }
+
+   private static ColInfo column( int type, int nullable, int size, int precision, int scale )
+   {
+      ColInfo ci   = new ColInfo();
+      ci.tdsType    = type;
+      ci.nullable   = nullable;
+      ci.bufferSize = size;
+      ci.precision  = precision;
+      ci.scale      = scale;
+      return ci;
+   }
+
+   private JtdsBulkCopy bulkCopy()
+      throws SQLException
+   {
+      JtdsBulkCopy copy = new JtdsBulkCopy( _Connection );
+      copy.setDestinationTableName( "BULKTARGET" );
+      return copy;
+   }
+
+}
@@ -0,0 +1,189 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Tests the prefetching of cursor rows against a {@link TdsStandInServer}.
+ */
+public class CursorPrefetchUnitTest extends StandInTestCase
+{
+
+   /**
+    * Test that the next block is requested once half of the current block
+    * has been read and that all rows are returned in order.
+    */
+   public void testForwardOnly()
+      throws Exception
+   {
+      Connection connection = connect( "useCursors=true;cursorPrefetch=true" );
+      Statement stmt = connection.createStatement();
+      stmt.setFetchSize( 10 );
+      ResultSet rs = stmt.executeQuery( "SELECT CURSOR 25" );
+
+      // the first block is fetched with the cursor
+      for( int i = 1; i <= 5; i ++ )
+      {
+         assertTrue( rs.next() );
+         assertEquals( i, rs.getInt( 1 ) );
+      }
+
+      assertEquals( 0, _Server.getCursorFetches().size() );
+      assertTrue( rs.next() );
+      awaitFetches( 1 );
+      assertEquals( 2, _Server.getCursorFetches().get( 0 )[0] );
+
+      for( int i = 7; i <= 25; i ++ )
+      {
+         assertTrue( rs.next() );
+         assertEquals( i, rs.getInt( 1 ) );
+      }
+
+      assertFalse( rs.next() );
+
+      // the partial last block is not followed by a prefetch
+      assertEquals( 3, _Server.getCursorFetches().size() );
+      connection.close();
+   }
+
+   /**
+    * Test that nothing is prefetched without <code>cursorPrefetch</code>.
+    */
+   public void testDisabled()
+      throws Exception
+   {
+      Connection connection = connect( "useCursors=true" );
+      Statement stmt = connection.createStatement();
+      stmt.setFetchSize( 10 );
+      ResultSet rs = stmt.executeQuery( "SELECT CURSOR 25" );
+
+      for( int i = 1; i <= 10; i ++ )
+      {
+         assertTrue( rs.next() );
+      }
+
+      assertEquals( 0, _Server.getCursorFetches().size() );
+      assertTrue( rs.next() );
+      assertEquals( 11, rs.getInt( 1 ) );
+      assertEquals( 1, _Server.getCursorFetches().size() );
+      connection.close();
+   }
+
+   /**
+    * Test that a prefetched block is discarded and the cursor repositioned
+    * when a scrollable result set is refreshed or moved backwards.
+    */
+   public void testScrollable()
+      throws Exception
+   {
+      Connection connection = connect( "cursorPrefetch=true" );
+      Statement stmt = connection.createStatement( ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY );
+      stmt.setFetchSize( 10 );
+      ResultSet rs = stmt.executeQuery( "SELECT CURSOR 25" );
+
+      for( int i = 1; i <= 7; i ++ )
+      {
+         assertTrue( rs.next() );
+      }
+
+      // rows of the current block are still available
+      assertTrue( rs.absolute( 3 ) );
+      assertEquals( 3, rs.getInt( 1 ) );
+      awaitFetches( 2 );
+
+      rs.refreshRow();
+      assertEquals( 3, rs.getInt( 1 ) );
+
+      List<int[]> fetches = _Server.getCursorFetches();
+      assertEquals( 4, fetches.size() );
+      assertEquals( 16, fetches.get( 2 )[0] );
+      assertEquals( 1, fetches.get( 2 )[1] );
+      assertEquals( 128, fetches.get( 3 )[0] );
+
+      assertTrue( rs.relative( 12 ) );
+      assertEquals( 15, rs.getInt( 1 ) );
+      assertTrue( rs.previous() );
+      assertEquals( 14, rs.getInt( 1 ) );
+      assertTrue( rs.last() );
+      assertEquals( 25, rs.getInt( 1 ) );
+      connection.close();
+   }
+
+   /**
+    * Test that other statements can be executed while a block is prefetched.
+    */
+   public void testOtherStatement()
+      throws Exception
+   {
+      Connection connection = connect( "cursorPrefetch=true" );
+      Statement stmt = connection.createStatement( ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY );
+      stmt.setFetchSize( 10 );
+      ResultSet rs = stmt.executeQuery( "SELECT CURSOR 25" );
+
+      for( int i = 1; i <= 6; i ++ )
+      {
+         assertTrue( rs.next() );
+      }
+
+      ResultSet other = connection.createStatement().executeQuery( "SELECT 5" );
+      assertTrue( other.next() );
+      assertEquals( 5, other.getInt( 1 ) );
+
+      for( int i = 7; i <= 25; i ++ )
+      {
+         assertTrue( rs.next() );
+         assertEquals( i, rs.getInt( 1 ) );
+      }
+
+      assertFalse( rs.next() );
+      connection.close();
+   }
+
+   /**
+    * Waits for the server to receive the given number of fetch requests.
+    */
+   private void awaitFetches( int count )
+      throws InterruptedException
+   {
+      long end = System.currentTimeMillis() + 5000;
+
+      while( _Server.getCursorFetches().size() < count && System.currentTimeMillis() < end )
+      {
+         Thread.sleep( 10 );
+      }
+
+      assertEquals( count, _Server.getCursorFetches().size() );
+   }
+
+   private Connection connect( String properties )
+      throws SQLException
+   {
+      Connection connection = DriverManager.getConnection( _Server.getURL() + ';' + properties );
+
+      // forget the fetches of the connection's initial settings
+      _Server.getCursorFetches().clear();
+      return connection;
+   }
+
+}
@@ -469,6 +469,214 @@ public abstract class DefaultPropertiesTestLibrary extends TestCase {
         }
     }
 
+    /**
+     * Test the <code>useNIO</code> property.
+     */
+    public void test_useNIO() {
+        String fieldName = "useNIO";
+        String messageKey = Driver.USENIO;
+        String expectedValue = DefaultProperties.USENIO;
+        assertDefaultPropertyByServerType(URL_SQLSERVER, messageKey, fieldName, expectedValue);
+        if (!isOnlySqlServerTests()) {
+            assertDefaultPropertyByServerType(URL_SYBASE, messageKey, fieldName, expectedValue);
+        }
+    }
+
+    /**
+     * Test the <code>sharedPacketPool</code> property.
+     */
+    public void test_sharedPacketPool() {
+        String fieldName = "sharedPacketPool";
+        String messageKey = Driver.SHAREDPACKETPOOL;
+        String expectedValue = DefaultProperties.SHARED_PACKET_POOL;
+        assertDefaultPropertyByServerType(URL_SQLSERVER, messageKey, fieldName, expectedValue);
+        if (!isOnlySqlServerTests()) {
+            assertDefaultPropertyByServerType(URL_SYBASE, messageKey, fieldName, expectedValue);
+        }
+    }
+
+    /**
+     * Test the <code>bufferMappedFile</code> property.
+     */
+    public void test_bufferMappedFile() {
+        String fieldName = "bufferMappedFile";
+        String messageKey = Driver.BUFFERMAPPEDFILE;
+        String expectedValue = DefaultProperties.BUFFER_MAPPED_FILE;
+        assertDefaultPropertyByServerType(URL_SQLSERVER, messageKey, fieldName, expectedValue);
+        if (!isOnlySqlServerTests()) {
+            assertDefaultPropertyByServerType(URL_SYBASE, messageKey, fieldName, expectedValue);
+        }
+    }
+
+    /**
+     * Test the <code>bufferGroup</code> property.
+     */
+    public void test_bufferGroup() {
+        String fieldName = "bufferGroup";
+        String messageKey = Driver.BUFFERGROUP;
+        String expectedValue = DefaultProperties.BUFFER_GROUP;
+        assertDefaultPropertyByServerType(URL_SQLSERVER, messageKey, fieldName, expectedValue);
+        if (!isOnlySqlServerTests()) {
+            assertDefaultPropertyByServerType(URL_SYBASE, messageKey, fieldName, expectedValue);
+        }
+    }
+
+    /**
+     * Test the <code>bufferGroupMaxMemory</code> property.
+     */
+    public void test_bufferGroupMaxMemory() {
+        String fieldName = "bufferGroupMaxMemory";
+        String messageKey = Driver.BUFFERGROUPMAXMEMORY;
+        String expectedValue = DefaultProperties.BUFFER_GROUP_MAX_MEMORY;
+        assertDefaultPropertyByServerType(URL_SQLSERVER, messageKey, fieldName, expectedValue);
+        if (!isOnlySqlServerTests()) {
+            assertDefaultPropertyByServerType(URL_SYBASE, messageKey, fieldName, expectedValue);
+        }
+    }
+
+    /**
+     * Test the <code>bufferConnectionMaxMemory</code> property.
+     */
+    public void test_bufferConnectionMaxMemory() {
+        String fieldName = "bufferConnectionMaxMemory";
+        String messageKey = Driver.BUFFERCONNECTIONMAXMEMORY;
+        String expectedValue = DefaultProperties.BUFFER_CONNECTION_MAX_MEMORY;
+        assertDefaultPropertyByServerType(URL_SQLSERVER, messageKey, fieldName, expectedValue);
+        if (!isOnlySqlServerTests()) {
+            assertDefaultPropertyByServerType(URL_SYBASE, messageKey, fieldName, expectedValue);
+        }
+    }
+
+    /**
+     * Test the <code>useMARS</code> property.
+     */
+    public void test_useMARS() {
+        String fieldName = "useMARS";
+        String messageKey = Driver.USEMARS;
+        String expectedValue = DefaultProperties.USE_MARS;
+        assertDefaultPropertyByServerType(URL_SQLSERVER, messageKey, fieldName, expectedValue);
+        if (!isOnlySqlServerTests()) {
+            assertDefaultPropertyByServerType(URL_SYBASE, messageKey, fieldName, expectedValue);
+        }
+    }
+
+    /**
+     * Test the <code>adaptivePacketSize</code> property.
+     */
+    public void test_adaptivePacketSize() {
+        String fieldName = "adaptivePacketSize";
+        String messageKey = Driver.ADAPTIVEPACKETSIZE;
+        String expectedValue = DefaultProperties.ADAPTIVE_PACKET_SIZE;
+        assertDefaultPropertyByServerType(URL_SQLSERVER, messageKey, fieldName, expectedValue);
+        if (!isOnlySqlServerTests()) {
+            assertDefaultPropertyByServerType(URL_SYBASE, messageKey, fieldName, expectedValue);
+        }
+    }
+
+    /**
+     * Test the <code>streamLOBs</code> property.
+     */
+    public void test_streamLOBs() {
+        String fieldName = "streamLOBs";
+        String messageKey = Driver.STREAMLOBS;
+        String expectedValue = DefaultProperties.STREAM_LOBS;
+        assertDefaultPropertyByServerType(URL_SQLSERVER, messageKey, fieldName, expectedValue);
+        if (!isOnlySqlServerTests()) {
+            assertDefaultPropertyByServerType(URL_SYBASE, messageKey, fieldName, expectedValue);
+        }
+    }
+
+    /**
+     * Test the <code>lazyRows</code> property.
+     */
+    public void test_lazyRows() {
+        String fieldName = "lazyRows";
+        String messageKey = Driver.LAZYROWS;
+        String expectedValue = DefaultProperties.LAZY_ROWS;
+        assertDefaultPropertyByServerType(URL_SQLSERVER, messageKey, fieldName, expectedValue);
+        if (!isOnlySqlServerTests()) {
+            assertDefaultPropertyByServerType(URL_SYBASE, messageKey, fieldName, expectedValue);
+        }
+    }
+
+    /**
+     * Test the <code>cursorPrefetch</code> property.
+     */
+    public void test_cursorPrefetch() {
+        String fieldName = "cursorPrefetch";
+        String messageKey = Driver.CURSORPREFETCH;
+        String expectedValue = DefaultProperties.CURSOR_PREFETCH;
+        assertDefaultPropertyByServerType(URL_SQLSERVER, messageKey, fieldName, expectedValue);
+        if (!isOnlySqlServerTests()) {
+            assertDefaultPropertyByServerType(URL_SYBASE, messageKey, fieldName, expectedValue);
+        }
+    }
+
+    /**
+     * Test the <code>adaptiveFetch</code> property.
+     */
+    public void test_adaptiveFetch() {
+        String fieldName = "adaptiveFetch";
+        String messageKey = Driver.ADAPTIVEFETCH;
+        String expectedValue = DefaultProperties.ADAPTIVE_FETCH;
+        assertDefaultPropertyByServerType(URL_SQLSERVER, messageKey, fieldName, expectedValue);
+        if (!isOnlySqlServerTests()) {
+            assertDefaultPropertyByServerType(URL_SYBASE, messageKey, fieldName, expectedValue);
+        }
+    }
+
+    /**
+     * Test the <code>usePrepExec</code> property.
+     */
+    public void test_usePrepExec() {
+        String fieldName = "usePrepExec";
+        String messageKey = Driver.USEPREPEXEC;
+        String expectedValue = DefaultProperties.USE_PREPEXEC;
+        assertDefaultPropertyByServerType(URL_SQLSERVER, messageKey, fieldName, expectedValue);
+        if (!isOnlySqlServerTests()) {
+            assertDefaultPropertyByServerType(URL_SYBASE, messageKey, fieldName, expectedValue);
+        }
+    }
+
+    /**
+     * Test the <code>deferCleanup</code> property.
+     */
+    public void test_deferCleanup() {
+        String fieldName = "deferCleanup";
+        String messageKey = Driver.DEFERCLEANUP;
+        String expectedValue = DefaultProperties.DEFER_CLEANUP;
+        assertDefaultPropertyByServerType(URL_SQLSERVER, messageKey, fieldName, expectedValue);
+        if (!isOnlySqlServerTests()) {
+            assertDefaultPropertyByServerType(URL_SYBASE, messageKey, fieldName, expectedValue);
+        }
+    }
+
+    /**
+     * Test the <code>maxStatementMemory</code> property.
+     */
+    public void test_maxStatementMemory() {
+        String fieldName = "maxStatementMemory";
+        String messageKey = Driver.MAXSTMTMEMORY;
+        String expectedValue = DefaultProperties.MAX_STATEMENT_MEMORY;
+        assertDefaultPropertyByServerType(URL_SQLSERVER, messageKey, fieldName, expectedValue);
+        if (!isOnlySqlServerTests()) {
+            assertDefaultPropertyByServerType(URL_SYBASE, messageKey, fieldName, expectedValue);
+        }
+    }
+
+    /**
+     * Test the <code>parserCacheSize</code> property.
+     */
+    public void test_parserCacheSize() {
+        String fieldName = "parserCacheSize";
+        String messageKey = Driver.PARSERCACHE;
+        String expectedValue = DefaultProperties.PARSER_CACHE_SIZE;
+        assertDefaultPropertyByServerType(URL_SQLSERVER, messageKey, fieldName, expectedValue);
+        if (!isOnlySqlServerTests()) {
+            assertDefaultPropertyByServerType(URL_SYBASE, messageKey, fieldName, expectedValue);
+        }
+    }
+
     /**
      * Test the <code>wsid</code> property.
      */
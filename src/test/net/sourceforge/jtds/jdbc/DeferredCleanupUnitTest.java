@@ -0,0 +1,193 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests the deferral of the calls releasing statement and cursor handles to
+ * the next request against a {@link TdsStandInServer}.
+ */
+public class DeferredCleanupUnitTest extends StandInTestCase
+{
+
+   /**
+    * procedure id shortcuts
+    */
+   private static final int CURSOROPEN  = 2;
+   private static final int CURSORCLOSE = 9;
+   private static final int PREPARE     = 11;
+   private static final int UNPREPARE   = 15;
+
+   /**
+    * Test that closing a prepared statement sends no request and that the
+    * handle is released by the next RPC request.
+    */
+   public void testUnprepare()
+      throws Exception
+   {
+      Connection connection = connect( "deferCleanup=true" );
+      PreparedStatement pstmt = connection.prepareStatement( "UPDATE T SET A = ?" );
+      pstmt.setInt( 1, 1 );
+      pstmt.execute();
+
+      int requests = _Server.getRpcRequests().size();
+      pstmt.close();
+      assertEquals( requests, _Server.getRpcRequests().size() );
+
+      pstmt = connection.prepareStatement( "UPDATE T SET B = ?" );
+      pstmt.setInt( 1, 1 );
+      assertFalse( pstmt.execute() );
+      assertNull( pstmt.getWarnings() );
+
+      assertEquals( Arrays.asList( UNPREPARE, PREPARE ), procs( _Server.getRpcRequests().get( requests ) ) );
+      connection.close();
+   }
+
+   /**
+    * Test that closing a read only cursor sends no request and that the
+    * cursor is closed by the next RPC request, whose results are not
+    * affected.
+    */
+   public void testCursorClose()
+      throws Exception
+   {
+      Connection connection = connect( "deferCleanup=true" );
+      Statement stmt = connection.createStatement( ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY );
+
+      for( int i = 0; i < 2; i ++ )
+      {
+         ResultSet rs = stmt.executeQuery( "SELECT CURSOR 3" );
+
+         for( int row = 1; row <= 3; row ++ )
+         {
+            assertTrue( rs.next() );
+            assertEquals( row, rs.getInt( 1 ) );
+         }
+
+         assertFalse( rs.next() );
+         rs.close();
+      }
+
+      int closes = 0;
+
+      for( byte[] request : _Server.getRpcRequests() )
+      {
+         List<Integer> procs = procs( request );
+
+         if( procs.contains( CURSORCLOSE ) )
+         {
+            assertEquals( Arrays.asList( CURSORCLOSE, CURSOROPEN ), procs );
+            closes ++;
+         }
+      }
+
+      // the second cursor is still open
+      assertEquals( 1, closes );
+      connection.close();
+   }
+
+   /**
+    * Test that the handles are released by requests of their own without
+    * <code>deferCleanup</code>.
+    */
+   public void testDisabled()
+      throws Exception
+   {
+      Connection connection = connect( "" );
+      Statement stmt = connection.createStatement( ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY );
+      ResultSet rs = stmt.executeQuery( "SELECT CURSOR 3" );
+
+      int requests = _Server.getRpcRequests().size();
+      rs.close();
+
+      assertEquals( requests + 1, _Server.getRpcRequests().size() );
+      assertEquals( Arrays.asList( CURSORCLOSE ), procs( _Server.getRpcRequests().get( requests ) ) );
+      connection.close();
+   }
+
+   /**
+    * Test that pending calls are sent by a request of their own once there
+    * are too many of them.
+    */
+   public void testFlush()
+      throws Exception
+   {
+      Connection connection = connect( "deferCleanup=true" );
+      List<PreparedStatement> statements = new ArrayList<PreparedStatement>();
+
+      for( int i = 0; i < 40; i ++ )
+      {
+         PreparedStatement pstmt = connection.prepareStatement( "UPDATE T SET A = " + i + " WHERE B = ?" );
+         pstmt.setInt( 1, 1 );
+         pstmt.execute();
+         statements.add( pstmt );
+      }
+
+      int requests = _Server.getRpcRequests().size();
+
+      for( PreparedStatement pstmt : statements )
+      {
+         pstmt.close();
+      }
+
+      assertEquals( requests + 1, _Server.getRpcRequests().size() );
+      assertEquals( 33, procs( _Server.getRpcRequests().get( requests ) ).size() );
+      connection.close();
+   }
+
+   /**
+    * Retrieves the procedure ids of the RPC calls of a request.
+    */
+   private static List<Integer> procs( byte[] request )
+   {
+      List<Integer> procs = new ArrayList<Integer>();
+      String hex = Support.toHex( request );
+
+      // the procedure id shortcuts follow the name length 0xFFFF
+      for( int i = hex.indexOf( "FFFF" ); i >= 0; i = hex.indexOf( "FFFF", i + 1 ) )
+      {
+         if( i % 2 == 0 )
+         {
+            procs.add( Integer.parseInt( hex.substring( i + 6, i + 8 ) + hex.substring( i + 4, i + 6 ), 16 ) );
+            i += 7;
+         }
+      }
+
+      return procs;
+   }
+
+   private Connection connect( String properties )
+      throws SQLException
+   {
+      Connection connection = DriverManager.getConnection( _Server.getURL() + ";prepareSQL=3;maxStatements=0;" + properties );
+
+      // forget the requests of the connection's initial settings
+      _Server.getRpcRequests().clear();
+      return connection;
+   }
+
+}
@@ -202,6 +202,17 @@ public class DriverUnitTest extends UnitTestBase {
         expectedChoicesMap.put(Messages.get(Driver.CACHEMETA), expectedBooleanChoices);
         expectedChoicesMap.put(Messages.get(Driver.USECURSORS), expectedBooleanChoices);
         expectedChoicesMap.put(Messages.get(Driver.USELOBS), expectedBooleanChoices);
+        expectedChoicesMap.put(Messages.get(Driver.DEFERCLEANUP), expectedBooleanChoices);
+        expectedChoicesMap.put(Messages.get(Driver.USEPREPEXEC), expectedBooleanChoices);
+        expectedChoicesMap.put(Messages.get(Driver.ADAPTIVEFETCH), expectedBooleanChoices);
+        expectedChoicesMap.put(Messages.get(Driver.CURSORPREFETCH), expectedBooleanChoices);
+        expectedChoicesMap.put(Messages.get(Driver.LAZYROWS), expectedBooleanChoices);
+        expectedChoicesMap.put(Messages.get(Driver.STREAMLOBS), expectedBooleanChoices);
+        expectedChoicesMap.put(Messages.get(Driver.ADAPTIVEPACKETSIZE), expectedBooleanChoices);
+        expectedChoicesMap.put(Messages.get(Driver.USEMARS), expectedBooleanChoices);
+        expectedChoicesMap.put(Messages.get(Driver.BUFFERMAPPEDFILE), expectedBooleanChoices);
+        expectedChoicesMap.put(Messages.get(Driver.SHAREDPACKETPOOL), expectedBooleanChoices);
+        expectedChoicesMap.put(Messages.get(Driver.USENIO), expectedBooleanChoices);
 
         final Map infoMap = new HashMap();
         loadDriverPropertyInfoMap(infoMap);
@@ -0,0 +1,219 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests the lazy decoding of row values against a {@link TdsStandInServer}.
+ */
+public class LazyRowUnitTest extends StandInTestCase
+{
+
+   /**
+    * Test that lazily decoded values equal the values decoded with the row,
+    * whatever the order the columns are accessed in.
+    */
+   public void testValues()
+      throws Exception
+   {
+      List<Object> eager = values( "7.3", "SELECT TEMPORAL", false );
+      List<Object> lazy  = values( "7.3;lazyRows=true", "SELECT TEMPORAL", false );
+      assertEquals( eager, lazy );
+      assertEquals( eager, values( "7.3;lazyRows=true", "SELECT TEMPORAL", true ) );
+
+      assertEquals( values( "8.0", "SELECT 42", false ), values( "8.0;lazyRows=true", "SELECT 42", true ) );
+   }
+
+   /**
+    * Test that a column is decoded once and skipped columns are decoded when
+    * a later column is accessed.
+    */
+   public void testDecodeOnce()
+      throws Exception
+   {
+      Connection connection = connect( "7.3;lazyRows=true" );
+      ResultSet rs = connection.createStatement().executeQuery( "SELECT TEMPORAL" );
+
+      assertTrue( rs.next() );
+      Object value = rs.getObject( 4 );
+      assertNotNull( value );
+      assertSame( value, rs.getObject( 4 ) );
+      assertEquals( 1, rs.getInt( 1 ) );
+      rs.getInt( 6 );
+      assertTrue( rs.wasNull() );
+
+      // row 2 is skipped without accessing any column
+      assertTrue( rs.next() );
+      assertFalse( rs.next() );
+      connection.close();
+   }
+
+   /**
+    * Test that lazily read columns following PLP columns are available,
+    * with and without <code>streamLOBs</code>.
+    */
+   public void testLobs()
+      throws Exception
+   {
+      for( String props : new String[] { "9.0;lazyRows=true", "9.0;lazyRows=true;streamLOBs=true" } )
+      {
+         Connection connection = connect( props );
+         ResultSet rs = connection.createStatement().executeQuery( "SELECT LOBS" );
+
+         assertTrue( rs.next() );
+         assertEquals( 7, rs.getInt( 4 ) );
+         assertEquals( "hello", rs.getString( 3 ) );
+         assertEquals( 1, rs.getInt( 1 ) );
+         assertTrue( Arrays.equals( new byte[] { 1, 2, 3, 4, 5 }, rs.getBytes( 2 ) ) );
+
+         assertTrue( rs.next() );
+         assertEquals( 2, rs.getInt( 1 ) );
+         assertFalse( rs.next() );
+         connection.close();
+      }
+   }
+
+   /**
+    * Test that lazily read rows are decoded when the rest of the result set
+    * is cached to execute another statement.
+    */
+   public void testCached()
+      throws Exception
+   {
+      Connection connection = connect( "7.3;lazyRows=true" );
+      ResultSet rs = connection.createStatement().executeQuery( "SELECT TEMPORAL" );
+
+      assertTrue( rs.next() );
+      assertEquals( 1, rs.getInt( 1 ) );
+
+      ResultSet other = connection.createStatement().executeQuery( "SELECT 5" );
+      assertTrue( other.next() );
+      assertEquals( 5, other.getInt( 1 ) );
+
+      assertEquals( values( "7.3", "SELECT TEMPORAL", false ).get( 3 ), rs.getObject( 4 ) );
+      assertTrue( rs.next() );
+      assertEquals( 2, rs.getInt( 1 ) );
+      assertNull( rs.getObject( 2 ) );
+      assertFalse( rs.next() );
+      connection.close();
+   }
+
+   /**
+    * Test that primitive getters return the same values with and without
+    * lazily read rows, failing the same way on overflow.
+    */
+   public void testPrimitives()
+      throws Exception
+   {
+      for( String props : new String[] { "8.0", "8.0;lazyRows=true" } )
+      {
+         Connection connection = connect( props );
+         ResultSet rs = connection.createStatement().executeQuery( "SELECT NUMBERS" );
+
+         assertTrue( rs.next() );
+         assertEquals( 200, rs.getInt( 1 ) );
+         assertEquals( -2, rs.getLong( 2 ) );
+         assertEquals( 5000000000L, rs.getLong( 3 ) );
+         assertEquals( 5e9, rs.getDouble( 3 ), 0 );
+
+         try
+         {
+            rs.getInt( 3 );
+            fail( "bigint value exceeds an int" );
+         }
+         catch( SQLException e )
+         {
+            assertEquals( "22003", e.getSQLState() );
+         }
+
+         assertEquals( 1.5, rs.getDouble( 4 ), 0 );
+         assertEquals( 1, rs.getInt( 4 ) );
+         assertEquals( -2, rs.getInt( 5 ) );
+         assertEquals( -2.25, rs.getDouble( 5 ), 0 );
+         assertEquals( 12.3456, rs.getDouble( 6 ), 0 );
+         assertEquals( 12, rs.getLong( 6 ) );
+         assertEquals( new BigDecimal( "12.3456" ), rs.getObject( 6 ) );
+         assertEquals( -1.5, rs.getDouble( 7 ), 0 );
+         assertEquals( -1, rs.getInt( 7 ) );
+         assertEquals( 1, rs.getInt( 8 ) );
+         assertEquals( Boolean.TRUE, rs.getObject( 8 ) );
+         assertEquals( 42, rs.getInt( 9 ) );
+         assertFalse( rs.wasNull() );
+         assertEquals( 3.75, rs.getDouble( 10 ), 0 );
+         assertEquals( 2, rs.getLong( 11 ) );
+         assertEquals( 0, rs.getInt( 12 ) );
+         assertFalse( rs.wasNull() );
+
+         assertTrue( rs.next() );
+         assertEquals( 0, rs.getInt( 1 ) );
+         assertFalse( rs.wasNull() );
+
+         for( int i = 9; i <= 12; i ++ )
+         {
+            assertEquals( 0, rs.getInt( i ) );
+            assertTrue( rs.wasNull() );
+            assertEquals( 0, rs.getDouble( i ), 0 );
+            assertTrue( rs.wasNull() );
+            assertNull( rs.getObject( i ) );
+         }
+
+         assertFalse( rs.next() );
+         connection.close();
+      }
+   }
+
+   private List<Object> values( String props, String sql, boolean reverse )
+      throws SQLException
+   {
+      Connection connection = connect( props );
+      ResultSet rs = connection.createStatement().executeQuery( sql );
+      int count = rs.getMetaData().getColumnCount();
+      List<Object> values = new ArrayList<Object>();
+
+      while( rs.next() )
+      {
+         Object[] row = new Object[count];
+
+         for( int i = 0; i < count; i ++ )
+         {
+            int column = reverse ? count - 1 - i : i;
+            row[column] = rs.getObject( column + 1 );
+         }
+
+         values.addAll( Arrays.asList( row ) );
+      }
+
+      connection.close();
+      return values;
+   }
+
+   private Connection connect( String tds )
+      throws SQLException
+   {
+      return DriverManager.getConnection( _Server.getURL().replace( "tds=8.0", "tds=" + tds ) );
+   }
+
+}
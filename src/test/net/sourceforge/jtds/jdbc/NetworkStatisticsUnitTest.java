@@ -0,0 +1,123 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.lang.management.ManagementFactory;
+import java.sql.DriverManager;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the {@link NetworkStatistics} class.
+ */
+public class NetworkStatisticsUnitTest extends TestCase
+{
+
+   /**
+    * Test that all figures are forwarded to the parent statistics.
+    */
+   public void testHierarchy()
+   {
+      NetworkStatistics root  = new NetworkStatistics( null );
+      NetworkStatistics conn1 = new NetworkStatistics( root );
+      NetworkStatistics conn2 = new NetworkStatistics( root );
+
+      conn1.recordSent( 100, 512 );
+      conn2.recordSent( 200, 512 );
+      conn1.recordQueuedInMemory();
+      conn2.recordQueuedOnDisk( 300 );
+      conn2.recordWait( 2000000 );
+      conn2.recordCancel();
+      conn2.recordCancelAck( 5000000 );
+
+      assertEquals( 100, conn1.getBytesSent() );
+      assertEquals( 300, root.getBytesSent() );
+      assertEquals( 2  , root.getPacketsSent() );
+      assertEquals( 1  , root.getPacketsQueuedInMemory() );
+      assertEquals( 1  , root.getPacketsQueuedOnDisk() );
+      assertEquals( 300, root.getSpilledBytes() );
+      assertEquals( 1  , root.getResponseWaitCount() );
+      assertEquals( 2  , root.getResponseWaitTime() );
+      assertEquals( 1  , root.getCancelCount() );
+      assertEquals( 5  , root.getCancelTime() );
+      assertEquals( 0  , conn1.getCancelCount() );
+   }
+
+   /**
+    * Test the fill ratio of packets sent and received.
+    */
+   public void testFillRatio()
+   {
+      NetworkStatistics stats = new NetworkStatistics( null );
+      assertEquals( 0, stats.getAverageFillRatio(), 0 );
+
+      stats.setPacketSize( 4096 );
+      stats.recordSent( 4096, 4096 );
+      stats.recordReceived( 1024 );
+      assertEquals( 5120.0 / 8192, stats.getAverageFillRatio(), 0.0001 );
+
+      // packets larger than the packet size are counted as full
+      stats.recordReceived( 8192 );
+      assertEquals( 13312.0 / 16384, stats.getAverageFillRatio(), 0.0001 );
+   }
+
+   /**
+    * Test that the driver-wide statistics are published through JMX.
+    */
+   public void testMBean()
+      throws Exception
+   {
+      NetworkStatistics global = NetworkStatistics.getGlobal();
+      MBeanServer       server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName        name   = NetworkStatistics.getObjectName();
+
+      new NetworkStatistics( global ).recordSent( 10, 512 );
+      assertEquals( global.getBytesSent(), server.getAttribute( name, "BytesSent" ) );
+      assertTrue( name.toString().startsWith( NetworkStatistics.OBJECT_NAME + ",loader=" ) );
+   }
+
+   /**
+    * Test that the statistics are unregistered along with the driver.
+    */
+   public void testDeregister()
+      throws Exception
+   {
+      Class.forName( Driver.class.getName() );
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName  name   = NetworkStatistics.getObjectName();
+      assertTrue( server.isRegistered( name ) );
+
+      java.sql.Driver driver = DriverManager.getDriver( "jdbc:jtds:sqlserver://localhost" );
+      DriverManager.deregisterDriver( driver );
+
+      try
+      {
+         assertFalse( server.isRegistered( name ) );
+      }
+      finally
+      {
+         // restore the state of the JVM for the following tests
+         DriverManager.registerDriver( driver );
+         server.registerMBean( NetworkStatistics.getGlobal(), name );
+      }
+   }
+
+}
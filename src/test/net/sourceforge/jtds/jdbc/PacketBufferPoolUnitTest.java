@@ -0,0 +1,136 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the {@link PacketBufferPool} class.
+ */
+public class PacketBufferPoolUnitTest extends TestCase
+{
+
+   /**
+    * Test that released buffers are handed out again.
+    */
+   public void testRecycle()
+   {
+      PacketBufferPool pool = new PacketBufferPool( 512, 2 );
+
+      byte[] first = pool.acquire( 512 );
+      assertEquals( 512, first.length );
+      assertEquals( 0, pool.getIdleCount() );
+
+      pool.release( first );
+      assertEquals( 1, pool.getIdleCount() );
+
+      assertSame( first, pool.acquire( 100 ) );
+      assertEquals( 0, pool.getIdleCount() );
+   }
+
+   /**
+    * Test that the pool never holds more idle buffers than its capacity.
+    */
+   public void testCapacity()
+   {
+      PacketBufferPool pool = new PacketBufferPool( 512, 2 );
+
+      pool.release( new byte[512] );
+      pool.release( new byte[512] );
+      pool.release( new byte[512] );
+
+      assertEquals( 2, pool.getIdleCount() );
+   }
+
+   /**
+    * Test that oversized requests are served but not pooled and that foreign
+    * buffers are dropped.
+    */
+   public void testForeignSize()
+   {
+      PacketBufferPool pool = new PacketBufferPool( 512, 4 );
+
+      byte[] large = pool.acquire( 4096 );
+      assertEquals( 4096, large.length );
+
+      pool.release( large );
+      pool.release( new byte[256] );
+      pool.release( null );
+
+      assertEquals( 0, pool.getIdleCount() );
+   }
+
+   /**
+    * Test that a buffer is never handed out twice by concurrent threads.
+    */
+   public void testConcurrentAccess()
+      throws Exception
+   {
+      final PacketBufferPool pool   = new PacketBufferPool( 64, 8 );
+      final Throwable[]      errors = new Throwable[1];
+      Thread[]               thread = new Thread[8];
+
+      for( int t = 0; t < thread.length; t ++ )
+      {
+         final byte mark = (byte) t;
+
+         thread[t] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  for( int i = 0; i < 10000; i ++ )
+                  {
+                     byte[] buffer = pool.acquire( 64 );
+                     buffer[0] = mark;
+                     Thread.yield();
+                     assertEquals( mark, buffer[0] );
+                     pool.release( buffer );
+                  }
+               }
+               catch( Throwable e )
+               {
+                  errors[0] = e;
+               }
+            }
+         };
+
+         thread[t].start();
+      }
+
+      for( int t = 0; t < thread.length; t ++ )
+      {
+         thread[t].join();
+      }
+
+      assertNull( errors[0] );
+      assertTrue( pool.getIdleCount() <= 8 );
+   }
+
+   /**
+    * Test that the driver-wide pools are shared per packet size.
+    */
+   public void testSharedPool()
+   {
+      assertSame( PacketBufferPool.getSharedPool( 4096 ), PacketBufferPool.getSharedPool( 4096 ) );
+      assertNotSame( PacketBufferPool.getSharedPool( 4096 ), PacketBufferPool.getSharedPool( 8192 ) );
+      assertEquals( 8192, PacketBufferPool.getSharedPool( 8192 ).getBufferSize() );
+   }
+
+}
@@ -0,0 +1,240 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Tests the streaming of varchar(max), nvarchar(max) and varbinary(max)
+ * values against a {@link TdsStandInServer}.
+ */
+public class PlpStreamingUnitTest extends StandInTestCase
+{
+
+   /**
+    * Test that values are read as streams from the response and that later
+    * columns are still available.
+    */
+   public void testStreamColumns()
+      throws Exception
+   {
+      Connection connection = connect( "9.0;streamLOBs=true" );
+      ResultSet rs = connection.createStatement().executeQuery( "SELECT LOBS" );
+
+      assertTrue( rs.next() );
+      assertEquals( 1, rs.getInt( 1 ) );
+      assertTrue( Arrays.equals( new byte[] { 1, 2, 3, 4, 5 }, read( rs.getBinaryStream( 2 ) ) ) );
+      assertEquals( "hello", read( rs.getCharacterStream( 3 ) ) );
+      assertEquals( 7, rs.getInt( 4 ) );
+
+      assertTrue( rs.next() );
+      assertNull( rs.getBinaryStream( 2 ) );
+      assertTrue( rs.wasNull() );
+      assertEquals( "x", read( rs.getCharacterStream( 3 ) ) );
+      rs.getInt( 4 );
+      assertTrue( rs.wasNull() );
+
+      assertFalse( rs.next() );
+      connection.close();
+   }
+
+   /**
+    * Test that values left in the response are loaded if later columns are
+    * accessed first and skipped if the row is left.
+    */
+   public void testSkipColumns()
+      throws Exception
+   {
+      Connection connection = connect( "9.0;streamLOBs=true" );
+      ResultSet rs = connection.createStatement().executeQuery( "SELECT LOBS" );
+
+      assertTrue( rs.next() );
+      assertEquals( 7, rs.getInt( 4 ) );
+      assertEquals( "hello", rs.getString( 3 ) );
+      assertTrue( Arrays.equals( new byte[] { 1, 2, 3, 4, 5 }, read( rs.getBinaryStream( 2 ) ) ) );
+
+      // row 2 is skipped without accessing any column
+      assertTrue( rs.next() );
+      assertFalse( rs.next() );
+      connection.close();
+
+      connection = connect( "9.0;streamLOBs=true" );
+      rs = connection.createStatement().executeQuery( "SELECT LOBS" );
+      assertTrue( rs.next() );
+      assertTrue( rs.next() );
+      assertEquals( 2, rs.getInt( 1 ) );
+      assertEquals( "x", rs.getString( 3 ) );
+      connection.close();
+   }
+
+   /**
+    * Test that a value cannot be accessed again after its stream has been
+    * handed out.
+    */
+   public void testConsumed()
+      throws Exception
+   {
+      Connection connection = connect( "9.0;streamLOBs=true" );
+      ResultSet rs = connection.createStatement().executeQuery( "SELECT LOBS" );
+
+      assertTrue( rs.next() );
+      rs.getBinaryStream( 2 );
+
+      try
+      {
+         rs.getBytes( 2 );
+         fail( "value already streamed" );
+      }
+      catch( SQLException e )
+      {
+         assertEquals( "HY010", e.getSQLState() );
+      }
+
+      // the stream is skipped when reading the following column
+      assertEquals( "hello", rs.getString( 3 ) );
+      connection.close();
+   }
+
+   /**
+    * Test that values are loaded as before without <code>streamLOBs</code>.
+    */
+   public void testLoaded()
+      throws Exception
+   {
+      Connection connection = connect( "9.0" );
+      ResultSet rs = connection.createStatement().executeQuery( "SELECT LOBS" );
+
+      assertTrue( rs.next() );
+      assertTrue( Arrays.equals( new byte[] { 1, 2, 3, 4, 5 }, rs.getBytes( 2 ) ) );
+      assertTrue( Arrays.equals( new byte[] { 1, 2, 3, 4, 5 }, rs.getBytes( 2 ) ) );
+      assertEquals( "hello", rs.getString( 3 ) );
+      connection.close();
+   }
+
+   /**
+    * Test that streams of unknown length are sent as PLP chunks.
+    */
+   public void testStreamParameters()
+      throws Exception
+   {
+      Connection connection = connect( "9.0;prepareSQL=2" );
+      PreparedStatement pstmt = connection.prepareStatement( "SELECT ?, ?" );
+      pstmt.setBinaryStream( 1, new ByteArrayInputStream( new byte[] { 1, 2, 3, 4, 5 } ) );
+      pstmt.setCharacterStream( 2, new StringReader( "abc" ) );
+      pstmt.execute();
+
+      String request = Support.toHex( _Server.getRpcRequests().get( 0 ) );
+      assertTrue( request.contains( Support.toHex( "@P0 varbinary(max),@P1 nvarchar(max)".getBytes( "UTF-16LE" ) ) ) );
+      assertTrue( request.contains( "A5" + "FFFF" + "FEFFFFFFFFFFFFFF" + "05000000" + "0102030405" + "00000000" ) );
+      assertTrue( request.contains( "E7" + "FFFF" + Support.toHex( ( (JtdsConnection) connection ).getCollation() )
+                                  + "FEFFFFFFFFFFFFFF" + "06000000" + "610062006300" + "00000000" ) );
+      connection.close();
+   }
+
+   /**
+    * Test that streams of unknown length are loaded before SQL Server 2005.
+    */
+   public void testLoadedParameters()
+      throws Exception
+   {
+      Connection connection = connect( "8.0;prepareSQL=2" );
+      PreparedStatement pstmt = connection.prepareStatement( "SELECT ?" );
+      pstmt.setBinaryStream( 1, new ByteArrayInputStream( new byte[] { 1, 2, 3 } ) );
+      pstmt.execute();
+
+      String request = Support.toHex( _Server.getRpcRequests().get( 0 ) );
+      assertTrue( request.contains( Support.toHex( "@P0 varbinary(8000)".getBytes( "UTF-16LE" ) ) ) );
+      assertTrue( request.contains( "A5" + "401F" + "0300" + "010203" ) );
+      connection.close();
+   }
+
+   /**
+    * Test that surrogate pairs are not split across the chunks of a
+    * varchar(max) value.
+    */
+   public void testSurrogatePairs()
+      throws Exception
+   {
+      StringBuilder value = new StringBuilder();
+
+      for( int i = 0; i < 8191; i ++ )
+      {
+         value.append( 'a' );
+      }
+
+      // U+1F600, the high surrogate is the last character of the first chunk read
+      value.append( "\uD83D\uDE00" );
+
+      Connection connection = connect( "9.0;prepareSQL=2;sendStringParametersAsUnicode=false;charset=UTF-8" );
+      PreparedStatement pstmt = connection.prepareStatement( "SELECT ?" );
+      pstmt.setCharacterStream( 1, new StringReader( value.toString() ) );
+      pstmt.execute();
+
+      String request = Support.toHex( _Server.getRpcRequests().get( 0 ) );
+      assertTrue( request.contains( Support.toHex( "@P0 varchar(max)".getBytes( "UTF-16LE" ) ) ) );
+      assertTrue( request.contains( "FEFFFFFFFFFFFFFF" + "FF1F0000" + "6161" ) );
+      assertTrue( request.contains( "61" + "04000000" + "F09F9880" + "00000000" ) );
+      connection.close();
+   }
+
+   private static byte[] read( InputStream in )
+      throws IOException
+   {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      int b;
+
+      while( ( b = in.read() ) != -1 )
+      {
+         out.write( b );
+      }
+
+      return out.toByteArray();
+   }
+
+   private static String read( Reader in )
+      throws IOException
+   {
+      StringBuilder out = new StringBuilder();
+      int c;
+
+      while( ( c = in.read() ) != -1 )
+      {
+         out.append( (char) c );
+      }
+
+      return out.toString();
+   }
+
+   private Connection connect( String tds )
+      throws SQLException
+   {
+      return DriverManager.getConnection( _Server.getURL().replace( "tds=8.0", "tds=" + tds ) );
+   }
+
+}
@@ -0,0 +1,148 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests the preparation of statements along with their first execution
+ * against a {@link TdsStandInServer}.
+ */
+public class PrepExecUnitTest extends StandInTestCase
+{
+
+   /**
+    * procedure id shortcuts
+    */
+   private static final int CURSOROPEN     = 2;
+   private static final int CURSOREXECUTE  = 4;
+   private static final int CURSORPREPEXEC = 5;
+   private static final int PREPARE        = 11;
+   private static final int EXECUTE        = 12;
+   private static final int PREPEXEC       = 13;
+
+   /**
+    * Test that the first execution prepares the statement and that later
+    * executions, also of other statements, use the returned handle.
+    */
+   public void testPrepExec()
+      throws Exception
+   {
+      Connection connection = connect( "usePrepExec=true" );
+      PreparedStatement pstmt = connection.prepareStatement( "UPDATE T SET A = ?" );
+
+      pstmt.setInt( 1, 1 );
+      pstmt.execute();
+      pstmt.setInt( 1, 2 );
+      pstmt.execute();
+
+      PreparedStatement other = connection.prepareStatement( "UPDATE T SET A = ?" );
+      other.setInt( 1, 3 );
+      other.execute();
+
+      assertEquals( Arrays.asList( PREPEXEC, EXECUTE, EXECUTE ), procs() );
+
+      // the handle followed by the parameter value
+      String execute = Support.toHex( _Server.getRpcRequests().get( 2 ) );
+      assertTrue( execute.endsWith( "00" + "00" + "260404" + "01000000" + "00" + "00" + "260404" + "03000000" ) );
+      connection.close();
+   }
+
+   /**
+    * Test that statements are prepared separately without
+    * <code>usePrepExec</code>.
+    */
+   public void testPrepare()
+      throws Exception
+   {
+      Connection connection = connect( "" );
+      PreparedStatement pstmt = connection.prepareStatement( "UPDATE T SET A = ?" );
+
+      pstmt.setInt( 1, 1 );
+      pstmt.execute();
+      pstmt.setInt( 1, 2 );
+      pstmt.execute();
+
+      assertEquals( Arrays.asList( PREPARE, EXECUTE, EXECUTE ), procs() );
+      connection.close();
+   }
+
+   /**
+    * Test that cursors are prepared along with their first execution as well.
+    */
+   public void testCursor()
+      throws Exception
+   {
+      Connection connection = connect( "usePrepExec=true" );
+      PreparedStatement pstmt = connection.prepareStatement( "SELECT CURSOR 3", ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY );
+
+      for( int i = 0; i < 2; i ++ )
+      {
+         ResultSet rs = pstmt.executeQuery();
+
+         for( int row = 1; row <= 3; row ++ )
+         {
+            assertTrue( rs.next() );
+            assertEquals( row, rs.getInt( 1 ) );
+         }
+
+         assertFalse( rs.next() );
+         rs.close();
+      }
+
+      List<Integer> procs = procs();
+      assertEquals( CURSORPREPEXEC, procs.get( 0 ).intValue() );
+      assertTrue( procs.contains( CURSOREXECUTE ) );
+      assertFalse( procs.contains( CURSOROPEN ) );
+      connection.close();
+   }
+
+   /**
+    * Retrieves the procedure ids of the RPC requests received after the
+    * connection has been set up.
+    */
+   private List<Integer> procs()
+   {
+      List<Integer> procs = new ArrayList<Integer>();
+
+      for( byte[] request : _Server.getRpcRequests() )
+      {
+         procs.add( request[2] & 0xFF | ( request[3] & 0xFF ) << 8 );
+      }
+
+      return procs;
+   }
+
+   private Connection connect( String properties )
+      throws SQLException
+   {
+      Connection connection = DriverManager.getConnection( _Server.getURL() + ";prepareSQL=3;" + properties );
+
+      // forget the requests of the connection's initial settings
+      _Server.getRpcRequests().clear();
+      return connection;
+   }
+
+}
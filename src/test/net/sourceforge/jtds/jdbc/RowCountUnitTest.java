@@ -0,0 +1,121 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Tests how the statements setting the row count and text size are sent
+ * along with SQL batches against a {@link TdsStandInServer}.
+ */
+public class RowCountUnitTest extends StandInTestCase
+{
+
+   private Connection _Connection;
+
+   protected void setUp()
+      throws Exception
+   {
+      super.setUp();
+      _Connection = DriverManager.getConnection( _Server.getURL() );
+   }
+
+   protected void tearDown()
+      throws Exception
+   {
+      _Connection.close();
+      super.tearDown();
+   }
+
+   /**
+    * Test that the statements are prepended to a query, terminated so that
+    * a common table expression can follow.
+    */
+   public void testCommonTableExpression()
+      throws Exception
+   {
+      String sql = "WITH C AS (SELECT 1 A) SELECT A FROM C";
+      List<String> queries = execute( sql, 5 );
+
+      assertEquals( 1, queries.size() );
+      assertTrue( queries.get( 0 ), queries.get( 0 ).startsWith( "SET ROWCOUNT 5" ) );
+      assertTrue( queries.get( 0 ), queries.get( 0 ).endsWith( "; " + sql ) );
+   }
+
+   /**
+    * Test that the statements are sent by a request of their own for
+    * statements that have to start a batch.
+    */
+   public void testFirstStatement()
+      throws Exception
+   {
+      String[] statements = {
+         "CREATE VIEW V AS SELECT 1 A",
+         "  ALTER PROCEDURE P AS SELECT 1",
+         "CREATE TRIGGER T ON X AFTER INSERT AS SELECT 1",
+         "create function F() returns int as begin return 1 end",
+         "CREATE SCHEMA S",
+         "SET SHOWPLAN_XML ON",
+         "SET PARSEONLY ON",
+         "sp_who",
+         "execute_proc 1",
+         "/* comment */ SELECT 1",
+      };
+
+      for( int i = 0; i < statements.length; i ++ )
+      {
+         List<String> queries = execute( statements[i], i + 1 );
+
+         assertEquals( statements[i], 2, queries.size() );
+         assertTrue( queries.get( 0 ), queries.get( 0 ).startsWith( "SET ROWCOUNT " + ( i + 1 ) ) );
+         assertEquals( statements[i], queries.get( 1 ) );
+      }
+   }
+
+   /**
+    * Test that nothing is sent if the row count does not change.
+    */
+   public void testUnchanged()
+      throws Exception
+   {
+      execute( "SELECT 1", 7 );
+
+      List<String> queries = execute( "sp_who", 7 );
+      assertEquals( 1, queries.size() );
+      assertEquals( "sp_who", queries.get( 0 ) );
+   }
+
+   /**
+    * Executes a statement with a row limit and returns the queries received
+    * by the server for it.
+    */
+   private List<String> execute( String sql, int maxRows )
+      throws Exception
+   {
+      Statement stmt = _Connection.createStatement();
+      stmt.setMaxRows( maxRows );
+      _Server.getQueries().clear();
+      stmt.execute( sql );
+      stmt.close();
+      return _Server.getQueries();
+   }
+
+}
@@ -0,0 +1,197 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs requests over the NIO transport ({@link SharedSocketChannel}) against
+ * a {@link TdsStandInServer}.
+ */
+public class SharedSocketChannelUnitTest extends StandInTestCase
+{
+
+   private Connection _Connection;
+
+   protected void setUp()
+      throws Exception
+   {
+      super.setUp();
+      _Connection = DriverManager.getConnection( _Server.getURL() + ";useNIO=true" );
+   }
+
+   protected void tearDown()
+      throws Exception
+   {
+      _Connection.close();
+      super.tearDown();
+   }
+
+   /**
+    * Test login, a query and closing the connection.
+    */
+   public void testRoundTrip()
+      throws Exception
+   {
+      assertTrue( ( (JtdsConnection) _Connection ).getSocket() instanceof SharedSocketChannel );
+
+      select( 42 );
+      select( 43 );
+
+      _Connection.close();
+      assertTrue( _Connection.isClosed() );
+   }
+
+   /**
+    * Test that a query timeout cancels the request and that the connection
+    * can be used afterwards.
+    */
+   public void testQueryTimeout()
+      throws Exception
+   {
+      Statement stmt = _Connection.createStatement();
+      stmt.setQueryTimeout( 1 );
+
+      try
+      {
+         stmt.execute( "WAITFOR DELAY '00:01:00'" );
+         fail( "query not timed out" );
+      }
+      catch( SQLTimeoutException e )
+      {
+         // expected
+      }
+
+      stmt.close();
+      select( 1 );
+   }
+
+   /**
+    * Test that a request can be cancelled by another thread and that the
+    * connection can be used afterwards.
+    */
+   public void testCancel()
+      throws Exception
+   {
+      final Statement stmt = _Connection.createStatement();
+
+      Thread canceller = new Thread()
+      {
+         public void run()
+         {
+            try
+            {
+               // wait for the request to be sent
+               while( _Server.getQueries().isEmpty() )
+               {
+                  Thread.sleep( 10 );
+               }
+
+               stmt.cancel();
+            }
+            catch( Exception e )
+            {
+               // the statement fails with "not cancelled" instead
+            }
+         }
+      };
+
+      _Server.getQueries().clear();
+      canceller.start();
+
+      try
+      {
+         stmt.execute( "WAITFOR DELAY '00:01:00'" );
+         fail( "query not cancelled" );
+      }
+      catch( SQLException e )
+      {
+         assertEquals( "HY008", e.getSQLState() );
+      }
+
+      canceller.join();
+      stmt.close();
+      select( 2 );
+   }
+
+   /**
+    * Test that interrupting a thread waiting for a response fails the
+    * request instead of spinning, keeping the interrupt status.
+    */
+   public void testInterrupt()
+      throws Exception
+   {
+      final Statement stmt = _Connection.createStatement();
+      final AtomicReference<Throwable> result = new AtomicReference<Throwable>();
+      final AtomicBoolean interrupted = new AtomicBoolean();
+
+      Thread reader = new Thread()
+      {
+         public void run()
+         {
+            try
+            {
+               stmt.execute( "WAITFOR DELAY '00:01:00'" );
+            }
+            catch( Throwable e )
+            {
+               result.set( e );
+            }
+
+            interrupted.set( isInterrupted() );
+         }
+      };
+
+      _Server.getQueries().clear();
+      reader.setDaemon( true );
+      reader.start();
+
+      // wait for the request to be sent and the reader to block
+      while( _Server.getQueries().isEmpty() )
+      {
+         Thread.sleep( 10 );
+      }
+
+      Thread.sleep( 100 );
+      reader.interrupt();
+      reader.join( 5000 );
+
+      assertFalse( "reader still running", reader.isAlive() );
+      assertTrue( String.valueOf( result.get() ), result.get() instanceof SQLException );
+      assertTrue( interrupted.get() );
+   }
+
+   private void select( int value )
+      throws SQLException
+   {
+      Statement stmt = _Connection.createStatement();
+      ResultSet rs = stmt.executeQuery( "SELECT " + value );
+      assertTrue( rs.next() );
+      assertEquals( value, rs.getInt( 1 ) );
+      assertFalse( rs.next() );
+      stmt.close();
+   }
+
+}
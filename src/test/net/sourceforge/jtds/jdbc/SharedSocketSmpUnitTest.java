@@ -0,0 +1,148 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the SMP session multiplexing of the {@link SharedSocket}
+ * class, using a scripted server.
+ */
+public class SharedSocketSmpUnitTest extends TestCase
+{
+
+   private static final int SYN  = 0x01;
+   private static final int ACK  = 0x02;
+   private static final int DATA = 0x08;
+
+   private SharedSocket          _Socket;
+   private ByteArrayOutputStream _Out;
+
+   protected void setUp()
+   {
+      _Socket = new SharedSocket( new File( System.getProperty( "java.io.tmpdir" ) ), Driver.TDS90, Driver.SQLSERVER );
+      _Out    = new ByteArrayOutputStream();
+      _Socket.setOut( new DataOutputStream( _Out ) );
+      _Socket.enableSMP();
+   }
+
+   /**
+    * Test that sessions are opened on first use and that interleaved
+    * responses are routed to the session they belong to.
+    */
+   public void testInterleavedResponses()
+      throws Exception
+   {
+      SharedSocket.VirtualSocket vs1 = _Socket.getRequestStream( 512, 38 ).getVirtualSocket();
+      SharedSocket.VirtualSocket vs2 = _Socket.getRequestStream( 512, 38 ).getVirtualSocket();
+
+      ByteArrayOutputStream server = new ByteArrayOutputStream();
+      smp( server, DATA, vs2.id, 1, 8, packet( TdsCore.REPLY_PKT, 20, 2 ) );
+      smp( server, DATA, vs1.id, 1, 8, packet( TdsCore.REPLY_PKT, 30, 1 ) );
+      _Socket.setIn( new DataInputStream( new ByteArrayInputStream( server.toByteArray() ) ) );
+
+      _Socket.sendNetPacket( vs1, packet( TdsCore.QUERY_PKT, 40, 1 ) );
+      _Socket.sendNetPacket( vs2, packet( TdsCore.QUERY_PKT, 50, 2 ) );
+
+      byte[] written = _Out.toByteArray();
+      assertEquals( 4 * 16 + 40 + 50, written.length );
+      assertHeader( written,   0, SYN , vs1.id, 16     , 0 );
+      assertHeader( written,  16, DATA, vs1.id, 16 + 40, 1 );
+      assertHeader( written,  72, SYN , vs2.id, 16     , 0 );
+      assertHeader( written,  88, DATA, vs2.id, 16 + 50, 1 );
+
+      // the response of the second session is queued while reading the first
+      byte[] response = _Socket.getNetPacket( vs1, null );
+      assertEquals( 30, SharedSocket.getPktLen( response ) );
+      assertEquals( 1, response[8] );
+
+      response = _Socket.getNetPacket( vs2, null );
+      assertEquals( 20, SharedSocket.getPktLen( response ) );
+      assertEquals( 2, response[8] );
+   }
+
+   /**
+    * Test that sending blocks until the server extends its window.
+    */
+   public void testSendWindow()
+      throws Exception
+   {
+      SharedSocket.VirtualSocket vs = _Socket.getRequestStream( 512, 38 ).getVirtualSocket();
+
+      ByteArrayOutputStream server = new ByteArrayOutputStream();
+      smp( server, ACK, vs.id, 0, 10, null );
+      ByteArrayInputStream in = new ByteArrayInputStream( server.toByteArray() );
+      _Socket.setIn( new DataInputStream( in ) );
+
+      // initial window of 4 packets
+      for( int i = 0; i < 4; i ++ )
+      {
+         _Socket.sendNetPacket( vs, packet( TdsCore.QUERY_PKT, 20, 0 ) );
+      }
+      assertEquals( 16, in.available() );
+
+      _Socket.sendNetPacket( vs, packet( TdsCore.QUERY_PKT, 20, 0 ) );
+      assertEquals( 0, in.available() );
+      assertHeader( _Out.toByteArray(), 16 + 4 * 36, DATA, vs.id, 36, 5 );
+   }
+
+   /**
+    * Creates a TDS packet of the given length, filled with a marker value.
+    */
+   private static byte[] packet( byte type, int length, int mark )
+   {
+      byte[] packet = new byte[length];
+      java.util.Arrays.fill( packet, (byte) mark );
+      packet[0] = type;
+      packet[1] = (byte) ( mark != 0 ? 1 : 0 );
+      packet[2] = (byte) ( length >> 8 );
+      packet[3] = (byte) length;
+      return packet;
+   }
+
+   /**
+    * Writes an SMP packet as sent by the server.
+    */
+   private static void smp( ByteArrayOutputStream out, int flags, int sid, int seq, int window, byte[] data )
+   {
+      int    length = 16 + ( data == null ? 0 : data.length );
+      byte[] hdr    = new byte[] { 0x53, (byte) flags, (byte) sid, (byte) ( sid >> 8 ), (byte) length, (byte) ( length >> 8 ), 0, 0, (byte) seq, 0, 0, 0, (byte) window, 0, 0, 0 };
+      out.write( hdr, 0, 16 );
+
+      if( data != null )
+      {
+         out.write( data, 0, data.length );
+      }
+   }
+
+   private static void assertHeader( byte[] buffer, int offset, int flags, int sid, int length, int seq )
+   {
+      assertEquals( 0x53  , buffer[offset] );
+      assertEquals( flags , buffer[offset + 1] );
+      assertEquals( sid   , ( buffer[offset + 2] & 0xFF ) | ( buffer[offset + 3] & 0xFF ) << 8 );
+      assertEquals( length, ( buffer[offset + 4] & 0xFF ) | ( buffer[offset + 5] & 0xFF ) << 8 );
+      assertEquals( seq   , buffer[offset + 8] );
+   }
+
+}
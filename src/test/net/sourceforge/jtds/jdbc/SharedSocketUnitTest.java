@@ -0,0 +1,272 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the packet routing of the {@link SharedSocket} class, using
+ * a scripted server.
+ */
+public class SharedSocketUnitTest extends TestCase
+{
+
+   private SharedSocket          _Socket;
+   private ByteArrayOutputStream _Out;
+   private PipedOutputStream     _Server;
+   private int                   _Writes;
+
+   protected void setUp()
+      throws Exception
+   {
+      _Socket = new SharedSocket( new File( System.getProperty( "java.io.tmpdir" ) ), Driver.TDS80, Driver.SQLSERVER );
+      _Out    = new ByteArrayOutputStream()
+      {
+         public synchronized void write( byte[] b, int off, int len )
+         {
+            _Writes ++;
+            super.write( b, off, len );
+         }
+      };
+      _Server = new PipedOutputStream();
+      _Socket.setOut( new DataOutputStream( _Out ) );
+      _Socket.setIn( new DataInputStream( new PipedInputStream( _Server, 65536 ) ) );
+   }
+
+   /**
+    * Test that a cancel is sent while another thread is blocked reading the
+    * response and that the reader keeps reading until the cancel ACK.
+    */
+   public void testCancelDuringRead()
+      throws Exception
+   {
+      final SharedSocket.VirtualSocket vs = _Socket.getRequestStream( 512, 38 ).getVirtualSocket();
+      _Socket.sendNetPacket( vs, packet( TdsCore.QUERY_PKT, 20, true ) );
+
+      Reader reader = new Reader( vs );
+      reader.start();
+      waitUntilBlocked( reader );
+
+      assertTrue ( _Socket.cancel( vs ) );
+      assertFalse( _Socket.cancel( vs ) );
+
+      byte[] written = _Out.toByteArray();
+      assertEquals( TdsCore.CANCEL_PKT, written[written.length - 8] );
+
+      // complete response without cancel ACK, followed by the ACK
+      _Server.write( done( 0 ) );
+      _Server.write( done( TdsCore.DONE_CANCEL ) );
+
+      byte[] packet = reader.getPacket();
+      assertNotNull( packet );
+      assertEquals( 0, packet[1] );
+
+      byte[] ack = _Socket.getNetPacket( vs, null );
+      assertEquals( 1, ack[1] );
+      assertFalse( _Socket.cancel( vs ) );
+   }
+
+   /**
+    * Test that queued packets are returned while another thread is blocked
+    * reading from the network.
+    */
+   public void testQueuedDataDuringRead()
+      throws Exception
+   {
+      SharedSocket.VirtualSocket vs1 = _Socket.getRequestStream( 512, 38 ).getVirtualSocket();
+      SharedSocket.VirtualSocket vs2 = _Socket.getRequestStream( 512, 38 ).getVirtualSocket();
+
+      _Socket.sendNetPacket( vs1, packet( TdsCore.QUERY_PKT, 20, true ) );
+
+      // the response to the first request is queued when the second is sent
+      _Server.write( packet( TdsCore.REPLY_PKT, 30, false ) );
+      _Server.write( packet( TdsCore.REPLY_PKT, 40, true ) );
+      _Socket.sendNetPacket( vs2, packet( TdsCore.QUERY_PKT, 20, true ) );
+
+      Reader reader = new Reader( vs2 );
+      reader.start();
+      waitUntilBlocked( reader );
+
+      assertEquals( 30, SharedSocket.getPktLen( _Socket.getNetPacket( vs1, null ) ) );
+      assertEquals( 40, SharedSocket.getPktLen( _Socket.getNetPacket( vs1, null ) ) );
+
+      _Server.write( packet( TdsCore.REPLY_PKT, 50, true ) );
+      assertEquals( 50, SharedSocket.getPktLen( reader.getPacket() ) );
+   }
+
+   /**
+    * Test that a request spanning several packets is sent with a single write
+    * and that only its last packet is flagged as such.
+    */
+   public void testRequestSingleWrite()
+      throws Exception
+   {
+      RequestStream out = _Socket.getRequestStream( 512, 38 );
+      out.setPacketType( TdsCore.QUERY_PKT );
+      out.write( new byte[3 * 512] );
+      out.flush();
+
+      assertEquals( 1, _Writes );
+
+      byte[] request = _Out.toByteArray();
+      int    packets = 0;
+      int    pos     = 0;
+
+      while( pos < request.length )
+      {
+         int length = ( request[pos + 2] & 0xFF ) << 8 | request[pos + 3] & 0xFF;
+         packets ++;
+         pos += length;
+         assertEquals( TdsCore.QUERY_PKT, request[pos - length] );
+         assertEquals( pos == request.length ? 1 : 0, request[pos - length + 1] );
+      }
+
+      assertEquals( 4, packets );
+      assertEquals( 3 * 512 + 4 * TdsCore.PKT_HDR_LEN, request.length );
+   }
+
+   /**
+    * Test that the network statistics count the packets sent and received,
+    * the packets queued for other statements and cancel round trips.
+    */
+   public void testStatistics()
+      throws Exception
+   {
+      NetworkStatistics stats = _Socket.getNetworkStatistics();
+      stats.setPacketSize( 512 );
+
+      SharedSocket.VirtualSocket vs1 = _Socket.getRequestStream( 512, 38 ).getVirtualSocket();
+      SharedSocket.VirtualSocket vs2 = _Socket.getRequestStream( 512, 38 ).getVirtualSocket();
+
+      _Socket.sendNetPacket( vs1, packet( TdsCore.QUERY_PKT, 20, true ) );
+      _Server.write( packet( TdsCore.REPLY_PKT, 30, false ) );
+      _Server.write( packet( TdsCore.REPLY_PKT, 40, true ) );
+
+      // the response to the first request is queued when the second is sent
+      _Socket.sendNetPacket( vs2, packet( TdsCore.QUERY_PKT, 20, true ) );
+      assertEquals( 2, stats.getPacketsSent() );
+      assertEquals( 40, stats.getBytesSent() );
+      assertEquals( 2, stats.getPacketsReceived() );
+      assertEquals( 70, stats.getBytesReceived() );
+      assertEquals( 2, stats.getPacketsQueuedInMemory() );
+      assertEquals( 0, stats.getPacketsQueuedOnDisk() );
+
+      _Socket.getNetPacket( vs1, null );
+      _Socket.getNetPacket( vs1, null );
+      assertEquals( 1, stats.getResponseWaitCount() );
+
+      assertTrue( _Socket.cancel( vs2 ) );
+      _Server.write( done( TdsCore.DONE_CANCEL ) );
+      assertEquals( 1, _Socket.getNetPacket( vs2, null )[1] );
+      assertEquals( 1, stats.getCancelCount() );
+      assertEquals( 2, stats.getResponseWaitCount() );
+
+      // requests are measured against their buffers, responses against the packet size
+      assertEquals( 102, stats.getBytesReceived() );
+      assertEquals( ( 40.0 + 102 ) / ( 40 + 3 * 512 ), stats.getAverageFillRatio(), 0.001 );
+      assertTrue( NetworkStatistics.getGlobal().getPacketsSent() >= 3 );
+   }
+
+   /**
+    * Thread reading a single packet.
+    */
+   private class Reader extends Thread
+   {
+
+      private final SharedSocket.VirtualSocket _VSock;
+      private volatile byte[]                  _Packet;
+      private volatile Exception               _Error;
+
+      Reader( SharedSocket.VirtualSocket vsock )
+      {
+         _VSock = vsock;
+         setDaemon( true );
+      }
+
+      public void run()
+      {
+         try
+         {
+            _Packet = _Socket.getNetPacket( _VSock, null );
+         }
+         catch( Exception e )
+         {
+            _Error = e;
+         }
+      }
+
+      /**
+       * Waits for the packet to be read and returns it, rethrowing the
+       * exception thrown reading it, if any.
+       */
+      byte[] getPacket()
+         throws Exception
+      {
+         join( 5000 );
+
+         if( _Error != null )
+         {
+            throw _Error;
+         }
+
+         return _Packet;
+      }
+
+   }
+
+   private static void waitUntilBlocked( Thread thread )
+      throws InterruptedException
+   {
+      while( thread.getState() == Thread.State.NEW || thread.getState() == Thread.State.RUNNABLE )
+      {
+         Thread.sleep( 10 );
+      }
+   }
+
+   /**
+    * Creates a TDS packet of the given length.
+    */
+   private static byte[] packet( byte type, int length, boolean last )
+   {
+      byte[] packet = new byte[length];
+      packet[0] = type;
+      packet[1] = (byte) ( last ? 1 : 0 );
+      packet[2] = (byte) ( length >> 8 );
+      packet[3] = (byte) length;
+      return packet;
+   }
+
+   /**
+    * Creates a reply packet ending with a TDS_DONE token.
+    */
+   private static byte[] done( int status )
+   {
+      byte[] packet = packet( TdsCore.REPLY_PKT, 32, true );
+      packet[32 - 9] = (byte) 0xFD;
+      packet[32 - 8] = (byte) status;
+      return packet;
+   }
+
+}
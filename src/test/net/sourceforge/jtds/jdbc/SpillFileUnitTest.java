@@ -0,0 +1,124 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the {@link SpillFile} class.
+ */
+public class SpillFileUnitTest extends TestCase
+{
+
+   private SpillFile _File;
+
+   protected void setUp()
+      throws Exception
+   {
+      _File = new SpillFile( new File( System.getProperty( "java.io.tmpdir" ) ) );
+   }
+
+   protected void tearDown()
+   {
+      _File.close();
+   }
+
+   /**
+    * Test that interleaved queues return their packets in FIFO order, across
+    * segment boundaries.
+    */
+   public void testInterleavedQueues()
+      throws Exception
+   {
+      SpillFile.Queue q1 = _File.createQueue();
+      SpillFile.Queue q2 = _File.createQueue();
+
+      // enough data to span several segments per queue
+      int packets = 3 * SpillFile.SEGMENT_SIZE / 32768;
+
+      for( int i = 0; i < packets; i ++ )
+      {
+         q1.write( packet( 32768, i ), 32768 );
+         q2.write( packet( 4096 + i, i ), 4096 + i );
+      }
+
+      byte[] buffer = new byte[65536];
+
+      for( int i = 0; i < packets; i ++ )
+      {
+         assertEquals( 32768, q1.nextLength() );
+         assertEquals( 32768, q1.read( buffer ) );
+         assertPacket( buffer, 32768, i );
+
+         assertEquals( 4096 + i, q2.read( buffer ) );
+         assertPacket( buffer, 4096 + i, i );
+      }
+   }
+
+   /**
+    * Test that segments read completely or discarded are reused instead of
+    * growing the file.
+    */
+   public void testSegmentReuse()
+      throws Exception
+   {
+      SpillFile.Queue queue  = _File.createQueue();
+      byte[]          buffer = new byte[32768];
+
+      for( int round = 0; round < 10; round ++ )
+      {
+         // write and read back twice the size of a segment
+         for( int i = 0; i < 2 * SpillFile.SEGMENT_SIZE / 32768; i ++ )
+         {
+            queue.write( packet( 32768, i ), 32768 );
+            queue.read( buffer );
+            assertPacket( buffer, 32768, i );
+         }
+
+         queue.write( packet( 512, round ), 512 );
+         queue.clear();
+      }
+
+      assertTrue( _File.getSegmentCount() <= 2 );
+      assertEquals( _File.getSegmentCount(), _File.getFreeSegmentCount() );
+   }
+
+   /**
+    * Creates a TDS packet of the given length, filled with a marker value.
+    */
+   private static byte[] packet( int length, int mark )
+   {
+      byte[] packet = new byte[length];
+      java.util.Arrays.fill( packet, (byte) mark );
+      packet[0] = TdsCore.REPLY_PKT;
+      packet[2] = (byte) ( length >> 8 );
+      packet[3] = (byte) length;
+      return packet;
+   }
+
+   private static void assertPacket( byte[] buffer, int length, int mark )
+   {
+      assertEquals( TdsCore.REPLY_PKT, buffer[0] );
+      assertEquals( length, SharedSocket.getPktLen( buffer ) );
+      assertEquals( (byte) mark, buffer[4] );
+      assertEquals( (byte) mark, buffer[length - 1] );
+   }
+
+}
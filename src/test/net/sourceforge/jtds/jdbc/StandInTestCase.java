@@ -0,0 +1,47 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import junit.framework.TestCase;
+
+/**
+ * Base class for unit tests running against a {@link TdsStandInServer}
+ * started for each test.
+ */
+public abstract class StandInTestCase extends TestCase
+{
+
+   /**
+    * the server of the current test
+    */
+   protected TdsStandInServer _Server;
+
+   protected void setUp()
+      throws Exception
+   {
+      Class.forName( Driver.class.getName() );
+      _Server = new TdsStandInServer();
+   }
+
+   protected void tearDown()
+      throws Exception
+   {
+      _Server.close();
+   }
+
+}
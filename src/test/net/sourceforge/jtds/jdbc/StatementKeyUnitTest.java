@@ -0,0 +1,90 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the {@link StatementKey} of the statement cache.
+ */
+public class StatementKeyUnitTest extends TestCase
+{
+
+   private static final String SQL = "SELECT * FROM T WHERE A = ? AND B = ?";
+
+   /**
+    * Test that keys built from the same statement are equal and that the
+    * string form matches the one used before keys were objects.
+    */
+   public void testEquals()
+   {
+      StatementKey key1 = new StatementKey( SQL, params( "int", "nvarchar(4000)" ), Driver.SQLSERVER, "db", true, false );
+      StatementKey key2 = new StatementKey( new String( SQL ), params( "int", "nvarchar(4000)" ), Driver.SQLSERVER, "db", false, false );
+
+      assertEquals( key1, key2 );
+      assertEquals( key1.hashCode(), key2.hashCode() );
+      assertEquals( "Xdb" + SQL + "intnvarchar(4000)", key1.toString() );
+
+      assertFalse( key1.equals( new StatementKey( SQL, params( "int", "nvarchar(4000)" ), Driver.SQLSERVER, "db", true, true ) ) );
+      assertFalse( key1.equals( new StatementKey( SQL, params( "int", "nvarchar(4000)" ), Driver.SQLSERVER, "other", true, false ) ) );
+      assertFalse( key1.equals( new StatementKey( SQL, params( "int", "ntext" ), Driver.SQLSERVER, "db", true, false ) ) );
+   }
+
+   /**
+    * Test that a key only matches an execution with the same parameter types,
+    * database and cursor flag.
+    */
+   public void testMatches()
+   {
+      StatementKey key = new StatementKey( SQL, params( "int", "nvarchar(4000)" ), Driver.SQLSERVER, "db", true, false );
+
+      assertTrue ( key.matches( SQL, params( "int", "nvarchar(4000)" ), Driver.SQLSERVER, "db", true, false ) );
+      assertFalse( key.matches( SQL, params( "int", "ntext" ), Driver.SQLSERVER, "db", true, false ) );
+      assertFalse( key.matches( SQL, params( "int" ), Driver.SQLSERVER, "db", true, false ) );
+      assertFalse( key.matches( SQL, params( "int", "nvarchar(4000)" ), Driver.SQLSERVER, "other", true, false ) );
+      assertFalse( key.matches( SQL, params( "int", "nvarchar(4000)" ), Driver.SQLSERVER, "db", true, true ) );
+      assertFalse( key.matches( SQL + " ", params( "int", "nvarchar(4000)" ), Driver.SQLSERVER, "db", true, false ) );
+   }
+
+   /**
+    * Test that the Sybase key only depends on the SQL and the commit mode.
+    */
+   public void testSybase()
+   {
+      StatementKey key = new StatementKey( SQL, params( "int", "varchar(255)" ), Driver.SYBASE, "db", true, false );
+
+      assertEquals( "T" + SQL, key.toString() );
+      assertTrue ( key.matches( SQL, params( "int", "text" ), Driver.SYBASE, "other", true, true ) );
+      assertFalse( key.matches( SQL, params( "int", "varchar(255)" ), Driver.SYBASE, "db", false, false ) );
+      assertEquals( key, new StatementKey( SQL, params(), Driver.SYBASE, null, true, false ) );
+   }
+
+   private static ParamInfo[] params( String... types )
+   {
+      ParamInfo[] params = new ParamInfo[types.length];
+
+      for( int i = 0; i < types.length; i ++ )
+      {
+         params[i] = new ParamInfo( i, true );
+         params[i].sqlType = types[i];
+      }
+
+      return params;
+   }
+
+}
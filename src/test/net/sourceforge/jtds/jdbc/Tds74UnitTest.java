@@ -0,0 +1,115 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/**
+ * Tests the TDS 7.3 and 7.4 protocol support, the NBCROW token and the SQL
+ * Server 2008 date and time types against a {@link TdsStandInServer}.
+ */
+public class Tds74UnitTest extends StandInTestCase
+{
+
+   /**
+    * Test that the TDS version requested is negotiated.
+    */
+   public void testLogin()
+      throws Exception
+   {
+      assertEquals( Driver.TDS81, tdsVersion( "8.0" ) );
+      assertEquals( Driver.TDS90, tdsVersion( "9.0" ) );
+      assertEquals( Driver.TDS73, tdsVersion( "7.3" ) );
+      assertEquals( Driver.TDS74, tdsVersion( "7.4" ) );
+   }
+
+   /**
+    * Test that rows sent as NBCROW tokens and values of the date and time
+    * types are decoded.
+    */
+   public void testTemporalTypes()
+      throws Exception
+   {
+      Connection connection = connect( "7.4" );
+      Statement  statement  = connection.createStatement();
+      ResultSet  rs         = statement.executeQuery( "SELECT TEMPORAL" );
+
+      ResultSetMetaData meta = rs.getMetaData();
+      assertEquals( Types.DATE     , meta.getColumnType( 2 ) );
+      assertEquals( Types.TIME     , meta.getColumnType( 3 ) );
+      assertEquals( Types.TIMESTAMP, meta.getColumnType( 4 ) );
+      assertEquals( "datetime2"    , meta.getColumnTypeName( 4 ) );
+      assertEquals( 27             , meta.getPrecision( 4 ) );
+      assertEquals( 7              , meta.getScale( 4 ) );
+      assertEquals( 16             , meta.getPrecision( 3 ) );
+
+      assertTrue  ( rs.next() );
+      assertEquals( 1, rs.getInt( 1 ) );
+      assertEquals( "2024-02-29", rs.getDate( 2 ).toString() );
+      assertEquals( "13:45:30", rs.getTime( 3 ).toString() );
+
+      Timestamp dt2 = rs.getTimestamp( 4 );
+      assertEquals( "1999-12-31 23:59:59.9999999", dt2.toString() );
+      assertEquals( 999999900, dt2.getNanos() );
+
+      Timestamp dto = rs.getTimestamp( 5 );
+      assertEquals( Timestamp.valueOf( "2024-06-01 10:00:00" ).getTime() + java.util.TimeZone.getDefault().getOffset( dto.getTime() ), dto.getTime() );
+
+      assertEquals( 0, rs.getInt( 6 ) );
+      assertTrue  ( rs.wasNull() );
+
+      assertTrue  ( rs.next() );
+      assertEquals( 2, rs.getInt( 1 ) );
+
+      for( int i = 2; i <= 6; i ++ )
+      {
+         assertNull( rs.getObject( i ) );
+      }
+
+      assertFalse ( rs.next() );
+      connection.close();
+   }
+
+   private Connection connect( String tds )
+      throws Exception
+   {
+      return DriverManager.getConnection( _Server.getURL().replace( "tds=8.0", "tds=" + tds ) );
+   }
+
+   private int tdsVersion( String tds )
+      throws Exception
+   {
+      Connection connection = connect( tds );
+
+      try
+      {
+         return ( (JtdsConnection) connection ).getTdsVersion();
+      }
+      finally
+      {
+         connection.close();
+      }
+   }
+
+}
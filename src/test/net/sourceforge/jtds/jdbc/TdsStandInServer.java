@@ -0,0 +1,1108 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal local stand-in for a SQL Server speaking TDS 8.0 to 7.4, for tests
+ * that need a live connection but no database.
+ * <p>
+ * The server accepts any login, using the TDS version requested by the client
+ * up to TDS 7.4, and answers each SQL batch of the form
+ * <code>SELECT &lt;number&gt;</code> with a single row result set containing
+ * the number, <code>@@MAX_PRECISION</code> is answered with 38. With TDS 7.3
+ * and later <code>SELECT TEMPORAL</code> is answered with the two rows
+ * described by {@link #temporal}, <code>SELECT NUMBERS</code> is answered
+ * with the rows described by {@link #numbers}. A query containing
+ * <code>WAITFOR</code> is not answered at all until it is cancelled. Any
+ * other request is answered with an empty DONE token, cancel requests are
+ * acknowledged.
+ * </p>
+ * For bulk load tests <code>SELECT TOP 0 * FROM &lt;table&gt;</code> returns
+ * the columns described by {@link #bulkTarget}. The rows of bulk load
+ * requests are decoded and kept, see {@link #getBulkRows()}, RPC requests
+ * are kept as they are, see {@link #getRpcRequests()}.
+ * <p>
+ * A server side cursor opened by <code>sp_cursoropen</code> for
+ * <code>SELECT CURSOR &lt;number&gt;</code> returns that many rows of the
+ * values 1 to the number and can be read with <code>sp_cursorfetch</code>,
+ * the fetches are kept, see {@link #getCursorFetches()}. Statements can be
+ * prepared with <code>sp_prepare</code>, <code>sp_prepexec</code> and
+ * <code>sp_cursorprepexec</code>, executing them returns no rows unless a
+ * cursor is opened. <code>sp_unprepare</code> and
+ * <code>sp_cursorunprepare</code> are accepted but ignored. Cursors and
+ * prepared statements are only supported with TDS 8.0 and later.
+ * </p>
+ */
+public class TdsStandInServer
+{
+
+   private static final Pattern   SELECT   = Pattern.compile( "SELECT\\s+(\\d+)", Pattern.CASE_INSENSITIVE );
+
+   private static final Pattern   CURSOR   = Pattern.compile( "CURSOR\\s+(\\d+)" );
+
+   /**
+    * raw TDS versions, as sent in the login request
+    */
+   private static final int       TDS71    = 0x71000001;
+   private static final int       TDS72    = 0x72090002;
+   private static final int       TDS73    = 0x730B0003;
+   private static final int       TDS74    = 0x74000004;
+
+   private final ServerSocket     _Server;
+
+   private final AtomicInteger    _Connections = new AtomicInteger();
+
+   private final AtomicInteger    _Requests    = new AtomicInteger();
+
+   private volatile boolean       _Closed;
+
+   private final List<Object[]>   _BulkRows    = Collections.synchronizedList( new ArrayList<Object[]>() );
+
+   private volatile String        _LastQuery;
+
+   private final List<String>     _Queries     = Collections.synchronizedList( new ArrayList<String>() );
+
+   private final List<byte[]>     _RpcRequests = Collections.synchronizedList( new ArrayList<byte[]>() );
+
+   private final List<int[]>      _Fetches     = Collections.synchronizedList( new ArrayList<int[]>() );
+
+   /**
+    * the state of the server side cursor and the prepared statements of a
+    * connection
+    */
+   private static final class Cursor
+   {
+
+      /**
+       * the number of rows, 0 if no cursor is open
+       */
+      int     _Rows;
+
+      /**
+       * the number of the first row of the current block, 0 before the first
+       * row and <code>_Rows + 1</code> after the last row
+       */
+      int     _Start;
+
+      /**
+       * the number of rows requested for the current block
+       */
+      int     _Count;
+
+      /**
+       * whether the cursor is forward only, with an unknown row count
+       */
+      boolean _Forward;
+
+      /**
+       * the SQL of the prepared statements, the handles are 1 based
+       */
+      List<String> _Prepared = new ArrayList<String>();
+
+   }
+
+   /**
+    * Starts a server listening on an ephemeral port of the loopback interface.
+    */
+   public TdsStandInServer()
+      throws IOException
+   {
+      _Server = new ServerSocket( 0, 1000, InetAddress.getLoopbackAddress() );
+
+      Thread acceptor = new Thread( "TdsStandInServer" )
+      {
+         public void run()
+         {
+            accept();
+         }
+      };
+
+      acceptor.setDaemon( true );
+      acceptor.start();
+   }
+
+   /**
+    * Retrieves the port the server is listening on.
+    */
+   public int getPort()
+   {
+      return _Server.getLocalPort();
+   }
+
+   /**
+    * Retrieves a jTDS URL for connecting to this server.
+    */
+   public String getURL()
+   {
+      return "jdbc:jtds:sqlserver://localhost:" + getPort() + "/standin;tds=8.0;user=test;password=test";
+   }
+
+   /**
+    * Retrieves the number of connections accepted so far.
+    */
+   public int getConnectionCount()
+   {
+      return _Connections.get();
+   }
+
+   /**
+    * Retrieves the number of requests answered so far.
+    */
+   public int getRequestCount()
+   {
+      return _Requests.get();
+   }
+
+   /**
+    * Retrieves the SQL of the last query received.
+    */
+   public String getLastQuery()
+   {
+      return _LastQuery;
+   }
+
+   /**
+    * Retrieves the SQL of the queries received so far.
+    */
+   public List<String> getQueries()
+   {
+      return _Queries;
+   }
+
+   /**
+    * Retrieves the rows received with bulk load requests so far, the values
+    * decoded to <code>Long</code>, <code>String</code>,
+    * <code>BigDecimal</code>, <code>java.sql.Timestamp</code> or
+    * <code>null</code>.
+    */
+   public List<Object[]> getBulkRows()
+   {
+      return _BulkRows;
+   }
+
+   /**
+    * Retrieves the raw data of the RPC requests received so far, including
+    * the ALL_HEADERS data stream.
+    */
+   public List<byte[]> getRpcRequests()
+   {
+      return _RpcRequests;
+   }
+
+   /**
+    * Retrieves the <code>sp_cursorfetch</code> requests received so far, each
+    * as fetch type, row number and number of rows.
+    */
+   public List<int[]> getCursorFetches()
+   {
+      return _Fetches;
+   }
+
+   /**
+    * Stops accepting connections.
+    */
+   public void close()
+      throws IOException
+   {
+      _Closed = true;
+      _Server.close();
+   }
+
+   private void accept()
+   {
+      while( ! _Closed )
+      {
+         try
+         {
+            final Socket socket = _Server.accept();
+            _Connections.incrementAndGet();
+
+            Thread worker = new Thread( "TdsStandInServer-" + socket.getPort() )
+            {
+               public void run()
+               {
+                  serve( socket );
+               }
+            };
+
+            worker.setDaemon( true );
+            worker.start();
+         }
+         catch( IOException e )
+         {
+            // closed
+         }
+      }
+   }
+
+   private void serve( Socket socket )
+   {
+      try
+      {
+         socket.setTcpNoDelay( true );
+         DataInputStream in      = new DataInputStream( socket.getInputStream() );
+         OutputStream    out     = socket.getOutputStream();
+         int             version = TDS71;
+         Cursor          cursor  = new Cursor();
+
+         while( true )
+         {
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            byte[]                header  = new byte[8];
+            int                   type;
+            boolean               last;
+
+            // read all packets of the request
+            do
+            {
+               in.readFully( header );
+               type = header[0];
+               last = ( header[1] & 1 ) != 0;
+
+               byte[] data = new byte[SharedSocket.getPktLen( header ) - 8];
+               in.readFully( data );
+               request.write( data, 0, data.length );
+            }
+            while( ! last );
+
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+
+            switch( type )
+            {
+               case TdsCore.MSLOGIN_PKT:
+                  byte[] login = request.toByteArray();
+                  version = Math.min( TDS74, ( login[4] & 0xFF ) | ( login[5] & 0xFF ) << 8 | ( login[6] & 0xFF ) << 16 | login[7] << 24 );
+                  loginAck( reply, version );
+                  done( reply, 0, 0, version );
+                  break;
+
+               case TdsCore.QUERY_PKT:
+                  _LastQuery = new String( request.toByteArray(), "UTF-16LE" );
+                  _Queries.add( _LastQuery );
+
+                  if( _LastQuery.indexOf( "WAITFOR" ) >= 0 )
+                  {
+                     // never completes, only the cancel request is answered
+                     continue;
+                  }
+
+                  query( reply, _LastQuery, version );
+                  break;
+
+               case TdsCore.BULKLOAD_PKT:
+                  int rows = bulkLoad( request.toByteArray(), version );
+                  done( reply, 0x10, 0xC3, rows, version );
+                  break;
+
+               case TdsCore.RPC_PKT:
+                  _RpcRequests.add( request.toByteArray() );
+
+                  if( ! rpc( reply, request.toByteArray(), cursor, version ) )
+                  {
+                     done( reply, 0, 0, version );
+                  }
+                  break;
+
+               case TdsCore.CANCEL_PKT:
+                  done( reply, TdsCore.DONE_CANCEL, 0, version );
+                  break;
+
+               default:
+                  done( reply, 0, 0, version );
+            }
+
+            byte[] data = reply.toByteArray();
+            byte[] packet = new byte[data.length + 8];
+            packet[0] = TdsCore.REPLY_PKT;
+            packet[1] = 1;
+            packet[2] = (byte) ( packet.length >> 8 );
+            packet[3] = (byte) packet.length;
+            System.arraycopy( data, 0, packet, 8, data.length );
+            out.write( packet );
+            out.flush();
+
+            _Requests.incrementAndGet();
+         }
+      }
+      catch( EOFException e )
+      {
+         // client closed connection
+      }
+      catch( IOException e )
+      {
+         // connection reset
+      }
+      finally
+      {
+         try
+         {
+            socket.close();
+         }
+         catch( IOException e )
+         {
+            // ignore
+         }
+      }
+   }
+
+   /**
+    * Answers the RPC requests of a batch addressed to the cursor procedures.
+    *
+    * @return
+    *    <code>false</code> if the request does not address the cursor
+    *    procedures, nothing has been written then
+    */
+   private boolean rpc( ByteArrayOutputStream out, byte[] request, Cursor cursor, int version )
+      throws IOException
+   {
+      int[] offset = { 0 };
+
+      while( offset[0] < request.length )
+      {
+         if( version >= TDS72 && offset[0] == 0 )
+         {
+            // the ALL_HEADERS data stream starts with its total length
+            offset[0] += readInt( request, offset[0] );
+         }
+
+         // only the procedure id shortcuts used with TDS 8.0 and later
+         int proc = readShort( request, offset[0] + 2 );
+
+         if( readShort( request, offset[0] ) != 0xFFFF || proc != 2 && proc != 4 && proc != 5 && proc != 6 && proc != 7 && proc != 9 && ( proc < 11 || proc > 13 ) && proc != 15 )
+         {
+            return false;
+         }
+
+         List<Object> params = new ArrayList<Object>();
+         offset[0] += 6;
+
+         // parameters up to the end or the next batch separator
+         while( offset[0] < request.length && ( request[offset[0]] & 0xFF ) != 0x80 && ( request[offset[0]] & 0xFF ) != 0xFF )
+         {
+            params.add( readParam( request, offset ) );
+         }
+
+         offset[0] ++;
+         boolean last = offset[0] >= request.length;
+
+         // sp_cursorprepexec has the statement handle and the parameter
+         // definitions in front of the sp_cursoropen parameters
+         int skip = proc == 5 ? 2 : 0;
+
+         switch( proc )
+         {
+            case 5:
+               cursor._Prepared.add( (String) params.get( 3 ) );
+               // fall through
+
+            case 2:
+               cursorOpen( out, cursor, (String) params.get( skip + 1 ), (Integer) params.get( skip + 2 ), (Integer) params.get( skip + 4 ), version );
+               break;
+
+            case 4:
+               cursorOpen( out, cursor, cursor._Prepared.get( (Integer) params.get( 0 ) - 1 ), (Integer) params.get( 2 ), (Integer) params.get( 4 ), version );
+               break;
+
+            case 11:
+            case 13:
+               cursor._Prepared.add( (String) params.get( 2 ) );
+               break;
+
+            case 7:
+               cursorFetch( out, cursor, params, version );
+               break;
+
+            case 9:
+               cursor._Rows = 0;
+         }
+
+         // RETURNSTATUS
+         out.write( 0x79 );
+         writeInt( out, 0 );
+
+         if( proc == 5 || proc == 11 || proc == 13 )
+         {
+            // the new statement handle
+            returnValue( out, cursor._Prepared.size(), version );
+         }
+
+         if( proc == 2 || proc == 4 || proc == 5 )
+         {
+            // the cursor handle, scroll and concurrency options and row count
+            returnValue( out, 1, version );
+            returnValue( out, ( (Integer) params.get( skip + 2 ) ).intValue() & 0xFFF, version );
+            returnValue( out, ( (Integer) params.get( skip + 3 ) ).intValue(), version );
+            returnValue( out, cursor._Forward ? -1 : cursor._Rows, version );
+         }
+         else if( proc == 7 && ( (Integer) params.get( 1 ) ).intValue() == 256 )
+         {
+            // FETCH_INFO, the current row number and the row count
+            returnValue( out, cursor._Start, version );
+            returnValue( out, cursor._Forward ? -1 : cursor._Rows, version );
+         }
+
+         doneProc( out, last ? 0 : 1, version );
+      }
+
+      return true;
+   }
+
+   private static void cursorOpen( ByteArrayOutputStream out, Cursor cursor, String sql, int scrollOpt, int fetchSize, int version )
+   {
+      Matcher matcher    = CURSOR.matcher( sql );
+
+      cursor._Rows    = matcher.find() ? Integer.parseInt( matcher.group( 1 ) ) : 0;
+      cursor._Start   = 0;
+      cursor._Forward = ( scrollOpt & 0x14 ) != 0;
+
+      // COLMETADATA and the hidden row status column
+      out.write( 0x81 );
+      writeShort( out, 2 );
+      column( out, 0x38, -1, "v", version );
+      column( out, 0x38, -1, "ROWSTAT", version );
+      out.write( 0xA5 );
+      writeShort( out, 6 );
+      out.write( new byte[] { 1, 0, 0, 2, 0, 0x10 }, 0, 6 );
+
+      // auto fetch
+      if( ( scrollOpt & 0x2000 ) != 0 )
+      {
+         rows( out, cursor, 1, fetchSize );
+      }
+   }
+
+   private void cursorFetch( ByteArrayOutputStream out, Cursor cursor, List<Object> params, int version )
+   {
+      int type   = ( (Integer) params.get( 1 ) ).intValue();
+      int rowNum = params.get( 2 ) == null ? 0 : ( (Integer) params.get( 2 ) ).intValue();
+      int count  = params.get( 3 ) == null ? 0 : ( (Integer) params.get( 3 ) ).intValue();
+      int start;
+
+      if( type == 256 )
+      {
+         return;
+      }
+
+      _Fetches.add( new int[] { type, rowNum, count } );
+
+      switch( type )
+      {
+         case 1:   start = 1; break;
+         case 2:   start = cursor._Start == 0 ? 1 : cursor._Start + cursor._Count; break;
+         case 4:   start = Math.max( 1, cursor._Start - count ); break;
+         case 8:   start = Math.max( 1, cursor._Rows - count + 1 ); break;
+         case 16:  start = rowNum < 0 ? cursor._Rows + rowNum + 1 : rowNum; break;
+         case 32:  start = cursor._Start + rowNum; break;
+         default:  start = cursor._Start;
+      }
+
+      // no column meta data, with TDS 8.0 and later just a short COLMETADATA
+      out.write( 0x81 );
+      writeShort( out, 0xFFFF );
+      rows( out, cursor, start, count );
+   }
+
+   /**
+    * Writes a block of cursor rows, moving the cursor to it.
+    */
+   private static void rows( ByteArrayOutputStream out, Cursor cursor, int start, int count )
+   {
+      cursor._Start = Math.max( 0, Math.min( start, cursor._Rows + 1 ) );
+      cursor._Count = count;
+
+      for( int i = cursor._Start; i >= 1 && i < cursor._Start + count && i <= cursor._Rows; i ++ )
+      {
+         out.write( 0xD1 );
+         writeInt( out, i );
+         writeInt( out, 1 );
+      }
+   }
+
+   /**
+    * Reads an RPC parameter, returning <code>Integer</code> and
+    * <code>String</code> values or <code>null</code>.
+    */
+   private static Object readParam( byte[] request, int[] offset )
+      throws IOException
+   {
+      int i = offset[0];
+      i += 1 + ( request[i] & 0xFF ) * 2 + 1;
+      int type = request[i ++] & 0xFF;
+      int length;
+
+      switch( type )
+      {
+         case 0x26:
+            i ++;
+            length = request[i ++];
+            offset[0] = i + length;
+            return length == 0 ? null : Integer.valueOf( readInt( request, i ) );
+
+         case 0xE7:
+            i += 2 + 5;
+            length = readShort( request, i );
+            offset[0] = i + 2 + ( length == 0xFFFF ? 0 : length );
+            return length == 0xFFFF ? null : new String( request, i + 2, length, "UTF-16LE" );
+
+         case 0x63:
+            i += 4 + 5;
+            length = readInt( request, i );
+            offset[0] = i + 4 + Math.max( 0, length );
+            return length < 0 ? null : new String( request, i + 4, length, "UTF-16LE" );
+
+         default:
+            throw new IOException( "Unsupported RPC parameter type " + type );
+      }
+   }
+
+   private static void returnValue( ByteArrayOutputStream out, int value, int version )
+   {
+      out.write( 0xAC );
+      writeShort( out, 0 );
+      out.write( 0 );
+      out.write( 1 );
+      writeUserType( out, version );
+      writeShort( out, 0 );
+      out.write( 0x26 );
+      out.write( 4 );
+      out.write( 4 );
+      writeInt( out, value );
+   }
+
+   private static void doneProc( ByteArrayOutputStream out, int status, int version )
+   {
+      out.write( 0xFE );
+      writeShort( out, status );
+      writeShort( out, 0xE0 );
+      writeInt( out, 0 );
+
+      if( version >= TDS72 )
+      {
+         writeInt( out, 0 );
+      }
+   }
+
+   private static int readShort( byte[] data, int offset )
+   {
+      return data[offset] & 0xFF | ( data[offset + 1] & 0xFF ) << 8;
+   }
+
+   private static int readInt( byte[] data, int offset )
+   {
+      return readShort( data, offset ) | readShort( data, offset + 2 ) << 16;
+   }
+
+   private static void loginAck( ByteArrayOutputStream out, int version )
+   {
+      // ENVCHANGE database, from master
+      String database = "standin";
+      out.write( 0xE3 );
+      writeShort( out, 1 + 1 + database.length() * 2 + 1 + 6 * 2 );
+      out.write( 1 );
+      out.write( database.length() );
+      writeString( out, database );
+      out.write( 6 );
+      writeString( out, "master" );
+
+      // ENVCHANGE collation Latin1_General_CI_AS
+      out.write( 0xE3 );
+      writeShort( out, 8 );
+      out.write( 7 );
+      out.write( 5 );
+      out.write( new byte[] { 0x09, 0x04, (byte) 0xD0, 0x00, 0x34 }, 0, 5 );
+      out.write( 0 );
+
+      // LOGINACK, the version in network byte order
+      String product = "StandIn";
+      out.write( 0xAD );
+      writeShort( out, 1 + 4 + 1 + product.length() * 2 + 4 );
+      out.write( 1 );
+      out.write( version >>> 24 );
+      out.write( version >> 16 );
+      out.write( version >> 8 );
+      out.write( version );
+      out.write( product.length() );
+      writeString( out, product );
+      out.write( 8 );
+      out.write( 0 );
+      out.write( 0 );
+      out.write( 1 );
+   }
+
+   private static void query( ByteArrayOutputStream out, String sql, int version )
+   {
+      Matcher matcher = SELECT.matcher( sql );
+      int     value;
+
+      if( sql.indexOf( "@@MAX_PRECISION" ) >= 0 )
+      {
+         value = 38;
+      }
+      else if( sql.indexOf( "TOP 0 * FROM" ) >= 0 )
+      {
+         bulkTarget( out, version );
+         return;
+      }
+      else if( version >= TDS73 && sql.indexOf( "TEMPORAL" ) >= 0 )
+      {
+         temporal( out, version );
+         return;
+      }
+      else if( sql.indexOf( "NUMBERS" ) >= 0 )
+      {
+         numbers( out, version );
+         return;
+      }
+      else if( version >= TDS72 && sql.indexOf( "LOBS" ) >= 0 )
+      {
+         lobs( out, version );
+         return;
+      }
+      else if( matcher.find() )
+      {
+         value = Integer.parseInt( matcher.group( 1 ) );
+      }
+      else
+      {
+         done( out, 0, 0, version );
+         return;
+      }
+
+      // COLMETADATA, single INT column
+      out.write( 0x81 );
+      writeShort( out, 1 );
+      column( out, 0x38, -1, "v", version );
+
+      // ROW
+      out.write( 0xD1 );
+      writeInt( out, value );
+
+      done( out, 0x10, 1, version );
+   }
+
+   /**
+    * Writes a result set with the columns <code>id int</code>,
+    * <code>d date</code>, <code>t time(7)</code>, <code>dt2 datetime2(7)</code>,
+    * <code>dto datetimeoffset(7)</code> and <code>n int null</code> and two
+    * NBCROW rows: (1, 2024-02-29, 13:45:30.1234567, 1999-12-31 23:59:59.9999999,
+    * 2024-06-01 12:00:00 +02:00, null) and (2, null, null, null, null, null).
+    */
+   private static void temporal( ByteArrayOutputStream out, int version )
+   {
+      out.write( 0x81 );
+      writeShort( out, 6 );
+      column( out, 0x38, -1, "id" , version );
+      column( out, 0x28, -1, "d"  , version );
+      column( out, 0x29,  7, "t"  , version );
+      column( out, 0x2A,  7, "dt2", version );
+      column( out, 0x2B,  7, "dto", version );
+      column( out, 0x26,  4, "n"  , version );
+
+      // NBCROW, column n is null
+      out.write( 0xD2 );
+      out.write( 0x20 );
+      writeInt( out, 1 );
+      out.write( 3 );
+      writeBytes( out, 738944, 3 );            // days from 0001-01-01 to 2024-02-29
+      out.write( 5 );
+      writeBytes( out, 495301234567L, 5 );     // 13:45:30.1234567 in 100 ns
+      out.write( 8 );
+      writeBytes( out, 863999999999L, 5 );     // 23:59:59.9999999
+      writeBytes( out, 730118, 3 );            // 1999-12-31
+      out.write( 10 );
+      writeBytes( out, 360000000000L, 5 );     // 10:00 UTC
+      writeBytes( out, 739037, 3 );            // 2024-06-01
+      writeShort( out, 120 );
+
+      // NBCROW, all columns but id are null
+      out.write( 0xD2 );
+      out.write( 0x3E );
+      writeInt( out, 2 );
+
+      done( out, 0x10, 2, version );
+   }
+
+   /**
+    * Writes a result set with the columns <code>t tinyint</code>,
+    * <code>s smallint</code>, <code>b bigint</code>, <code>r real</code>,
+    * <code>f float</code>, <code>m money</code>, <code>sm smallmoney</code>,
+    * <code>bt bit</code> and the nullable columns <code>i int</code>,
+    * <code>fn float</code>, <code>mn money</code> and <code>bn bit</code>
+    * and the rows (200, -2, 5000000000, 1.5, -2.25, 12.3456, -1.5, 1, 42,
+    * 3.75, 2.5, 0) and (0, 0, 0, 0, 0, 0, 0, 0, null, null, null, null).
+    */
+   private static void numbers( ByteArrayOutputStream out, int version )
+   {
+      out.write( 0x81 );
+      writeShort( out, 12 );
+      column( out, 0x30, -1, "t" , version );
+      column( out, 0x34, -1, "s" , version );
+      column( out, 0x7F, -1, "b" , version );
+      column( out, 0x3B, -1, "r" , version );
+      column( out, 0x3E, -1, "f" , version );
+      column( out, 0x3C, -1, "m" , version );
+      column( out, 0x7A, -1, "sm", version );
+      column( out, 0x32, -1, "bt", version );
+      column( out, 0x26,  4, "i" , version );
+      column( out, 0x6D,  8, "fn", version );
+      column( out, 0x6E,  8, "mn", version );
+      column( out, 0x68,  1, "bn", version );
+
+      out.write( 0xD1 );
+      out.write( 200 );
+      writeShort( out, -2 );
+      writeBytes( out, 5000000000L, 8 );
+      writeInt( out, Float.floatToIntBits( 1.5f ) );
+      writeBytes( out, Double.doubleToLongBits( -2.25 ), 8 );
+      writeInt( out, 0 );                      // money, high 4 bytes first
+      writeInt( out, 123456 );
+      writeInt( out, -15000 );
+      out.write( 1 );
+      out.write( 4 );
+      writeInt( out, 42 );
+      out.write( 8 );
+      writeBytes( out, Double.doubleToLongBits( 3.75 ), 8 );
+      out.write( 8 );
+      writeInt( out, 0 );
+      writeInt( out, 25000 );
+      out.write( 1 );
+      out.write( 0 );
+
+      out.write( 0xD1 );
+      out.write( new byte[1 + 2 + 8 + 4 + 8 + 8 + 4 + 1], 0, 36 );
+      out.write( new byte[4], 0, 4 );          // length 0 for the nullable columns
+
+      done( out, 0x10, 2, version );
+   }
+
+   /**
+    * Writes a result set with the columns <code>id int</code>,
+    * <code>b varbinary(max)</code>, <code>s nvarchar(max)</code> and
+    * <code>n int null</code> and the rows (1, 0x0102030405, 'hello', 7) and
+    * (2, null, 'x', null). The binary value is sent in two chunks, the
+    * length of the first string is not announced.
+    */
+   private static void lobs( ByteArrayOutputStream out, int version )
+   {
+      out.write( 0x81 );
+      writeShort( out, 4 );
+      column( out, 0x38, -1, "id", version );
+
+      writeUserType( out, version );
+      writeShort( out, 1 );
+      out.write( 0xA5 );
+      writeShort( out, 0xFFFF );
+      out.write( 1 );
+      writeString( out, "b" );
+
+      writeUserType( out, version );
+      writeShort( out, 1 );
+      out.write( 0xE7 );
+      writeShort( out, 0xFFFF );
+      out.write( new byte[] { 0x09, 0x04, (byte) 0xD0, 0x00, 0x34 }, 0, 5 );
+      out.write( 1 );
+      writeString( out, "s" );
+
+      column( out, 0x26, 4, "n", version );
+
+      out.write( 0xD1 );
+      writeInt( out, 1 );
+      writeBytes( out, 5, 8 );
+      writeInt( out, 3 );
+      out.write( new byte[] { 1, 2, 3 }, 0, 3 );
+      writeInt( out, 2 );
+      out.write( new byte[] { 4, 5 }, 0, 2 );
+      writeInt( out, 0 );
+      writeBytes( out, -2, 8 );
+      writeInt( out, 10 );
+      writeString( out, "hello" );
+      writeInt( out, 0 );
+      out.write( 4 );
+      writeInt( out, 7 );
+
+      out.write( 0xD1 );
+      writeInt( out, 2 );
+      writeBytes( out, -1, 8 );
+      writeBytes( out, 2, 8 );
+      writeInt( out, 2 );
+      writeString( out, "x" );
+      writeInt( out, 0 );
+      out.write( 0 );
+
+      done( out, 0x10, 2, version );
+   }
+
+   /**
+    * Writes an empty result set with the columns <code>id int identity</code>,
+    * <code>n int null</code>, <code>s nvarchar(10) null</code>,
+    * <code>d decimal(10,2) not null</code> and <code>t datetime null</code>.
+    */
+   private static void bulkTarget( ByteArrayOutputStream out, int version )
+   {
+      out.write( 0x81 );
+      writeShort( out, 5 );
+
+      // identity, not nullable
+      writeUserType( out, version );
+      writeShort( out, 0x10 );
+      out.write( 0x38 );
+      out.write( 2 );
+      writeString( out, "id" );
+
+      column( out, 0x26, 4, "n", version );
+
+      writeUserType( out, version );
+      writeShort( out, 0x09 );
+      out.write( 0xE7 );
+      writeShort( out, 20 );
+      out.write( new byte[] { 0x09, 0x04, (byte) 0xD0, 0x00, 0x34 }, 0, 5 );
+      out.write( 1 );
+      writeString( out, "s" );
+
+      writeUserType( out, version );
+      writeShort( out, 0x08 );
+      out.write( 0x6A );
+      out.write( 17 );
+      out.write( 10 );
+      out.write( 2 );
+      out.write( 1 );
+      writeString( out, "d" );
+
+      column( out, 0x6F, 8, "t", version );
+
+      done( out, 0x10, 0, version );
+   }
+
+   /**
+    * Decodes a bulk load request with columns of the types sent for
+    * {@link #bulkTarget} and keeps its rows.
+    *
+    * @return
+    *    the number of rows received
+    */
+   private int bulkLoad( byte[] request, int version )
+      throws IOException
+   {
+      DataInputStream in = new DataInputStream( new ByteArrayInputStream( request ) );
+
+      if( in.read() != 0x81 )
+      {
+         throw new IOException( "COLMETADATA expected" );
+      }
+
+      int   count = readShort( in );
+      int[] types = new int[count];
+      int[] scale = new int[count];
+
+      for( int i = 0; i < count; i ++ )
+      {
+         in.skipBytes( version >= TDS72 ? 6 : 4 );
+         types[i] = in.read();
+
+         switch( types[i] )
+         {
+            case 0xE7:
+               in.skipBytes( 7 );
+               break;
+            case 0x6A:
+               in.skipBytes( 2 );
+               scale[i] = in.read();
+               break;
+            default:
+               in.skipBytes( 1 );
+         }
+
+         in.skipBytes( in.read() * 2 );
+      }
+
+      int rows = 0;
+
+      while( in.read() == 0xD1 )
+      {
+         Object[] row = new Object[count];
+
+         for( int i = 0; i < count; i ++ )
+         {
+            int len = types[i] == 0xE7 ? readShort( in ) : in.read();
+
+            if( types[i] == 0xE7 ? len == 0xFFFF : len == 0 )
+            {
+               continue;
+            }
+
+            byte[] value = new byte[len];
+            in.readFully( value );
+
+            switch( types[i] )
+            {
+               case 0x26:
+                  row[i] = Long.valueOf( readLong( value, 0, len ) );
+                  break;
+               case 0xE7:
+                  row[i] = new String( value, "UTF-16LE" );
+                  break;
+               case 0x6A:
+                  byte[] magnitude = new byte[len - 1];
+
+                  for( int j = 1; j < len; j ++ )
+                  {
+                     magnitude[len - 1 - j] = value[j];
+                  }
+
+                  BigInteger unscaled = new BigInteger( 1, magnitude );
+                  row[i] = new BigDecimal( value[0] == 0 ? unscaled.negate() : unscaled, scale[i] );
+                  break;
+               case 0x6F:
+                  row[i] = new DateTime( (int) readLong( value, 0, 4 ), (int) readLong( value, 4, 4 ) ).toTimestamp();
+                  break;
+               default:
+                  row[i] = value;
+            }
+         }
+
+         _BulkRows.add( row );
+         rows ++;
+      }
+
+      return rows;
+   }
+
+   private static long readLong( byte[] value, int offset, int length )
+   {
+      long result = 0;
+
+      for( int i = 0; i < length; i ++ )
+      {
+         result |= (long) ( value[offset + i] & 0xFF ) << i * 8;
+      }
+
+      // sign extension
+      return length < 8 ? result << 64 - length * 8 >> 64 - length * 8 : result;
+   }
+
+   private static int readShort( DataInputStream in )
+      throws IOException
+   {
+      return in.read() | in.read() << 8;
+   }
+
+   private static void writeUserType( ByteArrayOutputStream out, int version )
+   {
+      writeShort( out, 0 );
+
+      if( version >= TDS72 )
+      {
+         writeShort( out, 0 );
+      }
+   }
+
+   /**
+    * Writes the COLMETADATA entry of a nullable column.
+    *
+    * @param size
+    *    the length or scale of the type or -1 if none is sent
+    */
+   private static void column( ByteArrayOutputStream out, int type, int size, String name, int version )
+   {
+      // user type, 4 bytes since TDS 7.2
+      writeUserType( out, version );
+      writeShort( out, 1 );
+      out.write( type );
+
+      if( size >= 0 )
+      {
+         out.write( size );
+      }
+
+      out.write( name.length() );
+      writeString( out, name );
+   }
+
+   private static void done( ByteArrayOutputStream out, int status, int count, int version )
+   {
+      done( out, status, 0xC1, count, version );
+   }
+
+   /**
+    * Writes a DONE token.
+    *
+    * @param command
+    *    the command the DONE token is sent for, e.g. 0xC1 (SELECT) or 0xC3
+    *    (INSERT)
+    */
+   private static void done( ByteArrayOutputStream out, int status, int command, int count, int version )
+   {
+      out.write( 0xFD );
+      writeShort( out, status );
+      writeShort( out, command );
+      writeInt( out, count );
+
+      if( version >= TDS72 )
+      {
+         // 8 byte row count since TDS 7.2
+         writeInt( out, 0 );
+      }
+   }
+
+   private static void writeBytes( ByteArrayOutputStream out, long value, int length )
+   {
+      for( int i = 0; i < length; i ++ )
+      {
+         out.write( (int) ( value >> i * 8 ) );
+      }
+   }
+
+   private static void writeShort( ByteArrayOutputStream out, int value )
+   {
+      out.write( value );
+      out.write( value >> 8 );
+   }
+
+   private static void writeInt( ByteArrayOutputStream out, int value )
+   {
+      writeShort( out, value );
+      writeShort( out, value >> 16 );
+   }
+
+   private static void writeString( ByteArrayOutputStream out, String value )
+   {
+      for( int i = 0; i < value.length(); i ++ )
+      {
+         writeShort( out, value.charAt( i ) );
+      }
+   }
+
+}
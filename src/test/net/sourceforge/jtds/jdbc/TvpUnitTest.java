@@ -0,0 +1,201 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+
+/**
+ * Tests the encoding of table-valued parameters against a
+ * {@link TdsStandInServer}.
+ */
+public class TvpUnitTest extends StandInTestCase
+{
+
+   /**
+    * expected TVP data of the table created by {@link #table()}
+    */
+   private static final String TVP = "F3" + "00" + "03640062006F00" + "06490064004C00690073007400" + "0200"
+                                   + "00000000" + "0900" + "26" + "04" + "00"
+                                   + "00000000" + "0900" + "E7" + "1400" + "%s" + "00"
+                                   + "00"
+                                   + "01" + "04" + "01000000" + "0200" + "6100"
+                                   + "01" + "00" + "FFFF"
+                                   + "00";
+
+   /**
+    * Test that a table passed to a stored procedure is sent as TVP.
+    */
+   public void testCallableStatement()
+      throws Exception
+   {
+      Connection connection = connect( "7.3" );
+      CallableStatement cstmt = connection.prepareCall( "{call dbo.p(?)}" );
+      cstmt.setObject( 1, table() );
+      cstmt.execute();
+
+      assertEquals( 1, _Server.getRpcRequests().size() );
+      assertTrue( Support.toHex( _Server.getRpcRequests().get( 0 ) ).contains( expected( connection ) ) );
+      connection.close();
+   }
+
+   /**
+    * Test that the parameter is declared as <code>READONLY</code> for
+    * <code>sp_executesql</code>.
+    */
+   public void testPreparedStatement()
+      throws Exception
+   {
+      Connection connection = connect( "7.4;prepareSQL=2" );
+      PreparedStatement pstmt = connection.prepareStatement( "SELECT * FROM ?" );
+      pstmt.setObject( 1, table(), JtdsStatement.STRUCTURED );
+      pstmt.execute();
+
+      String request = Support.toHex( _Server.getRpcRequests().get( 0 ) );
+      assertTrue( request.contains( Support.toHex( "@P0 dbo.IdList READONLY".getBytes( "UTF-16LE" ) ) ) );
+      assertTrue( request.contains( expected( connection ) ) );
+      connection.close();
+   }
+
+   /**
+    * Test that each set of parameters of a batch is sent with its own table.
+    */
+   public void testBatch()
+      throws Exception
+   {
+      Connection connection = connect( "7.3" );
+      CallableStatement cstmt = connection.prepareCall( "{call dbo.p(?)}" );
+      cstmt.setObject( 1, table() );
+      cstmt.addBatch();
+
+      JtdsDataTable second = table();
+      second.clear();
+      second.addRow( 2, "b" );
+      cstmt.setObject( 1, second );
+      cstmt.addBatch();
+      cstmt.executeBatch();
+
+      StringBuilder requests = new StringBuilder();
+      List<byte[]> rpcs = _Server.getRpcRequests();
+
+      synchronized( rpcs )
+      {
+         for( byte[] rpc : rpcs )
+         {
+            requests.append( Support.toHex( rpc ) );
+         }
+      }
+
+      assertTrue( requests.toString().contains( expected( connection ) ) );
+      assertTrue( requests.toString().contains( "01" + "04" + "02000000" + "0200" + "6200" + "00" ) );
+      connection.close();
+   }
+
+   /**
+    * Test the errors raised for unsupported uses.
+    */
+   public void testErrors()
+      throws Exception
+   {
+      Connection connection = connect( "8.0" );
+      CallableStatement cstmt = connection.prepareCall( "{call dbo.p(?)}" );
+      cstmt.setObject( 1, table() );
+      assertSQLState( "HYC00", cstmt );
+      connection.close();
+
+      connection = connect( "7.3;prepareSQL=0" );
+      PreparedStatement pstmt = connection.prepareStatement( "SELECT * FROM ?" );
+      pstmt.setObject( 1, table() );
+      assertSQLState( "HYC00", pstmt );
+
+      cstmt = connection.prepareCall( "{call dbo.p(?)}" );
+      cstmt.setNull( 1, JtdsStatement.STRUCTURED );
+      assertSQLState( "HY009", cstmt );
+
+      JtdsDataTable table = table();
+      table.addRow( "x", null );
+      cstmt.setObject( 1, table );
+      assertSQLState( "22000", cstmt );
+      connection.close();
+
+      try
+      {
+         table.addRow( 1 );
+         fail();
+      }
+      catch( IllegalArgumentException e )
+      {
+         // expected
+      }
+   }
+
+   /**
+    * Test that qualified and quoted type names are split.
+    */
+   public void testTypeName()
+   {
+      JtdsDataTable table = new JtdsDataTable( "[my schema].[a.b]" );
+      assertEquals( "my schema", table.getSchemaName() );
+      assertEquals( "a.b", table.getTableTypeName() );
+
+      table = new JtdsDataTable( "IdList" );
+      assertEquals( "", table.getSchemaName() );
+      assertEquals( "IdList", table.getTableTypeName() );
+   }
+
+   private static JtdsDataTable table()
+      throws SQLException
+   {
+      JtdsDataTable table = new JtdsDataTable( "dbo.IdList" );
+      table.addColumn( "id", Types.INTEGER );
+      table.addColumn( "name", Types.VARCHAR, 10, 0 );
+      table.addRow( 1, "a" );
+      table.addRow( null, null );
+      return table;
+   }
+
+   private static void assertSQLState( String state, PreparedStatement stmt )
+   {
+      try
+      {
+         stmt.execute();
+         fail( "expected " + state );
+      }
+      catch( SQLException e )
+      {
+         assertEquals( state, e.getSQLState() );
+      }
+   }
+
+   private static String expected( Connection connection )
+   {
+      return String.format( TVP, Support.toHex( ( (JtdsConnection) connection ).getCollation() ) );
+   }
+
+   private Connection connect( String tds )
+      throws SQLException
+   {
+      return DriverManager.getConnection( _Server.getURL().replace( "tds=8.0", "tds=" + tds ) );
+   }
+
+}
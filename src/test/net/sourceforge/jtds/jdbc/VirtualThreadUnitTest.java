@@ -0,0 +1,183 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the driver from thousands of virtual threads against a
+ * {@link TdsStandInServer}. On Java versions without virtual threads a
+ * smaller number of platform threads is used instead.
+ */
+public class VirtualThreadUnitTest extends StandInTestCase
+{
+
+   private ExecutorService _Executor;
+
+   private boolean         _Virtual;
+
+   protected void setUp()
+      throws Exception
+   {
+      super.setUp();
+
+      try
+      {
+         _Executor = (ExecutorService) Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+         _Virtual  = true;
+      }
+      catch( Exception e )
+      {
+         // Java < 21, fall back to platform threads
+         _Executor = Executors.newFixedThreadPool( 50 );
+      }
+   }
+
+   protected void tearDown()
+      throws Exception
+   {
+      _Executor.shutdownNow();
+      super.tearDown();
+   }
+
+   /**
+    * Test many threads sharing a single connection.
+    */
+   public void testSharedConnection()
+      throws Exception
+   {
+      final Connection connection = DriverManager.getConnection( _Server.getURL() );
+
+      try
+      {
+         List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+
+         for( int i = 0; i < ( _Virtual ? 5000 : 500 ); i ++ )
+         {
+            final int value = i;
+
+            tasks.add( new Callable<Integer>()
+            {
+               public Integer call()
+                  throws Exception
+               {
+                  return query( connection, value );
+               }
+            } );
+         }
+
+         assertResults( tasks );
+      }
+      finally
+      {
+         connection.close();
+      }
+   }
+
+   /**
+    * Test many threads each using its own connection.
+    */
+   public void testConnectionPerThread()
+      throws Exception
+   {
+      List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+
+      for( int i = 0; i < ( _Virtual ? 1000 : 100 ); i ++ )
+      {
+         final int value = i;
+
+         tasks.add( new Callable<Integer>()
+         {
+            public Integer call()
+               throws Exception
+            {
+               Connection connection = DriverManager.getConnection( _Server.getURL() );
+
+               try
+               {
+                  int result = 0;
+
+                  for( int j = 0; j < 5; j ++ )
+                  {
+                     result = query( connection, value );
+                  }
+
+                  return result;
+               }
+               finally
+               {
+                  connection.close();
+               }
+            }
+         } );
+      }
+
+      assertResults( tasks );
+      assertEquals( tasks.size(), _Server.getConnectionCount() );
+   }
+
+   /**
+    * Executes all tasks and checks that task <i>i</i> returned <i>i</i>.
+    */
+   private void assertResults( List<Callable<Integer>> tasks )
+      throws Exception
+   {
+      List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+
+      for( Callable<Integer> task : tasks )
+      {
+         results.add( _Executor.submit( task ) );
+      }
+
+      for( int i = 0; i < results.size(); i ++ )
+      {
+         assertEquals( i, results.get( i ).get( 60, TimeUnit.SECONDS ).intValue() );
+      }
+   }
+
+   private static int query( Connection connection, int value )
+      throws Exception
+   {
+      Statement statement = connection.createStatement();
+
+      try
+      {
+         ResultSet rs = statement.executeQuery( "SELECT " + value );
+         assertTrue( rs.next() );
+         int result = rs.getInt( 1 );
+         assertFalse( rs.next() );
+         rs.close();
+         return result;
+      }
+      finally
+      {
+         statement.close();
+      }
+   }
+
+}
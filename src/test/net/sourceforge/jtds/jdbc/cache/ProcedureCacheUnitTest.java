@@ -0,0 +1,208 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc.cache;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+import net.sourceforge.jtds.jdbc.ProcEntry;
+
+/**
+ * Tests the bounds and the statistics of the {@link ProcedureCache}.
+ */
+public class ProcedureCacheUnitTest extends TestCase
+{
+
+   /**
+    * Test that the least recently used entry is released once the cache
+    * holds too many entries.
+    */
+   public void testLeastRecentlyUsed()
+   {
+      ProcedureCache cache = new ProcedureCache( 2 );
+      ProcEntry a = put( cache, "a" );
+      ProcEntry b = put( cache, "b" );
+      assertNull( cache.getObsoleteHandles( Arrays.asList( a, b ) ) );
+
+      assertSame( a, cache.get( "a" ) );
+      cache.getObsoleteHandles( Collections.singleton( a ) );
+      put( cache, "c" );
+
+      assertEquals( Collections.singletonList( b ), cache.getObsoleteHandles( null ) );
+      assertNull( cache.get( "b" ) );
+      assertEquals( 2, cache.size() );
+      assertEquals( 1, cache.getHitCount() );
+      assertEquals( 1, cache.getMissCount() );
+      assertEquals( 1, cache.getEvictionCount() );
+   }
+
+   /**
+    * Test that entries are released once their estimated memory exceeds the
+    * limit.
+    */
+   public void testMemory()
+   {
+      ProcedureCache cache = new ProcedureCache( 100, 1000 );
+      char[] sql = new char[300];
+      Arrays.fill( sql, 'x' );
+
+      ProcEntry a = put( cache, "a" + new String( sql ) );
+      cache.getObsoleteHandles( Collections.singleton( a ) );
+      assertTrue( cache.getEstimatedMemory() > 600 );
+
+      ProcEntry b = put( cache, "b" + new String( sql ) );
+      assertEquals( Collections.singletonList( a ), cache.getObsoleteHandles( Collections.singleton( b ) ) );
+      assertEquals( 1, cache.size() );
+      assertTrue( cache.getEstimatedMemory() <= 1000 );
+      assertEquals( 1, cache.getEvictionCount() );
+   }
+
+   /**
+    * Test that entries in use are kept and counted until they are released.
+    */
+   public void testInUse()
+   {
+      ProcedureCache cache = new ProcedureCache( 1 );
+      ProcEntry a = put( cache, "a" );
+      ProcEntry b = put( cache, "b" );
+
+      assertEquals( 2, cache.size() );
+      assertEquals( 0, cache.getEvictionCount() );
+
+      // each entry is only counted once while it remains in use
+      long inUse = cache.getInUseEvictionCount();
+      assertTrue( inUse > 0 );
+
+      for( int i = 0; i < 3; i ++ )
+      {
+         assertNull( cache.getObsoleteHandles( null ) );
+      }
+
+      assertEquals( inUse, cache.getInUseEvictionCount() );
+
+      Collection obsolete = cache.getObsoleteHandles( Collections.singleton( a ) );
+      assertEquals( Collections.singletonList( a ), obsolete );
+      assertSame( b, cache.get( "b" ) );
+      assertEquals( 1, cache.getEvictionCount() );
+   }
+
+   /**
+    * Test that fast caching never releases any entries.
+    */
+   public void testFastCaching()
+   {
+      ProcedureCache cache = new ProcedureCache( Integer.MAX_VALUE, 1 );
+
+      for( int i = 0; i < 10; i ++ )
+      {
+         ProcEntry entry = put( cache, "sql" + i );
+         assertNull( cache.getObsoleteHandles( Collections.singleton( entry ) ) );
+      }
+
+      assertEquals( 10, cache.size() );
+   }
+
+   /**
+    * Test that an entry evicted by one thread is never acquired by another
+    * thread looking it up concurrently.
+    */
+   public void testConcurrentEviction()
+      throws Exception
+   {
+      final ProcedureCache cache = new ProcedureCache( 4 );
+      final Set<ProcEntry> evicted = Collections.newSetFromMap( new ConcurrentHashMap<ProcEntry,Boolean>() );
+      final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+      Thread[] threads = new Thread[8];
+
+      for( int t = 0; t < threads.length; t ++ )
+      {
+         final int seed = t;
+
+         threads[t] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  for( int i = 0; i < 20000; i ++ )
+                  {
+                     String key = "sql" + ( i * 7 + seed ) % 16;
+                     ProcEntry entry = (ProcEntry) cache.get( key );
+
+                     if( entry == null )
+                     {
+                        entry = new ProcEntry();
+                        entry.setName( key );
+                        entry.setType( ProcEntry.PREPARE );
+                        cache.put( key, entry );
+                     }
+                     else if( entry.getRefCount() <= 0 || evicted.contains( entry ) )
+                     {
+                        throw new AssertionError( "evicted entry " + key + " acquired" );
+                     }
+
+                     Collection<?> obsolete = cache.getObsoleteHandles( Collections.singleton( entry ) );
+
+                     if( obsolete != null )
+                     {
+                        for( Object handle : obsolete )
+                        {
+                           evicted.add( (ProcEntry) handle );
+                        }
+                     }
+                  }
+               }
+               catch( Throwable e )
+               {
+                  error.compareAndSet( null, e );
+               }
+            }
+         };
+
+         threads[t].start();
+      }
+
+      for( Thread thread : threads )
+      {
+         thread.join();
+      }
+
+      assertNull( error.get() );
+      assertFalse( evicted.isEmpty() );
+
+      for( ProcEntry entry : evicted )
+      {
+         assertEquals( -1, entry.getRefCount() );
+      }
+   }
+
+   private static ProcEntry put( ProcedureCache cache, String key )
+   {
+      ProcEntry entry = new ProcEntry();
+      entry.setName( key.substring( 0, 1 ) );
+      entry.setType( ProcEntry.PREPARE );
+      cache.put( key, entry );
+      return entry;
+   }
+
+}
@@ -0,0 +1,149 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.jdbc.cache;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the {@link StripedLRUCache}.
+ */
+public class StripedLRUCacheUnitTest extends TestCase
+{
+
+   /**
+    * Test that the least recently used entry of a segment is removed.
+    */
+   public void testLeastRecentlyUsed()
+   {
+      StripedLRUCache<Integer,String> cache = new StripedLRUCache<Integer,String>( 2, 1 );
+      cache.put( 1, "1" );
+      cache.put( 2, "2" );
+      assertEquals( "1", cache.get( 1 ) );
+      cache.put( 3, "3" );
+
+      assertNull( cache.get( 2 ) );
+      assertEquals( "1", cache.get( 1 ) );
+      assertEquals( "3", cache.get( 3 ) );
+      assertEquals( 2, cache.size() );
+   }
+
+   /**
+    * Test that the size of the cache is bounded by its limit, rounded up to
+    * a multiple of the number of segments.
+    */
+   public void testLimit()
+   {
+      StripedLRUCache<Integer,Integer> cache = new StripedLRUCache<Integer,Integer>( 100, 4 );
+
+      for( int i = 0; i < 1000; i ++ )
+      {
+         cache.put( i, i );
+      }
+
+      assertEquals( 100, cache.size() );
+
+      cache.setLimit( 400 );
+      assertEquals( 400, cache.getLimit() );
+
+      for( int i = 0; i < 1000; i ++ )
+      {
+         cache.put( i, i );
+      }
+
+      assertEquals( 400, cache.size() );
+   }
+
+   /**
+    * Test the hit and miss counters.
+    */
+   public void testHitRate()
+   {
+      StripedLRUCache<String,String> cache = new StripedLRUCache<String,String>( 10 );
+      assertEquals( 0.0, cache.getHitRate(), 0 );
+
+      assertNull( cache.get( "a" ) );
+      cache.put( "a", "A" );
+
+      for( int i = 0; i < 3; i ++ )
+      {
+         assertEquals( "A", cache.get( "a" ) );
+      }
+
+      assertEquals( 3, cache.getHitCount() );
+      assertEquals( 1, cache.getMissCount() );
+      assertEquals( 0.75, cache.getHitRate(), 0 );
+   }
+
+   /**
+    * Test concurrent use of the cache by several threads.
+    */
+   public void testConcurrency()
+      throws Exception
+   {
+      final StripedLRUCache<Integer,Integer> cache = new StripedLRUCache<Integer,Integer>( 500, 16 );
+      final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+      Thread[] threads = new Thread[8];
+
+      for( int t = 0; t < threads.length; t ++ )
+      {
+         final int seed = t;
+
+         threads[t] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  for( int i = 0; i < 20000; i ++ )
+                  {
+                     Integer key = ( i * 31 + seed ) % 1000;
+                     Integer value = cache.get( key );
+
+                     if( value == null )
+                     {
+                        cache.put( key, key );
+                     }
+                     else if( ! value.equals( key ) )
+                     {
+                        throw new AssertionError( "wrong value " + value + " for key " + key );
+                     }
+                  }
+               }
+               catch( Throwable e )
+               {
+                  error.set( e );
+               }
+            }
+         };
+
+         threads[t].start();
+      }
+
+      for( Thread thread : threads )
+      {
+         thread.join();
+      }
+
+      assertNull( error.get() );
+      assertTrue( cache.size() <= 512 );
+      assertEquals( 8 * 20000, cache.getHitCount() + cache.getMissCount() );
+   }
+
+}
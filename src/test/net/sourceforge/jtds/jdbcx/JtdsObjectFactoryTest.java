@@ -112,6 +112,22 @@ public class JtdsObjectFactoryTest extends UnitTestBase
       assertFalse ( ds.getUseNTLMV2() );
       assertNull  ( ds.getUser() );
       assertNull  ( ds.getWsid() );
+      assertFalse ( ds.getUseNIO() );
+      assertFalse ( ds.getSharedPacketPool() );
+      assertFalse ( ds.getBufferMappedFile() );
+      assertNull  ( ds.getBufferGroup() );
+      assertEquals( 0, ds.getBufferGroupMaxMemory() );
+      assertEquals( 0, ds.getBufferConnectionMaxMemory() );
+      assertFalse ( ds.getUseMARS() );
+      assertFalse ( ds.getAdaptivePacketSize() );
+      assertFalse ( ds.getStreamLOBs() );
+      assertFalse ( ds.getLazyRows() );
+      assertFalse ( ds.getCursorPrefetch() );
+      assertFalse ( ds.getAdaptiveFetch() );
+      assertFalse ( ds.getUsePrepExec() );
+      assertFalse ( ds.getDeferCleanup() );
+      assertEquals( 0, ds.getMaxStatementMemory() );
+      assertEquals( 0, ds.getParserCacheSize() );
       assertFalse ( ds.getXaEmulation() );
    }
 
@@ -162,6 +178,22 @@ public class JtdsObjectFactoryTest extends UnitTestBase
       defaults.put( Driver.USEKERBEROS                  , DefaultProperties.USEKERBEROS           );
       defaults.put( Driver.USER                         , DefaultProperties.USER                  );
       defaults.put( Driver.WSID                         , DefaultProperties.WSID                  );
+      defaults.put( Driver.USENIO                       , DefaultProperties.USENIO                );
+      defaults.put( Driver.SHAREDPACKETPOOL             , DefaultProperties.SHARED_PACKET_POOL    );
+      defaults.put( Driver.BUFFERMAPPEDFILE             , DefaultProperties.BUFFER_MAPPED_FILE    );
+      defaults.put( Driver.BUFFERGROUP                  , DefaultProperties.BUFFER_GROUP          );
+      defaults.put( Driver.BUFFERGROUPMAXMEMORY         , DefaultProperties.BUFFER_GROUP_MAX_MEMORY);
+      defaults.put( Driver.BUFFERCONNECTIONMAXMEMORY    , DefaultProperties.BUFFER_CONNECTION_MAX_MEMORY);
+      defaults.put( Driver.USEMARS                      , DefaultProperties.USE_MARS              );
+      defaults.put( Driver.ADAPTIVEPACKETSIZE           , DefaultProperties.ADAPTIVE_PACKET_SIZE  );
+      defaults.put( Driver.STREAMLOBS                   , DefaultProperties.STREAM_LOBS           );
+      defaults.put( Driver.LAZYROWS                     , DefaultProperties.LAZY_ROWS             );
+      defaults.put( Driver.CURSORPREFETCH               , DefaultProperties.CURSOR_PREFETCH       );
+      defaults.put( Driver.ADAPTIVEFETCH                , DefaultProperties.ADAPTIVE_FETCH        );
+      defaults.put( Driver.USEPREPEXEC                  , DefaultProperties.USE_PREPEXEC          );
+      defaults.put( Driver.DEFERCLEANUP                 , DefaultProperties.DEFER_CLEANUP         );
+      defaults.put( Driver.MAXSTMTMEMORY                , DefaultProperties.MAX_STATEMENT_MEMORY  );
+      defaults.put( Driver.PARSERCACHE                  , DefaultProperties.PARSER_CACHE_SIZE     );
       defaults.put( Driver.XAEMULATION                  , DefaultProperties.XAEMULATION           );
 
       JtdsObjectFactory jtdsObjectFactory = new JtdsObjectFactory();
@@ -214,6 +246,22 @@ public class JtdsObjectFactoryTest extends UnitTestBase
       ds.setUseNTLMV2                    ( true   ); assertEquals( true  , ds.getUseNTLMV2()                     );
       ds.setUser                         ( "1234" ); assertEquals( "1234", ds.getUser()                          );
       ds.setWsid                         ( "1234" ); assertEquals( "1234", ds.getWsid()                          );
+      ds.setUseNIO                       ( true   ); assertEquals( true  , ds.getUseNIO()                        );
+      ds.setSharedPacketPool             ( true   ); assertEquals( true  , ds.getSharedPacketPool()              );
+      ds.setBufferMappedFile             ( true   ); assertEquals( true  , ds.getBufferMappedFile()              );
+      ds.setBufferGroup                  ( "1234" ); assertEquals( "1234", ds.getBufferGroup()                   );
+      ds.setBufferGroupMaxMemory         ( 123456 ); assertEquals( 123456, ds.getBufferGroupMaxMemory()          );
+      ds.setBufferConnectionMaxMemory    ( 123456 ); assertEquals( 123456, ds.getBufferConnectionMaxMemory()     );
+      ds.setUseMARS                      ( true   ); assertEquals( true  , ds.getUseMARS()                       );
+      ds.setAdaptivePacketSize           ( true   ); assertEquals( true  , ds.getAdaptivePacketSize()            );
+      ds.setStreamLOBs                   ( true   ); assertEquals( true  , ds.getStreamLOBs()                    );
+      ds.setLazyRows                     ( true   ); assertEquals( true  , ds.getLazyRows()                      );
+      ds.setCursorPrefetch               ( true   ); assertEquals( true  , ds.getCursorPrefetch()                );
+      ds.setAdaptiveFetch                ( true   ); assertEquals( true  , ds.getAdaptiveFetch()                 );
+      ds.setUsePrepExec                  ( true   ); assertEquals( true  , ds.getUsePrepExec()                   );
+      ds.setDeferCleanup                 ( true   ); assertEquals( true  , ds.getDeferCleanup()                  );
+      ds.setMaxStatementMemory           ( 123456 ); assertEquals( 123456, ds.getMaxStatementMemory()            );
+      ds.setParserCacheSize              ( 5000   ); assertEquals( 5000  , ds.getParserCacheSize()               );
       ds.setXaEmulation                  ( false  ); assertEquals( false , ds.getXaEmulation()                   );
    }
 
@@ -259,6 +307,22 @@ public class JtdsObjectFactoryTest extends UnitTestBase
       assertEquals( DefaultProperties.USENTLMV2            , String.valueOf( ds.getUseNTLMV2()                     ) );
       assertEquals( DefaultProperties.USER                 , String.valueOf( ds.getUser()                          ) );
       assertEquals( DefaultProperties.WSID                 , String.valueOf( ds.getWsid()                          ) );
+      assertEquals( DefaultProperties.USENIO               , String.valueOf( ds.getUseNIO()                        ) );
+      assertEquals( DefaultProperties.SHARED_PACKET_POOL   , String.valueOf( ds.getSharedPacketPool()              ) );
+      assertEquals( DefaultProperties.BUFFER_MAPPED_FILE   , String.valueOf( ds.getBufferMappedFile()              ) );
+      assertEquals( DefaultProperties.BUFFER_GROUP         , String.valueOf( ds.getBufferGroup()                   ) );
+      assertEquals( DefaultProperties.BUFFER_GROUP_MAX_MEMORY, String.valueOf( ds.getBufferGroupMaxMemory()          ) );
+      assertEquals( DefaultProperties.BUFFER_CONNECTION_MAX_MEMORY, String.valueOf( ds.getBufferConnectionMaxMemory()     ) );
+      assertEquals( DefaultProperties.USE_MARS             , String.valueOf( ds.getUseMARS()                       ) );
+      assertEquals( DefaultProperties.ADAPTIVE_PACKET_SIZE , String.valueOf( ds.getAdaptivePacketSize()            ) );
+      assertEquals( DefaultProperties.STREAM_LOBS          , String.valueOf( ds.getStreamLOBs()                    ) );
+      assertEquals( DefaultProperties.LAZY_ROWS            , String.valueOf( ds.getLazyRows()                      ) );
+      assertEquals( DefaultProperties.CURSOR_PREFETCH      , String.valueOf( ds.getCursorPrefetch()                ) );
+      assertEquals( DefaultProperties.ADAPTIVE_FETCH       , String.valueOf( ds.getAdaptiveFetch()                 ) );
+      assertEquals( DefaultProperties.USE_PREPEXEC         , String.valueOf( ds.getUsePrepExec()                   ) );
+      assertEquals( DefaultProperties.DEFER_CLEANUP        , String.valueOf( ds.getDeferCleanup()                  ) );
+      assertEquals( DefaultProperties.MAX_STATEMENT_MEMORY , String.valueOf( ds.getMaxStatementMemory()            ) );
+      assertEquals( DefaultProperties.PARSER_CACHE_SIZE    , String.valueOf( ds.getParserCacheSize()               ) );
       assertEquals( DefaultProperties.XAEMULATION          , String.valueOf( ds.getXaEmulation()                   ) );
    }
 
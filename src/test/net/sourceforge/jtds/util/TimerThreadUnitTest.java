@@ -0,0 +1,193 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+package net.sourceforge.jtds.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the {@link TimerThread} class.
+ */
+public class TimerThreadUnitTest extends TestCase
+{
+
+   private TimerThread _Timer;
+
+   protected void setUp()
+   {
+      _Timer = new TimerThread();
+      _Timer.start();
+   }
+
+   protected void tearDown()
+      throws InterruptedException
+   {
+      _Timer.interrupt();
+      _Timer.join( 1000 );
+   }
+
+   /**
+    * Test that a timer fires after its timeout and cannot be cancelled
+    * afterwards.
+    */
+   public void testExpiry()
+      throws Exception
+   {
+      final CountDownLatch fired = new CountDownLatch( 1 );
+      long                 start = System.currentTimeMillis();
+
+      Object timer = _Timer.setTimer( 50, new TimerThread.TimerListener()
+      {
+         public void timerExpired()
+         {
+            fired.countDown();
+         }
+      } );
+
+      assertTrue( fired.await( 2, TimeUnit.SECONDS ) );
+      assertTrue( System.currentTimeMillis() - start >= 50 );
+      assertTrue( _Timer.hasExpired( timer ) );
+      assertFalse( _Timer.cancelTimer( timer ) );
+   }
+
+   /**
+    * Test that a cancelled timer does not fire.
+    */
+   public void testCancel()
+      throws Exception
+   {
+      final AtomicInteger fired = new AtomicInteger();
+
+      Object timer = _Timer.setTimer( 50, counter( fired ) );
+
+      assertFalse( _Timer.hasExpired( timer ) );
+      assertTrue( _Timer.cancelTimer( timer ) );
+      assertTrue( _Timer.hasExpired( timer ) );
+      assertFalse( _Timer.cancelTimer( timer ) );
+
+      Thread.sleep( 200 );
+      assertEquals( 0, fired.get() );
+   }
+
+   /**
+    * Test that of many timers armed concurrently exactly the ones not
+    * cancelled fire, including timers longer than a revolution of the wheel
+    * being cancelled.
+    */
+   public void testManyTimers()
+      throws Exception
+   {
+      final AtomicInteger fired  = new AtomicInteger();
+      final AtomicInteger armed  = new AtomicInteger();
+      final AtomicInteger failed = new AtomicInteger();
+      Thread[]            threads = new Thread[20];
+
+      for( int i = 0; i < threads.length; i ++ )
+      {
+         threads[i] = new Thread()
+         {
+            public void run()
+            {
+               for( int j = 0; j < 100; j ++ )
+               {
+                  Object timer = _Timer.setTimer( j % 2 == 0 ? 10 + j : TimerThread.TICK * TimerThread.WHEEL_SIZE * 2, counter( fired ) );
+
+                  if( j % 2 != 0 )
+                  {
+                     // assertions would only end this thread, count instead
+                     if( ! _Timer.cancelTimer( timer ) )
+                     {
+                        failed.incrementAndGet();
+                     }
+                  }
+                  else
+                  {
+                     armed.incrementAndGet();
+                  }
+               }
+            }
+         };
+         threads[i].start();
+      }
+
+      for( int i = 0; i < threads.length; i ++ )
+      {
+         threads[i].join();
+      }
+
+      assertEquals( "timers not cancelled", 0, failed.get() );
+
+      long end = System.currentTimeMillis() + 5000;
+
+      while( fired.get() < armed.get() && System.currentTimeMillis() < end )
+      {
+         Thread.sleep( 10 );
+      }
+
+      Thread.sleep( 100 );
+      assertEquals( armed.get(), fired.get() );
+   }
+
+   /**
+    * Test that the timer thread wakes up for a timer armed while it waits
+    * without any timers.
+    */
+   public void testIdle()
+      throws Exception
+   {
+      final AtomicInteger fired = new AtomicInteger();
+
+      for( int i = 1; i <= 3; i ++ )
+      {
+         _Timer.setTimer( 20, counter( fired ) );
+         Thread.sleep( 300 );
+         assertEquals( i, fired.get() );
+      }
+   }
+
+   /**
+    * Test that invalid timeouts are rejected.
+    */
+   public void testInvalidTimeout()
+   {
+      try
+      {
+         _Timer.setTimer( 0, counter( new AtomicInteger() ) );
+         fail();
+      }
+      catch( IllegalArgumentException e )
+      {
+         // expected
+      }
+   }
+
+   private static TimerThread.TimerListener counter( final AtomicInteger count )
+   {
+      return new TimerThread.TimerListener()
+      {
+         public void timerExpired()
+         {
+            count.incrementAndGet();
+         }
+      };
+   }
+
+}
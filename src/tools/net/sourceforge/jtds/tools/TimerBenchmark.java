@@ -0,0 +1,242 @@
+// jTDS JDBC Driver for Microsoft SQL Server and Sybase
+// Copyright (C) 2004 The jTDS Project
+//
+// This library is free software; you can redistribute it and/or
+// modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation; either
+// version 2.1 of the License, or (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package net.sourceforge.jtds.tools;
+
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.concurrent.CountDownLatch;
+
+import net.sourceforge.jtds.util.TimerThread;
+
+/**
+ * Measures the throughput of arming and cancelling query timeouts, the way
+ * <code>TdsCore</code> does around every statement with a query timeout, for
+ * the {@link TimerThread} timing wheel and for the sorted list it replaced.
+ * <p>
+ * Usage: <code>TimerBenchmark [threads [outstanding [seconds]]]</code>
+ * <ul>
+ * <li><code>threads</code> - number of threads arming and cancelling timers
+ *     (default 64)
+ * <li><code>outstanding</code> - number of long running timers armed before
+ *     the measurement, i.e. statements still executing (default 2000)
+ * <li><code>seconds</code> - duration of each measurement (default 5)
+ * </ul>
+ * Each implementation is measured twice, the first run serving as warm-up.
+ */
+public class TimerBenchmark
+{
+
+   /**
+    * Common interface of the measured implementations.
+    */
+   interface Timer
+   {
+      Object set( int timeout, TimerThread.TimerListener listener );
+      boolean cancel( Object handle );
+   }
+
+   private static final TimerThread.TimerListener NOOP = new TimerThread.TimerListener()
+   {
+      public void timerExpired()
+      {
+      }
+   };
+
+   public static void main( String[] args )
+      throws Exception
+   {
+      int threads     = args.length > 0 ? Integer.parseInt( args[0] ) : 64;
+      int outstanding = args.length > 1 ? Integer.parseInt( args[1] ) : 2000;
+      int seconds     = args.length > 2 ? Integer.parseInt( args[2] ) : 5;
+
+      final TimerThread wheel = TimerThread.getInstance();
+
+      Timer[] timers = new Timer[]
+      {
+         new Timer()
+         {
+            public Object set( int timeout, TimerThread.TimerListener listener )
+            {
+               return wheel.setTimer( timeout, listener );
+            }
+
+            public boolean cancel( Object handle )
+            {
+               return wheel.cancelTimer( handle );
+            }
+
+            public String toString()
+            {
+               return "timing wheel";
+            }
+         },
+         new SortedListTimer()
+      };
+
+      System.out.println( "threads=" + threads + ", outstanding=" + outstanding + ", seconds=" + seconds );
+
+      for( int i = 0; i < timers.length; i ++ )
+      {
+         Object[] longRunning = new Object[outstanding];
+
+         for( int j = 0; j < outstanding; j ++ )
+         {
+            // armed before the measured timers, so they expire first
+            longRunning[j] = timers[i].set( 60000, NOOP );
+         }
+
+         run( timers[i], threads, seconds );
+         long ops = run( timers[i], threads, seconds );
+         System.out.println( timers[i] + ": " + ops / seconds + " arm/cancel pairs per second" );
+
+         for( int j = 0; j < outstanding; j ++ )
+         {
+            timers[i].cancel( longRunning[j] );
+         }
+      }
+   }
+
+   /**
+    * Arms and cancels timers from several threads for a period of time.
+    *
+    * @return
+    *    the number of arm/cancel pairs executed
+    */
+   private static long run( final Timer timer, int threads, int seconds )
+      throws InterruptedException
+   {
+      final long           end     = System.currentTimeMillis() + seconds * 1000L;
+      final long[]         counts  = new long[threads];
+      final CountDownLatch done    = new CountDownLatch( threads );
+
+      for( int i = 0; i < threads; i ++ )
+      {
+         final int index = i;
+
+         new Thread()
+         {
+            public void run()
+            {
+               long count = 0;
+
+               while( ( count & 0xFF ) != 0 || System.currentTimeMillis() < end )
+               {
+                  Object handle = timer.set( 60000, NOOP );
+                  timer.cancel( handle );
+                  count ++;
+               }
+
+               counts[index] = count;
+               done.countDown();
+            }
+         }.start();
+      }
+
+      done.await();
+
+      long total = 0;
+
+      for( int i = 0; i < threads; i ++ )
+      {
+         total += counts[i];
+      }
+
+      return total;
+   }
+
+   /**
+    * The timer queue used by <code>TimerThread</code> before the timing wheel,
+    * a list ordered by expiry guarded by a single monitor.
+    */
+   private static class SortedListTimer implements Timer
+   {
+
+      private static class Request
+      {
+         final long time;
+         final TimerThread.TimerListener target;
+
+         Request( int timeout, TimerThread.TimerListener target )
+         {
+            this.time   = System.currentTimeMillis() + timeout;
+            this.target = target;
+         }
+      }
+
+      private final LinkedList<Request> _List = new LinkedList<Request>();
+
+      private long                      _NextTimeout;
+
+      public Object set( int timeout, TimerThread.TimerListener listener )
+      {
+         Request t = new Request( timeout, listener );
+
+         synchronized( _List )
+         {
+            if( _List.isEmpty() || t.time >= _List.getLast().time )
+            {
+               _List.addLast( t );
+            }
+            else
+            {
+               for( ListIterator<Request> li = _List.listIterator(); li.hasNext(); )
+               {
+                  if( t.time < li.next().time )
+                  {
+                     li.previous();
+                     li.add( t );
+                     break;
+                  }
+               }
+            }
+
+            if( _List.getFirst() == t )
+            {
+               _NextTimeout = t.time;
+               _List.notifyAll();
+            }
+         }
+
+         return t;
+      }
+
+      public boolean cancel( Object handle )
+      {
+         Request t = (Request) handle;
+
+         synchronized( _List )
+         {
+            boolean result = _List.remove( t );
+
+            if( _NextTimeout == t.time )
+            {
+               _NextTimeout = _List.isEmpty() ? 0 : _List.getFirst().time;
+            }
+
+            return result;
+         }
+      }
+
+      public String toString()
+      {
+         return "sorted list";
+      }
+
+   }
+
+}